@@ -0,0 +1,175 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Чтения страниц списка заметок во время большой транзакции синхронизации (WAL, см. DatabaseHelper).
+ * Пока писатель держит транзакцию, читатель раз за разом грузит страницу списка; p50/p99 времени чтения
+ * пишутся в logcat (тег "ConcurrentReadsBenchmark") рядом с теми же числами без писателя.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ConcurrentReadsBenchmark {
+
+    private static final String TAG = "ConcurrentReadsBenchmark";
+    private static final String DATABASE_NAME = "concurrent_reads_benchmark.db";
+    private static final int USER_ID = 1;
+    private static final int NOTEPADS_COUNT = 10;
+    private static final int INITIAL_NOTES_COUNT = 5000;
+    private static final int SYNC_NOTES_COUNT = 20000;
+    private static final int IDLE_READS_COUNT = 500;
+    private static final String NOTES_PAGE = StorageKeeper.SELECT_NOTE_LIST_ITEMS + " WHERE notes.user_id = ?" +
+            " ORDER BY notes.creation_date DESC, notes._id DESC LIMIT 50";
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void openDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+        mDatabase.execSQL("INSERT INTO users (_id, login) VALUES (?, 'user@example.com');", new Object[]{USER_ID});
+        for (int notepad = 1; notepad <= NOTEPADS_COUNT; notepad++) {
+            mDatabase.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date) VALUES (?, ?, ?, ?);",
+                    new Object[]{notepad, USER_ID, "notepad " + notepad, notepad});
+        }
+        mDatabase.beginTransaction();
+        try {
+            insertNotes(0, INITIAL_NOTES_COUNT);
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void listReadsDoNotWaitForSync() throws Exception {
+        long[] idleReads = new long[IDLE_READS_COUNT];
+        for (int i = 0; i < IDLE_READS_COUNT; i++) {
+            idleReads[i] = readNotesPage();
+        }
+
+        final long[] syncMillis = new long[1];
+        final AtomicInteger transactionState = new AtomicInteger();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                //так же, как синхронизация: одна IMMEDIATE-транзакция на всю пачку.
+                mDatabase.beginTransactionNonExclusive();
+                try {
+                    insertNotes(INITIAL_NOTES_COUNT, 1);
+                    transactionState.set(1);
+                    insertNotes(INITIAL_NOTES_COUNT + 1, SYNC_NOTES_COUNT - 1);
+                    mDatabase.setTransactionSuccessful();
+                }
+                finally {
+                    mDatabase.endTransaction();
+                    transactionState.set(2);
+                }
+                syncMillis[0] = (System.nanoTime() - start) / 1000000;
+            }
+        });
+        writer.start();
+        while (transactionState.get() == 0) {
+            Thread.yield();
+        }
+
+        long[] syncReads = new long[SYNC_NOTES_COUNT];
+        int syncReadsCount = 0;
+        int readsInsideTransaction = 0;
+        while (transactionState.get() == 1 && syncReadsCount < syncReads.length) {
+            syncReads[syncReadsCount++] = readNotesPage();
+            if (transactionState.get() == 1) {
+                readsInsideTransaction++;
+            }
+        }
+        writer.join();
+        syncReads = Arrays.copyOf(syncReads, syncReadsCount);
+
+        assertEquals(INITIAL_NOTES_COUNT + SYNC_NOTES_COUNT, countNotes());
+        //с журналом отката первое же чтение ждало бы конца транзакции.
+        assertTrue("no reads finished while the sync transaction was open", readsInsideTransaction > 1);
+        Log.i(TAG, "idle: " + IDLE_READS_COUNT + " reads, p50 " + percentile(idleReads, 50) + " us, p99 " +
+                percentile(idleReads, 99) + " us");
+        Log.i(TAG, "during a " + SYNC_NOTES_COUNT + "-note sync transaction (" + syncMillis[0] + " ms): " + syncReadsCount +
+                " reads (" + readsInsideTransaction + " inside it), p50 " + percentile(syncReads, 50) + " us, p99 " +
+                percentile(syncReads, 99) + " us");
+    }
+
+    private void insertNotes(int firstNote, int count) {
+        SQLiteStatement insert = mDatabase.compileStatement("INSERT INTO notes (notepad_id, user_id, title, creation_date, text, " +
+                "preview, text_length) VALUES (?, ?, ?, ?, ?, ?, ?);");
+        try {
+            for (int note = firstNote; note < firstNote + count; note++) {
+                String text = "text of note " + note;
+                insert.bindLong(1, note % NOTEPADS_COUNT + 1);
+                insert.bindLong(2, USER_ID);
+                insert.bindString(3, "note " + note);
+                insert.bindLong(4, 1500000000000L + note);
+                insert.bindString(5, text);
+                insert.bindString(6, text);
+                insert.bindLong(7, text.length());
+                insert.executeInsert();
+            }
+        }
+        finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * @return сколько микросекунд грузилась страница.
+     */
+    private long readNotesPage() {
+        long start = System.nanoTime();
+        try (Cursor cursor = mDatabase.rawQuery(NOTES_PAGE, new String[]{Integer.toString(USER_ID)})) {
+            int titleIndex = cursor.getColumnIndex("title");
+            while (cursor.moveToNext()) {
+                cursor.getString(titleIndex);
+            }
+        }
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    private int countNotes() {
+        try (Cursor cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM notes", null)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private static long percentile(long[] times, int percent) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
@@ -0,0 +1,173 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.portallium.notekeeper.beans.Note;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Разбор 100000 рядов notes: так, как StorageKeeperCursorWrapper делал раньше (getColumnIndex на каждую колонку каждого ряда),
+ * нынешним parseNote (индексы ищутся один раз) и обходчиком forEachRow, которому нужны только id и дата.
+ * Для сравнения меряется и голый проход по курсору: он входит во все три числа.
+ * Медианы пишутся в logcat (тег "CursorWrapperBenchmark").
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CursorWrapperBenchmark {
+
+    private static final String TAG = "CursorWrapperBenchmark";
+    private static final String DATABASE_NAME = "cursor_wrapper_benchmark.db";
+    private static final int ROWS_COUNT = 100000;
+    private static final int RUNS = 5;
+    private static final String SELECT_NOTES = "SELECT * FROM notes";
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+    private long mExpectedIdsSum;
+
+    @Before
+    public void openDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+        mDatabase.execSQL("INSERT INTO users (_id, login) VALUES (1, 'user@example.com');");
+        mDatabase.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date) VALUES (1, 1, 'notepad', 0);");
+        mDatabase.beginTransaction();
+        SQLiteStatement insert = mDatabase.compileStatement("INSERT INTO notes (_id, notepad_id, user_id, title, creation_date, text, " +
+                "preview, firebase_id, firebase_status) VALUES (?, 1, 1, ?, ?, ?, ?, ?, ?);");
+        try {
+            for (int i = 1; i <= ROWS_COUNT; i++) {
+                insert.bindLong(1, i);
+                insert.bindString(2, "note " + i);
+                insert.bindLong(3, 1500000000000L + i);
+                insert.bindString(4, "text of note " + i);
+                insert.bindString(5, "text of note " + i);
+                //половина заметок уже в firebase: у них читаются еще и ключ со статусом.
+                if (i % 2 == 0) {
+                    insert.bindString(6, "key-" + i);
+                    insert.bindLong(7, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                } else {
+                    insert.bindNull(6);
+                    insert.bindLong(7, DatabaseConstants.FirebaseCodes.NEEDS_ADDITION);
+                }
+                insert.executeInsert();
+                mExpectedIdsSum += i;
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            insert.close();
+            mDatabase.endTransaction();
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void mapRows() {
+        long[] walkTimes = new long[RUNS];
+        long[] columnLookupTimes = new long[RUNS];
+        long[] parseNoteTimes = new long[RUNS];
+        long[] visitorTimes = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            try (Cursor cursor = mDatabase.rawQuery(SELECT_NOTES, null)) {
+                int rows = 0;
+                while (cursor.moveToNext()) {
+                    rows++;
+                }
+                assertEquals(ROWS_COUNT, rows);
+            }
+            walkTimes[run] = millisSince(start);
+
+            start = System.nanoTime();
+            try (Cursor cursor = mDatabase.rawQuery(SELECT_NOTES, null)) {
+                long idsSum = 0;
+                while (cursor.moveToNext()) {
+                    idsSum += parseNoteWithColumnLookups(cursor).getId();
+                }
+                assertEquals(mExpectedIdsSum, idsSum);
+            }
+            columnLookupTimes[run] = millisSince(start);
+
+            start = System.nanoTime();
+            try (StorageKeeperCursorWrapper cursor = new StorageKeeperCursorWrapper(mDatabase.rawQuery(SELECT_NOTES, null))) {
+                long idsSum = 0;
+                while (cursor.moveToNext()) {
+                    idsSum += cursor.parseNote().getId();
+                }
+                assertEquals(mExpectedIdsSum, idsSum);
+            }
+            parseNoteTimes[run] = millisSince(start);
+
+            start = System.nanoTime();
+            try (StorageKeeperCursorWrapper cursor = new StorageKeeperCursorWrapper(mDatabase.rawQuery(SELECT_NOTES, null))) {
+                final long[] sums = new long[2];
+                cursor.forEachRow(new StorageKeeperCursorWrapper.RowVisitor() {
+                    @Override
+                    public boolean visitRow(StorageKeeperCursorWrapper row) {
+                        sums[0] += row.getLocalId();
+                        sums[1] += row.getCreationTime();
+                        return true;
+                    }
+                });
+                assertEquals(mExpectedIdsSum, sums[0]);
+                assertEquals(1500000000000L * ROWS_COUNT + mExpectedIdsSum, sums[1]);
+            }
+            visitorTimes[run] = millisSince(start);
+        }
+        Log.i(TAG, ROWS_COUNT + " rows: cursor walk " + median(walkTimes) + " ms, getColumnIndex per column " +
+                median(columnLookupTimes) + " ms, parseNote " + median(parseNoteTimes) + " ms, visitor (id + date) " +
+                median(visitorTimes) + " ms");
+    }
+
+    /**
+     * parseNote в том виде, в каком он был до кэширования индексов колонок.
+     */
+    private static Note parseNoteWithColumnLookups(Cursor cursor) {
+        int id = cursor.getInt(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.NOTE_ID));
+        int notepadId = cursor.getInt(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.NOTEPAD_ID));
+        int creatorId = cursor.getInt(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.CREATOR_ID));
+        String title = cursor.getString(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.TITLE));
+        String text = cursor.getString(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.TEXT));
+        Date creationDate = new Date(cursor.getLong(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.CREATION_DATE)));
+        String firebaseId = cursor.getString(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_ID));
+        if (firebaseId != null) {
+            int firebaseStatus = cursor.getInt(cursor.getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_STATUS));
+            return new Note(id, notepadId, creatorId, title, creationDate, text, firebaseId, firebaseStatus);
+        }
+        return new Note(id, notepadId, creatorId, title, creationDate, text);
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,201 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Group commit писателя (см. DatabaseWriter): что пачка делает при сломанной записи и без БД, и сколько она дает.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseWriterTest {
+
+    private static final String TAG = "DatabaseWriterTest";
+    private static final String DATABASE_NAME = "database_writer_test.db";
+    private static final int WRITES_COUNT = 2000;
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+    private final AtomicInteger mBatchesCount = new AtomicInteger();
+
+    @Before
+    public void openDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+        mDatabase.execSQL("CREATE TABLE counters (_id INTEGER PRIMARY KEY, value INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    @After
+    public void deleteDatabase() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void brokenWriteIsRolledBackAlone() throws Exception {
+        DatabaseWriter writer = newWriter(false);
+        writer.setBatchWindow(50);
+        List<Future<Void>> writes = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            final int id = i;
+            writes.add(writer.executeBatched(new Runnable() {
+                @Override
+                public void run() {
+                    mDatabase.execSQL("INSERT INTO counters (_id) VALUES (?);", new Object[]{id});
+                    if (id == 5) {
+                        //строка уже вставлена: после отката ее быть не должно.
+                        throw new IllegalStateException("broken write");
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < writes.size(); i++) {
+            if (i == 4) {
+                assertFailsWith(IllegalStateException.class, writes.get(i));
+            } else {
+                writes.get(i).get();
+            }
+        }
+        assertEquals(9, countRows("SELECT _id FROM counters"));
+        assertEquals(0, countRows("SELECT _id FROM counters WHERE _id = 5"));
+    }
+
+    @Test
+    public void writesFailWhenDatabaseIsNotOpen() throws Exception {
+        DatabaseWriter writer = newWriter(true);
+        Future<Void> write = writer.executeBatched(new Runnable() {
+            @Override
+            public void run() {
+                fail("the write must not run without a database");
+            }
+        });
+        assertFailsWith(IllegalStateException.class, write);
+    }
+
+    /**
+     * Одни и те же WRITES_COUNT однострочных UPDATE: сначала операциями, каждая своей транзакцией, потом мелкими записями.
+     */
+    @Test
+    @LargeTest
+    public void batchedWritesThroughput() throws Exception {
+        for (int i = 0; i < WRITES_COUNT; i++) {
+            mDatabase.execSQL("INSERT INTO counters (_id) VALUES (?);", new Object[]{i});
+        }
+        DatabaseWriter writer = newWriter(false);
+
+        long start = SystemClock.elapsedRealtime();
+        FutureTask<Void> lastOperation = null;
+        for (int i = 0; i < WRITES_COUNT; i++) {
+            lastOperation = new FutureTask<>(increment(i), null);
+            final Runnable write = lastOperation;
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDatabase.beginTransactionNonExclusive();
+                    try {
+                        write.run();
+                        mDatabase.setTransactionSuccessful();
+                    }
+                    finally {
+                        mDatabase.endTransaction();
+                    }
+                }
+            });
+        }
+        lastOperation.get();
+        long separateMillis = SystemClock.elapsedRealtime() - start;
+
+        mBatchesCount.set(0);
+        start = SystemClock.elapsedRealtime();
+        Future<Void> lastWrite = null;
+        for (int i = 0; i < WRITES_COUNT; i++) {
+            lastWrite = writer.executeBatched(increment(i));
+        }
+        lastWrite.get();
+        long batchedMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(WRITES_COUNT, countRows("SELECT _id FROM counters WHERE value = 2"));
+        assertTrue(mBatchesCount.get() < WRITES_COUNT);
+        Log.i(TAG, WRITES_COUNT + " writes: one transaction each " + separateMillis + " ms (" +
+                writesPerSecond(separateMillis) + "/s), group commit " + batchedMillis + " ms (" +
+                writesPerSecond(batchedMillis) + "/s) in " + mBatchesCount.get() + " commits");
+    }
+
+    private DatabaseWriter newWriter(final boolean databaseBroken) {
+        return new DatabaseWriter(new DatabaseWriter.Host() {
+            @Override
+            public SQLiteDatabase getDatabase() {
+                if (databaseBroken) {
+                    throw new IllegalStateException("Database could not be opened");
+                }
+                return mDatabase;
+            }
+
+            @Override
+            public void onWriteStarted() {
+            }
+
+            @Override
+            public void onWriteFinished() {
+            }
+
+            @Override
+            public void onBatchCommitted(int writesCount, long latencyMillis) {
+                mBatchesCount.incrementAndGet();
+            }
+        });
+    }
+
+    private Runnable increment(final int id) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mDatabase.execSQL("UPDATE counters SET value = value + 1 WHERE _id = ?;", new Object[]{id});
+            }
+        };
+    }
+
+    private int countRows(String sql) {
+        try (Cursor cursor = mDatabase.rawQuery(sql, null)) {
+            return cursor.getCount();
+        }
+    }
+
+    private static long writesPerSecond(long millis) {
+        return WRITES_COUNT * 1000L / Math.max(1, millis);
+    }
+
+    private static void assertFailsWith(Class<? extends Throwable> expected, Future<Void> write) throws InterruptedException {
+        try {
+            write.get();
+            fail("expected " + expected.getSimpleName());
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause().toString(), expected.isInstance(ex.getCause()));
+        }
+    }
+}
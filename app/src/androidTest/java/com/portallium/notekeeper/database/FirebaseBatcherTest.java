@@ -0,0 +1,220 @@
+package com.portallium.notekeeper.database;
+
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FirebaseBatcher против локальной заглушки Backend: как изменения собираются в пачки, что получает Host при ошибке
+ * и сколько изменений в секунду проходит пачками против запроса на изменение (тег "FirebaseBatcherTest" в logcat).
+ */
+@RunWith(AndroidJUnit4.class)
+public class FirebaseBatcherTest {
+
+    private static final String TAG = "FirebaseBatcherTest";
+    /**
+     * Сколько заглушка обрабатывает один запрос. Запросы она обрабатывает по одному, как одно соединение с сервером.
+     */
+    private static final long REQUEST_COST_MILLIS = 2;
+    /**
+     * Время от обработки запроса до ответа клиенту.
+     */
+    private static final long ROUND_TRIP_MILLIS = 30;
+    private static final int THROUGHPUT_CHANGES_COUNT = 1000;
+
+    private final LocalBackend mBackend = new LocalBackend();
+    private final List<List<FirebaseBatcher.Change>> mBatches = Collections.synchronizedList(new ArrayList<List<FirebaseBatcher.Change>>());
+    private final List<String> mErrors = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void stopBackend() {
+        mBackend.mConnection.shutdownNow();
+        mBackend.mResponses.shutdownNow();
+    }
+
+    @Test
+    public void changesWithinWindowGoInOneRequest() throws Exception {
+        CountDownLatch done = new CountDownLatch(10);
+        FirebaseBatcher batcher = newBatcher(done);
+        batcher.setWindow(200);
+        for (int i = 0; i < 10; i++) {
+            batcher.add(change("notes/key-" + i + "/title", "title " + i));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mBackend.mRequestsCount.get());
+        assertEquals(1, mBatches.size());
+        assertEquals(10, mBatches.get(0).size());
+        assertEquals("title 7", mBackend.mTree.get("notes/key-7/title"));
+        assertNull(mErrors.get(0));
+    }
+
+    @Test
+    public void batchIsCappedAtMaxSize() throws Exception {
+        int changesCount = FirebaseBatcher.MAX_BATCH_SIZE + 1;
+        CountDownLatch done = new CountDownLatch(changesCount);
+        FirebaseBatcher batcher = newBatcher(done);
+        batcher.setWindow(1000);
+        for (int i = 0; i < changesCount; i++) {
+            batcher.add(change("notes/key-" + i + "/title", "title " + i));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, mBatches.size());
+        assertEquals(FirebaseBatcher.MAX_BATCH_SIZE, mBatches.get(0).size());
+        assertEquals(1, mBatches.get(1).size());
+        assertEquals(changesCount, mBackend.mTree.size());
+    }
+
+    @Test
+    public void rejectedBatchReachesHost() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        FirebaseBatcher batcher = newBatcher(done);
+        batcher.setWindow(200);
+        mBackend.mRejection = "Permission denied";
+        batcher.add(change("notes/key-1/title", "title"));
+        batcher.add(change("notes/key-2", null));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("Permission denied"), mErrors);
+        assertTrue(mBackend.mTree.isEmpty());
+    }
+
+    @Test
+    public void brokenBackendReachesHost() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        FirebaseBatcher batcher = newBatcher(done);
+        mBackend.mBroken = true;
+        batcher.add(change("notes/key-1/title", "title"));
+        //без ответа Host операции FirebaseScheduler не закончились бы никогда.
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("Invalid path"), mErrors);
+    }
+
+    /**
+     * THROUGHPUT_CHANGES_COUNT изменений: сначала по запросу на изменение (как до батчера), потом через батчер с окном по умолчанию.
+     */
+    @Test
+    @LargeTest
+    public void batchedThroughput() throws Exception {
+        final CountDownLatch separateDone = new CountDownLatch(THROUGHPUT_CHANGES_COUNT);
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < THROUGHPUT_CHANGES_COUNT; i++) {
+            mBackend.updateChildren(change("notes/separate-" + i + "/title", "title " + i).mUpdates, new FirebaseBatcher.Backend.Listener() {
+                @Override
+                public void onComplete(String errorMessage) {
+                    separateDone.countDown();
+                }
+            });
+        }
+        assertTrue(separateDone.await(60, TimeUnit.SECONDS));
+        long separateMillis = SystemClock.elapsedRealtime() - start;
+        int separateRequestsCount = mBackend.mRequestsCount.getAndSet(0);
+
+        CountDownLatch batchedDone = new CountDownLatch(THROUGHPUT_CHANGES_COUNT);
+        FirebaseBatcher batcher = newBatcher(batchedDone);
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < THROUGHPUT_CHANGES_COUNT; i++) {
+            batcher.add(change("notes/batched-" + i + "/title", "title " + i));
+        }
+        assertTrue(batchedDone.await(60, TimeUnit.SECONDS));
+        long batchedMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(2 * THROUGHPUT_CHANGES_COUNT, mBackend.mTree.size());
+        assertTrue(mBackend.mRequestsCount.get() < THROUGHPUT_CHANGES_COUNT);
+        Log.i(TAG, THROUGHPUT_CHANGES_COUNT + " changes (" + REQUEST_COST_MILLIS + " ms per request, " + ROUND_TRIP_MILLIS +
+                " ms round trip): one request each " + separateMillis + " ms (" + changesPerSecond(separateMillis) + "/s, " +
+                separateRequestsCount + " requests), batched " + batchedMillis + " ms (" + changesPerSecond(batchedMillis) + "/s, " +
+                mBackend.mRequestsCount.get() + " requests)");
+    }
+
+    private FirebaseBatcher newBatcher(final CountDownLatch changesDone) {
+        return new FirebaseBatcher(mBackend, new FirebaseBatcher.Host() {
+            @Override
+            public void onBatchCompleted(List<FirebaseBatcher.Change> changes, String errorMessage, long latencyMillis) {
+                mBatches.add(changes);
+                mErrors.add(errorMessage);
+                for (int i = 0; i < changes.size(); i++) {
+                    changesDone.countDown();
+                }
+            }
+        });
+    }
+
+    private static FirebaseBatcher.Change change(String path, Object value) {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(path, value);
+        return new FirebaseBatcher.Change(updates, null, null);
+    }
+
+    private static long changesPerSecond(long millis) {
+        return THROUGHPUT_CHANGES_COUNT * 1000L / Math.max(1, millis);
+    }
+
+    /**
+     * Заглушка Firebase: пути хранятся плоской картой. Запросы обрабатываются по одному (REQUEST_COST_MILLIS каждый),
+     * ответ приходит через ROUND_TRIP_MILLIS.
+     */
+    private static class LocalBackend implements FirebaseBatcher.Backend {
+        final ScheduledExecutorService mConnection = Executors.newSingleThreadScheduledExecutor();
+        final ScheduledExecutorService mResponses = Executors.newSingleThreadScheduledExecutor();
+        final Map<String, Object> mTree = new ConcurrentHashMap<>();
+        final AtomicInteger mRequestsCount = new AtomicInteger();
+        private final AtomicInteger mKeysCount = new AtomicInteger();
+        volatile String mRejection;
+        volatile boolean mBroken;
+
+        @Override
+        public String newKey() {
+            return "key-" + mKeysCount.incrementAndGet();
+        }
+
+        @Override
+        public void updateChildren(final Map<String, Object> updates, final Listener listener) {
+            if (mBroken) {
+                throw new IllegalArgumentException("Invalid path");
+            }
+            mRequestsCount.incrementAndGet();
+            mConnection.execute(new Runnable() {
+                @Override
+                public void run() {
+                    SystemClock.sleep(REQUEST_COST_MILLIS);
+                    final String rejection = mRejection;
+                    if (rejection == null) {
+                        for (Map.Entry<String, Object> update : updates.entrySet()) {
+                            if (update.getValue() == null) {
+                                mTree.remove(update.getKey());
+                            } else {
+                                mTree.put(update.getKey(), update.getValue());
+                            }
+                        }
+                    }
+                    mResponses.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onComplete(rejection);
+                        }
+                    }, ROUND_TRIP_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Миграция базы v4 со 100000 заметок до текущей версии (см. DatabaseHelper.onUpgrade).
+ * Проверяет, что заметки дошли целиком и под своими id, что поиск и агрегаты блокнотов заполнены,
+ * и что пиковый прирост кучи не зависит от размера таблиц (пересборка таблиц идет INSERT ... SELECT, без копии в памяти).
+ * Время и память пишутся в logcat (тег "MigrationFromV4Benchmark").
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MigrationFromV4Benchmark {
+
+    private static final String TAG = "MigrationFromV4Benchmark";
+    private static final String DATABASE_NAME = "migration_from_v4_benchmark.db";
+    private static final int NOTES_COUNT = 100000;
+    private static final int NOTEPADS_COUNT = 100;
+    /**
+     * Каждая такая заметка длиннее порога сжатия: шаг v9 должен ее сжать.
+     */
+    private static final int LARGE_NOTE_EVERY = 1000;
+    private static final int USER_ID = 7;
+    /**
+     * Тексты всех заметок вместе - около 60 МБ в куче (String - это UTF-16), и старая миграция держала их целиком.
+     * Запас тут - на мусор от построчных шагов (сжатие, поиск), который сборщик еще не успел убрать.
+     */
+    private static final long MAX_HEAP_GROWTH_BYTES = 24 * 1024 * 1024;
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private long mTotalTextLength;
+
+    @Before
+    public void createV4Database() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(DATABASE_NAME), null);
+        try {
+            db.beginTransaction();
+            //схема v4: у users есть лишняя колонка, у notes - firebase_notepad_id; обе выбрасывает шаг v5.
+            db.execSQL("CREATE TABLE users (_id INTEGER PRIMARY KEY AUTOINCREMENT, login, password);");
+            db.execSQL("CREATE TABLE notepads (_id INTEGER PRIMARY KEY AUTOINCREMENT, user_id INTEGER, title, creation_date, " +
+                    "firebase_id TEXT DEFAULT NULL, firebase_status INTEGER DEFAULT 0);");
+            db.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY AUTOINCREMENT, notepad_id INTEGER, user_id INTEGER, title, " +
+                    "creation_date, text, firebase_id TEXT DEFAULT NULL, firebase_status INTEGER DEFAULT 0, " +
+                    "firebase_notepad_id TEXT DEFAULT NULL);");
+            db.execSQL("INSERT INTO users (_id, login, password) VALUES (?, 'user@example.com', 'secret');", new Object[]{USER_ID});
+            for (int notepad = 1; notepad <= NOTEPADS_COUNT; notepad++) {
+                db.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date) VALUES (?, ?, ?, ?);",
+                        new Object[]{notepadId(notepad), USER_ID, "notepad " + notepad, notepad});
+            }
+            SQLiteStatement insert = db.compileStatement("INSERT INTO notes (_id, notepad_id, user_id, title, creation_date, text, " +
+                    "firebase_id, firebase_status, firebase_notepad_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);");
+            try {
+                for (int note = 0; note < NOTES_COUNT; note++) {
+                    String text = noteText(note);
+                    mTotalTextLength += text.length();
+                    insert.bindLong(1, noteId(note));
+                    insert.bindLong(2, notepadId(note % NOTEPADS_COUNT + 1));
+                    insert.bindLong(3, USER_ID);
+                    insert.bindString(4, "note " + note);
+                    insert.bindLong(5, 1500000000000L + note);
+                    insert.bindString(6, text);
+                    insert.bindString(7, "key-" + note);
+                    insert.bindLong(8, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                    insert.bindString(9, "notepad-key-" + (note % NOTEPADS_COUNT + 1));
+                    insert.executeInsert();
+                }
+            }
+            finally {
+                insert.close();
+            }
+            db.setVersion(4);
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+            db.close();
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        if (mHelper != null) {
+            mHelper.close();
+        }
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void migratesFromV4WithBoundedHeap() throws Exception {
+        final List<String> progress = new ArrayList<>();
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mHelper.setMigrationListener(new DatabaseHelper.MigrationListener() {
+            @Override
+            public void onMigrationProgress(int completedSteps, int stepsCount) {
+                progress.add(completedSteps + "/" + stepsCount);
+            }
+        });
+
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        final AtomicLong peakHeap = new AtomicLong(heapBefore);
+        Thread heapSampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    long used = runtime.totalMemory() - runtime.freeMemory();
+                    if (used > peakHeap.get()) {
+                        peakHeap.set(used);
+                    }
+                    try {
+                        Thread.sleep(5);
+                    }
+                    catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        });
+        heapSampler.start();
+        long start = System.nanoTime();
+        SQLiteDatabase db;
+        try {
+            db = mHelper.getWritableDatabase();
+        }
+        finally {
+            heapSampler.interrupt();
+            heapSampler.join();
+        }
+        long migrationMillis = (System.nanoTime() - start) / 1000000;
+        long heapGrowth = peakHeap.get() - heapBefore;
+
+        int stepsCount = db.getVersion() - 4;
+        assertEquals("0/" + stepsCount, progress.get(0));
+        assertEquals(stepsCount + "/" + stepsCount, progress.get(progress.size() - 1));
+        assertEquals(stepsCount + 1, progress.size());
+
+        assertEquals(NOTES_COUNT, queryLong(db, "SELECT COUNT(*) FROM notes"));
+        //id не перенумерованы: в них есть дырки, и все они на месте.
+        assertEquals(NOTES_COUNT, queryLong(db, "SELECT COUNT(*) FROM notes WHERE _id % 2 = 1 AND _id <= " + noteId(NOTES_COUNT - 1)));
+        assertEquals(NOTES_COUNT, queryLong(db, "SELECT COUNT(*) FROM notes JOIN users ON users._id = notes.user_id " +
+                "JOIN notepads ON notepads._id = notes.notepad_id"));
+        assertEquals(NOTES_COUNT / LARGE_NOTE_EVERY, queryLong(db, "SELECT COUNT(*) FROM notes WHERE text_format = " +
+                DatabaseConstants.TextFormats.DEFLATE));
+
+        assertEquals(NOTES_COUNT, queryLong(db, "SELECT COUNT(*) FROM notes_fts"));
+        //обычная заметка и сжатая: обе находятся поиском по своему слову.
+        assertEquals(noteId(1234), queryLong(db, "SELECT docid FROM notes_fts WHERE notes_fts MATCH 'marker1234'"));
+        assertEquals(noteId(5 * LARGE_NOTE_EVERY), queryLong(db, "SELECT docid FROM notes_fts WHERE notes_fts MATCH 'marker" +
+                5 * LARGE_NOTE_EVERY + "'"));
+
+        assertEquals(NOTES_COUNT, queryLong(db, "SELECT SUM(notes_count) FROM notepad_stats"));
+        assertEquals(mTotalTextLength, queryLong(db, "SELECT SUM(text_size) FROM notepad_stats"));
+
+        assertTrue("heap grew by " + heapGrowth + " bytes", heapGrowth < MAX_HEAP_GROWTH_BYTES);
+        Log.i(TAG, NOTES_COUNT + " notes (" + mTotalTextLength / 1024 + " KB of text) migrated from v4 to v" + db.getVersion() +
+                " in " + migrationMillis + " ms, peak heap growth " + heapGrowth / 1024 + " KB");
+    }
+
+    private static int noteId(int note) {
+        return note * 2 + 1;
+    }
+
+    private static int notepadId(int notepad) {
+        return notepad * 3;
+    }
+
+    private static String noteText(int note) {
+        StringBuilder text = new StringBuilder("text of note marker").append(note);
+        int length = note % LARGE_NOTE_EVERY == 0 ? 2 * NoteTextCodec.COMPRESSION_THRESHOLD : 300;
+        while (text.length() < length) {
+            text.append(" filler");
+        }
+        return text.toString();
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            assertTrue(sql, cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.portallium.notekeeper.utilities.NotePreviewHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Один и тот же синтетический корпус в двух базах: тексты как есть и длинные тексты, сжатые NoteTextCodec
+ * (так их пишет StorageKeeper.putNoteText). 70% заметок короткие, 30% - текст вроде лога на 4-64 КБ.
+ * Размер баз, время открытия длинной заметки и время загрузки страницы списка пишутся в logcat (тег "NoteCompressionBenchmark").
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NoteCompressionBenchmark {
+
+    private static final String TAG = "NoteCompressionBenchmark";
+    private static final String PLAIN_DATABASE_NAME = "note_compression_plain.db";
+    private static final String DEFLATE_DATABASE_NAME = "note_compression_deflate.db";
+    private static final int NOTES_COUNT = 1000;
+    private static final int LIST_PAGES_COUNT = 200;
+    private static final String NOTES_PAGE = StorageKeeper.SELECT_NOTE_LIST_ITEMS + " WHERE notes.user_id = 1" +
+            " ORDER BY notes.creation_date DESC, notes._id DESC LIMIT 50";
+
+    private Context mContext;
+    private DatabaseHelper mPlainHelper;
+    private DatabaseHelper mDeflateHelper;
+    private final List<String> mTexts = new ArrayList<>();
+    private final List<Integer> mLargeNoteIds = new ArrayList<>();
+
+    @Before
+    public void createDatabases() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        Random random = new Random(42);
+        for (int i = 1; i <= NOTES_COUNT; i++) {
+            boolean large = random.nextInt(10) < 3;
+            mTexts.add(large ? logText(random, 4096 + random.nextInt(60 * 1024)) : "short note " + i + ", nothing to compress here");
+            if (large) {
+                mLargeNoteIds.add(i);
+            }
+        }
+        mPlainHelper = createDatabase(PLAIN_DATABASE_NAME, false);
+        mDeflateHelper = createDatabase(DEFLATE_DATABASE_NAME, true);
+    }
+
+    @After
+    public void deleteDatabases() {
+        mPlainHelper.close();
+        mDeflateHelper.close();
+        mContext.deleteDatabase(PLAIN_DATABASE_NAME);
+        mContext.deleteDatabase(DEFLATE_DATABASE_NAME);
+    }
+
+    @Test
+    public void sizeAndReadLatency() {
+        SQLiteDatabase plain = mPlainHelper.getWritableDatabase();
+        SQLiteDatabase deflate = mDeflateHelper.getWritableDatabase();
+        assertEquals(mLargeNoteIds.size(), queryLong(deflate, "SELECT COUNT(*) FROM notes WHERE text_format = " +
+                DatabaseConstants.TextFormats.DEFLATE));
+        long plainSize = getDatabaseSize(plain);
+        long deflateSize = getDatabaseSize(deflate);
+        assertTrue(deflateSize < plainSize);
+
+        //прогрев: первые чтения платят за кэш страниц и компиляцию запроса.
+        openLargeNotes(plain);
+        openLargeNotes(deflate);
+        long[] plainOpenTimes = openLargeNotes(plain);
+        long[] deflateOpenTimes = openLargeNotes(deflate);
+        long[] plainPageTimes = loadListPages(plain);
+        long[] deflatePageTimes = loadListPages(deflate);
+
+        Log.i(TAG, NOTES_COUNT + " notes, " + mLargeNoteIds.size() + " of them large: database " + plainSize / 1024 + " KB plain, " +
+                deflateSize / 1024 + " KB with compression");
+        Log.i(TAG, "opening a large note: p50 " + percentile(plainOpenTimes, 50) + " us / p99 " + percentile(plainOpenTimes, 99) +
+                " us plain, p50 " + percentile(deflateOpenTimes, 50) + " us / p99 " + percentile(deflateOpenTimes, 99) + " us compressed");
+        Log.i(TAG, "list page: p50 " + percentile(plainPageTimes, 50) + " us plain, " + percentile(deflatePageTimes, 50) +
+                " us compressed");
+    }
+
+    private DatabaseHelper createDatabase(String name, boolean compress) {
+        mContext.deleteDatabase(name);
+        DatabaseHelper helper = new DatabaseHelper(mContext, name);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        db.execSQL("INSERT INTO users (_id, login) VALUES (1, 'user@example.com');");
+        db.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date) VALUES (1, 1, 'notepad', 0);");
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO notes (_id, notepad_id, user_id, title, creation_date, text, " +
+                "text_format, text_length, preview) VALUES (?, 1, 1, ?, ?, ?, ?, ?, ?);");
+        SQLiteStatement indexText = db.compileStatement(DatabaseHelper.INSERT_NOTE_SEARCH_ENTRY);
+        try {
+            for (int i = 1; i <= NOTES_COUNT; i++) {
+                String text = mTexts.get(i - 1);
+                byte[] textBytes = compress ? NoteTextCodec.getBytesIfCompressible(text) : null;
+                insert.bindLong(1, i);
+                insert.bindString(2, "note " + i);
+                insert.bindLong(3, 1500000000000L + i);
+                if (textBytes != null) {
+                    insert.bindBlob(4, NoteTextCodec.compress(textBytes));
+                    insert.bindLong(5, DatabaseConstants.TextFormats.DEFLATE);
+                } else {
+                    insert.bindString(4, text);
+                    insert.bindLong(5, DatabaseConstants.TextFormats.PLAIN);
+                }
+                insert.bindLong(6, NoteTextCodec.getUtf8Length(text));
+                insert.bindString(7, NotePreviewHelper.makeTextPreview(text));
+                insert.executeInsert();
+                if (textBytes != null) {
+                    //сжатые тексты триггер не индексирует, их индексирует StorageKeeper. Без этого сравнение размеров было бы нечестным.
+                    indexText.bindLong(1, i);
+                    indexText.bindString(2, "note " + i);
+                    indexText.bindString(3, text);
+                    indexText.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            insert.close();
+            indexText.close();
+            db.endTransaction();
+        }
+        //размер меряется по основному файлу, так что журнал переносится в него сразу.
+        queryLong(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+        return helper;
+    }
+
+    /**
+     * Открывает каждую длинную заметку так же, как getNoteByIdAsync: запрос с колонкой text и parseNote.
+     * @return время каждого открытия в микросекундах.
+     */
+    private long[] openLargeNotes(SQLiteDatabase db) {
+        long[] times = new long[mLargeNoteIds.size()];
+        for (int i = 0; i < times.length; i++) {
+            int noteId = mLargeNoteIds.get(i);
+            long start = System.nanoTime();
+            String text;
+            try (StorageKeeperCursorWrapper cursor = new StorageKeeperCursorWrapper(db.rawQuery("SELECT * FROM notes WHERE _id = ?",
+                    new String[]{Integer.toString(noteId)}))) {
+                assertTrue(cursor.moveToFirst());
+                text = cursor.parseNote().getText();
+            }
+            times[i] = (System.nanoTime() - start) / 1000;
+            assertEquals(mTexts.get(noteId - 1), text);
+        }
+        return times;
+    }
+
+    private long[] loadListPages(SQLiteDatabase db) {
+        long[] times = new long[LIST_PAGES_COUNT];
+        for (int i = 0; i < LIST_PAGES_COUNT; i++) {
+            long start = System.nanoTime();
+            try (StorageKeeperCursorWrapper cursor = new StorageKeeperCursorWrapper(db.rawQuery(NOTES_PAGE, null))) {
+                while (cursor.moveToNext()) {
+                    cursor.parseNoteListItem();
+                }
+            }
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        return times;
+    }
+
+    /**
+     * Текст вроде лога: одинаковые по форме строки с разными числами.
+     */
+    private static String logText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length + 128);
+        String[] levels = {"DEBUG", "INFO", "WARN", "ERROR"};
+        while (text.length() < length) {
+            text.append("2026-10-").append(10 + random.nextInt(20)).append(' ').append(random.nextInt(24)).append(':')
+                    .append(random.nextInt(60)).append(':').append(random.nextInt(60)).append('.').append(random.nextInt(1000))
+                    .append(' ').append(levels[random.nextInt(levels.length)]).append(" [worker-").append(random.nextInt(8))
+                    .append("] com.example.sync.Service: request ").append(random.nextInt(100000)).append(" took ")
+                    .append(random.nextInt(500)).append(" ms\n");
+        }
+        return text.toString();
+    }
+
+    private static long getDatabaseSize(SQLiteDatabase db) {
+        return queryLong(db, "PRAGMA page_count") * queryLong(db, "PRAGMA page_size");
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            assertTrue(sql, cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
+    private static long percentile(long[] times, int percent) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
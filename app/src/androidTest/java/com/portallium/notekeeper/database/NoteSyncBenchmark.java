@@ -0,0 +1,499 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.google.firebase.database.ServerValue;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StorageKeeper.synchronizeNotes против firebase в памяти (MemoryBackend): 100000 заметок в 100 блокнотах уже сверены,
+ * потом "другое устройство" меняет 1000 из них - правит, добавляет, удаляет и переносит. После сверки SQLite сравнивается
+ * с деревом firebase заметка за заметкой. Время сверки, количество запросов, прочитанных ключей и байт ответов
+ * (в JSON, как их отдает сервер) пишутся в logcat (тег "NoteSyncBenchmark") рядом с размером всего индекса дайджестов,
+ * который сверка скачивала раньше. Отдельно меряется сверка, когда с прошлой ничего не изменилось.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NoteSyncBenchmark {
+
+    private static final String TAG = "NoteSyncBenchmark";
+    private static final String DATABASE_NAME = "note_sync_benchmark.db";
+    private static final int USER_ID = 1;
+    private static final String UID = "uid";
+    private static final int NOTEPADS_COUNT = 100;
+    private static final int NOTES_COUNT = 100000;
+    private static final int DRIFT_COUNT = 1000;
+    /**
+     * Серверное время, на котором SQLite и firebase сверены: отметки синхронизации в sync_state стоят на нем.
+     */
+    private static final long SYNCED_AT = 1500000000000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private MemoryBackend mBackend;
+    private StorageKeeper mStorageKeeper;
+    /**
+     * Заметки, какими они должны оказаться в SQLite после сверки: по ключу firebase.
+     */
+    private final Map<String, RemoteNote> mRemoteNotes = new HashMap<>();
+
+    @Before
+    public void createDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mBackend = new MemoryBackend(SYNCED_AT);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.execSQL("INSERT INTO users (_id, login) VALUES (?, 'user@example.com');", new Object[]{USER_ID});
+        for (int notepad = 1; notepad <= NOTEPADS_COUNT; notepad++) {
+            db.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date, firebase_id, firebase_status, modified_at) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?);", new Object[]{notepad, USER_ID, "notepad " + notepad, notepad, notepadKey(notepad),
+                    DatabaseConstants.FirebaseCodes.SYNCHRONIZED, SYNCED_AT});
+            Map<String, Object> notepadFields = new HashMap<>();
+            notepadFields.put("title", "notepad " + notepad);
+            notepadFields.put("creation_date", (long) notepad);
+            notepadFields.put("modified_at", SYNCED_AT);
+            mBackend.put(UID + "/notepads/" + notepadKey(notepad), notepadFields);
+        }
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement("INSERT INTO notes (_id, notepad_id, user_id, title, creation_date, text, " +
+                "preview, firebase_id, firebase_status, content_digest) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+        try {
+            for (int i = 1; i <= NOTES_COUNT; i++) {
+                RemoteNote note = new RemoteNote(notepadKey(1 + i % NOTEPADS_COUNT), "note " + i, "text of note " + i,
+                        SYNCED_AT - NOTES_COUNT + i);
+                insert.bindLong(1, i);
+                insert.bindLong(2, 1 + i % NOTEPADS_COUNT);
+                insert.bindLong(3, USER_ID);
+                insert.bindString(4, note.mTitle);
+                insert.bindLong(5, note.mCreationTime);
+                insert.bindString(6, note.mText);
+                insert.bindString(7, note.mText);
+                insert.bindString(8, noteKey(i));
+                insert.bindLong(9, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                insert.bindLong(10, note.getDigest());
+                insert.executeInsert();
+                mRemoteNotes.put(noteKey(i), note);
+                mBackend.put(UID + "/notes/" + noteKey(i), note.toFields(SYNCED_AT));
+                mBackend.put(UID + "/note_digests/" + noteKey(i), note.toDigestFields());
+            }
+            for (int notepad = 1; notepad <= NOTEPADS_COUNT; notepad++) {
+                mBackend.put(UID + "/notepad_digests/" + notepadKey(notepad), bucketFields(notepadKey(notepad), SYNCED_AT));
+            }
+            db.execSQL("INSERT INTO sync_state (user_id, collection, high_water_mark) VALUES (?, ?, ?);",
+                    new Object[]{USER_ID, DatabaseConstants.SyncState.COLLECTION_NOTEPADS, SYNCED_AT});
+            db.execSQL("INSERT INTO sync_state (user_id, collection, high_water_mark) VALUES (?, ?, ?);",
+                    new Object[]{USER_ID, DatabaseConstants.SyncState.COLLECTION_NOTES, SYNCED_AT});
+            db.setTransactionSuccessful();
+        }
+        finally {
+            insert.close();
+            db.endTransaction();
+        }
+        mStorageKeeper = new StorageKeeper(UID, mHelper, mBackend);
+    }
+
+    @After
+    public void deleteDatabase() throws Exception {
+        mStorageKeeper.awaitPendingWrites();
+        mBackend.mResponses.shutdownNow();
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Другое устройство поработало с несколькими блокнотами - так обычно и бывает.
+     */
+    @Test
+    public void syncDriftInFewNotepads() throws Exception {
+        syncDrift(5);
+    }
+
+    /**
+     * Худший случай для корзин: изменения разбросаны по всем блокнотам, и строки индекса читаются у каждого.
+     */
+    @Test
+    public void syncDriftInAllNotepads() throws Exception {
+        syncDrift(NOTEPADS_COUNT);
+    }
+
+    /**
+     * Вторая сверка подряд: по отметке заметок firebase отдает только корзины, изменившиеся последними, и больше ничего не читается.
+     */
+    @Test
+    public void syncWithoutChanges() throws Exception {
+        int changedNotesCount = applyDrift(5);
+        assertTrue(mStorageKeeper.synchronizeNotes(USER_ID));
+        mStorageKeeper.awaitPendingWrites();
+        long highWaterMark = getNotesHighWaterMark();
+        long indexBytes = mBackend.getJsonSize(UID + "/note_digests");
+        mBackend.resetCounters();
+
+        long start = SystemClock.elapsedRealtime();
+        assertTrue(mStorageKeeper.synchronizeNotes(USER_ID));
+        long syncMillis = SystemClock.elapsedRealtime() - start;
+        mStorageKeeper.awaitPendingWrites();
+
+        assertEquals(1, mBackend.mRequestsCount.get());
+        assertEquals(highWaterMark, getNotesHighWaterMark());
+        assertLocalNotesMatchRemote();
+        Log.i(TAG, NOTES_COUNT + " notes, nothing changed since the previous sync (" + changedNotesCount + " notes): sync " +
+                syncMillis + " ms, " + mBackend.mRequestsCount.get() + " request, " + mBackend.mKeysCount.get() + " keys, " +
+                mBackend.mBytesCount.get() + " bytes read; the whole digest index is " + indexBytes / 1024 + " KB");
+    }
+
+    private void syncDrift(int driftedNotepadsCount) throws Exception {
+        int changedNotesCount = applyDrift(driftedNotepadsCount);
+        long indexBytes = mBackend.getJsonSize(UID + "/note_digests");
+        mBackend.resetCounters();
+
+        long start = SystemClock.elapsedRealtime();
+        assertTrue(mStorageKeeper.synchronizeNotes(USER_ID));
+        long syncMillis = SystemClock.elapsedRealtime() - start;
+        mStorageKeeper.awaitPendingWrites();
+
+        assertLocalNotesMatchRemote();
+        assertEquals(mBackend.mClock.get(), getNotesHighWaterMark());
+        Log.i(TAG, NOTES_COUNT + " notes, " + changedNotesCount + " changed in " + driftedNotepadsCount + " of " + NOTEPADS_COUNT +
+                " notepads: sync " + syncMillis + " ms, " + mBackend.mRequestsCount.get() + " requests, " +
+                mBackend.mKeysCount.get() + " keys, " + mBackend.mBytesCount.get() / 1024 + " KB read; the whole digest index is " +
+                indexBytes / 1024 + " KB");
+    }
+
+    /**
+     * Меняет DRIFT_COUNT заметок в driftedNotepadsCount блокнотах так, как это сделал бы StorageKeeper на другом устройстве:
+     * заметка, строка индекса и строка корзины - одной многопутевой записью. При переносе пишется только новая корзина.
+     * @return сколько ключей заметок затронуто.
+     */
+    private int applyDrift(int driftedNotepadsCount) {
+        Random random = new Random(42);
+        Map<String, Object> updates = new HashMap<>();
+        List<String> touchedNotepadKeys = new ArrayList<>();
+        for (int i = 0; i < DRIFT_COUNT; i++) {
+            //заметки i-го блокнота - те, у которых i % NOTEPADS_COUNT == notepad - 1.
+            int notepad = 1 + random.nextInt(driftedNotepadsCount);
+            int noteId = notepad - 1 + NOTEPADS_COUNT * (1 + random.nextInt(NOTES_COUNT / NOTEPADS_COUNT - 1));
+            String noteKey = noteKey(noteId);
+            RemoteNote note = mRemoteNotes.get(noteKey);
+            if (note == null || updates.containsKey(UID + "/notes/" + noteKey)) {
+                //уже удалена или уже изменена: добавляем новую.
+                noteKey = "new-" + i;
+                note = new RemoteNote(notepadKey(notepad), "new note " + i, "added elsewhere", SYNCED_AT + i);
+                mRemoteNotes.put(noteKey, note);
+            } else {
+                switch (i % 4) {
+                    case 0:
+                        note = new RemoteNote(note.mNotepadKey, note.mTitle, note.mText + ", edited", note.mCreationTime);
+                        mRemoteNotes.put(noteKey, note);
+                        break;
+                    case 1:
+                        note = new RemoteNote(notepadKey(1 + random.nextInt(driftedNotepadsCount)), note.mTitle, note.mText,
+                                note.mCreationTime);
+                        mRemoteNotes.put(noteKey, note);
+                        break;
+                    case 2:
+                        mRemoteNotes.remove(noteKey);
+                        updates.put(UID + "/notes/" + noteKey, null);
+                        updates.put(UID + "/note_digests/" + noteKey, null);
+                        if (!touchedNotepadKeys.contains(note.mNotepadKey)) {
+                            touchedNotepadKeys.add(note.mNotepadKey);
+                        }
+                        continue;
+                    default:
+                        noteKey = "new-" + i;
+                        note = new RemoteNote(notepadKey(notepad), "new note " + i, "added elsewhere", SYNCED_AT + i);
+                        mRemoteNotes.put(noteKey, note);
+                        break;
+                }
+            }
+            updates.put(UID + "/notes/" + noteKey, note.toFields(ServerValue.TIMESTAMP));
+            updates.put(UID + "/note_digests/" + noteKey, note.toDigestFields());
+            if (!touchedNotepadKeys.contains(note.mNotepadKey)) {
+                touchedNotepadKeys.add(note.mNotepadKey);
+            }
+        }
+        for (String notepadKey : touchedNotepadKeys) {
+            updates.put(UID + "/notepad_digests/" + notepadKey, bucketFields(notepadKey, ServerValue.TIMESTAMP));
+        }
+        mBackend.updateChildren(updates, new FirebaseBatcher.Backend.Listener() {
+            @Override
+            public void onComplete(String errorMessage) {
+            }
+        });
+        int changedNotesCount = 0;
+        for (String path : updates.keySet()) {
+            if (path.startsWith(UID + "/notes/")) {
+                changedNotesCount++;
+            }
+        }
+        return changedNotesCount;
+    }
+
+    private void assertLocalNotesMatchRemote() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        Map<String, RemoteNote> expected = new HashMap<>(mRemoteNotes);
+        try (Cursor notes = db.rawQuery("SELECT n.firebase_id, p.firebase_id, n.content_digest FROM notes n " +
+                "JOIN notepads p ON p._id = n.notepad_id WHERE n.user_id = ?", new String[]{Integer.toString(USER_ID)})) {
+            while (notes.moveToNext()) {
+                RemoteNote note = expected.remove(notes.getString(0));
+                assertTrue("note " + notes.getString(0) + " should have been deleted", note != null);
+                assertEquals(notes.getString(0), note.mNotepadKey, notes.getString(1));
+                assertEquals(notes.getString(0), note.getDigest(), notes.getLong(2));
+            }
+        }
+        assertTrue(expected.size() + " notes were not downloaded, e.g. " + expected.keySet(), expected.isEmpty());
+    }
+
+    private long getNotesHighWaterMark() {
+        try (Cursor state = mHelper.getWritableDatabase().rawQuery("SELECT high_water_mark FROM sync_state " +
+                "WHERE user_id = ? AND collection = ?", new String[]{Integer.toString(USER_ID),
+                DatabaseConstants.SyncState.COLLECTION_NOTES})) {
+            assertTrue(state.moveToFirst());
+            return state.getLong(0);
+        }
+    }
+
+    /**
+     * Строка корзины так, как ее пишет StorageKeeper: дайджест по всем заметкам блокнота.
+     */
+    private Map<String, Object> bucketFields(String notepadKey, Object modifiedAt) {
+        NoteDigests.Snapshot bucket = new NoteDigests.Snapshot();
+        for (Map.Entry<String, RemoteNote> note : mRemoteNotes.entrySet()) {
+            if (note.getValue().mNotepadKey.equals(notepadKey)) {
+                bucket.put(notepadKey, note.getKey(), note.getValue().getDigest());
+            }
+        }
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("digest", NoteDigests.toHex(bucket.getBucketDigest(notepadKey)));
+        fields.put("modified_at", modifiedAt);
+        return fields;
+    }
+
+    private static String notepadKey(int notepad) {
+        return "notepad-" + notepad;
+    }
+
+    private static String noteKey(int noteId) {
+        return "note-" + noteId;
+    }
+
+    private static final class RemoteNote {
+        final String mNotepadKey;
+        final String mTitle;
+        final String mText;
+        final long mCreationTime;
+
+        RemoteNote(String notepadKey, String title, String text, long creationTime) {
+            mNotepadKey = notepadKey;
+            mTitle = title;
+            mText = text;
+            mCreationTime = creationTime;
+        }
+
+        long getDigest() {
+            return NoteDigests.ofNote(mTitle, mText, mCreationTime);
+        }
+
+        Map<String, Object> toFields(Object modifiedAt) {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("title", mTitle);
+            fields.put("text", mText);
+            fields.put("creation_date", mCreationTime);
+            fields.put("firebase_notepad_id", mNotepadKey);
+            fields.put("modified_at", modifiedAt);
+            return fields;
+        }
+
+        Map<String, Object> toDigestFields() {
+            Map<String, Object> fields = new HashMap<>();
+            fields.put("notepad", mNotepadKey);
+            fields.put("digest", NoteDigests.toHex(getDigest()));
+            return fields;
+        }
+    }
+
+    /**
+     * Firebase в памяти: дерево из вложенных Map. Многопутевая запись применяется целиком, ServerValue.TIMESTAMP заменяется
+     * показанием часов, которые сдвигаются на 1 мс за запись. Чтения фильтруются по orderByChild/startAt/equalTo, как на сервере
+     * с индексом, а ответы считаются: запросы, ключи (дети прочитанной коллекции или одна прочитанная запись) и байты в JSON.
+     * Ответы приходят в отдельном потоке, как у настоящего клиента.
+     */
+    private static final class MemoryBackend implements FirebaseBackend {
+        final ExecutorService mResponses = Executors.newSingleThreadExecutor();
+        final AtomicLong mClock;
+        final AtomicInteger mRequestsCount = new AtomicInteger();
+        final AtomicLong mKeysCount = new AtomicLong();
+        final AtomicLong mBytesCount = new AtomicLong();
+        private final Map<String, Object> mRoot = new HashMap<>();
+        private final AtomicInteger mNewKeysCount = new AtomicInteger();
+
+        MemoryBackend(long now) {
+            mClock = new AtomicLong(now);
+        }
+
+        void resetCounters() {
+            mRequestsCount.set(0);
+            mKeysCount.set(0);
+            mBytesCount.set(0);
+        }
+
+        synchronized void put(String path, Object value) {
+            String[] segments = path.split("/");
+            Map<String, Object> parent = mRoot;
+            for (int i = 0; i < segments.length - 1; i++) {
+                Object child = parent.get(segments[i]);
+                if (!(child instanceof Map)) {
+                    child = new HashMap<String, Object>();
+                    parent.put(segments[i], child);
+                }
+                parent = (Map<String, Object>) child;
+            }
+            if (value == null) {
+                parent.remove(segments[segments.length - 1]);
+            } else {
+                parent.put(segments[segments.length - 1], value);
+            }
+        }
+
+        synchronized long getJsonSize(String path) {
+            return toJson(get(path)).getBytes(UTF_8).length;
+        }
+
+        private Object get(String path) {
+            Object node = mRoot;
+            for (String segment : path.split("/")) {
+                if (!(node instanceof Map)) {
+                    return null;
+                }
+                node = ((Map<String, Object>) node).get(segment);
+            }
+            return node;
+        }
+
+        @Override
+        public String newKey() {
+            return "device-key-" + mNewKeysCount.incrementAndGet();
+        }
+
+        @Override
+        public void updateChildren(Map<String, Object> updates, final Listener listener) {
+            synchronized (this) {
+                long now = mClock.incrementAndGet();
+                for (Map.Entry<String, Object> update : updates.entrySet()) {
+                    put(update.getKey(), resolveServerValues(update.getValue(), now));
+                }
+            }
+            mResponses.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onComplete(null);
+                }
+            });
+        }
+
+        @Override
+        public void read(String path, String orderByChild, Long startAt, String equalTo, final ReadListener listener) {
+            final Object value;
+            synchronized (this) {
+                Object node = get(path);
+                if (orderByChild != null && node instanceof Map) {
+                    Map<String, Object> filtered = new HashMap<>();
+                    for (Map.Entry<String, Object> child : ((Map<String, Object>) node).entrySet()) {
+                        Object field = child.getValue() instanceof Map ? ((Map<String, Object>) child.getValue()).get(orderByChild) : null;
+                        if (startAt != null && !(field instanceof Long && (Long) field >= startAt)) {
+                            continue;
+                        }
+                        if (equalTo != null && !equalTo.equals(field)) {
+                            continue;
+                        }
+                        filtered.put(child.getKey(), child.getValue());
+                    }
+                    node = filtered;
+                }
+                value = copy(node);
+            }
+            mRequestsCount.incrementAndGet();
+            //uid/коллекция - считаем ее детей, все, что глубже, - одна запись.
+            if (path.split("/").length == 2) {
+                mKeysCount.addAndGet(value instanceof Map ? ((Map<?, ?>) value).size() : 0);
+            } else if (value != null) {
+                mKeysCount.incrementAndGet();
+            }
+            mBytesCount.addAndGet(toJson(value).getBytes(UTF_8).length);
+            mResponses.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onRead(value, null);
+                }
+            });
+        }
+
+        @Override
+        public void addConnectionListener(Runnable listener) {
+            //связь есть всегда, а outbox StorageKeeper и так отправляет при старте.
+        }
+
+        private static Object resolveServerValues(Object value, long now) {
+            if (ServerValue.TIMESTAMP.equals(value)) {
+                return now;
+            }
+            if (value instanceof Map) {
+                Map<String, Object> resolved = new HashMap<>();
+                for (Map.Entry<String, Object> child : ((Map<String, Object>) value).entrySet()) {
+                    resolved.put(child.getKey(), resolveServerValues(child.getValue(), now));
+                }
+                return resolved;
+            }
+            return value;
+        }
+
+        private static Object copy(Object value) {
+            if (value instanceof Map) {
+                Map<String, Object> copy = new HashMap<>();
+                for (Map.Entry<String, Object> child : ((Map<String, Object>) value).entrySet()) {
+                    copy.put(child.getKey(), copy(child.getValue()));
+                }
+                return copy;
+            }
+            return value;
+        }
+
+        private static String toJson(Object value) {
+            if (value == null) {
+                return "null";
+            }
+            if (value instanceof Map) {
+                return new JSONObject((Map<?, ?>) value).toString();
+            }
+            return value instanceof String ? JSONObject.quote((String) value) : String.valueOf(value);
+        }
+    }
+}
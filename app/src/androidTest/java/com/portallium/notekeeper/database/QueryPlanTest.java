@@ -0,0 +1,107 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Проверяет, что запросы списков и логина идут по индексам v6: без полного прохода по таблице и без сортировки
+ * во временном B-дереве (см. DatabaseHelper.createIndexesV6).
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest {
+
+    private static final String DATABASE_NAME = "query_plan_test.db";
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void openDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void deleteDatabase() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void notepadNotesPageUsesNotepadIndex() {
+        assertUsesIndex("notes_user_notepad_date_idx", StorageKeeper.SELECT_NOTE_LIST_ITEMS +
+                " WHERE notes.user_id = ? AND notes.notepad_id = ? ORDER BY notes.creation_date DESC, notes._id DESC LIMIT 50",
+                "1", "2");
+    }
+
+    @Test
+    public void userNotesPageUsesUserIndex() {
+        assertUsesIndex("notes_user_date_idx", StorageKeeper.SELECT_NOTE_LIST_ITEMS +
+                " WHERE notes.user_id = ? ORDER BY notes.creation_date DESC, notes._id DESC LIMIT 50", "1");
+    }
+
+    @Test
+    public void olderNotesPageUsesUserIndex() {
+        assertUsesIndex("notes_user_date_idx", StorageKeeper.SELECT_NOTE_LIST_ITEMS +
+                " WHERE notes.user_id = ? AND (notes.creation_date < 1000 OR (notes.creation_date = 1000 AND notes._id < ?))" +
+                " ORDER BY notes.creation_date DESC, notes._id DESC LIMIT 50", "1", "10");
+    }
+
+    @Test
+    public void userNotepadsUseUserIndex() {
+        assertUsesIndex("notepads_user_date_idx",
+                "SELECT * FROM notepads WHERE user_id = ? ORDER BY creation_date DESC", "1");
+    }
+
+    @Test
+    public void loginUsesLoginIndex() {
+        assertUsesIndex("users_login_idx", "SELECT * FROM users WHERE login = ?", "user@example.com");
+    }
+
+    @Test
+    public void unusedStatusIndexesAreGone() {
+        try (Cursor indexes = mDatabase.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name LIKE '%unsynchronized%'", null)) {
+            assertFalse(indexes.moveToFirst());
+        }
+    }
+
+    private void assertUsesIndex(String index, String sql, String... args) {
+        List<String> plan = explain(sql, args);
+        boolean usesIndex = false;
+        for (String step : plan) {
+            assertFalse("temp b-tree in " + plan, step.contains("TEMP B-TREE"));
+            //SCAN - это полный проход (по таблице или по всему индексу). SEARCH - поиск по ключу.
+            assertFalse("full scan in " + plan, step.startsWith("SCAN"));
+            usesIndex |= step.contains(index);
+        }
+        assertTrue(index + " is not used: " + plan, usesIndex);
+    }
+
+    private List<String> explain(String sql, String... args) {
+        List<String> plan = new ArrayList<>();
+        try (Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detailIndex = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        }
+        return plan;
+    }
+}
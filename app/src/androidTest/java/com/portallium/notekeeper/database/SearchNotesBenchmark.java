@@ -0,0 +1,198 @@
+package com.portallium.notekeeper.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Поиск по 100000 заметкам: ранжирование всех совпадений с полной сортировкой (как searchNotes делал раньше)
+ * против NoteSearchRanking.selectTopHits с кучей на одну страницу. Запросы - редкое слово, частое слово
+ * и короткие префиксы, совпадающие с десятками тысяч заметок. Результаты обоих способов сверяются между собой
+ * и с количеством совпадений, посчитанным при генерации корпуса. Медианы пишутся в logcat (тег "SearchNotesBenchmark").
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchNotesBenchmark {
+
+    private static final String TAG = "SearchNotesBenchmark";
+    private static final String DATABASE_NAME = "search_notes_benchmark.db";
+    private static final int NOTES_COUNT = 100000;
+    private static final int PAGE_SIZE = 20;
+    private static final int RUNS = 5;
+    private static final String[] COMMON_WORDS = {"meeting", "report", "review", "record", "remind", "budget", "travel",
+            "shopping", "idea", "draft", "call", "project", "weekly", "plan", "list", "book"};
+    /**
+     * Запросы в том виде, в каком их вводит пользователь: последнее слово ищется как префикс.
+     */
+    private static final String[] QUERIES = {"quartz", "report", "re", "n"};
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+    /**
+     * Сколько заметок совпадает с каждым запросом из QUERIES, по подсчету при генерации.
+     */
+    private final int[] mExpectedCounts = new int[QUERIES.length];
+
+    @Before
+    public void createDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+        mDatabase.execSQL("INSERT INTO users (_id, login) VALUES (1, 'user@example.com');");
+        mDatabase.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date) VALUES (1, 1, 'notepad', 0);");
+        mDatabase.beginTransaction();
+        //текст несжатый, так что в notes_fts заметки кладет триггер, как при обычной записи.
+        SQLiteStatement insert = mDatabase.compileStatement("INSERT INTO notes (_id, notepad_id, user_id, title, creation_date, text, " +
+                "preview) VALUES (?, 1, 1, ?, ?, ?, ?);");
+        try {
+            for (int i = 1; i <= NOTES_COUNT; i++) {
+                String title = title(i);
+                String text = text(i);
+                insert.bindLong(1, i);
+                insert.bindString(2, title);
+                insert.bindLong(3, 1500000000000L + i);
+                insert.bindString(4, text);
+                insert.bindString(5, text);
+                insert.executeInsert();
+                for (int q = 0; q < QUERIES.length; q++) {
+                    if (matches(title + " " + text, QUERIES[q])) {
+                        mExpectedCounts[q]++;
+                    }
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            insert.close();
+            mDatabase.endTransaction();
+        }
+    }
+
+    @After
+    public void deleteDatabase() {
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void rankFirstPage() {
+        for (int q = 0; q < QUERIES.length; q++) {
+            String matchExpression = NoteSearchRanking.parseQueryToMatchExpression(QUERIES[q]);
+            long[] sortAllTimes = new long[RUNS];
+            long[] topHitsTimes = new long[RUNS];
+            List<NoteSearchRanking.Hit> allHits = null;
+            NoteSearchRanking.RankedNoteIds firstPage = null;
+            //первый проход - прогрев: он платит за кэш страниц и компиляцию запроса, в медиану не идет.
+            for (int run = 0; run <= RUNS; run++) {
+                long start = System.nanoTime();
+                allHits = rankAllHits(matchExpression);
+                long sortAllMicros = (System.nanoTime() - start) / 1000;
+                start = System.nanoTime();
+                firstPage = NoteSearchRanking.selectTopHits(mDatabase, matchExpression, 1, 0, PAGE_SIZE);
+                long topHitsMicros = (System.nanoTime() - start) / 1000;
+                if (run > 0) {
+                    sortAllTimes[run - 1] = sortAllMicros;
+                    topHitsTimes[run - 1] = topHitsMicros;
+                }
+            }
+
+            assertEquals(QUERIES[q], mExpectedCounts[q], allHits.size());
+            assertTrue(QUERIES[q], mExpectedCounts[q] > PAGE_SIZE);
+            assertFalse(firstPage.mComplete);
+            assertEquals(PAGE_SIZE, firstPage.mNoteIds.length);
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                int noteId = firstPage.mNoteIds[i];
+                assertEquals(QUERIES[q], allHits.get(i).mNoteId, noteId);
+                assertTrue(QUERIES[q] + " in note " + noteId, matches(title(noteId) + " " + text(noteId), QUERIES[q]));
+            }
+            //когда лучших нужно больше, чем совпало, выдача полная и совпадает с полной сортировкой.
+            NoteSearchRanking.RankedNoteIds everything = NoteSearchRanking.selectTopHits(mDatabase, matchExpression, 1, 0,
+                    mExpectedCounts[q] + 1);
+            assertTrue(everything.mComplete);
+            assertEquals(mExpectedCounts[q], everything.mNoteIds.length);
+            assertEquals(allHits.get(allHits.size() - 1).mNoteId, everything.mNoteIds[everything.mNoteIds.length - 1]);
+
+            Log.i(TAG, "\"" + QUERIES[q] + "\": " + mExpectedCounts[q] + " of " + NOTES_COUNT + " notes match, first page of " +
+                    PAGE_SIZE + ": rank and sort all " + median(sortAllTimes) / 1000 + " ms, top-" + PAGE_SIZE + " heap " +
+                    median(topHitsTimes) / 1000 + " ms");
+        }
+    }
+
+    /**
+     * Ранжирование в том виде, в каком оно было до NoteSearchRanking.selectTopHits: все совпадения в список и полная сортировка.
+     */
+    private List<NoteSearchRanking.Hit> rankAllHits(String matchExpression) {
+        List<NoteSearchRanking.Hit> hits = new ArrayList<>();
+        try (Cursor cursor = mDatabase.rawQuery("SELECT notes_fts.docid, matchinfo(notes_fts, 'pcx') FROM notes_fts " +
+                "JOIN notes ON notes._id = notes_fts.docid WHERE notes_fts MATCH ? AND notes.user_id = ?",
+                new String[]{matchExpression, "1"})) {
+            while (cursor.moveToNext()) {
+                hits.add(new NoteSearchRanking.Hit(cursor.getInt(0), NoteSearchRanking.rank(cursor.getBlob(1))));
+            }
+        }
+        Collections.sort(hits);
+        return hits;
+    }
+
+    private static String title(int noteId) {
+        return "note " + noteId;
+    }
+
+    /**
+     * Текст заметки восстанавливается по ее id, так что корпус не нужно держать в памяти.
+     * В каждом тексте 6-15 частых слов, в каждой двухсотой - еще и редкое "quartz".
+     */
+    private static String text(int noteId) {
+        Random random = new Random(noteId);
+        StringBuilder text = new StringBuilder();
+        int wordsCount = 6 + random.nextInt(10);
+        for (int i = 0; i < wordsCount; i++) {
+            text.append(COMMON_WORDS[random.nextInt(COMMON_WORDS.length)]).append(' ');
+        }
+        if (noteId % 200 == 0) {
+            text.append("quartz ");
+        }
+        return text.append(random.nextInt(1000)).toString();
+    }
+
+    /**
+     * Совпадает ли текст с запросом так, как его ищет FTS: есть слово, начинающееся с запроса.
+     */
+    private static boolean matches(String text, String prefix) {
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^a-z0-9]+")) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
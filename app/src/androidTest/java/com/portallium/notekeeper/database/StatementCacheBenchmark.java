@@ -0,0 +1,147 @@
+package com.portallium.notekeeper.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Смена статуса синхронизации у ROWS_COUNT заметок тремя путями: SQLiteDatabase.update с ContentValues (как было до StatementCache),
+ * StatementCache через Object... и типизированная перегрузка StatementCache. Каждый проход - одна транзакция, как в синхронизации.
+ * Медианы времени пишутся в logcat (тег "StatementCacheBenchmark").
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StatementCacheBenchmark {
+
+    private static final String TAG = "StatementCacheBenchmark";
+    private static final String DATABASE_NAME = "statement_cache_benchmark.db";
+    private static final int ROWS_COUNT = 10000;
+    private static final int RUNS = 9;
+    private static final String UPDATE_STATUS = "UPDATE notes SET firebase_status = ? WHERE _id = ?";
+
+    private Context mContext;
+    private DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+    private StatementCache mStatements;
+
+    @Before
+    public void openDatabase() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mHelper = new DatabaseHelper(mContext, DATABASE_NAME);
+        mDatabase = mHelper.getWritableDatabase();
+        mDatabase.execSQL("INSERT INTO users (_id, login) VALUES (1, 'user@example.com');");
+        mDatabase.execSQL("INSERT INTO notepads (_id, user_id, title, creation_date) VALUES (1, 1, 'notepad', 0);");
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 1; i <= ROWS_COUNT; i++) {
+                mDatabase.execSQL("INSERT INTO notes (_id, notepad_id, user_id, title, creation_date, text) VALUES (?, 1, 1, 'note', ?, 'text');",
+                        new Object[]{i, i});
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+        mStatements = new StatementCache(mDatabase);
+    }
+
+    @After
+    public void deleteDatabase() {
+        mStatements.close();
+        mHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void statusWrites() {
+        long[] contentValuesTimes = new long[RUNS];
+        long[] varargsTimes = new long[RUNS];
+        long[] typedTimes = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            //статус каждый раз другой, чтобы UPDATE действительно что-то менял.
+            contentValuesTimes[run] = updateWithContentValues(3 * run);
+            varargsTimes[run] = updateWithVarargs(3 * run + 1);
+            typedTimes[run] = updateTyped(3 * run + 2);
+        }
+        assertEquals(ROWS_COUNT, countRowsWithStatus(3 * RUNS - 1));
+        Log.i(TAG, ROWS_COUNT + " status writes: update() with ContentValues " + median(contentValuesTimes) + " ms, " +
+                "cached statement with Object... " + median(varargsTimes) + " ms, typed " + median(typedTimes) + " ms");
+    }
+
+    private long updateWithContentValues(int status) {
+        long start = System.nanoTime();
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (int i = 1; i <= ROWS_COUNT; i++) {
+                ContentValues values = new ContentValues();
+                values.put(DatabaseConstants.Notes.Columns.FIREBASE_STATUS, status);
+                mDatabase.update(DatabaseConstants.Notes.TABLE_NAME, values, DatabaseConstants.Notes.Columns.NOTE_ID + " = ?",
+                        new String[]{Integer.toString(i)});
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private long updateWithVarargs(int status) {
+        long start = System.nanoTime();
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (int i = 1; i <= ROWS_COUNT; i++) {
+                mStatements.executeUpdateDelete(UPDATE_STATUS, new Object[]{status, i});
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private long updateTyped(int status) {
+        long start = System.nanoTime();
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (int i = 1; i <= ROWS_COUNT; i++) {
+                mStatements.executeUpdateDelete(UPDATE_STATUS, status, i);
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private int countRowsWithStatus(int status) {
+        try (Cursor cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM notes WHERE firebase_status = ?",
+                new String[]{Integer.toString(status)})) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,31 @@
+package com.portallium.notekeeper;
+
+import android.app.Application;
+import android.os.StrictMode;
+
+import com.crashlytics.android.Crashlytics;
+
+import io.fabric.sdk.android.Fabric;
+
+/**
+ * Приложение. Здесь делается то, что нужно до любой активности, с какой бы из них ни начался запуск.
+ */
+public class NoteKeeperApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Fabric.with(this, new Crashlytics());
+        if (BuildConfig.DEBUG) {
+            //к БД главный поток не обращается (все запросы StorageKeeper'а асинхронные). в отладочной сборке
+            //любое обращение главного потока к диску роняет приложение: так нарушение видно сразу, а не в логе, который никто не читает.
+            //политика ставится здесь, а не в активности, чтобы действовать на любом экране, с которого начался запуск.
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .penaltyDeath()
+                    .build());
+        }
+    }
+}
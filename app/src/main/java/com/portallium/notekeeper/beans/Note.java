@@ -7,6 +7,13 @@ public class Note implements Serializable {
 
     public static final int ID_NOT_YET_ASSIGNED = -1;
 
+    /*
+     * Флаги измененных полей (см. getModifiedFields). По ним StorageKeeper пишет в SQLite и Firebase только то, что изменилось.
+     */
+    public static final int FIELD_TITLE = 1;
+    public static final int FIELD_TEXT = 1 << 1;
+    public static final int FIELD_NOTEPAD = 1 << 2;
+
     private int mId;
     private int mNotepadId;
     private int mCreatorId;
@@ -18,12 +25,32 @@ public class Note implements Serializable {
     private int mFirebaseStatus;
     private String mFirebaseNotepadId;
 
+    private int mModifiedFields;
+
     public Note(int id, int notepadId, int creatorId, String title, Date creationDate, String text, String firebaseId, int firebaseStatus) {
         this(id, notepadId, creatorId, title, creationDate, text);
         this.mFirebaseId = firebaseId;
         this.mFirebaseStatus = firebaseStatus;
     }
 
+    /**
+     * Конструктор копирования. Используется кэшем StorageKeeper, чтобы изменения объекта в UI
+     * не попадали в кэш раньше, чем в БД.
+     * @param note копируемая заметка
+     */
+    public Note(Note note) {
+        this.mId = note.mId;
+        this.mNotepadId = note.mNotepadId;
+        this.mCreatorId = note.mCreatorId;
+        this.mTitle = note.mTitle;
+        this.mCreationDate = note.mCreationDate == null ? null : new Date(note.mCreationDate.getTime());
+        this.mText = note.mText;
+        this.mFirebaseId = note.mFirebaseId;
+        this.mFirebaseStatus = note.mFirebaseStatus;
+        this.mFirebaseNotepadId = note.mFirebaseNotepadId;
+        this.mModifiedFields = note.mModifiedFields;
+    }
+
     /**
      * Конструктор заметки, использующийся при парсинге существующей заметки из SQLite.
      * @param id локальный id заметки
@@ -80,6 +107,9 @@ public class Note implements Serializable {
     }
 
     public void setNotepadId(int notepadId) {
+        if (notepadId != mNotepadId) {
+            mModifiedFields |= FIELD_NOTEPAD;
+        }
         this.mNotepadId = notepadId;
     }
 
@@ -92,6 +122,9 @@ public class Note implements Serializable {
     }
 
     public void setTitle(String title) {
+        if (!isSame(title, mTitle)) {
+            mModifiedFields |= FIELD_TITLE;
+        }
         this.mTitle = title;
     }
 
@@ -104,6 +137,9 @@ public class Note implements Serializable {
     }
 
     public void setText(String text) {
+        if (!isSame(text, mText)) {
+            mModifiedFields |= FIELD_TEXT;
+        }
         this.mText = text;
     }
 
@@ -131,6 +167,23 @@ public class Note implements Serializable {
         this.mFirebaseNotepadId = firebaseNotepadId;
     }
 
+    /**
+     * @return флаги полей (FIELD_XXX), которые менялись сеттерами с момента создания заметки или последнего
+     * clearModifiedFields(). Сеттер, который записал то же значение, флаг не ставит. 0 - ничего не менялось
+     * или заметка создана не из БД, и что в ней отличается от БД, неизвестно.
+     */
+    public int getModifiedFields() {
+        return mModifiedFields;
+    }
+
+    public void clearModifiedFields() {
+        mModifiedFields = 0;
+    }
+
+    private static boolean isSame(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
     /**
      * Метод, проверяющий идентичность двух заметок.
      * Заметки считаются идентичными, если их параметры (название, текст, дата создания) равны между собой.
@@ -0,0 +1,42 @@
+package com.portallium.notekeeper.beans;
+
+/**
+ * Строка списка заметок: заметка вместе с названием блокнота, в котором она лежит.
+ * Название блокнота приходит из того же запроса (JOIN с таблицей notepads), поэтому при прокрутке
+ * списка к БД больше обращаться не нужно.
+ * Текста заметки в строке нет (getNote().getText() вернет null): вместо него хранится короткое превью.
+ */
+public class NoteListItem {
+
+    private Note mNote;
+    private String mNotepadTitle;
+    private String mTextPreview;
+
+    /**
+     * @param note заметка
+     * @param notepadTitle название блокнота заметки. Может быть null, если блокнота с таким id нет.
+     * @param textPreview превью текста заметки.
+     */
+    public NoteListItem(Note note, String notepadTitle, String textPreview) {
+        mNote = note;
+        mNotepadTitle = notepadTitle;
+        mTextPreview = textPreview;
+    }
+
+    public Note getNote() {
+        return mNote;
+    }
+
+    public String getNotepadTitle() {
+        return mNotepadTitle;
+    }
+
+    public String getTextPreview() {
+        return mTextPreview;
+    }
+
+    @Override
+    public String toString() {
+        return mNote + " [" + mNotepadTitle + "]";
+    }
+}
@@ -10,6 +10,11 @@ public class Notepad implements Serializable {
 
     public static final int ID_NOT_YET_ASSIGNED = -1;
 
+    /**
+     * Флаг измененного названия (см. getModifiedFields). Больше у блокнота менять нечего.
+     */
+    public static final int FIELD_TITLE = 1;
+
     private int mCreatorId;
     private String mTitle;
     private Date mCreationDate;
@@ -18,12 +23,29 @@ public class Notepad implements Serializable {
     private String mFirebaseId;
     private int mFirebaseStatus;
 
+    private int mModifiedFields;
+
     public Notepad(int creatorId, String title, Date creationDate, int id, String firebaseId, int firebaseStatus) {
         this(creatorId, title, creationDate, id);
         mFirebaseId = firebaseId;
         mFirebaseStatus = firebaseStatus;
     }
 
+    /**
+     * Конструктор копирования. Используется кэшем StorageKeeper, чтобы изменения объекта в UI
+     * не попадали в кэш раньше, чем в БД.
+     * @param notepad копируемый блокнот
+     */
+    public Notepad(Notepad notepad) {
+        mCreatorId = notepad.mCreatorId;
+        mTitle = notepad.mTitle;
+        mCreationDate = notepad.mCreationDate == null ? null : new Date(notepad.mCreationDate.getTime());
+        mId = notepad.mId;
+        mFirebaseId = notepad.mFirebaseId;
+        mFirebaseStatus = notepad.mFirebaseStatus;
+        mModifiedFields = notepad.mModifiedFields;
+    }
+
     /**
      * Конструктор блокнота. Используется для парсинга существующего блокнота из SQLite.
      * @param creatorId локальный id создателя блокнота
@@ -87,6 +109,9 @@ public class Notepad implements Serializable {
     }
 
     public void setTitle(String title) {
+        if (title == null ? mTitle != null : !title.equals(mTitle)) {
+            mModifiedFields |= FIELD_TITLE;
+        }
         this.mTitle = title;
     }
 
@@ -118,6 +143,18 @@ public class Notepad implements Serializable {
         this.mFirebaseStatus = firebaseStatus;
     }
 
+    /**
+     * @return флаги полей (FIELD_XXX), которые менялись сеттерами с момента создания блокнота или последнего
+     * clearModifiedFields(). 0 - ничего не менялось или неизвестно, что именно (см. Note.getModifiedFields).
+     */
+    public int getModifiedFields() {
+        return mModifiedFields;
+    }
+
+    public void clearModifiedFields() {
+        mModifiedFields = 0;
+    }
+
     /**
      * Метод, проверяющий идентичность двух блокнотов. Используется в сервисе синхронизации.
      * Два блокнота идентичны, если созданы в одну миллисекунду с одним названием.
@@ -0,0 +1,48 @@
+package com.portallium.notekeeper.beans;
+
+import java.util.Date;
+
+/**
+ * Агрегаты по заметкам одного блокнота (см. StorageKeeper.getUserNotepadsWithStatsAsync). Неизменяемый.
+ */
+public class NotepadStats {
+
+    public static final NotepadStats EMPTY = new NotepadStats(0, 0, 0);
+
+    private final int mNotesCount;
+    private final long mLastNoteTime;
+    private final long mTextSize;
+
+    /**
+     * @param lastNoteTime unix-время создания самой новой заметки (в миллисекундах) или 0, если заметок нет.
+     * @param textSize сколько байт занимают тексты заметок в UTF-8, без сжатия.
+     */
+    public NotepadStats(int notesCount, long lastNoteTime, long textSize) {
+        mNotesCount = notesCount;
+        mLastNoteTime = lastNoteTime;
+        mTextSize = textSize;
+    }
+
+    public int getNotesCount() {
+        return mNotesCount;
+    }
+
+    /**
+     * @return дата создания самой новой заметки или null, если в блокноте нет заметок.
+     */
+    public Date getLastNoteDate() {
+        return mNotesCount == 0 ? null : new Date(mLastNoteTime);
+    }
+
+    /**
+     * @return сколько байт занимают тексты заметок в UTF-8. Длинные тексты хранятся сжатыми, но считается их несжатый размер.
+     */
+    public long getTextSize() {
+        return mTextSize;
+    }
+
+    @Override
+    public String toString() {
+        return "NotepadStats[" + mNotesCount + " notes, " + mTextSize + " bytes]";
+    }
+}
@@ -0,0 +1,45 @@
+package com.portallium.notekeeper.database;
+
+/**
+ * Итог экспорта или импорта (см. StorageKeeper.exportUserDataAsync и importUserDataAsync).
+ */
+public final class BulkTransferStats {
+
+    private final int mRowsCount;
+    private final int mSkippedRowsCount;
+    private final long mElapsedMillis;
+
+    BulkTransferStats(int rowsCount, int skippedRowsCount, long elapsedMillis) {
+        mRowsCount = rowsCount;
+        mSkippedRowsCount = skippedRowsCount;
+        mElapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return сколько блокнотов и заметок выгружено или загружено.
+     */
+    public int getRowsCount() {
+        return mRowsCount;
+    }
+
+    /**
+     * @return сколько записей файла пропущено при импорте (например, заметки без блокнота). При экспорте всегда 0.
+     */
+    public int getSkippedRowsCount() {
+        return mSkippedRowsCount;
+    }
+
+    public long getElapsedMillis() {
+        return mElapsedMillis;
+    }
+
+    public double getRowsPerSecond() {
+        return mElapsedMillis == 0 ? mRowsCount : mRowsCount * 1000.0 / mElapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mRowsCount + " rows (" + mSkippedRowsCount + " skipped) in " + mElapsedMillis + " ms, " +
+                Math.round(getRowsPerSecond()) + " rows/s";
+    }
+}
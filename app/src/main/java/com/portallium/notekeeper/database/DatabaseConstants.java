@@ -31,6 +31,35 @@ public final class DatabaseConstants {
             public static final String CREATION_DATE = "creation_date";
             public static final String FIREBASE_ID = "firebase_id";
             public static final String FIREBASE_STATUS = "firebase_status";
+            /**
+             * Время последнего изменения, мс. Для локальных изменений - время устройства,
+             * для пришедших из firebase - серверное время firebase (оно же лежит в firebase под тем же ключом).
+             * 0 - строка не менялась с тех пор, как появилась колонка (v12).
+             */
+            public static final String MODIFIED_AT = "modified_at";
+        }
+    }
+
+    /**
+     * NotepadStats - это агрегаты по заметкам каждого блокнота. Их поддерживают триггеры на таблице notes,
+     * так что список блокнотов читает по строке на блокнот, сколько бы заметок в них ни было.
+     * Строки нет, если в блокноте никогда не было заметок.
+     */
+    public static final class NotepadStats {
+        public static final String TABLE_NAME = "notepad_stats";
+
+        public static final class Columns {
+            public static final String NOTEPAD_ID = "notepad_id";
+            public static final String NOTES_COUNT = "notes_count";
+            /**
+             * Дата создания самой новой заметки блокнота. NULL, если заметок нет.
+             */
+            public static final String LAST_NOTE_DATE = "last_note_date";
+            /**
+             * Сколько байт занимают тексты заметок в UTF-8, без сжатия (сумма notes.text_length). До v17 - размер в БД,
+             * то есть сжатые тексты считались в сжатом виде.
+             */
+            public static final String TEXT_SIZE = "text_size";
         }
     }
 
@@ -47,16 +76,60 @@ public final class DatabaseConstants {
             public static final String TITLE = "title";
             public static final String CREATION_DATE = "creation_date";
             public static final String TEXT = "text";
+            /**
+             * Короткое превью текста для списка заметок. Пересчитывается при каждой записи заметки.
+             */
+            public static final String PREVIEW = "preview";
+            /**
+             * Формат, в котором хранится колонка text, см. TextFormats.
+             */
+            public static final String TEXT_FORMAT = "text_format";
+            /**
+             * Размер текста в UTF-8 до сжатия (v17). Из него считается NotepadStats.Columns.TEXT_SIZE:
+             * длину сжатого текста SQLite знает, а несжатого - нет.
+             */
+            public static final String TEXT_LENGTH = "text_length";
             public static final String FIREBASE_ID = "firebase_id";
             public static final String FIREBASE_STATUS = "firebase_status";
             public static final String FIREBASE_NOTEPAD_ID = "firebase_notepad_id";
+            /**
+             * См. Notepads.Columns.MODIFIED_AT.
+             */
+            public static final String MODIFIED_AT = "modified_at";
+            /**
+             * Дайджест названия, текста и даты создания (см. NoteDigests). Считается при каждой записи заметки,
+             * чтобы синхронизации не приходилось читать и распаковывать все тексты. NULL - строка записана до v13.
+             */
+            public static final String CONTENT_DIGEST = "content_digest";
             //`в этой колонке данных не будет больше никогда. проследить за этим.
         }
+
+        /**
+         * Псевдонимы колонок, которые приходят в списки заметок из присоединенных (JOIN) таблиц.
+         */
+        public static final class Joined {
+            public static final String NOTEPAD_TITLE = "notepad_title";
+        }
+    }
+
+    /**
+     * NotesSearch - это полнотекстовый (FTS4) индекс по названиям и текстам заметок.
+     * docid каждой записи совпадает с _id заметки в таблице Notes. Индекс поддерживается триггерами.
+     */
+    public static final class NotesSearch {
+        public static final String TABLE_NAME = "notes_fts";
+
+        public static final class Columns {
+            public static final String DOCID = "docid";
+            public static final String TITLE = "title";
+            public static final String TEXT = "text";
+        }
     }
 
     /**
      * DeletedNotes - это таблица, в которой складируются упоминания о удаляемых из SQLite заметках, которые по каким-то причинам
      * (например, отсутствие интернета) не получилось удалить из Firebase сразу же.
+     * Таблица есть только в схемах v5-v10: в v11 ее содержимое переехало в Outbox.
      */
     public static final class DeletedNotes {
         public static final String TABLE_NAME = "deleted_notes";
@@ -66,6 +139,88 @@ public final class DatabaseConstants {
         }
     }
 
+    /**
+     * Outbox - журнал изменений, которые еще нужно отправить в Firebase. Строка добавляется в той же транзакции,
+     * что и само изменение в SQLite, а удаляется в той же транзакции, в которой записывается ответ Firebase,
+     * так что изменение не теряется, даже если приложение закрыли до того, как появился интернет.
+     */
+    public static final class Outbox {
+        public static final String TABLE_NAME = "outbox";
+
+        public static final int ENTITY_NOTEPAD = 0;
+        public static final int ENTITY_NOTE = 1;
+
+        public static final class Columns {
+            /**
+             * Порядок строк - это порядок, в котором изменения отправляются.
+             */
+            public static final String ID = "_id";
+            public static final String ENTITY_TYPE = "entity_type";
+            public static final String ENTITY_ID = "entity_id";
+            /**
+             * Для заметок - блокнот, добавления которого в firebase изменение должно дождаться.
+             */
+            public static final String NOTEPAD_ID = "notepad_id";
+            /**
+             * Один из FirebaseCodes.NEEDS_*.
+             */
+            public static final String OPERATION = "operation";
+            /**
+             * Пользователь firebase, в чьи данные отправляется изменение. NULL - еще неизвестен (строки, собранные миграцией
+             * из статусов): такие строки не отправляются, пока не войдет их пользователь (см. USER_ID).
+             */
+            public static final String FIREBASE_USER_ID = "firebase_user_id";
+            /**
+             * Локальный пользователь, которому принадлежит изменение (v15). Нужен только строкам без FIREBASE_USER_ID:
+             * по нему они достаются пользователю firebase при входе. 0 - неизвестен (удаления из deleted_notes).
+             */
+            public static final String USER_ID = "user_id";
+            /**
+             * Ключ сущности в firebase: для добавления он генерируется заранее (повторная отправка пишет по тому же ключу),
+             * для удаления - ключ удаляемой заметки.
+             */
+            public static final String FIREBASE_ID = "firebase_id";
+            /**
+             * Для обновлений - маска Note.FIELD_* или Notepad.FIELD_*. 0 - отправить все поля.
+             */
+            public static final String MODIFIED_FIELDS = "modified_fields";
+        }
+    }
+
+    /**
+     * SyncState - докуда синхронизация уже дочитала firebase. Для каждого пользователя и каждой коллекции хранится
+     * наибольший серверный modified_at, который синхронизация видела; в следующий раз из firebase запрашивается
+     * только то, что изменилось начиная с него. Строки нет - синхронизации еще не было, читается все.
+     */
+    public static final class SyncState {
+        public static final String TABLE_NAME = "sync_state";
+
+        /**
+         * Значения колонки collection.
+         */
+        public static final String COLLECTION_NOTEPADS = "notepads";
+        /**
+         * Отметка заметок - по modified_at строк дайджестов корзин (notepad_digests), а не самих заметок: сверка заметок
+         * читает изменившиеся корзины (см. StorageKeeper.synchronizeNotes). Поэтому и значение не "notes": строки с ним
+         * были отметками самих заметок и удалены в v16.
+         */
+        public static final String COLLECTION_NOTES = "notepad_digests";
+
+        public static final class Columns {
+            public static final String USER_ID = "user_id";
+            public static final String COLLECTION = "collection";
+            public static final String HIGH_WATER_MARK = "high_water_mark";
+        }
+    }
+
+    /**
+     * Форматы хранения текста заметки (колонка notes.text_format).
+     */
+    public static final class TextFormats {
+        public static final int PLAIN = 0;
+        public static final int DEFLATE = 1;
+    }
+
     public static final class FirebaseCodes {
         public static final int SYNCHRONIZED = 1;
         public static final int NEEDS_ADDITION = 0;
@@ -1,25 +1,40 @@
 package com.portallium.notekeeper.database;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.portallium.notekeeper.utilities.NotePreviewHelper;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
 
-    private static final int VERSION = 5; //
+    private static final int VERSION = 17; //
     private static final String DATABASE_NAME = "noteKeeperDatabase.db";
 
-    private static final String CREATE_TABLE_USERS_V5 = "CREATE TABLE " + DatabaseConstants.Users.TABLE_NAME + " (" +
+    /**
+     * Суффикс временной таблицы, в которую копируются данные при пересборке таблицы (см. rebuildTable).
+     */
+    private static final String REBUILT_TABLE_SUFFIX = "_new";
+
+    private static final String CREATE_TABLE_USERS_V5 = createTableUsersV5(DatabaseConstants.Users.TABLE_NAME);
+
+    private static final String CREATE_TABLE_NOTES_V5 = createTableNotesV5(DatabaseConstants.Notes.TABLE_NAME);
+
+    /*
+     * Таблицы v5 создаются методами, а не константами: при миграции с v4 они сначала создаются под временным именем.
+     */
+    private static String createTableUsersV5(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
             DatabaseConstants.Users.Columns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             DatabaseConstants.Users.Columns.LOGIN + ");";
+    }
 
-    private static final String CREATE_TABLE_NOTES_V5 = "CREATE TABLE " + DatabaseConstants.Notes.TABLE_NAME +
+    private static String createTableNotesV5(String tableName) {
+        return "CREATE TABLE " + tableName +
             "( " + DatabaseConstants.Notes.Columns.NOTE_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             DatabaseConstants.Notes.Columns.NOTEPAD_ID + " INTEGER, " +
             DatabaseConstants.Notes.Columns.CREATOR_ID + " INTEGER, " +
@@ -33,12 +48,256 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             DatabaseConstants.Notepads.TABLE_NAME + " (" + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + "), " +
             "FOREIGN KEY (" + DatabaseConstants.Notes.Columns.CREATOR_ID + ") REFERENCES " +
             DatabaseConstants.Users.TABLE_NAME + " (" + DatabaseConstants.Users.Columns.ID + "));";
+    }
 
     private static final String CREATE_TABLE_DELETED_NOTES_V5 = "CREATE TABLE " + DatabaseConstants.DeletedNotes.TABLE_NAME +
             " (" + DatabaseConstants.DeletedNotes.Columns.FIREBASE_ID + " TEXT PRIMARY KEY);";
 
+    /*
+     * Индексы v6. Все списки заметок и блокнотов фильтруются по user_id (и notepad_id) и сортируются по creation_date,
+     * поэтому без индексов каждый такой запрос - это полный проход по таблице плюс сортировка во временном B-дереве.
+     * creation_date в индексах - по возрастанию: SQLite умеет обходить индекс в обратном порядке, так что ORDER BY
+     * creation_date DESC (а заодно и creation_date DESC, _id DESC) берется прямо из индекса.
+     */
+    private static final String CREATE_INDEX_NOTES_BY_NOTEPAD_V6 = "CREATE INDEX IF NOT EXISTS notes_user_notepad_date_idx ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " (" + DatabaseConstants.Notes.Columns.CREATOR_ID + ", " +
+            DatabaseConstants.Notes.Columns.NOTEPAD_ID + ", " + DatabaseConstants.Notes.Columns.CREATION_DATE + ");";
+
+    private static final String CREATE_INDEX_NOTES_BY_USER_V6 = "CREATE INDEX IF NOT EXISTS notes_user_date_idx ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " (" + DatabaseConstants.Notes.Columns.CREATOR_ID + ", " +
+            DatabaseConstants.Notes.Columns.CREATION_DATE + ");";
+
+    private static final String CREATE_INDEX_NOTEPADS_BY_USER_V6 = "CREATE INDEX IF NOT EXISTS notepads_user_date_idx ON " +
+            DatabaseConstants.Notepads.TABLE_NAME + " (" + DatabaseConstants.Notepads.Columns.CREATOR_ID + ", " +
+            DatabaseConstants.Notepads.Columns.CREATION_DATE + ");";
+
+    private static final String CREATE_INDEX_USERS_BY_LOGIN_V6 = "CREATE INDEX IF NOT EXISTS users_login_idx ON " +
+            DatabaseConstants.Users.TABLE_NAME + " (" + DatabaseConstants.Users.Columns.LOGIN + ");";
+
+    /**
+     * Токенизатор unicode61 (приводит к одному регистру не только латиницу, но и кириллицу) появился в SQLite 3.7.13.
+     * На более старых устройствах используется simple.
+     */
+    private static final String UNICODE61_TOKENIZER_MIN_SQLITE_VERSION = "3.7.13";
+
+    private static final String CREATE_TRIGGER_NOTES_SEARCH_INSERT_V7 = "CREATE TRIGGER IF NOT EXISTS notes_fts_after_insert AFTER INSERT ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN INSERT INTO " + DatabaseConstants.NotesSearch.TABLE_NAME + " (" +
+            DatabaseConstants.NotesSearch.Columns.DOCID + ", " + DatabaseConstants.NotesSearch.Columns.TITLE + ", " +
+            DatabaseConstants.NotesSearch.Columns.TEXT + ") VALUES (new." + DatabaseConstants.Notes.Columns.NOTE_ID + ", new." +
+            DatabaseConstants.Notes.Columns.TITLE + ", new." + DatabaseConstants.Notes.Columns.TEXT + "); END;";
+
+    private static final String CREATE_TRIGGER_NOTES_SEARCH_UPDATE_V7 = "CREATE TRIGGER IF NOT EXISTS notes_fts_after_update AFTER UPDATE OF " +
+            DatabaseConstants.Notes.Columns.TITLE + ", " + DatabaseConstants.Notes.Columns.TEXT + " ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN DELETE FROM " + DatabaseConstants.NotesSearch.TABLE_NAME + " WHERE " +
+            DatabaseConstants.NotesSearch.Columns.DOCID + " = old." + DatabaseConstants.Notes.Columns.NOTE_ID + "; INSERT INTO " +
+            DatabaseConstants.NotesSearch.TABLE_NAME + " (" + DatabaseConstants.NotesSearch.Columns.DOCID + ", " +
+            DatabaseConstants.NotesSearch.Columns.TITLE + ", " + DatabaseConstants.NotesSearch.Columns.TEXT + ") VALUES (new." +
+            DatabaseConstants.Notes.Columns.NOTE_ID + ", new." + DatabaseConstants.Notes.Columns.TITLE + ", new." +
+            DatabaseConstants.Notes.Columns.TEXT + "); END;";
+
+    private static final String CREATE_TRIGGER_NOTES_SEARCH_DELETE_V7 = "CREATE TRIGGER IF NOT EXISTS notes_fts_after_delete AFTER DELETE ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN DELETE FROM " + DatabaseConstants.NotesSearch.TABLE_NAME + " WHERE " +
+            DatabaseConstants.NotesSearch.Columns.DOCID + " = old." + DatabaseConstants.Notes.Columns.NOTE_ID + "; END;";
+
+    /*
+     * Триггеры v9. Сжатые тексты (text_format = DEFLATE) триггер проиндексировать не может - для таких заметок
+     * запись в полнотекстовый индекс добавляет StorageKeeper, уже с распакованным текстом.
+     */
+    private static final String CREATE_TRIGGER_NOTES_SEARCH_INSERT_V9 = "CREATE TRIGGER IF NOT EXISTS notes_fts_after_insert AFTER INSERT ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " WHEN new." + DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " +
+            DatabaseConstants.TextFormats.PLAIN + " BEGIN INSERT INTO " + DatabaseConstants.NotesSearch.TABLE_NAME + " (" +
+            DatabaseConstants.NotesSearch.Columns.DOCID + ", " + DatabaseConstants.NotesSearch.Columns.TITLE + ", " +
+            DatabaseConstants.NotesSearch.Columns.TEXT + ") VALUES (new." + DatabaseConstants.Notes.Columns.NOTE_ID + ", new." +
+            DatabaseConstants.Notes.Columns.TITLE + ", new." + DatabaseConstants.Notes.Columns.TEXT + "); END;";
+
+    private static final String CREATE_TRIGGER_NOTES_SEARCH_UPDATE_V9 = "CREATE TRIGGER IF NOT EXISTS notes_fts_after_update AFTER UPDATE OF " +
+            DatabaseConstants.Notes.Columns.TITLE + ", " + DatabaseConstants.Notes.Columns.TEXT + ", " +
+            DatabaseConstants.Notes.Columns.TEXT_FORMAT + " ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN DELETE FROM " + DatabaseConstants.NotesSearch.TABLE_NAME + " WHERE " +
+            DatabaseConstants.NotesSearch.Columns.DOCID + " = old." + DatabaseConstants.Notes.Columns.NOTE_ID + "; INSERT INTO " +
+            DatabaseConstants.NotesSearch.TABLE_NAME + " (" + DatabaseConstants.NotesSearch.Columns.DOCID + ", " +
+            DatabaseConstants.NotesSearch.Columns.TITLE + ", " + DatabaseConstants.NotesSearch.Columns.TEXT + ") SELECT new." +
+            DatabaseConstants.Notes.Columns.NOTE_ID + ", new." + DatabaseConstants.Notes.Columns.TITLE + ", new." +
+            DatabaseConstants.Notes.Columns.TEXT + " WHERE new." + DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " +
+            DatabaseConstants.TextFormats.PLAIN + "; END;";
+
+    /*
+     * Таблица и триггеры v10: агрегаты по заметкам каждого блокнота (см. DatabaseConstants.NotepadStats).
+     * Изменение заметки - это "вычесть старую строку, прибавить новую". Количество и размер текстов меняются на разницу,
+     * а дату самой новой заметки при удалении приходится пересчитывать, но это поиск по индексу notes_user_notepad_date_idx.
+     */
+    private static final String CREATE_TABLE_NOTEPAD_STATS_V10 = "CREATE TABLE IF NOT EXISTS " +
+            DatabaseConstants.NotepadStats.TABLE_NAME + " (" +
+            DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + " INTEGER PRIMARY KEY, " +
+            DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+            DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE + " INTEGER DEFAULT NULL, " +
+            DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " INTEGER NOT NULL DEFAULT 0);";
+
+    /*
+     * Таблица v11: журнал изменений для Firebase (см. DatabaseConstants.Outbox).
+     */
+    private static final String CREATE_TABLE_OUTBOX_V11 = "CREATE TABLE IF NOT EXISTS " +
+            DatabaseConstants.Outbox.TABLE_NAME + " (" +
+            DatabaseConstants.Outbox.Columns.ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            DatabaseConstants.Outbox.Columns.ENTITY_TYPE + " INTEGER NOT NULL, " +
+            DatabaseConstants.Outbox.Columns.ENTITY_ID + " INTEGER NOT NULL DEFAULT 0, " +
+            DatabaseConstants.Outbox.Columns.NOTEPAD_ID + " INTEGER NOT NULL DEFAULT 0, " +
+            DatabaseConstants.Outbox.Columns.OPERATION + " INTEGER NOT NULL, " +
+            DatabaseConstants.Outbox.Columns.FIREBASE_USER_ID + " TEXT DEFAULT NULL, " +
+            DatabaseConstants.Outbox.Columns.FIREBASE_ID + " TEXT DEFAULT NULL, " +
+            DatabaseConstants.Outbox.Columns.MODIFIED_FIELDS + " INTEGER NOT NULL DEFAULT 0);";
+
+    /*
+     * Таблица v12: докуда синхронизация дочитала firebase (см. DatabaseConstants.SyncState).
+     */
+    private static final String CREATE_TABLE_SYNC_STATE_V12 = "CREATE TABLE IF NOT EXISTS " +
+            DatabaseConstants.SyncState.TABLE_NAME + " (" +
+            DatabaseConstants.SyncState.Columns.USER_ID + " INTEGER NOT NULL, " +
+            DatabaseConstants.SyncState.Columns.COLLECTION + " TEXT NOT NULL, " +
+            DatabaseConstants.SyncState.Columns.HIGH_WATER_MARK + " INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (" +
+            DatabaseConstants.SyncState.Columns.USER_ID + ", " + DatabaseConstants.SyncState.Columns.COLLECTION + "));";
+
+    /**
+     * Дописывает владельца строкам outbox без пользователя firebase: это user_id блокнота или заметки, которую строка отправляет.
+     */
+    static final String FILL_OUTBOX_USER_IDS = "UPDATE " + DatabaseConstants.Outbox.TABLE_NAME + " SET " +
+            DatabaseConstants.Outbox.Columns.USER_ID + " = COALESCE(CASE " + DatabaseConstants.Outbox.Columns.ENTITY_TYPE +
+            " WHEN " + DatabaseConstants.Outbox.ENTITY_NOTEPAD + " THEN (SELECT " + DatabaseConstants.Notepads.Columns.CREATOR_ID +
+            " FROM " + DatabaseConstants.Notepads.TABLE_NAME + " WHERE " + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = " +
+            DatabaseConstants.Outbox.Columns.ENTITY_ID + ") ELSE (SELECT " + DatabaseConstants.Notes.Columns.CREATOR_ID +
+            " FROM " + DatabaseConstants.Notes.TABLE_NAME + " WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = " +
+            DatabaseConstants.Outbox.Columns.ENTITY_ID + ") END, 0) WHERE " + DatabaseConstants.Outbox.Columns.FIREBASE_USER_ID +
+            " IS NULL";
+
+    static final String INSERT_OUTBOX_ENTRY = "INSERT INTO " + DatabaseConstants.Outbox.TABLE_NAME + " (" +
+            DatabaseConstants.Outbox.Columns.ENTITY_TYPE + ", " + DatabaseConstants.Outbox.Columns.ENTITY_ID + ", " +
+            DatabaseConstants.Outbox.Columns.NOTEPAD_ID + ", " + DatabaseConstants.Outbox.Columns.OPERATION + ", " +
+            DatabaseConstants.Outbox.Columns.FIREBASE_USER_ID + ", " + DatabaseConstants.Outbox.Columns.FIREBASE_ID + ", " +
+            DatabaseConstants.Outbox.Columns.MODIFIED_FIELDS + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_INSERT_V10 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_insert AFTER INSERT ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN " + addNoteToStats("new", storedTextSizeV10("new")) + " END;";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_UPDATE_V10 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_update AFTER UPDATE OF " +
+            DatabaseConstants.Notes.Columns.NOTEPAD_ID + ", " + DatabaseConstants.Notes.Columns.CREATOR_ID + ", " +
+            DatabaseConstants.Notes.Columns.CREATION_DATE + ", " + DatabaseConstants.Notes.Columns.TEXT + " ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN " + removeNoteFromStats("old", storedTextSizeV10("old")) + " " +
+            addNoteToStats("new", storedTextSizeV10("new")) + " END;";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_DELETE_V10 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_delete AFTER DELETE ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN " + removeNoteFromStats("old", storedTextSizeV10("old")) + " END;";
+
+    /*
+     * Триггеры v17. Размер текстов берется из text_length (несжатый размер), а не из длины колонки text.
+     * Правка текста (а это каждый autosave) меняет агрегаты только на разницу размеров: триггер на text_length.
+     * "Вычесть старую строку, прибавить новую" с пересчетом MAX(creation_date) нужен, только если заметка
+     * на самом деле сменила блокнот, пользователя или дату. Условия WHEN взаимоисключающие: срабатывает один из двух.
+     */
+    private static final String NOTE_MOVED_CONDITION = "old." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + " IS NOT new." +
+            DatabaseConstants.Notes.Columns.NOTEPAD_ID + " OR old." + DatabaseConstants.Notes.Columns.CREATOR_ID + " IS NOT new." +
+            DatabaseConstants.Notes.Columns.CREATOR_ID + " OR old." + DatabaseConstants.Notes.Columns.CREATION_DATE + " IS NOT new." +
+            DatabaseConstants.Notes.Columns.CREATION_DATE;
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_INSERT_V17 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_insert AFTER INSERT ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN " + addNoteToStats("new", "new." + DatabaseConstants.Notes.Columns.TEXT_LENGTH) + " END;";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_UPDATE_V17 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_update AFTER UPDATE OF " +
+            DatabaseConstants.Notes.Columns.NOTEPAD_ID + ", " + DatabaseConstants.Notes.Columns.CREATOR_ID + ", " +
+            DatabaseConstants.Notes.Columns.CREATION_DATE + " ON " + DatabaseConstants.Notes.TABLE_NAME + " WHEN " + NOTE_MOVED_CONDITION +
+            " BEGIN " + removeNoteFromStats("old", "old." + DatabaseConstants.Notes.Columns.TEXT_LENGTH) + " " +
+            addNoteToStats("new", "new." + DatabaseConstants.Notes.Columns.TEXT_LENGTH) + " END;";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_TEXT_UPDATE_V17 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_text_update AFTER UPDATE OF " +
+            DatabaseConstants.Notes.Columns.TEXT_LENGTH + " ON " + DatabaseConstants.Notes.TABLE_NAME + " WHEN NOT (" + NOTE_MOVED_CONDITION +
+            ") AND old." + DatabaseConstants.Notes.Columns.TEXT_LENGTH + " <> new." + DatabaseConstants.Notes.Columns.TEXT_LENGTH +
+            " BEGIN UPDATE " + DatabaseConstants.NotepadStats.TABLE_NAME + " SET " + DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " = " +
+            DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " + new." + DatabaseConstants.Notes.Columns.TEXT_LENGTH + " - old." +
+            DatabaseConstants.Notes.Columns.TEXT_LENGTH + " WHERE " + DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + " = new." +
+            DatabaseConstants.Notes.Columns.NOTEPAD_ID + "; END;";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_DELETE_V17 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_delete AFTER DELETE ON " +
+            DatabaseConstants.Notes.TABLE_NAME + " BEGIN " + removeNoteFromStats("old", "old." + DatabaseConstants.Notes.Columns.TEXT_LENGTH) + " END;";
+
+    private static final String CREATE_TRIGGER_NOTEPAD_STATS_NOTEPAD_DELETE_V10 = "CREATE TRIGGER IF NOT EXISTS notepad_stats_after_notepad_delete AFTER DELETE ON " +
+            DatabaseConstants.Notepads.TABLE_NAME + " BEGIN DELETE FROM " + DatabaseConstants.NotepadStats.TABLE_NAME + " WHERE " +
+            DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + " = old." + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + "; END;";
+
+    /**
+     * @param row new или old - строка notes, которую нужно учесть в агрегатах.
+     * @param textSize выражение для размера ее текста.
+     */
+    private static String addNoteToStats(String row, String textSize) {
+        return "INSERT OR IGNORE INTO " + DatabaseConstants.NotepadStats.TABLE_NAME + " (" +
+                DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + ") VALUES (" + row + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + "); " +
+                "UPDATE " + DatabaseConstants.NotepadStats.TABLE_NAME + " SET " +
+                DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + " = " + DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + " + 1, " +
+                //max() с NULL дает NULL, поэтому пустой блокнот (last_note_date IS NULL) обрабатывается отдельно.
+                DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE + " = max(IFNULL(" + DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE +
+                ", " + row + "." + DatabaseConstants.Notes.Columns.CREATION_DATE + "), " + row + "." + DatabaseConstants.Notes.Columns.CREATION_DATE + "), " +
+                DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " = " + DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " + " + textSize +
+                " WHERE " + DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + " = " + row + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ";";
+    }
+
+    /**
+     * @param row old - строка notes, которую нужно вычесть из агрегатов.
+     * @param textSize выражение для размера ее текста.
+     */
+    private static String removeNoteFromStats(String row, String textSize) {
+        return "UPDATE " + DatabaseConstants.NotepadStats.TABLE_NAME + " SET " +
+                DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + " = " + DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + " - 1, " +
+                DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " = " + DatabaseConstants.NotepadStats.Columns.TEXT_SIZE + " - " + textSize + ", " +
+                //триггер AFTER: самой заметки в старом блокноте уже нет (или у нее уже новые значения), так что MAX считается без нее.
+                DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE + " = (SELECT MAX(" + DatabaseConstants.Notes.Columns.CREATION_DATE +
+                ") FROM " + DatabaseConstants.Notes.TABLE_NAME + " WHERE " +
+                DatabaseConstants.Notes.Columns.CREATOR_ID + " = " + row + "." + DatabaseConstants.Notes.Columns.CREATOR_ID + " AND " +
+                DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = " + row + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ")" +
+                " WHERE " + DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + " = " + row + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ";";
+    }
+
+    /**
+     * Размер текста в v10-v16: длина колонки text, для сжатых текстов - длина BLOB'а.
+     */
+    private static String storedTextSizeV10(String row) {
+        return "IFNULL(length(CAST(" + row + "." + DatabaseConstants.Notes.Columns.TEXT + " AS BLOB)), 0)";
+    }
+
+    /**
+     * Добавляет запись в полнотекстовый индекс. Аргументы: docid (= _id заметки), название, несжатый текст.
+     */
+    static final String INSERT_NOTE_SEARCH_ENTRY = "INSERT INTO " + DatabaseConstants.NotesSearch.TABLE_NAME + " (" +
+            DatabaseConstants.NotesSearch.Columns.DOCID + ", " + DatabaseConstants.NotesSearch.Columns.TITLE + ", " +
+            DatabaseConstants.NotesSearch.Columns.TEXT + ") VALUES (?, ?, ?)";
+
+    /**
+     * Сколько заметок сжимается за один проход при миграции на v9. Значение = {@value}
+     */
+    private static final int COMPRESSION_MIGRATION_BATCH_SIZE = 100;
+
+    /**
+     * Получатель прогресса миграции (см. setMigrationListener). Вызывается в том потоке, который открывает БД.
+     */
+    interface MigrationListener {
+        /**
+         * @param completedSteps сколько версий схемы уже пройдено.
+         * @param stepsCount сколько всего версий нужно пройти. Когда completedSteps == stepsCount, миграция закончена.
+         */
+        void onMigrationProgress(int completedSteps, int stepsCount);
+    }
+
+    private MigrationListener mMigrationListener;
+
     public DatabaseHelper(Context context) {
-        super (context, DATABASE_NAME, null, VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param databaseName имя файла БД. Отдельное имя нужно тестам, чтобы не трогать базу самого приложения.
+     */
+    DatabaseHelper(Context context, String databaseName) {
+        super (context, databaseName, null, VERSION);
+        //в режиме WAL писатель не блокирует читателей: пока синхронизация держит большую транзакцию,
+        //списки читаются через отдельные соединения из пула и видят последнее закоммиченное состояние.
+        setWriteAheadLoggingEnabled(true);
     }
 
     /**
@@ -66,7 +325,29 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         sqLiteDatabase.execSQL(CREATE_TABLE_NOTES_V5);
 
-        sqLiteDatabase.execSQL(CREATE_TABLE_DELETED_NOTES_V5);
+        createIndexesV6(sqLiteDatabase);
+        createNotesSearchV7(sqLiteDatabase);
+        addNotesPreviewV8(sqLiteDatabase);
+        addNotesTextFormatV9(sqLiteDatabase);
+        createNotepadStatsV10(sqLiteDatabase);
+        sqLiteDatabase.execSQL(CREATE_TABLE_OUTBOX_V11);
+        addModificationTimesV12(sqLiteDatabase);
+        addNotesContentDigestV13(sqLiteDatabase);
+        addOutboxUserIdV15(sqLiteDatabase);
+        addNotesTextLengthV17(sqLiteDatabase);
+    }
+
+    /**
+     * Задает получателя прогресса миграции. Вызывать нужно до открытия БД.
+     */
+    void setMigrationListener(MigrationListener listener) {
+        mMigrationListener = listener;
+    }
+
+    private void reportMigrationProgress(int oldVersion, int reachedVersion) {
+        if (mMigrationListener != null) {
+            mMigrationListener.onMigrationProgress(reachedVersion - oldVersion, VERSION - oldVersion);
+        }
     }
 
     /**
@@ -76,6 +357,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        reportMigrationProgress(oldVersion, oldVersion);
         switch (oldVersion) {
             case 1: {
                 sqLiteDatabase.execSQL("ALTER TABLE " + DatabaseConstants.Notepads.TABLE_NAME + " ADD COLUMN " +
@@ -83,6 +365,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 sqLiteDatabase.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
                         DatabaseConstants.Notes.Columns.FIREBASE_ID + " TEXT DEFAULT NULL");
                 Log.d("DB schema updated", "from v.1 to v.2");
+                reportMigrationProgress(oldVersion, 2);
                 //break'a тут теперь нет, чтобы обновление продолжилось до актуальной версии.
             }
             case 2: {
@@ -93,11 +376,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                         DatabaseConstants.Notes.Columns.FIREBASE_STATUS + " INTEGER DEFAULT " +
                         DatabaseConstants.FirebaseCodes.NEEDS_ADDITION);
                 Log.d("DB schema updated", "from v.2 to v.3");
+                reportMigrationProgress(oldVersion, 3);
             }
             case 3: {
                 sqLiteDatabase.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
                         DatabaseConstants.Notes.Columns.FIREBASE_NOTEPAD_ID + " TEXT DEFAULT NULL;");
                 Log.d("DB schema updated", "from v.3 to v.4");
+                reportMigrationProgress(oldVersion, 4);
                 //это было очень, очень неудачное решение.
             }
             case 4: {
@@ -105,6 +390,77 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 copyNotes(sqLiteDatabase);
                 sqLiteDatabase.execSQL(CREATE_TABLE_DELETED_NOTES_V5);
                 Log.d("DB schema updated", "from v.4 to v.5");
+                reportMigrationProgress(oldVersion, 5);
+            }
+            case 5: {
+                createIndexesV6(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.5 to v.6");
+                reportMigrationProgress(oldVersion, 6);
+            }
+            case 6: {
+                createNotesSearchV7(sqLiteDatabase);
+                //индекс заполняется в самом конце миграции (см. case 8): к тому моменту в notes уже есть колонка text_format.
+                Log.d("DB schema updated", "from v.6 to v.7");
+                reportMigrationProgress(oldVersion, 7);
+            }
+            case 7: {
+                addNotesPreviewV8(sqLiteDatabase);
+                fillNotesPreview(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.7 to v.8");
+                reportMigrationProgress(oldVersion, 8);
+            }
+            case 8: {
+                addNotesTextFormatV9(sqLiteDatabase);
+                compressLargeNotesTexts(sqLiteDatabase);
+                if (oldVersion < 7) {
+                    rebuildNotesSearch(sqLiteDatabase);
+                }
+                Log.d("DB schema updated", "from v.8 to v.9");
+                reportMigrationProgress(oldVersion, 9);
+            }
+            case 9: {
+                //агрегаты посчитает шаг v17: rebuildNotepadStats уже берет размер из text_length, которой пока нет.
+                createNotepadStatsV10(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.9 to v.10");
+                reportMigrationProgress(oldVersion, 10);
+            }
+            case 10: {
+                sqLiteDatabase.execSQL(CREATE_TABLE_OUTBOX_V11);
+                fillOutboxFromStatuses(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.10 to v.11");
+                reportMigrationProgress(oldVersion, 11);
+            }
+            case 11: {
+                addModificationTimesV12(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.11 to v.12");
+                reportMigrationProgress(oldVersion, 12);
+            }
+            case 12: {
+                //дайджесты старых заметок досчитывает синхронизация (StorageKeeper.synchronizeNotes): здесь для этого пришлось бы распаковать все тексты.
+                addNotesContentDigestV13(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.12 to v.13");
+                reportMigrationProgress(oldVersion, 13);
+            }
+            case 13: {
+                dropUnsynchronizedIndexesV14(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.13 to v.14");
+                reportMigrationProgress(oldVersion, 14);
+            }
+            case 14: {
+                addOutboxUserIdV15(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.14 to v.15");
+                reportMigrationProgress(oldVersion, 15);
+            }
+            case 15: {
+                dropNotesSyncStateV16(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.15 to v.16");
+                reportMigrationProgress(oldVersion, 16);
+            }
+            case 16: {
+                addNotesTextLengthV17(sqLiteDatabase);
+                rebuildNotepadStats(sqLiteDatabase);
+                Log.d("DB schema updated", "from v.16 to v.17");
+                reportMigrationProgress(oldVersion, 17);
                 break;
             }
             default: {
@@ -113,57 +469,372 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    private void copyUsers(SQLiteDatabase db) {
-        //Увы, SQLite не поддерживает удаление колонок! Пойдем другим путем.
-        //gather users from current table
-        List<ContentValues> usersCopy = new ArrayList<>();
-        try (Cursor cursorUsers = db.query(
-                DatabaseConstants.Users.TABLE_NAME,
-                new String[]{DatabaseConstants.Users.Columns.LOGIN},
+    private void createIndexesV6(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX_NOTES_BY_NOTEPAD_V6);
+        db.execSQL(CREATE_INDEX_NOTES_BY_USER_V6);
+        db.execSQL(CREATE_INDEX_NOTEPADS_BY_USER_V6);
+        db.execSQL(CREATE_INDEX_USERS_BY_LOGIN_V6);
+    }
+
+    /**
+     * До v14 здесь же создавались индексы по firebase_status для несинхронизированных строк. Ни один запрос по ним
+     * не фильтровал (что не отправлено, знает outbox), так что они только замедляли каждую запись.
+     */
+    private void dropUnsynchronizedIndexesV14(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS notes_unsynchronized_idx;");
+        db.execSQL("DROP INDEX IF EXISTS notepads_unsynchronized_idx;");
+    }
+
+    /**
+     * Создает полнотекстовый индекс заметок и триггеры, которые обновляют его при любом изменении таблицы notes.
+     * Индекс хранит собственную копию названий и текстов (а не ссылается на notes как external content),
+     * поэтому удаление из него не требует старых значений колонок - достаточно docid.
+     */
+    private void createNotesSearchV7(SQLiteDatabase db) {
+        String tokenizer = compareSQLiteVersions(getSQLiteVersion(db), UNICODE61_TOKENIZER_MIN_SQLITE_VERSION) >= 0 ?
+                "unicode61" : "simple";
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + DatabaseConstants.NotesSearch.TABLE_NAME + " USING fts4(" +
+                DatabaseConstants.NotesSearch.Columns.TITLE + ", " + DatabaseConstants.NotesSearch.Columns.TEXT +
+                ", tokenize=" + tokenizer + ");");
+        db.execSQL(CREATE_TRIGGER_NOTES_SEARCH_INSERT_V7);
+        db.execSQL(CREATE_TRIGGER_NOTES_SEARCH_UPDATE_V7);
+        db.execSQL(CREATE_TRIGGER_NOTES_SEARCH_DELETE_V7);
+    }
+
+    /**
+     * Добавляет в таблицу notes колонку с превью текста. Список заметок читает только ее,
+     * а полный текст загружается, только когда заметку открывают.
+     */
+    private void addNotesPreviewV8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Notes.Columns.PREVIEW + " TEXT DEFAULT '';");
+    }
+
+    /**
+     * Считает превью для всех заметок, которые уже лежат в БД. Превью собирается в Java (NotePreviewHelper),
+     * поэтому одним UPDATE тут не обойтись: заметки обходятся курсором, а запрос на обновление компилируется один раз.
+     */
+    private void fillNotesPreview(SQLiteDatabase db) {
+        SQLiteStatement updatePreview = db.compileStatement("UPDATE " + DatabaseConstants.Notes.TABLE_NAME + " SET " +
+                DatabaseConstants.Notes.Columns.PREVIEW + " = ? WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = ?");
+        try (Cursor cursorNotes = db.query(DatabaseConstants.Notes.TABLE_NAME,
+                new String[]{DatabaseConstants.Notes.Columns.NOTE_ID, DatabaseConstants.Notes.Columns.TEXT},
                 null, null, null, null, null)) {
-            cursorUsers.moveToFirst();
-            while(!cursorUsers.isAfterLast()) {
-                ContentValues values = new ContentValues();
-                values.put(DatabaseConstants.Users.Columns.LOGIN, cursorUsers.getString(cursorUsers.getColumnIndex(DatabaseConstants.Users.Columns.LOGIN)));
-                usersCopy.add(values);
-                cursorUsers.moveToNext();
+            while (cursorNotes.moveToNext()) {
+                updatePreview.bindString(1, NotePreviewHelper.makeTextPreview(cursorNotes.getString(1)));
+                updatePreview.bindLong(2, cursorNotes.getLong(0));
+                updatePreview.executeUpdateDelete();
             }
         }
+        finally {
+            updatePreview.close();
+        }
+    }
 
-        //drop current table
-        db.execSQL("DROP TABLE " + DatabaseConstants.Users.TABLE_NAME);
+    /**
+     * Добавляет в таблицу notes колонку с форматом текста и заменяет триггеры полнотекстового индекса на версию,
+     * которая пропускает сжатые тексты.
+     */
+    private void addNotesTextFormatV9(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Notes.Columns.TEXT_FORMAT + " INTEGER DEFAULT " + DatabaseConstants.TextFormats.PLAIN + ";");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_after_insert;");
+        db.execSQL("DROP TRIGGER IF EXISTS notes_fts_after_update;");
+        db.execSQL(CREATE_TRIGGER_NOTES_SEARCH_INSERT_V9);
+        db.execSQL(CREATE_TRIGGER_NOTES_SEARCH_UPDATE_V9);
+    }
+
+    private void createNotepadStatsV10(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_NOTEPAD_STATS_V10);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_INSERT_V10);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_UPDATE_V10);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_DELETE_V10);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_NOTEPAD_DELETE_V10);
+    }
 
-        //create new table
-        db.execSQL(CREATE_TABLE_USERS_V5);
-        for (ContentValues cv : usersCopy) {
-            db.insert(DatabaseConstants.Users.TABLE_NAME, null, cv);
+    /**
+     * Старым строкам modified_at не заполняется (остается 0): переписывать ради этого всю таблицу notes незачем,
+     * а первая синхронизация после обновления все равно читает firebase целиком (отметки в sync_state еще нет).
+     */
+    private void addModificationTimesV12(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Notepads.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Notepads.Columns.MODIFIED_AT + " INTEGER DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Notes.Columns.MODIFIED_AT + " INTEGER DEFAULT 0;");
+        db.execSQL(CREATE_TABLE_SYNC_STATE_V12);
+    }
+
+    /**
+     * До v15 строки outbox без пользователя firebase уходили тому, кто войдет первым, даже если изменение чужое.
+     * Теперь у них есть локальный владелец, и отправляются они только после его входа.
+     */
+    private void addOutboxUserIdV15(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Outbox.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Outbox.Columns.USER_ID + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL(FILL_OUTBOX_USER_IDS + ";");
+    }
+
+    /**
+     * v13-v15 хранили в sync_state под коллекцией "notes" время последней сверки заметок как флаг "индекс дайджестов
+     * уже заполнен". Сверке он больше не нужен, а highWaterMark это не было никогда.
+     */
+    private void dropNotesSyncStateV16(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + DatabaseConstants.SyncState.TABLE_NAME + " WHERE " +
+                DatabaseConstants.SyncState.Columns.COLLECTION + " = 'notes';");
+    }
+
+    /**
+     * Добавляет notes.text_length и заполняет его: для несжатых текстов считает SQLite, сжатые распаковываются по одному.
+     * Триггеры агрегатов пересоздаются уже на text_length. Сами агрегаты после этого нужно пересчитать (rebuildNotepadStats).
+     */
+    private void addNotesTextLengthV17(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS notepad_stats_after_insert;");
+        db.execSQL("DROP TRIGGER IF EXISTS notepad_stats_after_update;");
+        db.execSQL("DROP TRIGGER IF EXISTS notepad_stats_after_delete;");
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Notes.Columns.TEXT_LENGTH + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + DatabaseConstants.Notes.TABLE_NAME + " SET " + DatabaseConstants.Notes.Columns.TEXT_LENGTH +
+                " = IFNULL(length(CAST(" + DatabaseConstants.Notes.Columns.TEXT + " AS BLOB)), 0) WHERE " +
+                DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " + DatabaseConstants.TextFormats.PLAIN + ";");
+        SQLiteStatement setTextLength = db.compileStatement("UPDATE " + DatabaseConstants.Notes.TABLE_NAME + " SET " +
+                DatabaseConstants.Notes.Columns.TEXT_LENGTH + " = ? WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = ?");
+        try (Cursor compressedNotes = db.rawQuery("SELECT " + DatabaseConstants.Notes.Columns.NOTE_ID + ", " +
+                DatabaseConstants.Notes.Columns.TEXT + " FROM " + DatabaseConstants.Notes.TABLE_NAME + " WHERE " +
+                DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " + DatabaseConstants.TextFormats.DEFLATE + ";", null)) {
+            while (compressedNotes.moveToNext()) {
+                setTextLength.bindLong(1, NoteTextCodec.getDecompressedLength(compressedNotes.getBlob(1)));
+                setTextLength.bindLong(2, compressedNotes.getLong(0));
+                setTextLength.executeUpdateDelete();
+            }
+        }
+        finally {
+            setTextLength.close();
         }
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_INSERT_V17);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_UPDATE_V17);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_TEXT_UPDATE_V17);
+        db.execSQL(CREATE_TRIGGER_NOTEPAD_STATS_DELETE_V17);
     }
 
-    private void copyNotes(SQLiteDatabase db) {
-        List<ContentValues> notesCopy = new ArrayList<>();
-        //select * from notes
-        try (Cursor cursorNotes = db.query(DatabaseConstants.Notes.TABLE_NAME, null, null, null, null, null, null)) {
-            cursorNotes.moveToFirst();
-            while (!cursorNotes.isAfterLast()) {
-                ContentValues values = new ContentValues();
-                values.put(DatabaseConstants.Notes.Columns.NOTEPAD_ID, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.NOTEPAD_ID)));
-                values.put(DatabaseConstants.Notes.Columns.CREATOR_ID, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.CREATOR_ID)));
-                values.put(DatabaseConstants.Notes.Columns.TITLE, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.TITLE)));
-                values.put(DatabaseConstants.Notes.Columns.CREATION_DATE, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.CREATION_DATE)));
-                values.put(DatabaseConstants.Notes.Columns.TEXT, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.TEXT)));
-                values.put(DatabaseConstants.Notes.Columns.FIREBASE_ID, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_ID)));
-                values.put(DatabaseConstants.Notes.Columns.FIREBASE_STATUS, cursorNotes.getString(cursorNotes.getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_STATUS)));
-                notesCopy.add(values);
-                cursorNotes.moveToNext();
-            }
-        }
-
-        db.execSQL("DROP TABLE " + DatabaseConstants.Notes.TABLE_NAME);
-
-        db.execSQL(CREATE_TABLE_NOTES_V5);
-        for (ContentValues cv : notesCopy) {
-            db.insert(DatabaseConstants.Notes.TABLE_NAME, null, cv);
+    private void addNotesContentDigestV13(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DatabaseConstants.Notes.TABLE_NAME + " ADD COLUMN " +
+                DatabaseConstants.Notes.Columns.CONTENT_DIGEST + " INTEGER DEFAULT NULL;");
+    }
+
+    /**
+     * До v11 несинхронизированные изменения жили только в потоках, запущенных при записи, и в статусах firebase_status.
+     * Здесь по статусам (и по deleted_notes) собирается outbox, чтобы все, что не дошло до firebase, дошло после миграции.
+     * Порядок важен: сначала блокноты, потом заметки, которым нужны их ключи. Ключей у добавлений еще нет,
+     * их сгенерирует StorageKeeper перед первой отправкой. Пользователь firebase неизвестен: владельцев строкам
+     * допишет шаг v15 (addOutboxUserIdV15), а пользователь firebase им достанется при входе владельца.
+     */
+    private static void fillOutboxFromStatuses(SQLiteDatabase db) {
+        String insertPrefix = "INSERT INTO " + DatabaseConstants.Outbox.TABLE_NAME + " (" +
+                DatabaseConstants.Outbox.Columns.ENTITY_TYPE + ", " + DatabaseConstants.Outbox.Columns.ENTITY_ID + ", " +
+                DatabaseConstants.Outbox.Columns.NOTEPAD_ID + ", " + DatabaseConstants.Outbox.Columns.OPERATION + ", " +
+                DatabaseConstants.Outbox.Columns.FIREBASE_ID + ") ";
+        int[] operations = {DatabaseConstants.FirebaseCodes.NEEDS_ADDITION, DatabaseConstants.FirebaseCodes.NEEDS_UPDATE};
+        for (int operation : operations) {
+            db.execSQL(insertPrefix + "SELECT " + DatabaseConstants.Outbox.ENTITY_NOTEPAD + ", " +
+                    DatabaseConstants.Notepads.Columns.NOTEPAD_ID + ", 0, " + operation + ", NULL FROM " +
+                    DatabaseConstants.Notepads.TABLE_NAME + " WHERE " + DatabaseConstants.Notepads.Columns.FIREBASE_STATUS +
+                    " = " + operation + " ORDER BY " + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + ";");
+        }
+        for (int operation : operations) {
+            db.execSQL(insertPrefix + "SELECT " + DatabaseConstants.Outbox.ENTITY_NOTE + ", " +
+                    DatabaseConstants.Notes.Columns.NOTE_ID + ", " + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ", " +
+                    operation + ", NULL FROM " + DatabaseConstants.Notes.TABLE_NAME + " WHERE " +
+                    DatabaseConstants.Notes.Columns.FIREBASE_STATUS + " = " + operation + " ORDER BY " +
+                    DatabaseConstants.Notes.Columns.NOTE_ID + ";");
         }
+        db.execSQL(insertPrefix + "SELECT " + DatabaseConstants.Outbox.ENTITY_NOTE + ", 0, 0, " +
+                DatabaseConstants.FirebaseCodes.NEEDS_DELETION + ", " + DatabaseConstants.DeletedNotes.Columns.FIREBASE_ID +
+                " FROM " + DatabaseConstants.DeletedNotes.TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseConstants.DeletedNotes.TABLE_NAME + ";");
+    }
+
+    /**
+     * Заново считает агрегаты всех блокнотов одним проходом по notes. Нужен при миграции существующих баз
+     * и на случай, если агрегаты по какой-то причине разошлись с таблицей.
+     * @param db база данных. Метод сам открывает транзакцию.
+     */
+    static void rebuildNotepadStats(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + DatabaseConstants.NotepadStats.TABLE_NAME + ";");
+            db.execSQL("INSERT INTO " + DatabaseConstants.NotepadStats.TABLE_NAME + " (" +
+                    DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + ", " + DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + ", " +
+                    DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE + ", " + DatabaseConstants.NotepadStats.Columns.TEXT_SIZE +
+                    ") SELECT " + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ", COUNT(*), MAX(" + DatabaseConstants.Notes.Columns.CREATION_DATE +
+                    "), IFNULL(SUM(" + DatabaseConstants.Notes.Columns.TEXT_LENGTH + "), 0) FROM " +
+                    DatabaseConstants.Notes.TABLE_NAME + " GROUP BY " + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ";");
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Сжимает тексты существующих заметок, которые длиннее NoteTextCodec.COMPRESSION_THRESHOLD.
+     * Заметки выбираются пачками по возрастанию _id, так что в памяти одновременно не больше одной пачки текстов.
+     */
+    private void compressLargeNotesTexts(SQLiteDatabase db) {
+        SQLiteStatement compressText = db.compileStatement("UPDATE " + DatabaseConstants.Notes.TABLE_NAME + " SET " +
+                DatabaseConstants.Notes.Columns.TEXT + " = ?, " + DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " +
+                DatabaseConstants.TextFormats.DEFLATE + " WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = ?");
+        SQLiteStatement indexText = db.compileStatement(INSERT_NOTE_SEARCH_ENTRY);
+        try {
+            long lastId = 0;
+            int compressed = 0;
+            boolean hasMore = true;
+            while (hasMore) {
+                try (Cursor batch = db.rawQuery("SELECT " + DatabaseConstants.Notes.Columns.NOTE_ID + ", " +
+                        DatabaseConstants.Notes.Columns.TITLE + ", " + DatabaseConstants.Notes.Columns.TEXT + " FROM " +
+                        DatabaseConstants.Notes.TABLE_NAME + " WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " > " + lastId +
+                        " AND " + DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " + DatabaseConstants.TextFormats.PLAIN +
+                        " AND length(CAST(" + DatabaseConstants.Notes.Columns.TEXT + " AS BLOB)) >= " + NoteTextCodec.COMPRESSION_THRESHOLD +
+                        " ORDER BY " + DatabaseConstants.Notes.Columns.NOTE_ID + " LIMIT " + COMPRESSION_MIGRATION_BATCH_SIZE, null)) {
+                    hasMore = batch.getCount() == COMPRESSION_MIGRATION_BATCH_SIZE;
+                    while (batch.moveToNext()) {
+                        lastId = batch.getLong(0);
+                        String text = batch.getString(2);
+                        byte[] textBytes = NoteTextCodec.getBytesIfCompressible(text);
+                        if (textBytes == null) {
+                            continue;
+                        }
+                        compressText.bindBlob(1, NoteTextCodec.compress(textBytes));
+                        compressText.bindLong(2, lastId);
+                        compressText.executeUpdateDelete();
+                        //триггер убрал заметку из полнотекстового индекса, возвращаем ее туда с несжатым текстом.
+                        indexText.bindLong(1, lastId);
+                        bindStringOrNull(indexText, 2, batch.getString(1));
+                        indexText.bindString(3, text);
+                        indexText.executeInsert();
+                        compressed++;
+                    }
+                }
+            }
+            Log.d("DB schema updated", compressed + " note texts compressed.");
+        }
+        finally {
+            compressText.close();
+            indexText.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Заново заполняет полнотекстовый индекс из таблицы notes. Нужен при миграции существующих баз
+     * и на случай, если индекс по какой-то причине разошелся с таблицей.
+     * @param db база данных, в которой лежит индекс. Метод сам открывает транзакцию.
+     */
+    static void rebuildNotesSearch(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("DELETE FROM " + DatabaseConstants.NotesSearch.TABLE_NAME + ";");
+            db.execSQL("INSERT INTO " + DatabaseConstants.NotesSearch.TABLE_NAME + " (" +
+                    DatabaseConstants.NotesSearch.Columns.DOCID + ", " + DatabaseConstants.NotesSearch.Columns.TITLE + ", " +
+                    DatabaseConstants.NotesSearch.Columns.TEXT + ") SELECT " + DatabaseConstants.Notes.Columns.NOTE_ID + ", " +
+                    DatabaseConstants.Notes.Columns.TITLE + ", " + DatabaseConstants.Notes.Columns.TEXT + " FROM " +
+                    DatabaseConstants.Notes.TABLE_NAME + " WHERE " + DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " +
+                    DatabaseConstants.TextFormats.PLAIN + ";");
+            //сжатые тексты SQLite сам не распакует, их индексируем по одному.
+            SQLiteStatement indexText = db.compileStatement(INSERT_NOTE_SEARCH_ENTRY);
+            try (Cursor compressedNotes = db.rawQuery("SELECT " + DatabaseConstants.Notes.Columns.NOTE_ID + ", " +
+                    DatabaseConstants.Notes.Columns.TITLE + ", " + DatabaseConstants.Notes.Columns.TEXT + " FROM " +
+                    DatabaseConstants.Notes.TABLE_NAME + " WHERE " + DatabaseConstants.Notes.Columns.TEXT_FORMAT + " = " +
+                    DatabaseConstants.TextFormats.DEFLATE + ";", null)) {
+                while (compressedNotes.moveToNext()) {
+                    indexText.bindLong(1, compressedNotes.getLong(0));
+                    bindStringOrNull(indexText, 2, compressedNotes.getString(1));
+                    indexText.bindString(3, NoteTextCodec.decompress(compressedNotes.getBlob(2)));
+                    indexText.executeInsert();
+                }
+            }
+            finally {
+                indexText.close();
+            }
+            //сливает все сегменты индекса в один: после массовой вставки поиск по нему заметно быстрее.
+            db.execSQL("INSERT INTO " + DatabaseConstants.NotesSearch.TABLE_NAME + " (" + DatabaseConstants.NotesSearch.TABLE_NAME +
+                    ") VALUES ('optimize');");
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String getSQLiteVersion(SQLiteDatabase db) {
+        try (Cursor cursor = db.rawQuery("SELECT sqlite_version();", null)) {
+            cursor.moveToFirst();
+            return cursor.getString(0);
+        }
+    }
+
+    /**
+     * Сравнивает версии вида "3.8.4.3" покомпонентно.
+     * @return отрицательное число, если first меньше second, 0, если версии равны, положительное иначе.
+     */
+    private static int compareSQLiteVersions(String first, String second) {
+        String[] firstParts = first.split("\\.");
+        String[] secondParts = second.split("\\.");
+        for (int i = 0; i < Math.max(firstParts.length, secondParts.length); ++i) {
+            int firstPart = i < firstParts.length ? Integer.parseInt(firstParts[i]) : 0;
+            int secondPart = i < secondParts.length ? Integer.parseInt(secondParts[i]) : 0;
+            if (firstPart != secondPart) {
+                return firstPart - secondPart;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Пересобирает таблицу по новой схеме, не загружая ее в память: данные копируются одним INSERT ... SELECT
+     * во временную таблицу, старая таблица удаляется, а временная переименовывается на ее место. onUpgrade уже идет
+     * внутри транзакции, так что если что-то сломается, БД останется в старой версии целиком.
+     * Порядок именно такой (а не "переименовать старую, создать новую"), потому что новые SQLite при переименовании
+     * таблицы переписывают ссылающиеся на нее внешние ключи, и после удаления старой таблицы они бы ссылались в никуда.
+     * @param createTableSql запрос создания таблицы под именем tableName + REBUILT_TABLE_SUFFIX.
+     * @param columns колонки, которые переносятся. Остальные колонки старой таблицы выбрасываются.
+     */
+    private void rebuildTable(SQLiteDatabase db, String tableName, String createTableSql, String... columns) {
+        String rebuiltTableName = tableName + REBUILT_TABLE_SUFFIX;
+        String columnsList = TextUtils.join(", ", columns);
+        db.execSQL("DROP TABLE IF EXISTS " + rebuiltTableName + ";");
+        db.execSQL(createTableSql);
+        db.execSQL("INSERT INTO " + rebuiltTableName + " (" + columnsList + ") SELECT " + columnsList + " FROM " + tableName + ";");
+        db.execSQL("DROP TABLE " + tableName + ";");
+        db.execSQL("ALTER TABLE " + rebuiltTableName + " RENAME TO " + tableName + ";");
+    }
+
+    private void copyUsers(SQLiteDatabase db) {
+        //Увы, SQLite не поддерживает удаление колонок! Пойдем другим путем.
+        //id сохраняются: на них ссылаются notes и notepads.
+        rebuildTable(db, DatabaseConstants.Users.TABLE_NAME,
+                createTableUsersV5(DatabaseConstants.Users.TABLE_NAME + REBUILT_TABLE_SUFFIX),
+                DatabaseConstants.Users.Columns.ID,
+                DatabaseConstants.Users.Columns.LOGIN);
+    }
+
+    private void copyNotes(SQLiteDatabase db) {
+        //колонка firebase_notepad_id выбрасывается.
+        rebuildTable(db, DatabaseConstants.Notes.TABLE_NAME,
+                createTableNotesV5(DatabaseConstants.Notes.TABLE_NAME + REBUILT_TABLE_SUFFIX),
+                DatabaseConstants.Notes.Columns.NOTE_ID,
+                DatabaseConstants.Notes.Columns.NOTEPAD_ID,
+                DatabaseConstants.Notes.Columns.CREATOR_ID,
+                DatabaseConstants.Notes.Columns.TITLE,
+                DatabaseConstants.Notes.Columns.CREATION_DATE,
+                DatabaseConstants.Notes.Columns.TEXT,
+                DatabaseConstants.Notes.Columns.FIREBASE_ID,
+                DatabaseConstants.Notes.Columns.FIREBASE_STATUS);
     }
 }
@@ -0,0 +1,266 @@
+package com.portallium.notekeeper.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Единственный поток, через который идут все записи в SQLite. Раньше записи шли из пула AsyncTask'ов, из new Thread(...)
+ * и из лиснеров Firebase в главном потоке, каждая своей неявной транзакцией, и соединения ждали друг друга на локе БД.
+ * Записи бывают двух видов:
+ * <ul>
+ *     <li>операции (execute) - добавление, изменение, удаление заметок и т.д. Выполняются по одной, в порядке очереди,
+ *     и сами управляют своими транзакциями: у них есть побочные эффекты вне SQLite (события, запросы к Firebase),
+ *     которые нельзя откатить вместе с чужой транзакцией;</li>
+ *     <li>мелкие записи (executeBatched) - однострочные идемпотентные UPDATE и DELETE, в основном статусы синхронизации.
+ *     Мелкие записи, идущие в очереди подряд, собираются в пачку и коммитятся одной транзакцией (group commit):
+ *     синхронизация тысячи заметок стоит нескольких коммитов, а не тысячи.</li>
+ * </ul>
+ * В пачку попадают только мелкие записи: операция всегда коммитит сама, так что на добавление заметок group commit
+ * не влияет. Сколько он дает мелким записям, меряет DatabaseWriterTest.batchedWritesThroughput
+ * (те же UPDATE с транзакцией на каждую и через executeBatched).
+ */
+class DatabaseWriter {
+
+    /**
+     * Сколько миллисекунд пачка ждет следующих мелких записей после первой. Значение = {@value}
+     */
+    static final long DEFAULT_BATCH_WINDOW_MILLIS = 10;
+    /**
+     * Максимальное количество записей в одной пачке. Значение = {@value}
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * То, что писателю нужно от владельца БД.
+     */
+    interface Host {
+        /**
+         * @return открытая БД. Вызывается только в потоке писателя.
+         */
+        SQLiteDatabase getDatabase();
+
+        /**
+         * Вызывается в потоке писателя перед каждой операцией и перед каждой пачкой.
+         */
+        void onWriteStarted();
+
+        /**
+         * Вызывается в потоке писателя после каждой операции и каждой пачки, даже если они упали.
+         */
+        void onWriteFinished();
+
+        /**
+         * Вызывается в потоке писателя после коммита каждой пачки.
+         * @param writesCount количество записей в пачке.
+         * @param latencyMillis время от постановки первой записи пачки в очередь до коммита.
+         */
+        void onBatchCommitted(int writesCount, long latencyMillis);
+    }
+
+    /**
+     * Запись в очереди. Для мелких записей это еще и Future, который завершается, когда запись закоммичена
+     * (или с ее исключением). Сам FutureTask.run() не вызывается: задачу выполняет commitBatch.
+     */
+    private static final class Write extends FutureTask<Void> {
+        private final Runnable mTask;
+        private final boolean mBatchable;
+        private final long mEnqueueTime;
+
+        Write(Runnable task, boolean batchable) {
+            super(task, null);
+            mTask = task;
+            mBatchable = batchable;
+            mEnqueueTime = SystemClock.uptimeMillis();
+        }
+
+        void complete() {
+            set(null);
+        }
+
+        void fail(Throwable ex) {
+            setException(ex);
+        }
+    }
+
+    private final Host mHost;
+    private final BlockingQueue<Write> mQueue = new LinkedBlockingQueue<>();
+    private final Thread mThread;
+    private volatile long mBatchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+
+    DatabaseWriter(Host host) {
+        mHost = host;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runLoop();
+            }
+        }, "StorageKeeper writer");
+        mThread.start();
+    }
+
+    /**
+     * Задает окно группового коммита. 0 - пачка собирается только из записей, которые уже стоят в очереди.
+     */
+    void setBatchWindow(long millis) {
+        mBatchWindowMillis = Math.max(0, millis);
+    }
+
+    boolean isWriterThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Ставит операцию в очередь. Исключения операция должна обрабатывать сама (StorageCall так и делает).
+     */
+    void execute(Runnable operation) {
+        mQueue.add(new Write(operation, false));
+    }
+
+    /**
+     * Ставит мелкую запись в очередь на групповой коммит. Если вызван в потоке писателя (то есть из операции
+     * или другой мелкой записи), выполняет запись сразу, внутри текущей транзакции.
+     * @param write однострочная идемпотентная запись: если пачка не закоммитится, она будет выполнена еще раз.
+     * @return завершится, когда запись закоммичена, или с ее исключением, если она так и не прошла.
+     * В потоке писателя возвращается уже выполненная запись, а ее исключение летит вызывающему, как и раньше.
+     */
+    Future<Void> executeBatched(Runnable write) {
+        Write queued = new Write(write, true);
+        if (isWriterThread()) {
+            write.run();
+            queued.complete();
+        } else {
+            mQueue.add(queued);
+        }
+        return queued;
+    }
+
+    private void runLoop() {
+        Write pending = null;
+        while (true) {
+            try {
+                Write write = pending != null ? pending : mQueue.take();
+                pending = null;
+                if (!write.mBatchable) {
+                    mHost.onWriteStarted();
+                    try {
+                        write.mTask.run();
+                    }
+                    finally {
+                        mHost.onWriteFinished();
+                    }
+                    continue;
+                }
+                List<Write> batch = new ArrayList<>();
+                batch.add(write);
+                long deadline = SystemClock.uptimeMillis() + mBatchWindowMillis;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long timeout = deadline - SystemClock.uptimeMillis();
+                    Write next = timeout > 0 ? mQueue.poll(timeout, TimeUnit.MILLISECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (!next.mBatchable) {
+                        //операция не ждет, пока окно закроется: пачка коммитится сейчас, операция идет следом.
+                        pending = next;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                mHost.onWriteStarted();
+                try {
+                    commitBatch(batch);
+                }
+                finally {
+                    mHost.onWriteFinished();
+                }
+            }
+            catch (InterruptedException ex) {
+                //поток писателя никто не прерывает, а если прервали - продолжаем работать: очередь терять нельзя.
+                Log.e("Group commit", ex.getMessage(), ex);
+            }
+            catch (RuntimeException ex) {
+                Log.e("Group commit", ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void commitBatch(List<Write> batch) {
+        SQLiteDatabase database;
+        try {
+            database = mHost.getDatabase();
+        }
+        catch (RuntimeException ex) {
+            //БД так и не открылась. записи не выполнены, и те, кто их ждет, должны об этом узнать.
+            Log.e("Group commit", "batch of " + batch.size() + " writes dropped: no database", ex);
+            for (Write write : batch) {
+                write.fail(ex);
+            }
+            return;
+        }
+        if (!commitTogether(database, batch)) {
+            //одна сломанная запись не должна утащить за собой всю пачку. каждая повторяется в своей транзакции,
+            //так что запись либо применяется целиком, либо не применяется вовсе.
+            for (Write write : batch) {
+                commitAlone(database, write);
+            }
+        }
+        long latency = SystemClock.uptimeMillis() - batch.get(0).mEnqueueTime;
+        Log.d("Group commit", batch.size() + " writes committed, latency = " + latency + " ms");
+        mHost.onBatchCommitted(batch.size(), latency);
+    }
+
+    /**
+     * @return false, если пачка откатилась целиком.
+     */
+    private static boolean commitTogether(SQLiteDatabase database, List<Write> batch) {
+        try {
+            database.beginTransactionNonExclusive();
+            try {
+                for (Write write : batch) {
+                    write.mTask.run();
+                }
+                database.setTransactionSuccessful();
+            }
+            finally {
+                database.endTransaction();
+            }
+        }
+        catch (RuntimeException ex) {
+            Log.e("Group commit", "batch of " + batch.size() + " writes rolled back, retrying one by one", ex);
+            return false;
+        }
+        for (Write write : batch) {
+            write.complete();
+        }
+        return true;
+    }
+
+    private static void commitAlone(SQLiteDatabase database, Write write) {
+        try {
+            database.beginTransactionNonExclusive();
+            try {
+                write.mTask.run();
+                database.setTransactionSuccessful();
+            }
+            finally {
+                database.endTransaction();
+            }
+            write.complete();
+        }
+        catch (RuntimeException ex) {
+            Log.e("Group commit", ex.getMessage(), ex);
+            write.fail(ex);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.portallium.notekeeper.database;
+
+/**
+ * Все, что StorageKeeper делает с Firebase: записи пачками (см. FirebaseBatcher.Backend) и чтения синхронизации.
+ * В приложении это RealtimeDatabaseBackend поверх корня Firebase. В тестах можно подставить дерево в памяти
+ * и прогнать синхронизацию без сети, посчитав, что и сколько она читает.
+ */
+interface FirebaseBackend extends FirebaseBatcher.Backend {
+
+    /**
+     * Один раз читает значение по пути от корня.
+     * @param orderByChild поле детей, по которому они фильтруются. null - читается все значение целиком.
+     * @param startAt если не null, читаются только дети, у которых orderByChild не меньше startAt.
+     * @param equalTo если не null, читаются только дети, у которых orderByChild равен equalTo.
+     * @param listener вызывается ровно один раз, в любом потоке.
+     */
+    void read(String path, String orderByChild, Long startAt, String equalTo, ReadListener listener);
+
+    /**
+     * @param listener вызывается каждый раз, когда устанавливается связь с сервером, в любом потоке.
+     */
+    void addConnectionListener(Runnable listener);
+
+    interface ReadListener {
+        /**
+         * @param value то же, что DataSnapshot.getValue(): Map детей, String, Long, Boolean или null, если по пути ничего нет.
+         * @param errorMessage null, если прочитать удалось. Иначе value - null.
+         */
+        void onRead(Object value, String errorMessage);
+    }
+}
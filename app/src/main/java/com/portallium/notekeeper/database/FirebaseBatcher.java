@@ -0,0 +1,175 @@
+package com.portallium.notekeeper.database;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Собирает изменения для Firebase в пачки и отправляет каждую пачку одним многопутевым updateChildren.
+ * Раньше каждое добавление, изменение и удаление было отдельным запросом (push().setValue, setValue, removeValue),
+ * то есть отдельным походом в сеть. Теперь изменения, пришедшие за DEFAULT_WINDOW_MILLIS (но не больше MAX_BATCH_SIZE),
+ * уходят вместе, и Firebase применяет их атомарно: либо вся пачка, либо ничего.
+ * Ключи новых блокнотов и заметок генерируются на клиенте (см. Backend.newKey), так что добавлению
+ * не нужен ответ сервера, чтобы узнать свой firebaseId.
+ * Изменения в одной пачке не должны трогать один и тот же путь: это обеспечивает FirebaseScheduler,
+ * который не стартует следующую операцию с сущностью, пока не закончилась предыдущая.
+ */
+class FirebaseBatcher {
+
+    /**
+     * Сколько миллисекунд пачка ждет следующих изменений после первого. Значение = {@value}
+     */
+    static final long DEFAULT_WINDOW_MILLIS = 20;
+    /**
+     * Максимальное количество изменений в одной пачке. Значение = {@value}
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Удаленное хранилище. В приложении это корень Firebase, но можно подставить что угодно
+     * (например, локальную заглушку, чтобы измерить пропускную способность без сети).
+     */
+    interface Backend {
+        /**
+         * @return новый уникальный ключ. Генерируется без обращения к серверу.
+         */
+        String newKey();
+
+        /**
+         * Атомарно применяет все изменения: ключ - путь от корня, значение - новое значение (null удаляет путь).
+         * @param listener вызывается ровно один раз, в любом потоке.
+         */
+        void updateChildren(Map<String, Object> updates, Listener listener);
+
+        interface Listener {
+            /**
+             * @param errorMessage null, если изменения применены.
+             */
+            void onComplete(String errorMessage);
+        }
+    }
+
+    /**
+     * То, что батчеру нужно от владельца.
+     */
+    interface Host {
+        /**
+         * Вызывается один раз на каждую отправленную пачку, в любом потоке.
+         * @param errorMessage null, если пачка применена.
+         * @param latencyMillis время от постановки первого изменения пачки в очередь до ответа сервера.
+         */
+        void onBatchCompleted(List<Change> changes, String errorMessage, long latencyMillis);
+    }
+
+    /**
+     * Изменение одной сущности: один или несколько путей и то, что сделать, когда они будут применены.
+     */
+    static final class Change {
+        final Map<String, Object> mUpdates;
+        /**
+         * Запись результата в SQLite. Выполняется, только если пачка применена. Может быть null.
+         */
+        final Runnable mOnCommitted;
+        /**
+         * Вызывается в любом случае, после mOnCommitted.
+         */
+        final Runnable mOnFinished;
+        private long mEnqueueTime;
+
+        Change(Map<String, Object> updates, Runnable onCommitted, Runnable onFinished) {
+            mUpdates = updates;
+            mOnCommitted = onCommitted;
+            mOnFinished = onFinished;
+        }
+    }
+
+    private final Backend mBackend;
+    private final Host mHost;
+    private final BlockingQueue<Change> mQueue = new LinkedBlockingQueue<>();
+    private volatile long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+
+    FirebaseBatcher(Backend backend, Host host) {
+        mBackend = backend;
+        mHost = host;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runLoop();
+            }
+        }, "StorageKeeper firebase batcher").start();
+    }
+
+    /**
+     * Задает окно сбора пачки. 0 - пачка собирается только из изменений, которые уже стоят в очереди.
+     */
+    void setWindow(long millis) {
+        mWindowMillis = Math.max(0, millis);
+    }
+
+    String newKey() {
+        return mBackend.newKey();
+    }
+
+    void add(Change change) {
+        change.mEnqueueTime = SystemClock.uptimeMillis();
+        mQueue.add(change);
+    }
+
+    private void runLoop() {
+        while (true) {
+            try {
+                List<Change> batch = new ArrayList<>();
+                batch.add(mQueue.take());
+                long deadline = SystemClock.uptimeMillis() + mWindowMillis;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long timeout = deadline - SystemClock.uptimeMillis();
+                    Change next = timeout > 0 ? mQueue.poll(timeout, TimeUnit.MILLISECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                send(batch);
+            }
+            catch (InterruptedException ex) {
+                //как и у DatabaseWriter: изменения терять нельзя, так что продолжаем работать.
+                Log.e("Firebase batch", ex.getMessage(), ex);
+            }
+            catch (RuntimeException ex) {
+                Log.e("Firebase batch", ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void send(final List<Change> batch) {
+        Map<String, Object> updates = new HashMap<>();
+        for (Change change : batch) {
+            updates.putAll(change.mUpdates);
+        }
+        final long enqueueTime = batch.get(0).mEnqueueTime;
+        try {
+            mBackend.updateChildren(updates, new Backend.Listener() {
+                @Override
+                public void onComplete(String errorMessage) {
+                    long latency = SystemClock.uptimeMillis() - enqueueTime;
+                    Log.d("Firebase batch", batch.size() + " changes sent, latency = " + latency + " ms, error = " + errorMessage);
+                    mHost.onBatchCompleted(batch, errorMessage, latency);
+                }
+            });
+        }
+        catch (RuntimeException ex) {
+            //например, недопустимый путь. пачка не ушла, но операции должны закончиться, иначе их зависимые не стартуют никогда.
+            Log.e("Firebase batch", ex.getMessage(), ex);
+            mHost.onBatchCompleted(batch, String.valueOf(ex.getMessage()), SystemClock.uptimeMillis() - enqueueTime);
+        }
+    }
+}
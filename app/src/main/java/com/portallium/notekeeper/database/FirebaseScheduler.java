@@ -0,0 +1,174 @@
+package com.portallium.notekeeper.database;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Очередь запросов к Firebase с учетом зависимостей. Раньше все запросы шли строго по одному через общий семафор,
+ * хотя ждать по-настоящему нужно только одного: заметку нельзя отправлять, пока ее блокнот не получил firebaseId.
+ * Теперь у каждой операции есть ключ (сущность, которую она меняет) и ключи, от которых она зависит.
+ * Операция стартует, когда закончились все ранее поставленные операции с этими ключами, и не ждет никого больше.
+ * Независимые операции выполняются параллельно, но одновременно в полете их не больше, чем inFlightLimit.
+ * Методы можно вызывать из любого потока.
+ */
+class FirebaseScheduler {
+
+    /**
+     * Сколько операций могут выполняться одновременно по умолчанию. Операции уходят в Firebase пачками
+     * (см. FirebaseBatcher), так что это несколько полных пачек в полете, а не несколько запросов.
+     */
+    static final int DEFAULT_IN_FLIGHT_LIMIT = 4 * FirebaseBatcher.MAX_BATCH_SIZE;
+
+    /**
+     * Запрос к Firebase.
+     */
+    interface Operation {
+        /**
+         * Вызывается в фоновом потоке: здесь можно читать SQLite.
+         * @param done нужно вызвать ровно тогда, когда Firebase ответил (успешно или нет), или сразу,
+         *             если запрос решено не отправлять. Пока он не вызван, зависимые операции не стартуют.
+         */
+        void start(Runnable done);
+    }
+
+    private final class Task implements Runnable {
+        private final String mKey;
+        private final Operation mOperation;
+        private final List<Task> mDependents = new ArrayList<>();
+        private int mPendingDependencies;
+        private boolean mFinished;
+
+        Task(String key, Operation operation) {
+            mKey = key;
+            mOperation = operation;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mOperation.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFinished(Task.this);
+                    }
+                });
+            }
+            catch (RuntimeException ex) {
+                //упавшая операция не должна навсегда занять место и заблокировать зависимые.
+                Log.e("Firebase scheduler", ex.getMessage(), ex);
+                onFinished(this);
+            }
+        }
+    }
+
+    private final Executor mStarter;
+    private final Object mLock = new Object();
+    /**
+     * Последняя незаконченная операция по каждому ключу. Следующая операция с тем же ключом ждет ее.
+     */
+    private final Map<String, Task> mLastTasks = new HashMap<>();
+    private final Queue<Task> mReadyTasks = new ArrayDeque<>();
+    private int mInFlightCount;
+    private int mInFlightLimit = DEFAULT_IN_FLIGHT_LIMIT;
+
+    /**
+     * @param starter потоки, в которых вызывается Operation.start.
+     */
+    FirebaseScheduler(Executor starter) {
+        mStarter = starter;
+    }
+
+    static String notepadKey(int notepadId) {
+        return "notepad:" + notepadId;
+    }
+
+    static String noteKey(int noteId) {
+        return "note:" + noteId;
+    }
+
+    /**
+     * Ключ для операции, сущность которой неизвестна (например, удаление заметки, о которой осталась только строка outbox).
+     */
+    static String outboxEntryKey(long outboxEntryId) {
+        return "outbox:" + outboxEntryId;
+    }
+
+    /**
+     * Задает, сколько запросов может выполняться одновременно. Уже стартовавшие запросы не прерываются.
+     */
+    void setInFlightLimit(int limit) {
+        synchronized (mLock) {
+            mInFlightLimit = Math.max(1, limit);
+        }
+        startReadyTasks();
+    }
+
+    /**
+     * Ставит операцию в очередь.
+     * @param key сущность, которую меняет операция. Операции с одним ключом выполняются в порядке постановки.
+     * @param dependencyKeys сущности, операции с которыми должны закончиться до старта этой
+     *                       (для заметки - ее блокнот). Сама операция в их очереди места не занимает.
+     */
+    void submit(String key, Operation operation, String... dependencyKeys) {
+        synchronized (mLock) {
+            Task task = new Task(key, operation);
+            dependOn(task, mLastTasks.get(key));
+            for (String dependencyKey : dependencyKeys) {
+                dependOn(task, mLastTasks.get(dependencyKey));
+            }
+            mLastTasks.put(key, task);
+            if (task.mPendingDependencies == 0) {
+                mReadyTasks.add(task);
+            }
+        }
+        startReadyTasks();
+    }
+
+    private void dependOn(Task task, Task dependency) {
+        if (dependency != null && !dependency.mFinished && !dependency.mDependents.contains(task)) {
+            dependency.mDependents.add(task);
+            task.mPendingDependencies++;
+        }
+    }
+
+    private void onFinished(Task task) {
+        synchronized (mLock) {
+            if (task.mFinished) {
+                return; //done вызвали дважды (например, и из лиснера, и из catch).
+            }
+            task.mFinished = true;
+            mInFlightCount--;
+            for (Task dependent : task.mDependents) {
+                if (--dependent.mPendingDependencies == 0) {
+                    mReadyTasks.add(dependent);
+                }
+            }
+            task.mDependents.clear();
+            if (mLastTasks.get(task.mKey) == task) {
+                mLastTasks.remove(task.mKey);
+            }
+        }
+        startReadyTasks();
+    }
+
+    private void startReadyTasks() {
+        List<Task> tasksToStart = new ArrayList<>();
+        synchronized (mLock) {
+            while (mInFlightCount < mInFlightLimit && !mReadyTasks.isEmpty()) {
+                tasksToStart.add(mReadyTasks.poll());
+                mInFlightCount++;
+            }
+        }
+        //стартуем вне лока: Operation.start ходит в SQLite, а done может прийти синхронно.
+        for (Task task : tasksToStart) {
+            mStarter.execute(task);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.portallium.notekeeper.database;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Дайджесты содержимого заметок для синхронизации заметок (см. StorageKeeper.synchronizeNotes).
+ * Дайджест заметки - 64-битный FNV-1a от названия, текста и даты создания. Криптостойкость тут не нужна:
+ * он только отвечает на вопрос "одинаковы ли две версии заметки".
+ * Корзина - это все заметки одного блокнота. Дайджест корзины - XOR перемешанных пар "ключ заметки + дайджест",
+ * так что от порядка заметок он не зависит и считается одним проходом. Совпали дайджесты корзины - совпали и все ее заметки,
+ * и перебирать их незачем. Поэтому дайджесты корзин хранятся в firebase и отдельно (см. StorageKeeper.FIREBASE_NOTEPAD_DIGESTS):
+ * сверка сравнивает сначала их, и строки индекса читает только у несовпавших блокнотов.
+ */
+final class NoteDigests {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private NoteDigests() {
+    }
+
+    static long ofNote(String title, String text, long creationTime) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = mixString(hash, title);
+        hash = mixString(hash, text);
+        return mixLong(hash, creationTime);
+    }
+
+    /**
+     * В firebase дайджест хранится строкой: числа там - double, и 64 бита в них не влезают.
+     */
+    static String toHex(long digest) {
+        return Long.toHexString(digest);
+    }
+
+    /**
+     * @throws NumberFormatException если это не дайджест.
+     */
+    static long fromHex(String hex) {
+        return new BigInteger(hex, 16).longValue();
+    }
+
+    private static long mixString(long hash, String value) {
+        //длина впереди: иначе ("ab", "c") и ("a", "bc") дали бы одно и то же. -1 - это null.
+        hash = mixLong(hash, value == null ? -1 : value.length());
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private static long mixLong(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Вклад заметки в дайджест корзины. Перемешивается (финализатор SplitMix64), чтобы XOR похожих пар не гасил друг друга.
+     */
+    private static long bucketEntry(String noteKey, long digest) {
+        long z = mixString(FNV_OFFSET_BASIS, noteKey) ^ digest;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Дайджесты заметок одной стороны (SQLite или firebase), разложенные по корзинам.
+     * Заметки и блокноты здесь - ключи firebase: только они одинаковы на обеих сторонах.
+     */
+    static final class Snapshot {
+        private final Map<String, String> mNotepadKeys = new HashMap<>();
+        private final Map<String, Long> mDigests = new HashMap<>();
+        private final Map<String, List<String>> mBuckets = new HashMap<>();
+        private final Map<String, Long> mBucketDigests = new HashMap<>();
+
+        void put(String notepadKey, String noteKey, long digest) {
+            if (mDigests.containsKey(noteKey)) {
+                throw new IllegalArgumentException("Note " + noteKey + " is already in the snapshot");
+            }
+            mNotepadKeys.put(noteKey, notepadKey);
+            mDigests.put(noteKey, digest);
+            List<String> bucket = mBuckets.get(notepadKey);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mBuckets.put(notepadKey, bucket);
+            }
+            bucket.add(noteKey);
+            mBucketDigests.put(notepadKey, getBucketDigest(notepadKey) ^ bucketEntry(noteKey, digest));
+        }
+
+        boolean contains(String noteKey) {
+            return mDigests.containsKey(noteKey);
+        }
+
+        String getNotepadKey(String noteKey) {
+            return mNotepadKeys.get(noteKey);
+        }
+
+        int size() {
+            return mDigests.size();
+        }
+
+        long getBucketDigest(String notepadKey) {
+            Long digest = mBucketDigests.get(notepadKey);
+            return digest == null ? 0 : digest;
+        }
+
+        /**
+         * @return лежит ли заметка на другой стороне в том же блокноте и с тем же содержимым.
+         */
+        private boolean matches(String noteKey, Snapshot other) {
+            return other.contains(noteKey) && mNotepadKeys.get(noteKey).equals(other.mNotepadKeys.get(noteKey))
+                    && mDigests.get(noteKey).equals(other.mDigests.get(noteKey));
+        }
+    }
+
+    /**
+     * Итог сравнения двух снимков.
+     */
+    static final class Diff {
+        /**
+         * Заметки, которые различаются: есть только на одной стороне, отличаются содержимым или лежат в разных блокнотах.
+         */
+        final Set<String> mNoteKeys = new HashSet<>();
+        int mBucketsCount;
+        int mSkippedBucketsCount;
+
+        @Override
+        public String toString() {
+            return mNoteKeys.size() + " notes differ, " + mSkippedBucketsCount + " of " + mBucketsCount + " notepads match";
+        }
+    }
+
+    /**
+     * Сравнивает снимки. Заметки корзин с одинаковыми дайджестами не перебираются вовсе,
+     * так что при малом расхождении работа пропорциональна количеству блокнотов плюс размеру несовпавших корзин.
+     */
+    static Diff diff(Snapshot local, Snapshot remote) {
+        Set<String> notepadKeys = new HashSet<>(local.mBuckets.keySet());
+        notepadKeys.addAll(remote.mBuckets.keySet());
+        return diff(local, remote, notepadKeys);
+    }
+
+    /**
+     * Сравнивает снимки только в корзинах notepadKeys. Остальные корзины не трогаются, даже если в remote их нет вовсе:
+     * так сравнивается снимок, в который из firebase прочитаны не все блокноты.
+     */
+    static Diff diff(Snapshot local, Snapshot remote, Collection<String> notepadKeys) {
+        Diff diff = new Diff();
+        diff.mBucketsCount = notepadKeys.size();
+        for (String notepadKey : notepadKeys) {
+            if (local.getBucketDigest(notepadKey) == remote.getBucketDigest(notepadKey)) {
+                diff.mSkippedBucketsCount++;
+                continue;
+            }
+            addMismatches(diff.mNoteKeys, local, remote, notepadKey);
+            addMismatches(diff.mNoteKeys, remote, local, notepadKey);
+        }
+        return diff;
+    }
+
+    private static void addMismatches(Set<String> mismatches, Snapshot side, Snapshot other, String notepadKey) {
+        List<String> bucket = side.mBuckets.get(notepadKey);
+        if (bucket == null) {
+            return;
+        }
+        for (String noteKey : bucket) {
+            if (!side.matches(noteKey, other)) {
+                mismatches.add(noteKey);
+            }
+        }
+    }
+}
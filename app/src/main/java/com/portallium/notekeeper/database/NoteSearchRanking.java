@@ -0,0 +1,168 @@
+package com.portallium.notekeeper.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+/**
+ * Ранжирование полнотекстового поиска по заметкам (см. StorageKeeper.searchNotes).
+ * Встроенного ранжирования в FTS4 нет, а своих SQL-функций Android зарегистрировать не дает, поэтому релевантность
+ * считается в Java по matchinfo. Из индекса читаются только id совпавших заметок и matchinfo, а в памяти остаются
+ * только limit лучших: короткий префикс вроде "a*" совпадает с десятками тысяч заметок, и сортировать их все
+ * ради одной страницы незачем.
+ */
+final class NoteSearchRanking {
+
+    /**
+     * Во сколько раз совпадение в названии заметки весит больше, чем совпадение в ее тексте. Значение = {@value}
+     */
+    static final double TITLE_WEIGHT = 2.0;
+
+    /**
+     * Лучшие заметки запроса, от самой релевантной к наименее. Не изменяется: лежит в кэше запросов StorageKeeper'а
+     * и достается всем, кто листает тот же поиск.
+     */
+    static final class RankedNoteIds {
+        final int[] mNoteIds;
+        /**
+         * true, если в mNoteIds все совпавшие заметки, а не только лучшие: тогда дальше листать нечего.
+         */
+        final boolean mComplete;
+
+        RankedNoteIds(int[] noteIds, boolean complete) {
+            mNoteIds = noteIds;
+            mComplete = complete;
+        }
+    }
+
+    private NoteSearchRanking() {
+    }
+
+    /**
+     * Превращает введенную пользователем строку в выражение для MATCH. Каждое слово берется в кавычки, чтобы
+     * символы синтаксиса FTS (OR, NEAR, скобки, минус...) в пользовательском вводе не ломали запрос.
+     * Последнее слово ищется как префикс: так поиск работает, пока пользователь еще печатает.
+     * @return выражение для MATCH либо null, если в строке нет ни одного слова.
+     */
+    static String parseQueryToMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        String[] words = query.replace("\"", " ").trim().split("\\s+");
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < words.length; ++i) {
+            if (words[i].isEmpty()) {
+                continue;
+            }
+            if (expression.length() > 0) {
+                expression.append(' ');
+            }
+            expression.append('"').append(words[i]).append(i == words.length - 1 ? "*\"" : "\"");
+        }
+        return expression.length() == 0 ? null : expression.toString();
+    }
+
+    /**
+     * Выбирает limit самых релевантных заметок пользователя. Совпадения читаются курсором по одному и проходят
+     * через кучу на limit элементов, так что память и время сортировки зависят от limit, а не от количества совпадений.
+     * @param notepadId id блокнота, в котором ищутся заметки. если передается 0, поиск идет по всем блокнотам.
+     */
+    static RankedNoteIds selectTopHits(SQLiteDatabase db, String matchExpression, int userId, int notepadId, int limit) {
+        if (limit <= 0) {
+            return new RankedNoteIds(new int[0], false);
+        }
+        String selection = DatabaseConstants.NotesSearch.TABLE_NAME + " MATCH ? AND " +
+                DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.CREATOR_ID + " = ?";
+        String[] selectionArgs = new String[] {matchExpression, Integer.toString(userId)};
+        if (notepadId > 0) {
+            selection += " AND " + DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = ?";
+            selectionArgs = new String[] {matchExpression, Integer.toString(userId), Integer.toString(notepadId)};
+        }
+
+        //в голове кучи - худшая из лучших: ее вытесняет любая заметка релевантнее.
+        PriorityQueue<Hit> worstFirst = new PriorityQueue<>(Math.min(limit, 1024), Collections.<Hit>reverseOrder());
+        int matchedCount = 0;
+        try (Cursor cursor = db.rawQuery(
+                "SELECT " + DatabaseConstants.NotesSearch.TABLE_NAME + "." + DatabaseConstants.NotesSearch.Columns.DOCID +
+                        ", matchinfo(" + DatabaseConstants.NotesSearch.TABLE_NAME + ", 'pcx')" +
+                " FROM " + DatabaseConstants.NotesSearch.TABLE_NAME + " JOIN " + DatabaseConstants.Notes.TABLE_NAME +
+                " ON " + DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTE_ID + " = " +
+                        DatabaseConstants.NotesSearch.TABLE_NAME + "." + DatabaseConstants.NotesSearch.Columns.DOCID +
+                " WHERE " + selection,
+                selectionArgs)) {
+            while (cursor.moveToNext()) {
+                matchedCount++;
+                int noteId = cursor.getInt(0);
+                double rank = rank(cursor.getBlob(1));
+                if (worstFirst.size() < limit) {
+                    worstFirst.add(new Hit(noteId, rank));
+                } else if (worstFirst.peek().isWorseThan(noteId, rank)) {
+                    worstFirst.poll();
+                    worstFirst.add(new Hit(noteId, rank));
+                }
+            }
+        }
+        int[] noteIds = new int[worstFirst.size()];
+        for (int i = noteIds.length - 1; i >= 0; --i) {
+            noteIds[i] = worstFirst.poll().mNoteId;
+        }
+        return new RankedNoteIds(noteIds, matchedCount <= limit);
+    }
+
+    /**
+     * Считает релевантность заметки по результату matchinfo(notes_fts, 'pcx'): для каждой фразы запроса и каждой колонки
+     * количество ее вхождений в эту заметку делится на количество вхождений во все заметки (редкие слова важнее частых),
+     * совпадения в названии умножаются на TITLE_WEIGHT.
+     * @param matchInfo массив беззнаковых 32-битных чисел в порядке байтов устройства.
+     */
+    static double rank(byte[] matchInfo) {
+        IntBuffer values = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrasesCount = values.get(0);
+        int columnsCount = values.get(1);
+        double rank = 0;
+        for (int phrase = 0; phrase < phrasesCount; ++phrase) {
+            for (int column = 0; column < columnsCount; ++column) {
+                int hitsInThisNote = values.get(2 + 3 * (phrase * columnsCount + column));
+                int hitsInAllNotes = values.get(2 + 3 * (phrase * columnsCount + column) + 1);
+                if (hitsInThisNote > 0) {
+                    double weight = column == 0 ? TITLE_WEIGHT : 1.0; //колонка 0 - title, 1 - text
+                    rank += weight * hitsInThisNote / hitsInAllNotes;
+                }
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Найденная заметка и ее релевантность. Сортируется от самой релевантной к наименее,
+     * при равной релевантности - сначала более новые (с большим id).
+     */
+    static final class Hit implements Comparable<Hit> {
+        final int mNoteId;
+        final double mRank;
+
+        Hit(int noteId, double rank) {
+            mNoteId = noteId;
+            mRank = rank;
+        }
+
+        /**
+         * @return true, если заметка noteId с релевантностью rank стоит в выдаче выше этой.
+         */
+        boolean isWorseThan(int noteId, double rank) {
+            int byRank = Double.compare(mRank, rank);
+            return byRank != 0 ? byRank < 0 : mNoteId < noteId;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            int byRank = Double.compare(other.mRank, mRank);
+            return byRank != 0 ? byRank : (other.mNoteId < mNoteId ? -1 : (other.mNoteId == mNoteId ? 0 : 1));
+        }
+    }
+}
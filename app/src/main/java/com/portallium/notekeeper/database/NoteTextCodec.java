@@ -0,0 +1,127 @@
+package com.portallium.notekeeper.database;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Упаковка и распаковка текстов заметок. Тексты длиннее COMPRESSION_THRESHOLD байт хранятся в колонке text
+ * как BLOB, сжатый Deflate'ом, а в колонке text_format у таких заметок стоит TextFormats.DEFLATE.
+ * Короткие тексты хранятся как есть: выигрыш от их сжатия меньше, чем затраты на распаковку.
+ */
+final class NoteTextCodec {
+
+    /**
+     * Минимальный размер текста (в байтах UTF-8), начиная с которого он сжимается. Значение = {@value}
+     */
+    static final int COMPRESSION_THRESHOLD = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private NoteTextCodec() {
+    }
+
+    /**
+     * @return байты текста в UTF-8, если текст стоит сжимать, иначе null.
+     */
+    static byte[] getBytesIfCompressible(String text) {
+        //в UTF-8 символ занимает не больше 3 байт (суррогатная пара - 4 байта на 2 символа), так что короткие тексты отсекаем без кодирования.
+        if (text == null || text.length() * 3 < COMPRESSION_THRESHOLD) {
+            return null;
+        }
+        byte[] bytes = text.getBytes(UTF_8);
+        return bytes.length < COMPRESSION_THRESHOLD ? null : bytes;
+    }
+
+    /**
+     * @return длина текста в UTF-8 без кодирования самого текста. Для null - 0.
+     */
+    static int getUtf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static byte[] compress(byte[] textBytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(textBytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(textBytes.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return длина распакованного текста в байтах UTF-8. Сам текст не собирается.
+     */
+    static int getDecompressedLength(byte[] compressedText) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedText);
+            byte[] buffer = new byte[8192];
+            int totalLength = 0;
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed note text is truncated");
+                }
+                totalLength += length;
+            }
+            return totalLength;
+        }
+        catch (DataFormatException ex) {
+            throw new IllegalStateException("Compressed note text is corrupted", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    static String decompress(byte[] compressedText) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressedText);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(compressedText.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Compressed note text is truncated");
+                }
+                output.write(buffer, 0, length);
+            }
+            return new String(output.toByteArray(), UTF_8);
+        }
+        catch (DataFormatException ex) {
+            throw new IllegalStateException("Compressed note text is corrupted", ex);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.portallium.notekeeper.database;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Формат файла экспорта (см. StorageKeeper.exportUserDataAsync): текст в UTF-8, одна запись на строку,
+ * каждая запись - JSON-объект. Первая строка - заголовок с версией формата, дальше все блокноты, потом все заметки.
+ * Заметки ссылаются на блокноты по id из файла, а не из БД, в которую файл будут импортировать.
+ * Файл пишется и читается по одной записи, так что сколько бы в нем ни было заметок, в памяти лежит одна.
+ */
+class NotesArchive {
+
+    static final int FORMAT_VERSION = 1;
+
+    static final String TYPE_NOTEPAD = "notepad";
+    static final String TYPE_NOTE = "note";
+    private static final String TYPE_HEADER = "notekeeper";
+
+    //ключи короткие: на миллионе заметок каждый байт ключа - это мегабайт файла.
+    private static final String KEY_TYPE = "t";
+    private static final String KEY_VERSION = "v";
+    private static final String KEY_ID = "id";
+    private static final String KEY_NOTEPAD_ID = "np";
+    private static final String KEY_TITLE = "ti";
+    private static final String KEY_CREATION_DATE = "cd";
+    private static final String KEY_TEXT = "tx";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Запись файла: блокнот или заметка. Поля, которых у записи нет (текст у блокнота), равны null или 0.
+     */
+    static final class Record {
+        final String mType;
+        final int mId;
+        final int mNotepadId;
+        final String mTitle;
+        final long mCreationTime;
+        final String mText;
+
+        private Record(String type, int id, int notepadId, String title, long creationTime, String text) {
+            mType = type;
+            mId = id;
+            mNotepadId = notepadId;
+            mTitle = title;
+            mCreationTime = creationTime;
+            mText = text;
+        }
+    }
+
+    static final class ArchiveWriter implements Closeable {
+
+        private final BufferedWriter mOut;
+
+        /**
+         * Сразу пишет заголовок файла.
+         */
+        ArchiveWriter(OutputStream out) throws IOException {
+            mOut = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            JSONObject header = new JSONObject();
+            try {
+                header.put(KEY_TYPE, TYPE_HEADER);
+                header.put(KEY_VERSION, FORMAT_VERSION);
+            }
+            catch (JSONException ex) {
+                throw new IOException(ex);
+            }
+            writeLine(header);
+        }
+
+        void writeNotepad(int id, String title, long creationTime) throws IOException {
+            JSONObject notepad = new JSONObject();
+            try {
+                notepad.put(KEY_TYPE, TYPE_NOTEPAD);
+                notepad.put(KEY_ID, id);
+                notepad.put(KEY_TITLE, title);
+                notepad.put(KEY_CREATION_DATE, creationTime);
+            }
+            catch (JSONException ex) {
+                throw new IOException(ex);
+            }
+            writeLine(notepad);
+        }
+
+        void writeNote(int notepadId, String title, long creationTime, String text) throws IOException {
+            JSONObject note = new JSONObject();
+            try {
+                note.put(KEY_TYPE, TYPE_NOTE);
+                note.put(KEY_NOTEPAD_ID, notepadId);
+                note.put(KEY_TITLE, title);
+                note.put(KEY_CREATION_DATE, creationTime);
+                note.put(KEY_TEXT, text);
+            }
+            catch (JSONException ex) {
+                throw new IOException(ex);
+            }
+            writeLine(note);
+        }
+
+        private void writeLine(JSONObject record) throws IOException {
+            //JSONObject экранирует переводы строк внутри значений, так что запись всегда занимает ровно одну строку.
+            mOut.write(record.toString());
+            mOut.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    static final class ArchiveReader implements Closeable {
+
+        private final BufferedReader mIn;
+        private int mLineNumber;
+
+        /**
+         * Сразу читает и проверяет заголовок файла.
+         * @throws IOException если это не файл экспорта или он записан более новой версией формата.
+         */
+        ArchiveReader(InputStream in) throws IOException {
+            mIn = new BufferedReader(new InputStreamReader(in, UTF_8));
+            try {
+                checkHeader(readObject());
+            }
+            catch (IOException ex) {
+                //до try-with-resources вызывающий код не дошел, так что поток закрываем здесь.
+                mIn.close();
+                throw ex;
+            }
+        }
+
+        private static void checkHeader(JSONObject header) throws IOException {
+            try {
+                if (header == null || !TYPE_HEADER.equals(header.getString(KEY_TYPE))) {
+                    throw new IOException("Not a NoteKeeper export file");
+                }
+                if (header.getInt(KEY_VERSION) > FORMAT_VERSION) {
+                    throw new IOException("Unsupported export format version " + header.getInt(KEY_VERSION));
+                }
+            }
+            catch (JSONException ex) {
+                throw new IOException("Broken header: " + ex.getMessage(), ex);
+            }
+        }
+
+        /**
+         * @return следующая запись или null, если файл кончился.
+         * @throws IOException если запись не читается. В сообщении есть номер строки.
+         */
+        Record next() throws IOException {
+            JSONObject object = readObject();
+            if (object == null) {
+                return null;
+            }
+            try {
+                String type = object.getString(KEY_TYPE);
+                if (TYPE_NOTEPAD.equals(type)) {
+                    return new Record(type, object.getInt(KEY_ID), 0, readNullableString(object, KEY_TITLE),
+                            object.getLong(KEY_CREATION_DATE), null);
+                } else if (TYPE_NOTE.equals(type)) {
+                    return new Record(type, 0, object.getInt(KEY_NOTEPAD_ID), readNullableString(object, KEY_TITLE),
+                            object.getLong(KEY_CREATION_DATE), readNullableString(object, KEY_TEXT));
+                }
+                throw new IOException("Line " + mLineNumber + ": unknown record type " + type);
+            }
+            catch (JSONException ex) {
+                throw new IOException("Line " + mLineNumber + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        private JSONObject readObject() throws IOException {
+            String line;
+            do {
+                line = mIn.readLine();
+                mLineNumber++;
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isEmpty());
+            try {
+                return new JSONObject(line);
+            }
+            catch (JSONException ex) {
+                throw new IOException("Line " + mLineNumber + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        private static String readNullableString(JSONObject object, String key) throws JSONException {
+            //put(key, null) ключ не записывает, так что null-поля в файле просто отсутствуют.
+            return object.has(key) && !object.isNull(key) ? object.getString(key) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.portallium.notekeeper.database;
+
+/**
+ * Строка таблицы outbox (см. DatabaseConstants.Outbox): изменение, которое еще нужно отправить в Firebase.
+ * Содержимое блокнота или заметки здесь не хранится: при отправке оно читается из SQLite, так что повторная
+ * отправка той же записи всегда отправляет актуальное состояние и ничего не портит.
+ */
+final class OutboxEntry {
+    final long mId;
+    final int mEntityType;
+    /**
+     * 0, если сущность неизвестна (удаления, перенесенные из deleted_notes).
+     */
+    final int mEntityId;
+    /**
+     * Для заметок - блокнот, в firebase которого она отправляется. Для блокнотов - 0.
+     */
+    final int mNotepadId;
+    final int mOperation;
+    /**
+     * null - пользователь еще неизвестен, строка ждет входа своего владельца (см. DatabaseConstants.Outbox.Columns.USER_ID).
+     */
+    final String mFirebaseUserId;
+    final String mFirebaseId;
+    final int mModifiedFields;
+
+    OutboxEntry(long id, int entityType, int entityId, int notepadId, int operation, String firebaseUserId,
+                String firebaseId, int modifiedFields) {
+        mId = id;
+        mEntityType = entityType;
+        mEntityId = entityId;
+        mNotepadId = notepadId;
+        mOperation = operation;
+        mFirebaseUserId = firebaseUserId;
+        mFirebaseId = firebaseId;
+        mModifiedFields = modifiedFields;
+    }
+
+    /**
+     * @return копия с данным firebaseId (для добавлений, у которых ключа еще не было).
+     */
+    OutboxEntry withFirebaseId(String firebaseId) {
+        return new OutboxEntry(mId, mEntityType, mEntityId, mNotepadId, mOperation, mFirebaseUserId, firebaseId, mModifiedFields);
+    }
+
+    @Override
+    public String toString() {
+        return "outbox #" + mId + " (type " + mEntityType + ", entity " + mEntityId + ", operation " + mOperation + ")";
+    }
+}
@@ -0,0 +1,88 @@
+package com.portallium.notekeeper.database;
+
+import android.util.Log;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.Map;
+
+/**
+ * FirebaseBackend поверх Firebase Realtime Database. Лиснеры Firebase вызываются в главном потоке,
+ * так что ответы приходят туда же.
+ */
+class RealtimeDatabaseBackend implements FirebaseBackend {
+
+    private final DatabaseReference mRoot;
+
+    RealtimeDatabaseBackend(DatabaseReference root) {
+        mRoot = root;
+    }
+
+    @Override
+    public String newKey() {
+        //push() только генерирует ключ (время + случайная часть), в сеть он не ходит.
+        return mRoot.push().getKey();
+    }
+
+    @Override
+    public void updateChildren(Map<String, Object> updates, final Listener listener) {
+        mRoot.updateChildren(updates, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
+                listener.onComplete(databaseError == null ? null : databaseError.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Фильтр по orderByChild сервер выполняет по индексу, только если в правилах firebase для этого пути есть ".indexOn".
+     * Без него клиент скачает все и отфильтрует сам: результат тот же, но трафик - нет.
+     */
+    @Override
+    public void read(String path, String orderByChild, Long startAt, String equalTo, final ReadListener listener) {
+        Query query = mRoot.child(path);
+        if (orderByChild != null) {
+            query = query.orderByChild(orderByChild);
+            if (startAt != null) {
+                query = query.startAt(startAt.doubleValue());
+            }
+            if (equalTo != null) {
+                query = query.equalTo(equalTo);
+            }
+        }
+        //этот лиснер триггернется один раз, а потом самоуничтожится.
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                listener.onRead(dataSnapshot.getValue(), null);
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.e("Firebase conn. error", databaseError.getMessage());
+                listener.onRead(null, databaseError.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void addConnectionListener(final Runnable listener) {
+        mRoot.child(".info/connected").addValueEventListener(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                if (Boolean.TRUE.equals(dataSnapshot.getValue())) {
+                    listener.run();
+                }
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                Log.e("Firebase conn. error", databaseError.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,157 @@
+package com.portallium.notekeeper.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Кэш скомпилированных запросов для записей с неизменной формой (смена статуса синхронизации, запись firebase id и т.п.).
+ * Каждый запрос компилируется один раз при первом использовании, после чего только заново связывается с аргументами.
+ * Так циклы синхронизации, трогающие тысячи строк, не собирают на каждую строку ContentValues и строку SQL.
+ * Методы с Object... все же создают на каждый вызов массив аргументов и упаковывают числа, поэтому для форм,
+ * которые выполняются по строке на заметку (статусы, firebase id, outbox при импорте и синхронизации),
+ * есть типизированные перегрузки: они связывают long и String напрямую.
+ * SQLiteStatement нельзя связывать и выполнять из нескольких потоков одновременно, поэтому
+ * связывание и выполнение идут под общим локом.
+ */
+class StatementCache {
+
+    private final SQLiteDatabase mDatabase;
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    StatementCache(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Выполняет UPDATE или DELETE.
+     * @param sql текст запроса. Должен быть константой: по нему запрос ищется в кэше.
+     * @param args аргументы для знаков вопроса в запросе. Поддерживаются null, числа (целые) и строки.
+     * @return количество затронутых строк.
+     */
+    synchronized int executeUpdateDelete(String sql, Object... args) {
+        return executeUpdateDelete(bind(sql, args));
+    }
+
+    /**
+     * То же, что executeUpdateDelete(String, Object...), но без массива аргументов и упаковки чисел.
+     */
+    synchronized int executeUpdateDelete(String sql, long arg) {
+        SQLiteStatement statement = getStatement(sql);
+        statement.bindLong(1, arg);
+        return executeUpdateDelete(statement);
+    }
+
+    synchronized int executeUpdateDelete(String sql, long arg1, long arg2) {
+        SQLiteStatement statement = getStatement(sql);
+        statement.bindLong(1, arg1);
+        statement.bindLong(2, arg2);
+        return executeUpdateDelete(statement);
+    }
+
+    synchronized int executeUpdateDelete(String sql, String arg1, long arg2) {
+        SQLiteStatement statement = getStatement(sql);
+        bindStringOrNull(statement, 1, arg1);
+        statement.bindLong(2, arg2);
+        return executeUpdateDelete(statement);
+    }
+
+    /**
+     * Выполняет INSERT.
+     * @return rowid добавленной строки или -1, если добавить не удалось.
+     */
+    synchronized long executeInsert(String sql, Object... args) {
+        return executeInsert(bind(sql, args));
+    }
+
+    /**
+     * INSERT формы "id, строка, строка" (например, DatabaseHelper.INSERT_NOTE_SEARCH_ENTRY).
+     */
+    synchronized long executeInsert(String sql, long arg1, String arg2, String arg3) {
+        SQLiteStatement statement = getStatement(sql);
+        statement.bindLong(1, arg1);
+        bindStringOrNull(statement, 2, arg2);
+        bindStringOrNull(statement, 3, arg3);
+        return executeInsert(statement);
+    }
+
+    /**
+     * INSERT формы DatabaseHelper.INSERT_OUTBOX_ENTRY: четыре числа, две строки, число. Выполняется на каждую заметку импорта.
+     */
+    synchronized long executeInsert(String sql, long arg1, long arg2, long arg3, long arg4, String arg5, String arg6, long arg7) {
+        SQLiteStatement statement = getStatement(sql);
+        statement.bindLong(1, arg1);
+        statement.bindLong(2, arg2);
+        statement.bindLong(3, arg3);
+        statement.bindLong(4, arg4);
+        bindStringOrNull(statement, 5, arg5);
+        bindStringOrNull(statement, 6, arg6);
+        statement.bindLong(7, arg7);
+        return executeInsert(statement);
+    }
+
+    /**
+     * Закрывает все скомпилированные запросы. После вызова кэшем можно пользоваться снова: запросы будут скомпилированы заново.
+     */
+    synchronized void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    private SQLiteStatement getStatement(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = mDatabase.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static int executeUpdateDelete(SQLiteStatement statement) {
+        try {
+            return statement.executeUpdateDelete();
+        }
+        finally {
+            statement.clearBindings();
+        }
+    }
+
+    private static long executeInsert(SQLiteStatement statement) {
+        try {
+            return statement.executeInsert();
+        }
+        finally {
+            statement.clearBindings();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private SQLiteStatement bind(String sql, Object... args) {
+        SQLiteStatement statement = getStatement(sql);
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            //индексы аргументов в SQLite начинаются с единицы.
+            if (arg == null) {
+                statement.bindNull(i + 1);
+            } else if (arg instanceof Number) {
+                statement.bindLong(i + 1, ((Number) arg).longValue());
+            } else if (arg instanceof String) {
+                statement.bindString(i + 1, (String) arg);
+            } else {
+                throw new IllegalArgumentException("Unsupported argument type: " + arg.getClass().getName());
+            }
+        }
+        return statement;
+    }
+}
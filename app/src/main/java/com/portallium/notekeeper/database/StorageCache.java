@@ -0,0 +1,207 @@
+package com.portallium.notekeeper.database;
+
+import android.util.LruCache;
+
+import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.beans.Notepad;
+
+/**
+ * Кэш заметок и блокнотов внутри StorageKeeper. Состоит из двух частей:
+ * <ul>
+ *     <li>заметки и блокноты по id. Заполняются при чтении и обновляются при каждой записи (write-through);</li>
+ *     <li>результаты запросов списков (блокноты с количеством заметок, первая страница заметок и т.д.) по ключу запроса.
+ *     Любая запись в notes или notepads сбрасывает их целиком: угадывать, какие списки она задела, дороже, чем перечитать.</li>
+ * </ul>
+ * Объекты хранятся и отдаются копиями, чтобы изменения объекта в UI не попадали в кэш раньше, чем в БД.
+ * В кэше объекты лежат такими, какие они в БД, поэтому флаги измененных полей у копий сбрасываются.
+ * Результаты запросов копирует вызывающий код: только он знает их тип.
+ * Писатель кладет в кэш безусловно, читатели - только если за время их запроса ничего не записывалось (см. getVersion):
+ * иначе строка, прочитанная до записи, легла бы поверх новой.
+ */
+class StorageCache {
+
+    static final int DEFAULT_NOTES_CAPACITY = 64;
+    static final int DEFAULT_NOTEPADS_CAPACITY = 128;
+    static final int DEFAULT_QUERIES_CAPACITY = 16;
+
+    private LruCache<Integer, Note> mNotes;
+    private LruCache<Integer, Notepad> mNotepads;
+    private LruCache<String, Object> mQueries;
+
+    /**
+     * Номер версии данных. Увеличивается при каждой записи. Результат запроса, начатого до записи,
+     * в кэш уже не попадет, даже если закончится после нее.
+     */
+    private long mVersion;
+    /**
+     * Идет ли сейчас запись (см. beginWrite). Пока она идет, читатели видят в SQLite старые данные,
+     * а писатель уже мог положить в кэш новые, поэтому прочитанное читателями в кэш не кладется.
+     */
+    private boolean mWriting;
+
+    StorageCache() {
+        resize(DEFAULT_NOTES_CAPACITY, DEFAULT_NOTEPADS_CAPACITY, DEFAULT_QUERIES_CAPACITY);
+    }
+
+    /**
+     * Задает размеры кэша (в объектах). Текущее содержимое кэша при этом выбрасывается.
+     */
+    synchronized void resize(int notesCapacity, int notepadsCapacity, int queriesCapacity) {
+        mNotes = new LruCache<>(notesCapacity);
+        mNotepads = new LruCache<>(notepadsCapacity);
+        mQueries = new LruCache<>(queriesCapacity);
+        mVersion++;
+    }
+
+    /**
+     * @return копия заметки с данным id или null, если ее нет в кэше.
+     */
+    synchronized Note getNote(int noteId) {
+        Note note = mNotes.get(noteId);
+        return note == null ? null : new Note(note);
+    }
+
+    /**
+     * Кладет в кэш заметку целиком. Заметки из списков (без текста) сюда класть нельзя.
+     */
+    synchronized void putNote(Note note) {
+        Note copy = new Note(note);
+        copy.clearModifiedFields();
+        mNotes.put(note.getId(), copy);
+        mVersion++;
+    }
+
+    /**
+     * Кладет в кэш заметку, прочитанную из SQLite, если с момента version в БД ничего не записывалось.
+     * Иначе читатель мог прочитать строку до чужой записи и положить ее поверх той, что положил писатель.
+     */
+    synchronized void putNoteIfUnchanged(Note note, long version) {
+        //версию не трогаем: читатель ничего нового в кэш не приносит, и остальные его put'ы тоже должны пройти.
+        if (isUnchangedSince(version)) {
+            Note copy = new Note(note);
+            copy.clearModifiedFields();
+            mNotes.put(note.getId(), copy);
+        }
+    }
+
+    synchronized void removeNote(int noteId) {
+        mNotes.remove(noteId);
+        mVersion++;
+    }
+
+    /**
+     * Обновляет firebase id и статус заметки, если она есть в кэше. Больше эти поля ничего в заметке не меняют.
+     */
+    synchronized void updateNoteFirebaseState(int noteId, String firebaseId, int firebaseStatus) {
+        Note note = mNotes.get(noteId);
+        if (note != null) {
+            note.setFirebaseId(firebaseId);
+            note.setFirebaseStatus(firebaseStatus);
+        }
+        mVersion++;
+    }
+
+    synchronized Notepad getNotepad(int notepadId) {
+        Notepad notepad = mNotepads.get(notepadId);
+        return notepad == null ? null : new Notepad(notepad);
+    }
+
+    synchronized void putNotepad(Notepad notepad) {
+        Notepad copy = new Notepad(notepad);
+        copy.clearModifiedFields();
+        mNotepads.put(notepad.getId(), copy);
+        mVersion++;
+    }
+
+    synchronized void removeNotepad(int notepadId) {
+        mNotepads.remove(notepadId);
+        mVersion++;
+    }
+
+    /**
+     * То же, что putNoteIfUnchanged, для блокнота.
+     */
+    synchronized void putNotepadIfUnchanged(Notepad notepad, long version) {
+        if (isUnchangedSince(version)) {
+            Notepad copy = new Notepad(notepad);
+            copy.clearModifiedFields();
+            mNotepads.put(notepad.getId(), copy);
+        }
+    }
+
+    synchronized void updateNotepadFirebaseState(int notepadId, String firebaseId, int firebaseStatus) {
+        Notepad notepad = mNotepads.get(notepadId);
+        if (notepad != null) {
+            notepad.setFirebaseId(firebaseId);
+            notepad.setFirebaseStatus(firebaseStatus);
+        }
+        mVersion++;
+    }
+
+    /**
+     * @return текущая версия данных. Ее нужно запомнить до запроса и передать в putQueryResult
+     * (или putNoteIfUnchanged, putNotepadIfUnchanged).
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Вызывается писателем перед каждой записью, до начала ее транзакции.
+     */
+    synchronized void beginWrite() {
+        mWriting = true;
+        mVersion++;
+    }
+
+    /**
+     * Вызывается писателем после каждой записи, когда ее транзакция уже закоммичена или откачена.
+     * С этого момента читатели видят в SQLite то же, что лежит в кэше.
+     */
+    synchronized void endWrite() {
+        mWriting = false;
+        mVersion++;
+    }
+
+    private boolean isUnchangedSince(long version) {
+        return !mWriting && version == mVersion;
+    }
+
+    /**
+     * @return сохраненный результат запроса или null. Результат общий для всех вызывающих, его нельзя изменять.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> T getQueryResult(String key) {
+        return (T) mQueries.get(key);
+    }
+
+    /**
+     * Сохраняет результат запроса, если с момента version в БД ничего не записывалось.
+     */
+    synchronized void putQueryResult(String key, long version, Object result) {
+        if (isUnchangedSince(version)) {
+            mQueries.put(key, result);
+        }
+    }
+
+    /**
+     * Сбрасывает результаты всех запросов. Вызывается при любой записи в notes или notepads.
+     */
+    synchronized void invalidateQueries() {
+        mVersion++;
+        mQueries.evictAll();
+    }
+
+    synchronized int getHitCount() {
+        return mNotes.hitCount() + mNotepads.hitCount() + mQueries.hitCount();
+    }
+
+    synchronized int getMissCount() {
+        return mNotes.missCount() + mNotepads.missCount() + mQueries.missCount();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StorageCache[notes=" + mNotes + ", notepads=" + mNotepads + ", queries=" + mQueries + "]";
+    }
+}
@@ -0,0 +1,107 @@
+package com.portallium.notekeeper.database;
+
+import android.os.Handler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Асинхронный запрос к StorageKeeper. Выполняется в фоновом потоке StorageKeeper'а (чтения и записи - в разных,
+ * см. StorageKeeper.submitRead и submitWrite), результат передается в StorageKeeper.Callback в главном потоке.
+ * Метод get() блокирует поток до конца запроса, поэтому в главном потоке его вызывать нельзя - для этого и есть Callback.
+ * @param <T> тип результата.
+ */
+public class StorageCall<T> extends FutureTask<T> {
+
+    private final StorageKeeper.Callback<T> mCallback;
+    private final Handler mMainThreadHandler;
+    private final boolean mWrite;
+
+    private volatile boolean mCancelled;
+    /**
+     * true, когда запрос больше ничего не сделает в главном потоке: callback вызван, отменен или его нет вовсе.
+     */
+    private volatile boolean mFinished;
+
+    StorageCall(Callable<T> work, boolean write, StorageKeeper.Callback<T> callback, Handler mainThreadHandler) {
+        super(work);
+        mWrite = write;
+        mCallback = callback;
+        mMainThreadHandler = mainThreadHandler;
+    }
+
+    /**
+     * Отменяет запрос: callback вызван уже не будет. Чтение, которое еще не началось, не выполнится вовсе.
+     * Запись выполнится в любом случае - иначе уход с экрана сразу после правки терял бы изменения пользователя.
+     * Поток, который уже выполняет запрос, не прерывается.
+     */
+    public void cancel() {
+        cancel(false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mCancelled = true;
+        //прерывать SQLite посреди запроса нельзя, поэтому mayInterruptIfRunning игнорируется.
+        return !mWrite && super.cancel(false);
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    @Override
+    protected void done() {
+        final T result;
+        try {
+            result = get();
+        }
+        catch (CancellationException | InterruptedException ex) {
+            //get() в done() не ждет, а CancellationException значит, что чтение отменили до начала.
+            mFinished = true;
+            return;
+        }
+        catch (final ExecutionException ex) {
+            mFinished = true;
+            //как и AsyncTask, ошибку фонового потока не глотаем: приложение падает, и в Crashlytics попадает настоящий стек.
+            mMainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    throw new RuntimeException("An error occurred while executing a storage call", ex.getCause());
+                }
+            });
+            return;
+        }
+        if (mCallback == null) {
+            mFinished = true;
+            return;
+        }
+        mMainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFinished = true;
+                if (mCancelled) {
+                    //курсор, который никто не заберет, надо закрыть здесь.
+                    closeQuietly(result);
+                } else {
+                    mCallback.onResult(result);
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(Object result) {
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable) result).close();
+            }
+            catch (IOException ex) {
+                //курсор при закрытии IOException не бросает, а больше Closeable результатов у StorageKeeper нет.
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.portallium.notekeeper.database;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Запросы к StorageKeeper, которые нужно отменить разом. Например, фрагмент складывает сюда все свои запросы
+ * и отменяет их в onDestroyView: callback'и, пришедшие после уничтожения View, трогать ее уже не должны.
+ * Используется только из главного потока.
+ */
+public class StorageCallGroup {
+
+    private final List<StorageCall<?>> mCalls = new ArrayList<>();
+
+    /**
+     * Добавляет запрос в группу.
+     * @return тот же запрос, чтобы добавлять его прямо при вызове.
+     */
+    public <T> StorageCall<T> add(StorageCall<T> call) {
+        //заодно выбрасываем запросы, которые уже отработали, чтобы группа не росла вечно.
+        Iterator<StorageCall<?>> iterator = mCalls.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+        mCalls.add(call);
+        return call;
+    }
+
+    /**
+     * Отменяет все запросы группы (см. StorageCall.cancel()).
+     */
+    public void cancelAll() {
+        for (StorageCall<?> call : mCalls) {
+            call.cancel();
+        }
+        mCalls.clear();
+    }
+}
@@ -0,0 +1,79 @@
+package com.portallium.notekeeper.database;
+
+/**
+ * Событие об изменении данных в StorageKeeper. Рассылается подписчикам (см. StorageKeeper.ChangeListener)
+ * в главном потоке, уже после того, как изменение записано в БД.
+ * У каждого события есть версия: версии идут подряд, без пропусков, в порядке рассылки. Если подписчик видит
+ * пропуск (например, он подписался не сразу), значит, часть событий он не получил и должен перечитать данные целиком.
+ */
+public final class StorageChange {
+
+    public enum Type {
+        NOTE_INSERTED,
+        NOTE_UPDATED,
+        /**
+         * Заметку перенесли в другой блокнот (и, возможно, заодно изменили).
+         */
+        NOTE_MOVED,
+        NOTE_DELETED,
+        NOTEPAD_INSERTED,
+        NOTEPAD_RENAMED,
+        /**
+         * Пачка изменений одной транзакцией (синхронизация, импорт). Что именно изменилось, не уточняется.
+         */
+        BATCH_APPLIED
+    }
+
+    /**
+     * Значение id, если событие к заметке или блокноту не относится.
+     */
+    public static final int NO_ID = -1;
+
+    private final Type mType;
+    private final long mVersion;
+    private final int mNoteId;
+    private final int mNotepadId;
+    private final int mPreviousNotepadId;
+
+    StorageChange(Type type, long version, int noteId, int notepadId, int previousNotepadId) {
+        mType = type;
+        mVersion = version;
+        mNoteId = noteId;
+        mNotepadId = notepadId;
+        mPreviousNotepadId = previousNotepadId;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return id заметки или NO_ID для событий о блокнотах и пачках.
+     */
+    public int getNoteId() {
+        return mNoteId;
+    }
+
+    /**
+     * @return id блокнота. Для событий о заметках - блокнот, в котором заметка находится (или находилась, если ее удалили).
+     */
+    public int getNotepadId() {
+        return mNotepadId;
+    }
+
+    /**
+     * @return для NOTE_MOVED - блокнот, из которого заметку перенесли. Для остальных событий NO_ID.
+     */
+    public int getPreviousNotepadId() {
+        return mPreviousNotepadId;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageChange " + mType + " v." + mVersion + " [note " + mNoteId + ", notepad " + mNotepadId + "]";
+    }
+}
@@ -4,885 +4,3399 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseIntArray;
 
-import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
+import com.google.firebase.database.ServerValue;
 import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.beans.NoteListItem;
 import com.portallium.notekeeper.beans.Notepad;
+import com.portallium.notekeeper.beans.NotepadStats;
 import com.portallium.notekeeper.exceptions.DuplicateUsersException;
 import com.portallium.notekeeper.exceptions.NoSuchNotepadException;
+import com.portallium.notekeeper.utilities.NotePreviewHelper;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Синглтон, сквозь который проходят все запросы всех фрагментов как к базе данных SQLite, так и к Firebase.
+ * Все запросы асинхронные (методы xxxAsync): они выполняются в фоновых потоках StorageKeeper'а,
+ * а результат приходит в Callback в главном потоке. Главный поток к БД не обращается вообще, даже чтобы ее открыть.
  */
 public class StorageKeeper {
     private static final String FIREBASE_NOTEPAD_ID = "firebase_notepad_id";
+    /**
+     * Индекс дайджестов заметок в firebase: <uid>/note_digests/<ключ заметки> = {notepad: ключ блокнота, digest: см. NoteDigests}.
+     * Пишется той же многопутевой записью, что и сама заметка, так что с ней не расходится.
+     * Сверка заметок (synchronizeNotes) читает его строки по блокнотам: orderByChild("notepad").equalTo(ключ блокнота).
+     * Чтобы фильтр выполнял сервер, в правилах firebase у note_digests должен быть ".indexOn": "notepad".
+     */
+    private static final String FIREBASE_NOTE_DIGESTS = "note_digests";
+    /**
+     * Дайджесты корзин в firebase: <uid>/notepad_digests/<ключ блокнота> = {digest: дайджест корзины (см. NoteDigests),
+     * modified_at: серверное время последнего изменения заметок блокнота}.
+     * Отправка заметки пишет его той же многопутевой записью, посчитав дайджест по заметкам блокнота в SQLite.
+     * По modified_at сверка заметок читает только корзины, изменившиеся с прошлой сверки (для этого в правилах firebase
+     * у notepad_digests нужен ".indexOn": "modified_at"), и строки индекса читает только у них.
+     */
+    private static final String FIREBASE_NOTEPAD_DIGESTS = "notepad_digests";
+    private static final String FIREBASE_DIGEST_NOTEPAD = "notepad";
+    private static final String FIREBASE_DIGEST = "digest";
 
     private static StorageKeeper instance;
 
     /**
-     * Все запросы к firebase должны выполняться в порядке очереди, чтобы к моменту старта запроса мы имели результаты всех предыдущих.
-     * Это важно, потому что при добавлении заметки в блокнот мы УЖЕ должны знать firebaseId вновь добавленного блокнота.
+     * Запрос строк списка заметок. Колонки text в нем нет: тексты бывают длинными, а списку достаточно превью.
+     * Полный текст загружается только при открытии заметки (см. getNoteByIdAsync).
+     * Package-private: его план проверяет QueryPlanTest.
      */
-    private static final Semaphore FIREBASE_SEMAPHORE = new Semaphore(1, true);
-
-    private SQLiteDatabase mDatabase;
-
-    private DatabaseReference mReference;
-    private String mCurrentUserFirebaseId;
-
-    private StorageKeeper(Context context) {
-        mDatabase = new DatabaseHelper(context.getApplicationContext()).getWritableDatabase();
-        mReference = FirebaseDatabase.getInstance().getReference();
-    }
+    static final String SELECT_NOTE_LIST_ITEMS = "SELECT " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTE_ID + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.CREATOR_ID + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.TITLE + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.CREATION_DATE + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.PREVIEW + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.FIREBASE_ID + ", " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.FIREBASE_STATUS + ", " +
+            DatabaseConstants.Notepads.TABLE_NAME + "." + DatabaseConstants.Notepads.Columns.TITLE + " AS " +
+            DatabaseConstants.Notes.Joined.NOTEPAD_TITLE +
+            " FROM " + DatabaseConstants.Notes.TABLE_NAME + " LEFT JOIN " + DatabaseConstants.Notepads.TABLE_NAME +
+            " ON " + DatabaseConstants.Notepads.TABLE_NAME + "." + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = " +
+            DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID;
 
     /**
-     * Статический метод, используемый для доступа к единственному объекту класса.
-     * @param context контекст, из которого вызывается метод. Например, активность.
-     * @param currentUserFirebaseId firebase id залогиненного в приложение пользователя.
-     * @return экземпляр класса StorageKeeper, через который производится доступ к базе данных.
+     * Сколько страниц поиска ранжируется сверх запрошенной, чтобы следующие страницы брались из кэша. Значение = {@value}
      */
-    public static StorageKeeper getInstance(Context context, String currentUserFirebaseId) {
-        if (instance == null) {
-            instance = new StorageKeeper(context);
-        }
-        instance.mCurrentUserFirebaseId = currentUserFirebaseId;
-        return instance;
-    }
+    private static final int SEARCH_PREFETCH_PAGES = 3;
 
     /**
-     * Важно понимать, что этот метод выполняется в том же потоке, что был вызван, т.к. предназначен только для использования
-     * в SynchronizerService.
-     * @return Список всех блокнотов, полученных из firebase.
+     * Размер WAL-журнала (в страницах), после которого SQLite при коммите сам переносит журнал в основной файл БД.
+     * Значение по умолчанию совпадает с умолчанием SQLite. Значение = {@value}
      */
-    private List<Notepad> getNotepadsListFromFirebase(final int localUserId) {
-        try {
-            FIREBASE_SEMAPHORE.acquire();
-        }
-        catch(InterruptedException ex) {
-            Log.e("Synchronization: FB", ex.getMessage(), ex);
-        }
-        final List<Notepad> firebaseNotepadsList = new ArrayList<>();
-        final CountDownLatch countDownLatch = new CountDownLatch(1); //пока список не будет собран, его нет смысла возвращать. За этим здесь CountDownLatch и нужен.
-        //don't fixme: если соединение с firebase установить не получится, asyncTask зависнет. плохо ли это? нет. кнопка будет отключена все равно, синхронизация закончится, как только интернет появится.
-        mReference.child(mCurrentUserFirebaseId).child(DatabaseConstants.Notepads.TABLE_NAME).addListenerForSingleValueEvent(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
-                //этот dataSnapshot на самом деле - все блокноты сразу.
-                Map<String, Map<String, Object>> notepadMap = (Map<String, Map<String, Object>>) dataSnapshot.getValue();
-                for (Map.Entry<String, Map<String, Object>> notepad : notepadMap.entrySet()) {
-                    //каждый Entry - это блокнот.
-                    String notepadTitle = (String) notepad.getValue().get(DatabaseConstants.Notepads.Columns.TITLE);
-                    Date notepadCreationDate = new Date((Long)notepad.getValue().get(DatabaseConstants.Notepads.Columns.CREATION_DATE));
-                    String notepadFirebaseKey = notepad.getKey();
-                    firebaseNotepadsList.add(new Notepad(localUserId, notepadTitle, notepadCreationDate, notepadFirebaseKey));
-                }
-                Log.i("Synchronization: FB", "list is packed with data! thread = " + Thread.currentThread());
-                countDownLatch.countDown();
-                FIREBASE_SEMAPHORE.release();
-            }
+    public static final int DEFAULT_WAL_AUTOCHECKPOINT_PAGES = 1000;
 
-            @Override
-            public void onCancelled(DatabaseError databaseError) {
-                Log.e("Firebase conn. error", databaseError.getMessage());
-                //синхронизация закончилась неудачей, и надо как-то выйти из метода.
-            }
-        }); //этот лиснер триггернется один раз, а потом самоуничтожится.
-        try {
-            countDownLatch.await();
-        }
-        catch (InterruptedException ex) {
-            Log.e("Synchronization: FB", ex.getMessage(), ex);
-        }
-        Log.i("Synchronization: FB", "list is being returned! thread = " + Thread.currentThread());
-        return firebaseNotepadsList;
-    }
+    /**
+     * Сколько чтений выполняются одновременно. В режиме WAL читатели не ждут ни друг друга, ни писателя,
+     * а у SQLiteDatabase в этом режиме несколько соединений для чтения. Значение = {@value}
+     */
+    private static final int READ_THREADS_COUNT = 3;
 
+    /**
+     * Сколько заметок экспорт читает одним запросом. Страницы выбираются по возрастанию _id. Значение = {@value}
+     */
+    private static final int EXPORT_PAGE_SIZE = 200;
 
     /**
-     * Этот метод не выполняется в отдельном потоке, так как вызываться он будет только методом doInBackground подкласса
-     * UserLoginTask класса FirebaseLoginActivity. Для этого метода уже создается отдельный поток.
-     * @return id созданного пользователя. Если пользователя создать не удалось, возвращается -1.
+     * Через сколько записей импорт пишет в лог, сколько уже загружено. Значение = {@value}
      */
-    private int addUser(String email)
-    {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Users.Columns.LOGIN, email);
-        mDatabase.insert(DatabaseConstants.Users.TABLE_NAME, null, values);
+    private static final int IMPORT_PROGRESS_STEP = 500;
 
-        //находим нового юзера. блокнот и заметка больше не добавляются. обойдется.
-        try (Cursor newUserCursor = getUserCursorByEmail(email)) {
-            newUserCursor.moveToFirst();
-            return newUserCursor.getInt(newUserCursor.getColumnIndex(DatabaseConstants.Users.Columns.ID));
-        }
-    }
+    /**
+     * Скольким заметкам сверка за одну операцию писателя досчитывает дайджест, записанный до v13. Значение = {@value}
+     */
+    private static final int NOTE_DIGESTS_PAGE_SIZE = 500;
 
-    private Cursor getUserCursorByEmail(String email) {
-        return mDatabase.query(DatabaseConstants.Users.TABLE_NAME,
-                null,
-                DatabaseConstants.Users.Columns.LOGIN + " = ?",
-                new String[]{email},
-                null, null, null);
-    }
+    /**
+     * Сколько заметок (или корзин строк индекса) сверка скачивает из firebase одновременно. Значение = {@value}
+     */
+    private static final int MAX_NOTE_DOWNLOADS_IN_FLIGHT = 64;
 
     /**
-     * При вызове метода execute(email) в отдельном потоке запускается метод, вычисляющий локальный id
-     * пользователя с данным email. Вызов метода get() вернет этот id.
+     * Начиная с какого количества заметок сверке дешевле прочитать notes целиком, чем каждую заметку отдельно. Значение = {@value}
      */
-    public class GetUserIdByEmailTask extends AsyncTask<String, Void, Integer> {
-        @Override
-        protected Integer doInBackground(String... email) {
-            if (email.length != 1)
-                throw new IllegalArgumentException (email.length + " parameters passed, expected 1");
-            try {
-                return getUserIdByEmail(email[0]);
-            }
-            catch (DuplicateUsersException ex) {
-                Log.e("Getting user ID", ex.getMessage(), ex);
-                return -1;
-            }
-        }
-    }
+    private static final int NOTES_FULL_LISTING_MIN_KEYS = 1000;
+
+    //запросы для записей, которые выполняются по строке на каждую синхронизируемую заметку. Компилируются один раз, см. StatementCache.
+    private static final String UPDATE_NOTE_FIREBASE_STATUS = "UPDATE " + DatabaseConstants.Notes.TABLE_NAME
+            + " SET " + DatabaseConstants.Notes.Columns.FIREBASE_STATUS + " = ? WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = ?";
+    private static final String UPDATE_NOTEPAD_FIREBASE_STATUS = "UPDATE " + DatabaseConstants.Notepads.TABLE_NAME
+            + " SET " + DatabaseConstants.Notepads.Columns.FIREBASE_STATUS + " = ? WHERE " + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ?";
+    private static final String UPDATE_NOTE_FIREBASE_ID = "UPDATE " + DatabaseConstants.Notes.TABLE_NAME
+            + " SET " + DatabaseConstants.Notes.Columns.FIREBASE_ID + " = ? WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = ?";
+    private static final String UPDATE_NOTEPAD_FIREBASE_ID = "UPDATE " + DatabaseConstants.Notepads.TABLE_NAME
+            + " SET " + DatabaseConstants.Notepads.Columns.FIREBASE_ID + " = ? WHERE " + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ?";
+    private static final String DELETE_OUTBOX_ENTRY = "DELETE FROM " + DatabaseConstants.Outbox.TABLE_NAME
+            + " WHERE " + DatabaseConstants.Outbox.Columns.ID + " = ?";
+    private static final String DELETE_NOTEPAD_ADDITION_OUTBOX_ENTRIES = "DELETE FROM " + DatabaseConstants.Outbox.TABLE_NAME
+            + " WHERE " + DatabaseConstants.Outbox.Columns.ENTITY_TYPE + " = " + DatabaseConstants.Outbox.ENTITY_NOTEPAD
+            + " AND " + DatabaseConstants.Outbox.Columns.ENTITY_ID + " = ? AND " + DatabaseConstants.Outbox.Columns.OPERATION
+            + " = " + DatabaseConstants.FirebaseCodes.NEEDS_ADDITION;
+    private static final String FILL_OUTBOX_USER_ID = DatabaseHelper.FILL_OUTBOX_USER_IDS + " AND "
+            + DatabaseConstants.Outbox.Columns.ID + " = ?";
+    /**
+     * Отдает пользователю firebase строки outbox его локального пользователя, у которых пользователя firebase не было.
+     * Удаления без владельца (из deleted_notes) достаются первому вошедшему: их ключи случайны,
+     * так что в чужих данных удалять нечего.
+     */
+    private static final String CLAIM_OUTBOX_ENTRIES = "UPDATE " + DatabaseConstants.Outbox.TABLE_NAME
+            + " SET " + DatabaseConstants.Outbox.Columns.FIREBASE_USER_ID + " = ? WHERE "
+            + DatabaseConstants.Outbox.Columns.FIREBASE_USER_ID + " IS NULL AND (" + DatabaseConstants.Outbox.Columns.USER_ID
+            + " = ? OR (" + DatabaseConstants.Outbox.Columns.USER_ID + " = 0 AND " + DatabaseConstants.Outbox.Columns.OPERATION
+            + " = " + DatabaseConstants.FirebaseCodes.NEEDS_DELETION + "))";
+    private static final String UPDATE_OUTBOX_FIREBASE_ID = "UPDATE " + DatabaseConstants.Outbox.TABLE_NAME
+            + " SET " + DatabaseConstants.Outbox.Columns.FIREBASE_ID + " = ? WHERE " + DatabaseConstants.Outbox.Columns.ID + " = ?";
+    private static final String UPDATE_NOTE_CONTENT_DIGEST = "UPDATE " + DatabaseConstants.Notes.TABLE_NAME
+            + " SET " + DatabaseConstants.Notes.Columns.CONTENT_DIGEST + " = ? WHERE " + DatabaseConstants.Notes.Columns.NOTE_ID + " = ?";
+    private static final String UPDATE_NOTEPAD_MODIFIED_AT = "UPDATE " + DatabaseConstants.Notepads.TABLE_NAME
+            + " SET " + DatabaseConstants.Notepads.Columns.MODIFIED_AT + " = ? WHERE " + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ?";
+    private static final String UPDATE_NOTEPAD_TITLE_FROM_FIREBASE = "UPDATE " + DatabaseConstants.Notepads.TABLE_NAME
+            + " SET " + DatabaseConstants.Notepads.Columns.TITLE + " = ?, " + DatabaseConstants.Notepads.Columns.MODIFIED_AT
+            + " = ? WHERE " + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ?";
+    private static final String REPLACE_SYNC_HIGH_WATER_MARK = "INSERT OR REPLACE INTO " + DatabaseConstants.SyncState.TABLE_NAME
+            + " (" + DatabaseConstants.SyncState.Columns.USER_ID + ", " + DatabaseConstants.SyncState.Columns.COLLECTION + ", "
+            + DatabaseConstants.SyncState.Columns.HIGH_WATER_MARK + ") VALUES (?, ?, ?)";
 
-    private int getUserIdByEmail(String email) throws DuplicateUsersException {
-        try (Cursor users = getUserCursorByEmail(email)) {
-            users.moveToFirst();
-            if (users.getCount() == 0) { //такого пользователя на обнаружено
-                return addUser(email);
-                //я оставил этот метод в неприкосновенности, чтобы сохранить обратную совместимость со старым механизмом авторизации.
-            } else if (users.getCount() > 1) {
-                throw new DuplicateUsersException("Holy-moly, we've got two users with the same login. How did that happen?");
-            } else {
-                return users.getInt(users.getColumnIndex(DatabaseConstants.Users.Columns.ID));
-            }
-        }
-    }
+    /**
+     * Сколько строк outbox один проход ставит в очередь FirebaseScheduler. Следующие ставятся, когда эти закончатся,
+     * так что даже после импорта миллиона заметок в памяти лежит не больше этого. Значение = {@value}
+     */
+    private static final int OUTBOX_DRAIN_LIMIT = FirebaseScheduler.DEFAULT_IN_FLIGHT_LIMIT;
+    /**
+     * Сколько строк outbox читается одним запросом. Значение = {@value}
+     */
+    private static final int OUTBOX_PAGE_SIZE = 500;
 
+    private final DatabaseHelper mDatabaseHelper;
     /**
-     * При вызове метода execute(notepad) в отдельном потоке запускается метод, добавляющий в базы данных SQLite и
-     * Firebase данный блокнот. Вызов метода get() вернет id добавленного блокнота.
+     * Открытие БД - первая операция писателя. Все остальные запросы сначала дожидаются ее (см. awaitDatabase).
      */
-    public class AddNotepadToDatabaseTask extends AsyncTask<Notepad, Void, Integer> {
-        @Override
-        protected Integer doInBackground(Notepad... notepad) {
-            if (notepad.length != 1)
-                throw new IllegalArgumentException (notepad.length + " parameters passed, expected 1");
-            return addNotepadToDatabase(notepad[0]);
-        }
-    }
+    private final FutureTask<Void> mDatabaseOpening;
+    //заполняются при открытии БД, в потоке писателя.
+    private SQLiteDatabase mDatabase;
+    private StatementCache mStatements;
 
+    private final ExecutorService mReadExecutor = Executors.newFixedThreadPool(READ_THREADS_COUNT, new StorageThreadFactory("StorageKeeper read #"));
     /**
-     * Для начала метод проверяет, есть ли блокнот с данным названием у данного пользователя.
-     * Если нет, добавляет в БД новый.
-     * @return id созданного блокнота
+     * Все запросы к firebase. Заметка ждет только добавления своего блокнота (к моменту отправки заметки
+     * мы УЖЕ должны знать firebaseId блокнота), остальные запросы идут параллельно.
      */
-    private int addNotepadToDatabase(final Notepad notepad) {
-        //взглянем правде в глаза: идея с разными названиями блокнотов изначально была плохой.
-        //теперь у блокнотов могут быть одинаковые названия. во имя корректной синхронизации. да.
+    private final FirebaseScheduler mFirebaseScheduler = new FirebaseScheduler(
+            Executors.newSingleThreadExecutor(new StorageThreadFactory("StorageKeeper firebase #")));
+    /**
+     * id строк outbox, которые уже стоят в очереди mFirebaseScheduler: повторный проход по outbox их пропускает.
+     * Все обращения к нему и к mOutboxDrainCursor - под локом на самом множестве.
+     */
+    private final Set<Long> mScheduledOutboxIds = new HashSet<>();
+    /**
+     * id последней строки, до которой дошел проход по outbox, упершийся в OUTBOX_DRAIN_LIMIT. -1, если проход дошел до конца.
+     */
+    private long mOutboxDrainCursor = -1;
+    /**
+     * Все записи в SQLite идут через один поток, см. DatabaseWriter.
+     */
+    private final DatabaseWriter mWriter;
+    private volatile WriteBatchListener mWriteBatchListener;
+    /**
+     * Все изменения в firebase уходят пачками, см. FirebaseBatcher.
+     */
+    private final FirebaseBatcher mFirebaseBatcher;
+    private volatile FirebaseBatchListener mFirebaseBatchListener;
+    //читается и пишется только в главном потоке.
+    private MigrationListener mMigrationListener;
+    private volatile boolean mCompressLargeTexts = true;
+    private StorageCache mCache = new StorageCache();
+
+    private final List<ChangeListener> mChangeListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Версия последнего разосланного события, см. StorageChange.
+     */
+    private long mDataVersion;
 
-        ContentValues values = parseNotepadToContentValues(notepad);
-        mDatabase.insert(DatabaseConstants.Notepads.TABLE_NAME, null, values);
+    private final FirebaseBackend mBackend;
+    //задается в главном потоке, а читается в потоках писателя, читателей и FirebaseScheduler.
+    private volatile String mCurrentUserFirebaseId;
 
-        //Ищем только что созданный блокнот в БД и возвращаем его id
-        try (Cursor newNotepadCursor = mDatabase.query(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                new String [] {DatabaseConstants.Notepads.Columns.NOTEPAD_ID},
-                DatabaseConstants.Notepads.Columns.CREATOR_ID + " = ? " +
-                        " AND " + DatabaseConstants.Notepads.Columns.TITLE + " = ?",
-                new String[] {Integer.toString(notepad.getCreatorId()), notepad.getTitle()},
-                null, null, null)){
-            newNotepadCursor.moveToFirst();
-            int newNotepadId = newNotepadCursor.getInt(newNotepadCursor.getColumnIndex(DatabaseConstants.Notepads.Columns.NOTEPAD_ID));
-            notepad.setId(newNotepadId);
+    private StorageKeeper(Context context, String currentUserFirebaseId) {
+        this(currentUserFirebaseId, new DatabaseHelper(context.getApplicationContext()),
+                new RealtimeDatabaseBackend(FirebaseDatabase.getInstance().getReference()));
+    }
 
-            //добавляем блокнот в firebase, если его там до сих пор нет (он там есть, когда мы его получаем в методе синхронизации). Изменять статус не нужно: он и так needs_addition.
-            if (notepad.getFirebaseId() == null) {
-                new Thread(new Runnable() {
+    /**
+     * Package-private: тесты создают свой экземпляр со своей БД и заглушкой firebase, мимо синглтона.
+     */
+    StorageKeeper(String currentUserFirebaseId, DatabaseHelper databaseHelper, FirebaseBackend backend) {
+        mCurrentUserFirebaseId = currentUserFirebaseId;
+        //getWritableDatabase() открывает файл БД и, если нужно, мигрирует ее. В главном потоке этого делать нельзя,
+        //а миграция - это запись, так что БД открывает поток писателя, первой операцией в своей очереди.
+        mDatabaseHelper = databaseHelper;
+        mDatabaseHelper.setMigrationListener(new DatabaseHelper.MigrationListener() {
+            @Override
+            public void onMigrationProgress(final int completedSteps, final int stepsCount) {
+                mMainThreadHandler.post(new Runnable() {
                     @Override
                     public void run() {
-                        addNotepadToFirebase(notepad);
+                        if (mMigrationListener != null) {
+                            mMigrationListener.onMigrationProgress(completedSteps, stepsCount);
+                        }
                     }
-                }).start();
-                //оно работает! а AsyncTask почему-то нет. Хмммммм....
+                });
+            }
+        });
+        mBackend = backend;
+        mWriter = new DatabaseWriter(new DatabaseWriter.Host() {
+            @Override
+            public SQLiteDatabase getDatabase() {
+                awaitDatabase();
+                return mDatabase;
             }
 
-            return newNotepadId;
-        }
+            @Override
+            public void onWriteStarted() {
+                mCache.beginWrite();
+            }
+
+            @Override
+            public void onWriteFinished() {
+                mCache.endWrite();
+            }
+
+            @Override
+            public void onBatchCommitted(int writesCount, long latencyMillis) {
+                //пока пачка не закоммичена, параллельные читатели видят старые данные и могли положить их в кэш.
+                mCache.invalidateQueries();
+                WriteBatchListener listener = mWriteBatchListener;
+                if (listener != null) {
+                    listener.onWriteBatchCommitted(writesCount, latencyMillis);
+                }
+            }
+        });
+        mFirebaseBatcher = new FirebaseBatcher(mBackend, new FirebaseBatcher.Host() {
+            @Override
+            public void onBatchCompleted(List<FirebaseBatcher.Change> changes, String errorMessage, long latencyMillis) {
+                applyFirebaseBatchResult(changes, errorMessage == null);
+                if (errorMessage != null) {
+                    //в SQLite ничего не меняется: все изменения пачки остаются в outbox и уйдут со следующим проходом по нему.
+                    Log.e("Firebase batch", changes.size() + " changes rejected: " + errorMessage);
+                }
+                FirebaseBatchListener listener = mFirebaseBatchListener;
+                if (listener != null) {
+                    listener.onFirebaseBatchCompleted(changes.size(), errorMessage == null, latencyMillis);
+                }
+            }
+        });
+        mDatabaseOpening = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                mDatabase = mDatabaseHelper.getWritableDatabase();
+                mStatements = new StatementCache(mDatabase);
+                applyWalAutoCheckpoint(DEFAULT_WAL_AUTOCHECKPOINT_PAGES);
+                return null;
+            }
+        });
+        mWriter.execute(mDatabaseOpening);
+        //все, что не дошло до firebase в прошлый раз, отправляется сразу после открытия БД...
+        drainOutbox();
+        //...и каждый раз, когда восстанавливается связь с firebase.
+        mBackend.addConnectionListener(new Runnable() {
+            @Override
+            public void run() {
+                drainOutbox();
+            }
+        });
     }
 
     /**
-     * При вызове метода execute(notepad) в отдельном потоке запускается метод, добавляющий в базы данных SQLite и
-     * Firebase данную заметку. Вызов метода get() вернет id добавленной заметки.
+     * Дожидается, пока писатель откроет БД. Вызывается в начале каждого запроса, в фоновом потоке.
+     * Когда БД уже открыта, сразу возвращает управление.
      */
-    public class AddNoteToDatabaseTask extends AsyncTask<Note, Void, Integer> {
-        @Override
-        protected Integer doInBackground(Note... note) {
-            if (note.length != 1)
-                throw new IllegalArgumentException(note.length + " parameters passed, expected 1");
-            return addNoteToDatabase(note[0]);
+    private void awaitDatabase() {
+        try {
+            mDatabaseOpening.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the database to open", ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException("Database could not be opened", ex.getCause());
         }
     }
 
     /**
-     *
-     * @return id созданной заметки.
+     * Дожидается, пока писатель выполнит все, что уже стоит в его очереди. Package-private: тесты зовут его перед тем,
+     * как закрыть БД. Вызывать можно только в фоновом потоке, но не в потоке писателя.
      */
-    private int addNoteToDatabase(final Note note) {
-        ContentValues values = parseNoteToContentValues(note);
-        mDatabase.insert(DatabaseConstants.Notes.TABLE_NAME, null, values);
-
-        try (Cursor newNoteCursor = mDatabase.query(
-                DatabaseConstants.Notes.TABLE_NAME,
-                new String [] {DatabaseConstants.Notes.Columns.NOTE_ID},
-                DatabaseConstants.Notes.Columns.CREATOR_ID + " = ? " +
-                        " AND " + DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = ? " +
-                        " AND " + DatabaseConstants.Notes.Columns.TITLE + " = ? ",
-                new String[] {Integer.toString(note.getCreatorId()), Integer.toString(note.getNotepadId()), note.getTitle()},
-                null, null,
-                DatabaseConstants.Notes.Columns.CREATION_DATE + " DESC")) {
-            //чтобы первой заметкой в курсоре была вновь добавленная.
-            newNoteCursor.moveToFirst();
-            int newNoteId = newNoteCursor.getInt(newNoteCursor.getColumnIndex(DatabaseConstants.Notes.Columns.NOTE_ID));
-            note.setId(newNoteId); //Как только заметка добавляется в БД, она получает id.
-
-            //добавляем заметку в firebase, если ее там до сих пор нет. (Она там есть, если мы ее получили из firebase, из метода синхронизации.)
-            //Изменять статус не нужно: он и так needs_addition.
-            if (note.getFirebaseId() == null) {
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        addNoteToFirebase(mCurrentUserFirebaseId, note);
-                    }
-                }).start();
+    void awaitPendingWrites() throws InterruptedException, ExecutionException {
+        FutureTask<Void> marker = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
             }
-
-            return newNoteId;
-        }
+        });
+        mWriter.execute(marker);
+        marker.get();
     }
 
     /**
-     * При вызове метода execute(userId) в отдельном потоке запускается метод, возвращающий
-     * все блокноты пользователя с данным id в виде списка.
-     * Вызов метода get() вернет полученный список.
+     * Получатель результата асинхронного запроса. Вызывается в главном потоке, если запрос не был отменен
+     * (см. StorageCall.cancel()).
      */
-    public class GetUserNotepadsAsListTask extends AsyncTask<Integer, Void, List<Notepad>> {
-        @Override
-        protected List<Notepad> doInBackground(Integer... userId) {
-            if (userId.length != 1)
-                throw new IllegalArgumentException (userId.length + " parameters passed, expected 1");
-            return getUserNotepadsAsList(userId[0]);
-        }
+    public interface Callback<T> {
+        void onResult(T result);
     }
 
-    //метод package-private, потому что используется в SynchronizerService.
-    private List<Notepad> getUserNotepadsAsList(int userId) {
-        List<Notepad> notepads = new ArrayList<>();
-        try (StorageKeeperCursorWrapper notepadsCursor = new StorageKeeperCursorWrapper(getUserNotepadsAsCursor(userId))){
-            notepadsCursor.moveToFirst();
-            while (!notepadsCursor.isAfterLast()) {
-                notepads.add(notepadsCursor.parseNotepad());
-                notepadsCursor.moveToNext();
-            }
-            return notepads;
-        }
+    /**
+     * Ставит чтение в очередь пула читателей.
+     * @param callback получатель результата. Может быть null.
+     */
+    private <T> StorageCall<T> submitRead(Callable<T> work, Callback<T> callback) {
+        StorageCall<T> call = new StorageCall<>(withDatabase(work), false, callback, mMainThreadHandler);
+        mReadExecutor.execute(call);
+        return call;
     }
 
     /**
-     * При вызове метода execute(userId, notepadId) в отдельном потоке запускается метод, возвращающий
-     * в виде списка все заметки пользователя с данным userId из блокнота с данным notepadId.
-     * Вызов метода get() вернет полученный список.
+     * Ставит запись в очередь писателя (см. DatabaseWriter). Записи выполняются строго в порядке вызова.
+     * @param callback получатель результата. Может быть null.
      */
-    public class GetUserNotesAsListTask extends AsyncTask<Integer, Void, List<Note>> {
-        @Override
-        protected List<Note> doInBackground(Integer... integers) {
-            if (integers.length != 2)
-                throw new IllegalArgumentException (integers.length + " parameters passed, expected 2");
-            return getUserNotesAsList(integers[0], integers[1]);
-        }
+    private <T> StorageCall<T> submitWrite(Callable<T> work, Callback<T> callback) {
+        StorageCall<T> call = new StorageCall<>(withDatabase(work), true, callback, mMainThreadHandler);
+        mWriter.execute(call);
+        return call;
     }
 
     /**
-     * Метод, который возвращает из базы данных список заметок по данным идентификаторам пользователя и блокнота.
-     * @param userId id пользователя.
-     * @param notepadId id блокнота. если передается 0, возвращается список из всех заметок всех блокнотов.
-     * @return список заметок
+     * Получатель прогресса миграции БД на новую схему, например, для экрана загрузки. Вызывается в главном потоке.
+     * Если БД мигрировать не нужно, не вызывается вовсе.
      */
-    private List<Note> getUserNotesAsList(int userId, int notepadId) {
-        List<Note> notes = new ArrayList<>();
-        try (StorageKeeperCursorWrapper cursorWrapper = notepadId > 0 ?
-                new StorageKeeperCursorWrapper(getUserNotesAsCursor(userId, notepadId)) :
-                new StorageKeeperCursorWrapper(getUserNotesAsCursor(userId))){
-            cursorWrapper.moveToFirst();
-            while (!cursorWrapper.isAfterLast()) {
-                notes.add(cursorWrapper.parseNote());
-                cursorWrapper.moveToNext();
-            }
-            return notes;
-        }
+    public interface MigrationListener {
+        /**
+         * @param completedSteps сколько версий схемы уже пройдено.
+         * @param stepsCount сколько всего версий нужно пройти. Когда completedSteps == stepsCount, миграция закончена.
+         */
+        void onMigrationProgress(int completedSteps, int stepsCount);
+    }
 
+    /**
+     * Подписывает на прогресс миграции. Прогресс доставляется через очередь главного потока, так что подписчик,
+     * заданный сразу после getInstance (в том же сообщении главного потока), не пропустит ни одного шага.
+     * @param listener получатель или null, чтобы отписаться.
+     */
+    public void setMigrationListener(MigrationListener listener) {
+        mMigrationListener = listener;
     }
 
     /**
-     * @since commit #6 в курсоре заметки расставлены по УБЫВАНИЮ id, потому что выводить на экран
-     * сначала свежие заметки логичнее.
-     * @since commit #7 заметки расставляются по убыванию даты создания. на результат это вообще никак не влияет,
-     * но таково требование заказчика.
+     * Получатель статистики группового коммита (см. DatabaseWriter). Вызывается в потоке писателя, поэтому должен быть быстрым.
      */
-    private Cursor getUserNotesAsCursor(int userId) {
-        return mDatabase.query(
-                DatabaseConstants.Notes.TABLE_NAME,
-                null,
-                DatabaseConstants.Notes.Columns.CREATOR_ID + " = ?",
-                new String[] {Integer.toString(userId)},
-                null, null,
-                DatabaseConstants.Notes.Columns.CREATION_DATE + " DESC"
-        );
+    public interface WriteBatchListener {
+        /**
+         * @param writesCount количество записей, закоммиченных одной транзакцией.
+         * @param latencyMillis время от постановки первой записи пачки в очередь до коммита.
+         */
+        void onWriteBatchCommitted(int writesCount, long latencyMillis);
     }
 
     /**
-     * @since commit #6 в курсоре заметки расставлены по УБЫВАНИЮ id, потому что выводить на экран
-     * сначала свежие заметки логичнее.
-     * @since commit #7 заметки расставляются по убыванию даты создания. на результат это вообще никак не влияет,
-     * но таково требование заказчика.
+     * @param listener получатель статистики группового коммита или null, чтобы отписаться.
      */
-    private Cursor getUserNotesAsCursor(int userId, int notepadId) {
-        return mDatabase.query(
-                DatabaseConstants.Notes.TABLE_NAME,
-                null,
-                DatabaseConstants.Notes.Columns.CREATOR_ID + " = ? AND " +
-                        DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = ? ",
-                new String[] {Integer.toString(userId), Integer.toString(notepadId)},
-                null, null,
-                DatabaseConstants.Notes.Columns.CREATION_DATE + " DESC"
-        );
+    public void setWriteBatchListener(WriteBatchListener listener) {
+        mWriteBatchListener = listener;
     }
 
     /**
-     * При вызове метода execute(userId) в отдельном потоке запускается метод, возвращающий
-     * все блокноты пользователя с данным id в виде курсора.
-     * Вызов метода get() вернет полученный курсор.
+     * Задает, сколько миллисекунд пачка мелких записей ждет следующих, прежде чем закоммититься.
+     * Чем больше окно, тем меньше коммитов при синхронизации, но тем позже каждая запись попадает на диск.
+     * @param millis окно в миллисекундах. По умолчанию - DatabaseWriter.DEFAULT_BATCH_WINDOW_MILLIS.
      */
-    public class GetUserNotepadsAsCursorTask extends AsyncTask<Integer, Void, Cursor> {
-        @Override
-        protected Cursor doInBackground(Integer... userId) {
-            if (userId.length != 1)
-                throw new IllegalArgumentException (userId.length + " parameters passed, expected 1");
-            return getUserNotepadsAsCursor(userId[0]);
-        }
+    public void setWriteBatchWindow(long millis) {
+        mWriter.setBatchWindow(millis);
     }
 
     /**
-     * @since commit #7 в курсоре блокноты расставлены по УБЫВАНИЮ id, потому что выводить на экран
-     * сначала свежесозданные блокноты логичнее.
+     * Получатель статистики пачек, отправленных в firebase (см. FirebaseBatcher). Вызывается в любом потоке, поэтому должен быть быстрым.
      */
-    private Cursor getUserNotepadsAsCursor(int userId) {
-        return mDatabase.query(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                null,
-                DatabaseConstants.Notepads.Columns.CREATOR_ID + " = ? ",
-                new String[] {Integer.toString(userId)},
-                null, null,
-                DatabaseConstants.Notepads.Columns.CREATION_DATE + " DESC"
-        );
+    public interface FirebaseBatchListener {
+        /**
+         * @param changesCount количество изменений (добавлений, обновлений, удалений) в пачке.
+         * @param success применил ли firebase пачку.
+         * @param latencyMillis время от постановки первого изменения пачки в очередь до ответа firebase.
+         */
+        void onFirebaseBatchCompleted(int changesCount, boolean success, long latencyMillis);
     }
 
     /**
-     * При вызове метода execute(note) в отдельном потоке запускается метод, изменяющий значения данной заметки
-     * в базах данных SQLite и Firebase на переданные.
+     * @param listener получатель статистики пачек firebase или null, чтобы отписаться.
      */
-    public class UpdateNoteTask extends AsyncTask <Note, Void, Void> {
-        @Override
-        protected Void doInBackground(Note... note) {
-            if (note.length != 1)
-                throw new IllegalArgumentException (note.length + " parameters passed, expected 1");
-            updateNote(note[0]);
-            return null; //выглядит, конечно, ужасно, но что поделать.
-        }
+    public void setFirebaseBatchListener(FirebaseBatchListener listener) {
+        mFirebaseBatchListener = listener;
     }
 
-    private void updateNote(final Note note) {
-        mDatabase.update(
-                DatabaseConstants.Notes.TABLE_NAME,
-                parseNoteToContentValues(note),
-                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
-                new String[] {Integer.toString(note.getId())}
-        );
+    /**
+     * Задает, сколько миллисекунд пачка изменений для firebase ждет следующих, прежде чем уйти.
+     * @param millis окно в миллисекундах. По умолчанию - FirebaseBatcher.DEFAULT_WINDOW_MILLIS.
+     */
+    public void setFirebaseBatchWindow(long millis) {
+        mFirebaseBatcher.setWindow(millis);
+    }
 
-        //дать знать, что требуется обновление в firebase, и внести это обновление
-        changeNoteFirebaseStatus(note, DatabaseConstants.FirebaseCodes.NEEDS_UPDATE);
-        new Thread(new Runnable() {
+    private <T> Callable<T> withDatabase(final Callable<T> work) {
+        return new Callable<T>() {
             @Override
-            public void run() {
-                updateNoteInFirebase(note);
+            public T call() throws Exception {
+                awaitDatabase();
+                return work.call();
             }
-        }).start();
+        };
     }
 
     /**
-     * При вызове метода execute(notepad) в отдельном потоке запускается метод, изменяющий значения данного блокнота
-     * в базах данных SQLite и Firebase на переданные.
+     * Фоновые потоки StorageKeeper'а: с понятными в отладчике именами и с фоновым приоритетом, чтобы не отнимать
+     * процессор у главного потока.
      */
-    public class UpdateNotepadTask extends AsyncTask<Notepad, Void, Void> {
+    private static class StorageThreadFactory implements ThreadFactory {
+        private final String mNamePrefix;
+        private final AtomicInteger mThreadsCount = new AtomicInteger();
+
+        StorageThreadFactory(String namePrefix) {
+            mNamePrefix = namePrefix;
+        }
+
         @Override
-        protected Void doInBackground(Notepad... notepad) {
-            if (notepad.length != 1)
-                throw new IllegalArgumentException (notepad.length + " parameters passed, expected 1");
-            updateNotepad(notepad[0]);
-            return null;
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, mNamePrefix + mThreadsCount.incrementAndGet());
         }
     }
 
-    private void updateNotepad(final Notepad notepad) {
-        //внести обновление данных о блокноте(название, там менять больше нечего) в локальную бд
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notepads.Columns.TITLE, notepad.getTitle());
-
-        mDatabase.update(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                values,
-                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ?",
-                new String[]{Integer.toString(notepad.getId())}
-        );
-
-        //дать знать, что требуется обновление в firebase, и внести это обновление
-        changeNotepadFirebaseStatus(notepad, DatabaseConstants.FirebaseCodes.NEEDS_UPDATE);
-        new Thread(new Runnable() {
+    /**
+     * Настраивает автоматический checkpoint WAL-журнала.
+     * Чем больше значение, тем реже коммит останавливается на перенос журнала в БД, но тем больше журнал
+     * и тем дольше сам перенос. 0 или отрицательное значение отключает автоматический checkpoint: тогда журнал
+     * переносится только методом checkpointWalAsync().
+     * Настройка применяется в потоке записи, после всех уже поставленных в очередь записей.
+     * @param pages размер журнала в страницах.
+     */
+    public void setWalAutoCheckpoint(final int pages) {
+        submitWrite(new Callable<Void>() {
             @Override
-            public void run() {
-                updateNotepadInFirebase(notepad);
+            public Void call() {
+                applyWalAutoCheckpoint(pages);
+                return null;
             }
-        }).start();
+        }, null);
     }
 
-
-    /**
-     * При вызове метода execute(note) в отдельном потоке запускается метод, удаляющий заметку с данным noteId
-     * из баз данных SQLite и Firebase.
-     */
-    public class DeleteNoteTask extends AsyncTask<Note, Void, Void> {
-        @Override
-        protected Void doInBackground(Note... note) {
-            if (note.length != 1)
-                throw new IllegalArgumentException (note.length + " parameters passed, expected 1");
-            deleteNote(note[0]);
-            return null;
+    private void applyWalAutoCheckpoint(int pages) {
+        //pragma действует на одно соединение. Внутри транзакции запрос гарантированно идет через основное соединение -
+        //то самое, через которое проходят все записи, а значит, и все коммиты.
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            executePragma("PRAGMA wal_autocheckpoint = " + pages + ";");
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
         }
     }
 
-    private void deleteNote(final Note note){
-
-        //удалить из sqlite
-        mDatabase.delete(
-                DatabaseConstants.Notes.TABLE_NAME,
-                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
-                new String[]{Integer.toString(note.getId())}
-        );
-
-        if (note.getFirebaseId() == null) {
-            Log.d("deleting note from FB", "note with firebaseId == null arrived!");
-            try (Cursor thisNote = mDatabase.query(
-                    DatabaseConstants.Notes.TABLE_NAME,
-                    new String[]{DatabaseConstants.Notes.Columns.FIREBASE_ID},
-                    DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
-                    new String[]{Integer.toString(note.getId())},
-                    null, null, null
-            )){
-                thisNote.moveToFirst();
-                note.setFirebaseId(thisNote.getString(thisNote.getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_ID)));
+    /**
+     * Асинхронно переносит WAL-журнал в основной файл БД (в потоке записи).
+     * @param callback вызывается в главном потоке, когда перенос закончен. Может быть null.
+     */
+    public StorageCall<Void> checkpointWalAsync(Callback<Void> callback) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                checkpointWal();
+                return null;
             }
-        }
-
-        //если заметка была добавлена в firebase, попробовать удалить ее оттуда
-        if (note.getFirebaseId() != null) {
-            //добавим сначала упоминание о заметке в таблицу DeletedNotes, если удалить из firebase сразу не получится
-            //todo: не забыть потом попробовать удалить весь контент этой таблицы при следующем вызове метода синхронизации
-            ContentValues values = new ContentValues();
-            values.put(DatabaseConstants.DeletedNotes.Columns.FIREBASE_ID, note.getFirebaseId());
-            mDatabase.insert(DatabaseConstants.DeletedNotes.TABLE_NAME, null, values);
+        }, callback);
+    }
 
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    deleteNoteFromFirebase(mCurrentUserFirebaseId, note);
-                }
-            }).start();
-        }
+    /**
+     * Переносит в основной файл БД столько WAL-журнала, сколько получится, не дожидаясь читателей (режим PASSIVE).
+     * Вызывается после больших пачек записи, чтобы журнал не разрастался до следующего автоматического checkpoint'а.
+     */
+    private void checkpointWal() {
+        executePragma("PRAGMA wal_checkpoint(PASSIVE);");
     }
 
     /**
-     * При вызове метода execute(notepadId) в отдельном потоке запускается метод, возвращающий название
-     * блокнота с данным notepadId.
-     * Вызов метода get() вернет полученное название.
+     * PRAGMA, которые возвращают строку результата, нельзя выполнять через execSQL.
      */
-    public class GetNotepadTitleByIdTask extends AsyncTask<Integer, Void, String> {
-        @Override
-        protected String doInBackground(Integer... notepadId) {
-            try {
-                if (notepadId.length != 1)
-                    throw new IllegalArgumentException (notepadId.length + " parameters passed, expected 1");
-                return getNotepadTitleById(notepadId[0]);
-            }
-            catch (NoSuchNotepadException ex) {
-                Log.e("Getting notepad title", ex.getMessage(), ex);
-                return null;
-            }
+    private void executePragma(String pragma) {
+        try (Cursor result = mDatabase.rawQuery(pragma, null)) {
+            result.moveToFirst();
         }
     }
 
-    private String getNotepadTitleById(int notepadId) throws NoSuchNotepadException {
-        try (Cursor cursor = mDatabase.query(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                new String[]{DatabaseConstants.Notepads.Columns.TITLE},
-                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
-                new String[]{Integer.toString(notepadId)},
-                null, null, null)){
-            if (cursor.getCount() < 1)
-                throw new NoSuchNotepadException("No notepad with id = " + notepadId);
-            cursor.moveToFirst();
-            return cursor.getString(cursor.getColumnIndex(DatabaseConstants.Notepads.Columns.TITLE));
+    /**
+     * Статический метод, используемый для доступа к единственному объекту класса.
+     * @param context контекст, из которого вызывается метод. Например, активность.
+     * @param currentUserFirebaseId firebase id залогиненного в приложение пользователя.
+     * @return экземпляр класса StorageKeeper, через который производится доступ к базе данных.
+     */
+    public static StorageKeeper getInstance(Context context, String currentUserFirebaseId) {
+        if (instance == null) {
+            instance = new StorageKeeper(context, currentUserFirebaseId);
+        } else {
+            instance.mCurrentUserFirebaseId = currentUserFirebaseId;
         }
+        return instance;
     }
 
-    private Cursor getCursorByNotepadId(int notepadId) {
-        return mDatabase.query(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                null,
-                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
-                new String[]{Integer.toString(notepadId)},
-                null, null, null
-        );
-    }
+    /**
+     * Блокноты, изменившиеся в firebase с прошлой синхронизации.
+     */
+    private static final class FirebaseNotepadChanges {
+        final List<Notepad> mNotepads = new ArrayList<>();
+        /**
+         * Серверный modified_at каждого блокнота из mNotepads, в том же порядке. 0 - блокнот записан версией без modified_at.
+         */
+        final List<Long> mModificationTimes = new ArrayList<>();
+        /**
+         * Наибольший modified_at из полученных (но не меньше отметки, с которой читали): отсюда начнется следующая синхронизация.
+         */
+        long mHighWaterMark;
+        boolean mFailed;
+
+        FirebaseNotepadChanges(long since) {
+            mHighWaterMark = since;
+        }
 
-    private String getFirebaseNotepadKeyByCursor(Cursor notepadCursor) {
-        notepadCursor.moveToFirst();
-        String firebaseNotepadKey = notepadCursor.getString(notepadCursor.getColumnIndex(DatabaseConstants.Notepads.Columns.FIREBASE_ID));
-        notepadCursor.close();
-        return firebaseNotepadKey;
+        void add(Notepad notepad, long modificationTime) {
+            mNotepads.add(notepad);
+            mModificationTimes.add(modificationTime);
+            mHighWaterMark = Math.max(mHighWaterMark, modificationTime);
+        }
     }
 
-    private ContentValues parseNoteToContentValues(Note note) {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notes.Columns.NOTEPAD_ID, note.getNotepadId());
-        values.put(DatabaseConstants.Notes.Columns.CREATOR_ID, note.getCreatorId());
-        values.put(DatabaseConstants.Notes.Columns.TITLE, note.getTitle());
-        values.put(DatabaseConstants.Notes.Columns.TEXT, note.getText());
-        values.put(DatabaseConstants.Notes.Columns.CREATION_DATE, note.getCreationDate().getTime());
-        if (note.getFirebaseId() != null) {
-            values.put(DatabaseConstants.Notes.Columns.FIREBASE_ID, note.getFirebaseId());
-            values.put(DatabaseConstants.Notes.Columns.FIREBASE_STATUS, note.getFirebaseStatus());
+    /**
+     * Строки дайджестов корзин (см. FIREBASE_NOTEPAD_DIGESTS), изменившиеся с прошлой сверки заметок.
+     */
+    private static final class FirebaseBucketChanges {
+        /**
+         * Серверный modified_at каждой полученной корзины по ключу блокнота. 0 - строка записана без modified_at.
+         */
+        final Map<String, Long> mModificationTimes = new HashMap<>();
+        /**
+         * Дайджесты корзин по ключам блокнотов. Корзин без дайджеста (или с битым дайджестом) здесь нет.
+         */
+        final Map<String, Long> mDigests = new HashMap<>();
+        /**
+         * Наибольший modified_at из полученных (но не меньше отметки, с которой читали).
+         */
+        long mHighWaterMark;
+        boolean mFailed;
+
+        FirebaseBucketChanges(long since) {
+            mHighWaterMark = since;
         }
-        return values;
     }
 
-    private ContentValues parseNotepadToContentValues(Notepad notepad) {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notepads.Columns.CREATOR_ID, notepad.getCreatorId());
-        values.put(DatabaseConstants.Notepads.Columns.TITLE, notepad.getTitle());
-        values.put(DatabaseConstants.Notepads.Columns.CREATION_DATE, notepad.getCreationDate().getTime());
-        if (notepad.getFirebaseId() != null) {
-            values.put(DatabaseConstants.Notepads.Columns.FIREBASE_ID, notepad.getFirebaseId());
-            values.put(DatabaseConstants.Notepads.Columns.FIREBASE_STATUS, notepad.getFirebaseStatus());
+    /**
+     * Важно понимать, что этот метод выполняется в том же потоке, что был вызван, т.к. предназначен только для использования
+     * в SynchronizerService.
+     * Раньше здесь каждый раз скачивались все блокноты пользователя. Теперь - только измененные начиная с since:
+     * orderByChild(modified_at).startAt(since) сервер выполняет по индексу, так что синхронизация без изменений
+     * почти ничего не скачивает. Для этого в правилах firebase на notepads нужен ".indexOn": "modified_at",
+     * без него клиент скачает все и отфильтрует сам.
+     * @param since серверное время, начиная с которого (включительно) нужны изменения. 0 - нужны все блокноты:
+     *              заодно так видны блокноты, записанные версиями без modified_at.
+     * @return изменившиеся блокноты. Если firebase ответил ошибкой, у результата выставлен mFailed.
+     */
+    private FirebaseNotepadChanges getNotepadChangesFromFirebase(final int localUserId, long since) {
+        final FirebaseNotepadChanges changes = new FirebaseNotepadChanges(since);
+        final CountDownLatch countDownLatch = new CountDownLatch(1); //пока список не будет собран, его нет смысла возвращать. За этим здесь CountDownLatch и нужен.
+        //don't fixme: если соединение с firebase установить не получится, asyncTask зависнет. плохо ли это? нет. кнопка будет отключена все равно, синхронизация закончится, как только интернет появится.
+        mBackend.read(firebasePath(mCurrentUserFirebaseId, DatabaseConstants.Notepads.TABLE_NAME),
+                since > 0 ? DatabaseConstants.Notepads.Columns.MODIFIED_AT : null, since > 0 ? since : null, null,
+                new FirebaseBackend.ReadListener() {
+            @Override
+            public void onRead(Object value, String errorMessage) {
+                if (errorMessage != null) {
+                    //синхронизация закончилась неудачей: выходим из метода, отметку не сдвигаем.
+                    changes.mFailed = true;
+                    countDownLatch.countDown();
+                    return;
+                }
+                //это на самом деле все измененные блокноты сразу. если изменений нет, детей нет.
+                for (Map.Entry<String, Object> notepad : getFirebaseChildren(value).entrySet()) {
+                    Map<String, Object> notepadFields = (Map<String, Object>) notepad.getValue();
+                    String notepadTitle = (String) notepadFields.get(DatabaseConstants.Notepads.Columns.TITLE);
+                    Date notepadCreationDate = new Date((Long) notepadFields.get(DatabaseConstants.Notepads.Columns.CREATION_DATE));
+                    Object modifiedAt = notepadFields.get(DatabaseConstants.Notepads.Columns.MODIFIED_AT);
+                    changes.add(new Notepad(localUserId, notepadTitle, notepadCreationDate, notepad.getKey()),
+                            modifiedAt instanceof Long ? (Long) modifiedAt : 0);
+                }
+                Log.i("Synchronization: FB", "list is packed with data! thread = " + Thread.currentThread());
+                countDownLatch.countDown();
+            }
+        });
+        if (!awaitFirebase(countDownLatch)) {
+            changes.mFailed = true;
         }
-        return values;
+        return changes;
     }
 
-    private void changeNoteFirebaseStatus(Note note, int newStatus) {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notes.Columns.FIREBASE_STATUS, newStatus);
-        mDatabase.update(
-                DatabaseConstants.Notes.TABLE_NAME,
-                values,
-                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
-                new String[]{Integer.toString(note.getId())}
-        );
-        note.setFirebaseStatus(newStatus);
+    /**
+     * @return серверное время, до которого (включительно) синхронизация уже прочитала коллекцию, или 0, если синхронизации еще не было.
+     */
+    private long getSyncHighWaterMark(int userId, String collection) {
+        try (Cursor state = mDatabase.query(
+                DatabaseConstants.SyncState.TABLE_NAME,
+                new String[]{DatabaseConstants.SyncState.Columns.HIGH_WATER_MARK},
+                DatabaseConstants.SyncState.Columns.USER_ID + " = ? AND " + DatabaseConstants.SyncState.Columns.COLLECTION + " = ?",
+                new String[]{Integer.toString(userId), collection},
+                null, null, null
+        )){
+            return state.moveToFirst() ? state.getLong(0) : 0;
+        }
     }
 
-    private void changeNotepadFirebaseStatus(Notepad notepad, int newStatus) {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notepads.Columns.FIREBASE_STATUS, newStatus);
-        mDatabase.update(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                values,
-                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
-                new String[]{Integer.toString(notepad.getId())}
-        );
-        notepad.setFirebaseStatus(newStatus);
-    }
 
-    private void updateNotepadFirebaseIdInSQLite(Notepad notepad) {
+    /**
+     * Этот метод не выполняется в отдельном потоке, так как вызывается только из getUserIdByEmailAsync,
+     * который и так выполняется в потоке записи.
+     * @return id созданного пользователя. Если пользователя создать не удалось, возвращается -1.
+     */
+    private int addUser(String email)
+    {
         ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notepads.Columns.FIREBASE_ID, notepad.getFirebaseId());
-        mDatabase.update(
-                DatabaseConstants.Notepads.TABLE_NAME,
-                values,
-                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
-                new String[]{Integer.toString(notepad.getId())}
-        );
+        values.put(DatabaseConstants.Users.Columns.LOGIN, email);
+        //insert возвращает rowid новой записи, а он совпадает с _id (INTEGER PRIMARY KEY). Искать юзера заново не нужно.
+        return (int) mDatabase.insert(DatabaseConstants.Users.TABLE_NAME, null, values);
     }
 
-    private void updateNoteFirebaseIdInSQLite(Note note) {
-        ContentValues values = new ContentValues();
-        values.put(DatabaseConstants.Notes.Columns.FIREBASE_ID, note.getFirebaseId());
-        mDatabase.update(
-                DatabaseConstants.Notes.TABLE_NAME,
-                values,
-                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
-                new String[]{Integer.toString(note.getId())}
-        );
+    private Cursor getUserCursorByEmail(String email) {
+        return mDatabase.query(DatabaseConstants.Users.TABLE_NAME,
+                null,
+                DatabaseConstants.Users.Columns.LOGIN + " = ?",
+                new String[]{email},
+                null, null, null);
     }
 
     /**
-     * Добавляет блокнот в базу данных firebase.
-     * @param notepad объект класса Notepad, который будет сохранен в базе данных.
+     * Асинхронно вычисляет локальный id пользователя с данным email. Если такого пользователя еще нет, он добавляется,
+     * поэтому запрос выполняется в потоке записи.
+     * @param callback получит id пользователя или -1, если в БД несколько пользователей с таким email.
      */
-    private void addNotepadToFirebase(final Notepad notepad) {
-        try {
-            FIREBASE_SEMAPHORE.acquire();
-        }
-        catch (InterruptedException ex) {
-            Log.e("adding notepad to FB", ex.getMessage(), ex);
-        }
-        Log.d("adding notepad to FB", "addition started, thread = " + Thread.currentThread() + ", notepad = " + notepad); //thread: AsyncTask #X
-        mReference.child(mCurrentUserFirebaseId).child(DatabaseConstants.Notepads.TABLE_NAME).push().setValue(parseNotepadToMap(notepad), new DatabaseReference.CompletionListener() {
+    public StorageCall<Integer> getUserIdByEmailAsync(final String email, Callback<Integer> callback) {
+        return submitWrite(new Callable<Integer>() {
             @Override
-            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
-                Log.d("New notepad added", "key = " + databaseReference.getKey() + ", current thread = " + Thread.currentThread());//thread: main(!), для каждого! значит ли это, что весь контент лиснеров тоже надо в отдельный поток запихать?..
-                changeNotepadFirebaseStatus(notepad, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
-                notepad.setFirebaseId(databaseReference.getKey());
-                updateNotepadFirebaseIdInSQLite(notepad);
-                FIREBASE_SEMAPHORE.release();
+            public Integer call() {
+                try {
+                    return getUserIdByEmail(email);
+                }
+                catch (DuplicateUsersException ex) {
+                    Log.e("Getting user ID", ex.getMessage(), ex);
+                    return -1;
+                }
             }
-        });
+        }, callback);
     }
 
-    //Важное замечание.
-    //1. Если отключить интернет, создать заметку и включить интернет, то заметка сохранится в firebase.
-    //2. Если отключить интернет, создать заметку, закрыть приложение, включить интернет и открыть приложение, заметка будет потеряна.
-    //Она сохранится в SQLite, но firebase о ней никогда не узнает.
-    //TODO: как насчет добавления во ViewHolder'ы индикатора синхронизированности? Какой-нибудь логотип напротив данных о заметке (и блокноте тоже.)
+    private int getUserIdByEmail(String email) throws DuplicateUsersException {
+        int userId;
+        try (Cursor users = getUserCursorByEmail(email)) {
+            users.moveToFirst();
+            if (users.getCount() == 0) { //такого пользователя на обнаружено
+                return addUser(email);
+                //я оставил этот метод в неприкосновенности, чтобы сохранить обратную совместимость со старым механизмом авторизации.
+            } else if (users.getCount() > 1) {
+                throw new DuplicateUsersException("Holy-moly, we've got two users with the same login. How did that happen?");
+            } else {
+                userId = users.getInt(users.getColumnIndex(DatabaseConstants.Users.Columns.ID));
+            }
+        }
+        claimOutboxEntries(userId);
+        return userId;
+    }
 
     /**
-     * Добавляет заметку в базу данных firebase.
-     * @param firebaseUserId уникальный идентификатор пользователя, который генерирует firebase.
-     *                   {@link} https://firebase.google.com/docs/reference/android/com/google/firebase/auth/FirebaseUser.html#getUid()
-     * @param note объект класса Note, который будет сохранен в базе данных.
+     * Отдает текущему пользователю firebase его строки outbox, которые остались без пользователя firebase
+     * (собранные миграцией или записанные, пока никто не вошел), и отправляет их.
+     * Вызывается в потоке писателя, когда пользователь входит.
      */
-    private void addNoteToFirebase(String firebaseUserId, final Note note) {
-        try {
-            FIREBASE_SEMAPHORE.acquire();
+    private void claimOutboxEntries(int userId) {
+        String firebaseUserId = mCurrentUserFirebaseId;
+        if (firebaseUserId == null) {
+            return;
         }
-        catch (InterruptedException ex) {
-            Log.e("adding note to FB", ex.getMessage(), ex);
+        if (mStatements.executeUpdateDelete(CLAIM_OUTBOX_ENTRIES, firebaseUserId, userId) > 0) {
+            drainOutbox();
         }
-        Log.d("adding note to FB", "addition started, thread = " + Thread.currentThread() + ", note = " + note);
-        note.setFirebaseNotepadId(getFirebaseNotepadKeyByCursor(getCursorByNotepadId(note.getNotepadId())));
+    }
 
-        mReference.child(firebaseUserId).child(DatabaseConstants.Notes.TABLE_NAME).push().setValue(parseNoteToMap(note), new DatabaseReference.CompletionListener() {
+    /**
+     * Асинхронно добавляет в базы данных SQLite и Firebase данный блокнот.
+     * @param callback получит id добавленного блокнота (или -1, если добавить не удалось). Может быть null.
+     */
+    public StorageCall<Integer> addNotepadAsync(final Notepad notepad, Callback<Integer> callback) {
+        return submitWrite(new Callable<Integer>() {
             @Override
-            public void onComplete(DatabaseError databaseError, DatabaseReference databaseReference) {
-                Log.d("New note added", "key = " + databaseReference.getKey() + ", current thread = " + Thread.currentThread());
-                note.setFirebaseId(databaseReference.getKey());
-                updateNoteFirebaseIdInSQLite(note);
-                changeNoteFirebaseStatus(note, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
-                FIREBASE_SEMAPHORE.release();
+            public Integer call() {
+                return addNotepadToDatabase(notepad);
             }
-        });
+        }, callback);
     }
 
-    private void deleteNoteFromFirebase(String firebaseUserId, final Note note) {
-        try {
-            FIREBASE_SEMAPHORE.acquire();
+    /**
+     * Для начала метод проверяет, есть ли блокнот с данным названием у данного пользователя.
+     * Если нет, добавляет в БД новый.
+     * @return id созданного блокнота
+     */
+    private int addNotepadToDatabase(final Notepad notepad) {
+        //взглянем правде в глаза: идея с разными названиями блокнотов изначально была плохой.
+        //теперь у блокнотов могут быть одинаковые названия. во имя корректной синхронизации. да.
+        List<OutboxEntry> outboxEntries = new ArrayList<>(1);
+        int newNotepadId = insertNotepad(notepad, outboxEntries);
+        if (newNotepadId < 0) {
+            return newNotepadId;
         }
-        catch (InterruptedException ex) {
-            Log.e("delete notepad from FB", ex.getMessage(), ex);
+        mCache.putNotepad(notepad);
+        mCache.invalidateQueries();
+        publishChange(StorageChange.Type.NOTEPAD_INSERTED, StorageChange.NO_ID, newNotepadId, StorageChange.NO_ID);
+        for (OutboxEntry outboxEntry : outboxEntries) {
+            scheduleOutboxEntry(outboxEntry);
         }
 
-        mReference.child(firebaseUserId).child(DatabaseConstants.Notes.TABLE_NAME).child(note.getFirebaseId()).removeValue().addOnSuccessListener(new OnSuccessListener<Void>() {
-            @Override
-            public void onSuccess(Void aVoid) {
-                Log.d("delete notepad from FB", "note deleted from firebase.");
-
-                //удалить упоминание о заметке из deleted_notes.
-                mDatabase.delete(
-                        DatabaseConstants.DeletedNotes.TABLE_NAME,
-                        DatabaseConstants.DeletedNotes.Columns.FIREBASE_ID + " = ? ",
-                        new String[]{note.getFirebaseId()}
-                );
-
-                FIREBASE_SEMAPHORE.release();
-            }
-        });
+        return newNotepadId;
     }
 
-    private void updateNoteInFirebase(final Note note) {
+    /**
+     * Вставляет блокнот в SQLite и присваивает ему id. В кэш его не кладет и событий не рассылает:
+     * если это часть внешней транзакции, ее еще могут откатить.
+     * @param outboxEntries сюда добавляется строка outbox, если блокнот нужно отправить в firebase.
+     *                      Ставить ее в очередь можно только после коммита внешней транзакции.
+     * @return id вставленного блокнота либо -1, если вставить не удалось.
+     */
+    private int insertNotepad(Notepad notepad, List<OutboxEntry> outboxEntries) {
+        ContentValues values = parseNotepadToContentValues(notepad);
+        mDatabase.beginTransactionNonExclusive();
         try {
-            FIREBASE_SEMAPHORE.acquire();
-        }
-        catch (InterruptedException ex) {
-            Log.e("updating note in FB", ex.getMessage(), ex);
-        }
-
-        if (note.getFirebaseId() == null) {
-            Log.d("updating note in FB", "note with firebaseId == null arrived!");
-            try (Cursor thisNote = mDatabase.query(
-                    DatabaseConstants.Notes.TABLE_NAME,
-                    new String[]{DatabaseConstants.Notes.Columns.FIREBASE_ID},
-                    DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
-                    new String[]{Integer.toString(note.getId())},
-                    null, null, null
-            )){
-                thisNote.moveToFirst();
-                note.setFirebaseId(thisNote.getString(thisNote.getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_ID)));
+            //id нового блокнота - это rowid, который возвращает insert. Если вставить не удалось, будет -1.
+            int newNotepadId = (int) mDatabase.insert(DatabaseConstants.Notepads.TABLE_NAME, null, values);
+            if (newNotepadId >= 0) {
+                notepad.setId(newNotepadId);
+                //добавляем блокнот в firebase, если его там до сих пор нет (он там есть, когда мы его получаем в методе синхронизации). Изменять статус не нужно: он и так needs_addition.
+                if (notepad.getFirebaseId() == null) {
+                    outboxEntries.add(recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTEPAD, newNotepadId, 0,
+                            DatabaseConstants.FirebaseCodes.NEEDS_ADDITION, null, 0));
+                }
             }
+            mDatabase.setTransactionSuccessful();
+            return newNotepadId;
         }
-        note.setFirebaseNotepadId(getFirebaseNotepadKeyByCursor(getCursorByNotepadId(note.getNotepadId())));
+        finally {
+            mDatabase.endTransaction();
+        }
+    }
 
-        mReference.child(mCurrentUserFirebaseId).child(DatabaseConstants.Notes.TABLE_NAME).child(note.getFirebaseId()).setValue(parseNoteToMap(note)).addOnSuccessListener(new OnSuccessListener<Void>() {
+    /**
+     * Асинхронно добавляет в базы данных SQLite и Firebase данную заметку.
+     * @param callback получит id добавленной заметки (или -1, если добавить не удалось). Может быть null.
+     */
+    public StorageCall<Integer> addNoteAsync(final Note note, Callback<Integer> callback) {
+        return submitWrite(new Callable<Integer>() {
             @Override
-            public void onSuccess(Void aVoid) {
-                Log.d("Firebase update: done", note + " updated in firebase.");
-                changeNoteFirebaseStatus(note, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
-                FIREBASE_SEMAPHORE.release();
+            public Integer call() {
+                return addNoteToDatabase(note);
             }
-        });
+        }, callback);
     }
 
-    private void updateNotepadInFirebase(final Notepad notepad) {
-        try {
-            FIREBASE_SEMAPHORE.acquire();
+    /**
+     *
+     * @return id созданной заметки.
+     */
+    private int addNoteToDatabase(final Note note) {
+        List<OutboxEntry> outboxEntries = new ArrayList<>(1);
+        int newNoteId = insertNote(note, outboxEntries);
+        if (newNoteId < 0) {
+            return newNoteId;
         }
-        catch (InterruptedException ex) {
-            Log.e("updating notepad in FB", ex.getMessage(), ex);
+        mCache.putNote(note);
+        publishChange(StorageChange.Type.NOTE_INSERTED, newNoteId, note.getNotepadId(), StorageChange.NO_ID);
+        for (OutboxEntry outboxEntry : outboxEntries) {
+            scheduleOutboxEntry(outboxEntry);
         }
 
-        //кроме того, может случиться ситуация, когда notepad будет передан с firebaseId = null
-        //(например, на первое свое обновление: тогда addNotepadToFirebase еще не успеет выполниться,
-        //и в RecyclerView этот блокнот будет висеть без firebaseId
-        if (notepad.getFirebaseId() == null) {
-            Log.d("updating notepad in FB", "notepad with firebaseId == null arrived!");
-            try (Cursor thisNotepad = mDatabase.query(
-                    DatabaseConstants.Notepads.TABLE_NAME,
-                    new String[]{DatabaseConstants.Notepads.Columns.FIREBASE_ID},
-                    DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
-                    new String[]{Integer.toString(notepad.getId())},
-                    null, null, null
-            )){
-                thisNotepad.moveToFirst();
-                notepad.setFirebaseId(thisNotepad.getString(thisNotepad.getColumnIndex(DatabaseConstants.Notepads.Columns.FIREBASE_ID)));
-            }
-        }
-        //todo: джедай, помни: все, что относится к firebase, должно происходить в методах, название которых кончается на -firebase, неужели так сложно запомнить?!
-        //теперь, по идее, firebaseId никогда не будет равен null (если, конечно, я настроил семафор правильно)
+        return newNoteId;
+    }
 
-        mReference.child(mCurrentUserFirebaseId).
-                child(DatabaseConstants.Notepads.TABLE_NAME).
-                child(notepad.getFirebaseId()).
-                setValue(parseNotepadToMap(notepad)).
-                addOnSuccessListener(new OnSuccessListener<Void>() {
+    /**
+     * Асинхронно добавляет в базы данных SQLite и Firebase все заметки из переданного списка.
+     * @param callback получит список id добавленных заметок (в том же порядке, в котором заметки были переданы). Может быть null.
+     */
+    public StorageCall<List<Integer>> addNotesAsync(final List<Note> notes, Callback<List<Integer>> callback) {
+        return submitWrite(new Callable<List<Integer>>() {
             @Override
-            public void onSuccess(Void aVoid) {
-                Log.d("Firebase update: done", notepad + " updated in firebase.");
-                changeNotepadFirebaseStatus(notepad, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
-                FIREBASE_SEMAPHORE.release();
+            public List<Integer> call() {
+                return addNotes(notes);
             }
-        });
+        }, callback);
     }
 
-    private Map<Notepad, Future<Integer>> addNotepadsListToDatabase(List<Notepad> notepads) {
-        Map<Notepad, Future<Integer>> additionResults = new HashMap<>();
-        mDatabase.beginTransaction(); //если что-то вдруг добавить не удастся, мы начнем заново.
+    /**
+     * Добавляет в SQLite все заметки из списка одной транзакцией: на импорт и синхронизацию тысяч заметок
+     * тратится один коммит, а не тысяча. Заметки, которых еще нет в firebase, попадают в outbox в той же транзакции
+     * и отправляются туда после коммита (см. FirebaseScheduler).
+     * @param notes заметки, которые нужно добавить. Каждая получает свой id.
+     * @return список id добавленных заметок. Если хоть одну заметку добавить не удалось, вся пачка откатывается,
+     * и возвращается пустой список.
+     */
+    private List<Integer> addNotes(List<Note> notes) {
+        List<Integer> newNotesIds = new ArrayList<>(notes.size());
+        List<OutboxEntry> outboxEntries = new ArrayList<>();
+        mDatabase.beginTransactionNonExclusive();
         try {
-            ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-            for (final Notepad notepad : notepads) {
-                Future<Integer> additionResult = executor.submit(new Callable<Integer>() {
-                    @Override
-                    public Integer call() {
-                        return addNotepadToDatabase(notepad);
+            for (Note note : notes) {
+                int newNoteId = insertNote(note, outboxEntries);
+                if (newNoteId < 0) {
+                    //если не добавилась хоть одна заметка, откатываем всю пачку.
+                    Log.e("Adding notes to SQLite", "couldn't add " + note + " to SQLite.");
+                    for (Note addedNote : notes) {
+                        addedNote.setId(Note.ID_NOT_YET_ASSIGNED);
                     }
-                });
-                additionResults.put(notepad, additionResult);
+                    return new ArrayList<>();
+                }
+                newNotesIds.add(newNoteId);
             }
             mDatabase.setTransactionSuccessful();
         }
         finally {
             mDatabase.endTransaction();
+            //пока транзакция не закоммичена, параллельные читатели видят старые данные и могли положить их в кэш.
+            mCache.invalidateQueries();
         }
-        return additionResults;
-    }
-
-    public boolean synchronizeNotepads(int userLocalId) {
-        List<Notepad> firebaseNotepadsList = getNotepadsListFromFirebase(userLocalId);
-        //это все заметки из firebase
-        Log.i("Synchronization: FB", firebaseNotepadsList.size() + " notepads were downloaded from firebase.");
-        List<Notepad> sqliteNotepadsList = getUserNotepadsAsList(userLocalId);
-        //это все заметки из sqlite
-        Log.i("Synchronization: SQLite", sqliteNotepadsList.size() + " notepads were found in SQLite.");
+        if (!newNotesIds.isEmpty()) {
+            //в кэш заметки попадают только закоммиченными.
+            for (Note note : notes) {
+                mCache.putNote(note);
+            }
+            publishChange(StorageChange.Type.BATCH_APPLIED, StorageChange.NO_ID, StorageChange.NO_ID, StorageChange.NO_ID);
+        }
+
+        for (OutboxEntry outboxEntry : outboxEntries) {
+            scheduleOutboxEntry(outboxEntry);
+        }
+        return newNotesIds;
+    }
+
+    /**
+     * Вставляет заметку в SQLite и присваивает ей id.
+     * Id берется прямо из результата insert (rowid совпадает с _id), поэтому повторный запрос по названию
+     * не нужен - он был медленным и при одинаковых названиях мог вернуть чужую заметку.
+     * В кэш заметку кладет вызывающий код, после коммита внешней транзакции.
+     * @param outboxEntries сюда добавляется строка outbox, если заметку нужно отправить в firebase.
+     *                      Ставить ее в очередь можно только после коммита внешней транзакции.
+     * @return id вставленной заметки либо -1, если вставить не удалось.
+     */
+    private int insertNote(Note note, List<OutboxEntry> outboxEntries) {
+        ContentValues values = parseNoteToContentValues(note);
+        //заметка и ее запись в полнотекстовом индексе добавляются вместе.
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            int newNoteId = (int) mDatabase.insert(DatabaseConstants.Notes.TABLE_NAME, null, values);
+            if (newNoteId >= 0) {
+                note.setId(newNoteId); //Как только заметка добавляется в БД, она получает id.
+                indexCompressedNoteText(note, values);
+                //в firebase заметку добавляем, если ее там до сих пор нет. (Она там есть, если мы ее получили из firebase, из метода синхронизации.)
+                if (note.getFirebaseId() == null) {
+                    outboxEntries.add(recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTE, newNoteId, note.getNotepadId(),
+                            DatabaseConstants.FirebaseCodes.NEEDS_ADDITION, null, 0));
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+            return newNoteId;
+        }
+        finally {
+            mDatabase.endTransaction();
+            mCache.invalidateQueries();
+        }
+    }
+
+    /**
+     * Триггеры индексируют только несжатые тексты. Если текст заметки был записан сжатым,
+     * запись в полнотекстовый индекс добавляется здесь, из текста, который и так есть в памяти.
+     * @param values то, что было записано в таблицу notes.
+     */
+    private void indexCompressedNoteText(Note note, ContentValues values) {
+        if (values.get(DatabaseConstants.Notes.Columns.TEXT) instanceof byte[]) {
+            mStatements.executeInsert(DatabaseHelper.INSERT_NOTE_SEARCH_ENTRY, note.getId(), note.getTitle(), note.getText());
+        }
+    }
+
+    /**
+     * Включает или выключает сжатие длинных текстов (см. NoteTextCodec) при записи заметок.
+     * Уже записанные заметки читаются в любом случае, в каком бы формате они ни хранились.
+     */
+    public void setLargeTextsCompressionEnabled(boolean enabled) {
+        mCompressLargeTexts = enabled;
+    }
+
+    /**
+     * Подписчик на изменения данных. Вызывается в главном потоке.
+     */
+    public interface ChangeListener {
+        void onStorageChanged(StorageChange change);
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        mChangeListeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        mChangeListeners.remove(listener);
+    }
+
+    /**
+     * @return версия последнего изменения данных. Если она не изменилась с прошлой загрузки списка, список актуален.
+     */
+    public synchronized long getDataVersion() {
+        return mDataVersion;
+    }
+
+    /**
+     * Рассылает подписчикам событие об изменении данных.
+     * Внутри транзакции события не рассылаются: пока транзакция не закоммичена, подписчик, перечитав строку,
+     * увидел бы старые данные. Пачки изменений вместо этого рассылают одно событие BATCH_APPLIED после коммита.
+     */
+    private void publishChange(StorageChange.Type type, int noteId, int notepadId, int previousNotepadId) {
+        if (mDatabase.inTransaction()) {
+            return;
+        }
+        //версия присваивается и событие ставится в очередь главного потока под одним локом,
+        //так что подписчики получают события строго в порядке версий.
+        synchronized (this) {
+            final StorageChange change = new StorageChange(type, ++mDataVersion, noteId, notepadId, previousNotepadId);
+            mMainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ChangeListener listener : mChangeListeners) {
+                        listener.onStorageChanged(change);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Задает размеры кэша заметок, блокнотов и результатов запросов списков (см. StorageCache).
+     * Текущее содержимое кэша при этом выбрасывается.
+     */
+    public void setCacheCapacity(int notesCapacity, int notepadsCapacity, int queriesCapacity) {
+        mCache.resize(notesCapacity, notepadsCapacity, queriesCapacity);
+    }
+
+    /**
+     * @return сколько раз данные были отданы из кэша, без запроса к SQLite.
+     */
+    public int getCacheHitCount() {
+        return mCache.getHitCount();
+    }
+
+    /**
+     * @return сколько раз данных в кэше не оказалось и пришлось идти в SQLite.
+     */
+    public int getCacheMissCount() {
+        return mCache.getMissCount();
+    }
+
+    /**
+     * Асинхронно загружает все блокноты пользователя с данным id в виде списка.
+     */
+    public StorageCall<List<Notepad>> getUserNotepadsAsListAsync(final int userId, Callback<List<Notepad>> callback) {
+        return submitRead(new Callable<List<Notepad>>() {
+            @Override
+            public List<Notepad> call() {
+                return getUserNotepadsAsList(userId);
+            }
+        }, callback);
+    }
+
+    //снаружи списком блокнотов пользуются через getUserNotepadsAsListAsync; здесь его еще берут импорт и синхронизация.
+    private List<Notepad> getUserNotepadsAsList(int userId) {
+        String cacheKey = "notepads:" + userId;
+        List<Notepad> cachedNotepads = mCache.getQueryResult(cacheKey);
+        if (cachedNotepads != null) {
+            return copyNotepads(cachedNotepads);
+        }
+        long cacheVersion = mCache.getVersion();
+        List<Notepad> notepads = new ArrayList<>();
+        try (StorageKeeperCursorWrapper notepadsCursor = new StorageKeeperCursorWrapper(getUserNotepadsAsCursor(userId))){
+            notepadsCursor.moveToFirst();
+            while (!notepadsCursor.isAfterLast()) {
+                Notepad notepad = notepadsCursor.parseNotepad();
+                mCache.putNotepadIfUnchanged(notepad, cacheVersion);
+                notepads.add(notepad);
+                notepadsCursor.moveToNext();
+            }
+        }
+        mCache.putQueryResult(cacheKey, cacheVersion, copyNotepads(notepads));
+        return notepads;
+    }
+
+    private static List<Notepad> copyNotepads(List<Notepad> notepads) {
+        List<Notepad> copy = new ArrayList<>(notepads.size());
+        for (Notepad notepad : notepads) {
+            copy.add(new Notepad(notepad));
+        }
+        return copy;
+    }
+
+    /**
+     * Асинхронно загружает все блокноты пользователя с данным id вместе с количеством заметок в каждом из них.
+     */
+    public StorageCall<Map<Notepad, Integer>> getUserNotepadsWithNotesCountAsync(final int userId, Callback<Map<Notepad, Integer>> callback) {
+        return submitRead(new Callable<Map<Notepad, Integer>>() {
+            @Override
+            public Map<Notepad, Integer> call() {
+                Map<Notepad, NotepadStats> notepadsWithStats = getUserNotepadsWithStats(userId);
+                Map<Notepad, Integer> notesCounters = new LinkedHashMap<>();
+                for (Map.Entry<Notepad, NotepadStats> notepad : notepadsWithStats.entrySet()) {
+                    notesCounters.put(notepad.getKey(), notepad.getValue().getNotesCount());
+                }
+                return notesCounters;
+            }
+        }, callback);
+    }
+
+    /**
+     * Асинхронно загружает все блокноты пользователя с данным id вместе с агрегатами по их заметкам
+     * (количество, дата самой новой заметки, размер текстов).
+     */
+    public StorageCall<Map<Notepad, NotepadStats>> getUserNotepadsWithStatsAsync(final int userId, Callback<Map<Notepad, NotepadStats>> callback) {
+        return submitRead(new Callable<Map<Notepad, NotepadStats>>() {
+            @Override
+            public Map<Notepad, NotepadStats> call() {
+                return getUserNotepadsWithStats(userId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Возвращает все блокноты пользователя вместе с агрегатами из notepad_stats. Агрегаты поддерживают триггеры,
+     * так что запрос читает по строке на блокнот и не трогает notes вовсе (раньше заметки считались GROUP BY по всей notes).
+     * @param userId id пользователя.
+     * @return блокноты в том же порядке, что и в getUserNotepadsAsCursor (по убыванию даты создания),
+     * и агрегаты по каждому из них. У блокнота без заметок агрегаты - NotepadStats.EMPTY.
+     */
+    private Map<Notepad, NotepadStats> getUserNotepadsWithStats(int userId) {
+        String cacheKey = "notepadsWithStats:" + userId;
+        Map<Notepad, NotepadStats> cachedStats = mCache.getQueryResult(cacheKey);
+        if (cachedStats != null) {
+            return copyNotepadsStats(cachedStats);
+        }
+        long cacheVersion = mCache.getVersion();
+        Map<Notepad, NotepadStats> notepadsStats = new LinkedHashMap<>();
+        //порядок берется прямо из индекса notepads_user_date_idx, а notepad_stats ищется по первичному ключу.
+        try (StorageKeeperCursorWrapper cursor = new StorageKeeperCursorWrapper(mDatabase.rawQuery(
+                "SELECT " + DatabaseConstants.Notepads.TABLE_NAME + ".*, " +
+                        DatabaseConstants.NotepadStats.Columns.NOTES_COUNT + ", " +
+                        DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE + ", " +
+                        DatabaseConstants.NotepadStats.Columns.TEXT_SIZE +
+                " FROM " + DatabaseConstants.Notepads.TABLE_NAME + " LEFT JOIN " + DatabaseConstants.NotepadStats.TABLE_NAME +
+                " ON " + DatabaseConstants.NotepadStats.TABLE_NAME + "." + DatabaseConstants.NotepadStats.Columns.NOTEPAD_ID + " = " +
+                        DatabaseConstants.Notepads.TABLE_NAME + "." + DatabaseConstants.Notepads.Columns.NOTEPAD_ID +
+                " WHERE " + DatabaseConstants.Notepads.TABLE_NAME + "." + DatabaseConstants.Notepads.Columns.CREATOR_ID + " = ?" +
+                " ORDER BY " + DatabaseConstants.Notepads.TABLE_NAME + "." + DatabaseConstants.Notepads.Columns.CREATION_DATE + " DESC, " +
+                        DatabaseConstants.Notepads.TABLE_NAME + "." + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " DESC",
+                new String[] {Integer.toString(userId)}))) {
+            int notesCountIndex = cursor.getColumnIndex(DatabaseConstants.NotepadStats.Columns.NOTES_COUNT);
+            int lastNoteDateIndex = cursor.getColumnIndex(DatabaseConstants.NotepadStats.Columns.LAST_NOTE_DATE);
+            int textSizeIndex = cursor.getColumnIndex(DatabaseConstants.NotepadStats.Columns.TEXT_SIZE);
+            while (cursor.moveToNext()) {
+                Notepad notepad = cursor.parseNotepad();
+                mCache.putNotepadIfUnchanged(notepad, cacheVersion);
+                //строки в notepad_stats нет, если в блокноте еще не было ни одной заметки.
+                notepadsStats.put(notepad, cursor.isNull(notesCountIndex) ? NotepadStats.EMPTY :
+                        new NotepadStats(cursor.getInt(notesCountIndex), cursor.getLong(lastNoteDateIndex), cursor.getLong(textSizeIndex)));
+            }
+        }
+        mCache.putQueryResult(cacheKey, cacheVersion, copyNotepadsStats(notepadsStats));
+        return notepadsStats;
+    }
+
+    private static Map<Notepad, NotepadStats> copyNotepadsStats(Map<Notepad, NotepadStats> notepadsStats) {
+        //NotepadStats неизменяемые, копировать нужно только блокноты.
+        Map<Notepad, NotepadStats> copy = new LinkedHashMap<>();
+        for (Map.Entry<Notepad, NotepadStats> stats : notepadsStats.entrySet()) {
+            copy.put(new Notepad(stats.getKey()), stats.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Асинхронно пересчитывает агрегаты по заметкам всех блокнотов (в потоке записи).
+     */
+    public StorageCall<Void> rebuildNotepadStatsAsync(Callback<Void> callback) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                DatabaseHelper.rebuildNotepadStats(mDatabase);
+                mCache.invalidateQueries();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Асинхронно загружает в виде списка все заметки пользователя с данным userId из блокнота с данным notepadId.
+     * @param notepadId id блокнота. если передается 0, загружаются заметки из всех блокнотов.
+     */
+    public StorageCall<List<Note>> getUserNotesAsListAsync(final int userId, final int notepadId, Callback<List<Note>> callback) {
+        return submitRead(new Callable<List<Note>>() {
+            @Override
+            public List<Note> call() {
+                return getUserNotesAsList(userId, notepadId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Метод, который возвращает из базы данных список заметок по данным идентификаторам пользователя и блокнота.
+     * @param userId id пользователя.
+     * @param notepadId id блокнота. если передается 0, возвращается список из всех заметок всех блокнотов.
+     * @return список заметок
+     */
+    private List<Note> getUserNotesAsList(int userId, int notepadId) {
+        List<Note> notes = new ArrayList<>();
+        try (StorageKeeperCursorWrapper cursorWrapper = notepadId > 0 ?
+                new StorageKeeperCursorWrapper(getUserNotesAsCursor(userId, notepadId)) :
+                new StorageKeeperCursorWrapper(getUserNotesAsCursor(userId))){
+            cursorWrapper.moveToFirst();
+            while (!cursorWrapper.isAfterLast()) {
+                notes.add(cursorWrapper.parseNote());
+                cursorWrapper.moveToNext();
+            }
+            return notes;
+        }
+
+    }
+
+    /**
+     * Асинхронно загружает одну страницу строк списка заметок (заметки вместе с названиями их блокнотов).
+     * @param userId id пользователя.
+     * @param notepadId id блокнота. если передается 0, возвращаются заметки из всех блокнотов.
+     * @param anchor строка, от которой отсчитывается страница. null - первая (самая свежая) страница.
+     * @param older true, если нужны заметки старше anchor, false - если новее.
+     * @param pageSize максимальное количество строк на странице.
+     */
+    public StorageCall<List<NoteListItem>> getUserNoteListItemsPageAsync(final int userId, final int notepadId, final NoteListItem anchor,
+                                                                          final boolean older, final int pageSize,
+                                                                          Callback<List<NoteListItem>> callback) {
+        return submitRead(new Callable<List<NoteListItem>>() {
+            @Override
+            public List<NoteListItem> call() {
+                return getUserNoteListItemsPage(userId, notepadId, anchor, older, pageSize);
+            }
+        }, callback);
+    }
+
+    /**
+     * Возвращает страницу строк списка заметок. Страницы отсчитываются по ключу (creation_date, _id) последней
+     * (или первой) строки уже загруженной страницы, а не по OFFSET: SQLite сразу переходит к нужному месту
+     * индекса, поэтому любая страница загружается так же быстро, как первая. Название блокнота каждой заметки
+     * приходит из того же запроса, поэтому ViewHolder'ам не нужно запрашивать его по одному.
+     * @param userId id пользователя.
+     * @param notepadId id блокнота. если передается 0, возвращаются заметки из всех блокнотов.
+     * @param anchor строка, от которой отсчитывается страница. null - первая (самая свежая) страница.
+     * @param older true, если нужны заметки старше anchor, false - если новее.
+     * @param pageSize максимальное количество строк на странице.
+     * @return строки списка по убыванию даты создания (и id при равных датах), не больше pageSize.
+     */
+    private List<NoteListItem> getUserNoteListItemsPage(int userId, int notepadId, NoteListItem anchor, boolean older, int pageSize) {
+        //кэшируется только первая страница: ее список перечитывает при каждом возвращении на экран.
+        String cacheKey = anchor == null ? "notesFirstPage:" + userId + ":" + notepadId + ":" + pageSize : null;
+        if (cacheKey != null) {
+            List<NoteListItem> cachedItems = mCache.getQueryResult(cacheKey);
+            if (cachedItems != null) {
+                return copyNoteListItems(cachedItems);
+            }
+        }
+        long cacheVersion = mCache.getVersion();
+        List<NoteListItem> items = new ArrayList<>(pageSize);
+        try (StorageKeeperCursorWrapper cursorWrapper = new StorageKeeperCursorWrapper(
+                getUserNoteListItemsPageAsCursor(userId, notepadId, anchor == null ? null : anchor.getNote(), older, pageSize))) {
+            cursorWrapper.moveToFirst();
+            while (!cursorWrapper.isAfterLast()) {
+                items.add(cursorWrapper.parseNoteListItem());
+                cursorWrapper.moveToNext();
+            }
+        }
+        if (anchor != null && !older) {
+            //более новые заметки выбираются по возрастанию ключа, чтобы LIMIT отрезал именно ближайшие к anchor.
+            Collections.reverse(items);
+        }
+        if (cacheKey != null) {
+            mCache.putQueryResult(cacheKey, cacheVersion, copyNoteListItems(items));
+        }
+        return items;
+    }
+
+    private static List<NoteListItem> copyNoteListItems(List<NoteListItem> items) {
+        List<NoteListItem> copy = new ArrayList<>(items.size());
+        for (NoteListItem item : items) {
+            copy.add(new NoteListItem(new Note(item.getNote()), item.getNotepadTitle(), item.getTextPreview()));
+        }
+        return copy;
+    }
+
+    private Cursor getUserNoteListItemsPageAsCursor(int userId, int notepadId, Note anchor, boolean older, int pageSize) {
+        String notesCreationDate = DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.CREATION_DATE;
+        String notesId = DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTE_ID;
+
+        String selection = DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.CREATOR_ID + " = ?";
+        List<String> selectionArgs = new ArrayList<>();
+        selectionArgs.add(Integer.toString(userId));
+        if (notepadId > 0) {
+            selection += " AND " + DatabaseConstants.Notes.TABLE_NAME + "." + DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = ?";
+            selectionArgs.add(Integer.toString(notepadId));
+        }
+
+        String order = older || anchor == null ? " DESC" : " ASC";
+        if (anchor != null) {
+            //у колонки creation_date нет типа, поэтому переданный строкой параметр SQLite сравнивал бы как текст.
+            //дата - это long, который мы получили из самой БД, так что подставить его в запрос числом безопасно.
+            String comparison = older ? " < " : " > ";
+            String anchorCreationDate = Long.toString(anchor.getCreationDate().getTime());
+            selection += " AND (" + notesCreationDate + comparison + anchorCreationDate +
+                    " OR (" + notesCreationDate + " = " + anchorCreationDate + " AND " + notesId + comparison + "?))";
+            selectionArgs.add(Integer.toString(anchor.getId()));
+        }
+
+        return mDatabase.rawQuery(
+                SELECT_NOTE_LIST_ITEMS +
+                " WHERE " + selection +
+                " ORDER BY " + notesCreationDate + order + ", " + notesId + order +
+                " LIMIT " + pageSize,
+                selectionArgs.toArray(new String[selectionArgs.size()]));
+    }
+
+    /**
+     * Асинхронный полнотекстовый поиск по заметкам пользователя.
+     * @param userId id пользователя.
+     * @param query строка, введенная пользователем. Все ее слова должны встретиться в заметке, последнее - хотя бы как префикс.
+     * @param notepadId id блокнота, в котором ищутся заметки. если передается 0, поиск идет по всем блокнотам.
+     * @param offset сколько самых релевантных результатов пропустить.
+     * @param pageSize максимальное количество результатов.
+     * @param callback получит страницу найденных заметок, отсортированных по релевантности.
+     */
+    public StorageCall<List<NoteListItem>> searchNotesAsync(final int userId, final String query, final int notepadId,
+                                                             final int offset, final int pageSize,
+                                                             Callback<List<NoteListItem>> callback) {
+        return submitRead(new Callable<List<NoteListItem>>() {
+            @Override
+            public List<NoteListItem> call() {
+                return searchNotes(userId, query, notepadId, offset, pageSize);
+            }
+        }, callback);
+    }
+
+    /**
+     * Ищет заметки по FTS-индексу notes_fts. Ранжирует NoteSearchRanking: из индекса читаются только id и matchinfo,
+     * а в памяти остаются только лучшие заметки, сколько нужно до конца страницы (и еще SEARCH_PREFETCH_PAGES страниц).
+     * Ранжированный список id кэшируется по запросу, так что следующие страницы того же поиска индекс не перечитывают,
+     * пока в заметках ничего не записано. Из таблицы notes загружаются только заметки запрошенной страницы.
+     * @return страница найденных заметок вместе с названиями их блокнотов, от самой релевантной к наименее.
+     */
+    private List<NoteListItem> searchNotes(int userId, String query, int notepadId, int offset, int pageSize) {
+        String matchExpression = NoteSearchRanking.parseQueryToMatchExpression(query);
+        if (matchExpression == null) {
+            return new ArrayList<>();
+        }
+
+        String cacheKey = "search:" + userId + ":" + notepadId + ":" + matchExpression;
+        NoteSearchRanking.RankedNoteIds ranked = mCache.getQueryResult(cacheKey);
+        int limit = offset + pageSize;
+        if (ranked == null || (!ranked.mComplete && ranked.mNoteIds.length < limit)) {
+            long cacheVersion = mCache.getVersion();
+            //если пользователь листает дальше закэшированного, запас удваивается: индекс перечитывается все реже.
+            int capacity = Math.max(limit + SEARCH_PREFETCH_PAGES * pageSize, ranked == null ? 0 : 2 * ranked.mNoteIds.length);
+            ranked = NoteSearchRanking.selectTopHits(mDatabase, matchExpression, userId, notepadId, capacity);
+            mCache.putQueryResult(cacheKey, cacheVersion, ranked);
+        }
+        if (offset >= ranked.mNoteIds.length) {
+            return new ArrayList<>();
+        }
+        int pageEnd = Math.min(ranked.mNoteIds.length, limit);
+
+        //загружаем только заметки текущей страницы и раскладываем их в порядке релевантности.
+        StringBuilder placeholders = new StringBuilder();
+        String[] ids = new String[pageEnd - offset];
+        for (int i = 0; i < ids.length; ++i) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+            ids[i] = Integer.toString(ranked.mNoteIds[offset + i]);
+        }
+        Map<Integer, NoteListItem> itemsById = new HashMap<>();
+        try (StorageKeeperCursorWrapper cursorWrapper = new StorageKeeperCursorWrapper(mDatabase.rawQuery(
+                SELECT_NOTE_LIST_ITEMS + " WHERE " + DatabaseConstants.Notes.TABLE_NAME + "." +
+                        DatabaseConstants.Notes.Columns.NOTE_ID + " IN (" + placeholders + ")",
+                ids))) {
+            cursorWrapper.moveToFirst();
+            while (!cursorWrapper.isAfterLast()) {
+                NoteListItem item = cursorWrapper.parseNoteListItem();
+                itemsById.put(item.getNote().getId(), item);
+                cursorWrapper.moveToNext();
+            }
+        }
+        List<NoteListItem> items = new ArrayList<>(ids.length);
+        for (int i = offset; i < pageEnd; ++i) {
+            NoteListItem item = itemsById.get(ranked.mNoteIds[i]);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Асинхронно выгружает все блокноты и заметки пользователя в поток, в формате NotesArchive.
+     * Записи идут из курсора прямо в поток, а заметки читаются страницами по EXPORT_PAGE_SIZE,
+     * так что память не зависит от количества заметок. Поток закрывается в конце, даже если выгрузить не удалось.
+     * Все страницы читаются в одной транзакции, то есть из одного снимка БД: заметка, перенесенная во время выгрузки
+     * в новый блокнот, не окажется в файле без блокнота. Записи на это время ждут.
+     * @param callback получит статистику выгрузки или null, если записать в поток не удалось.
+     */
+    public StorageCall<BulkTransferStats> exportUserDataAsync(final int userId, final OutputStream out, Callback<BulkTransferStats> callback) {
+        return submitRead(new Callable<BulkTransferStats>() {
+            @Override
+            public BulkTransferStats call() {
+                return exportUserData(userId, out);
+            }
+        }, callback);
+    }
+
+    private BulkTransferStats exportUserData(int userId, OutputStream out) {
+        long startTime = SystemClock.elapsedRealtime();
+        int rowsCount = 0;
+        String userIdString = Integer.toString(userId);
+        //без транзакции каждая страница видела бы свое состояние БД. в WAL-режиме в Android транзакция берет главное
+        //соединение, так что писатель подождет выгрузку, а читатели - нет.
+        mDatabase.beginTransactionNonExclusive();
+        try (NotesArchive.ArchiveWriter writer = new NotesArchive.ArchiveWriter(out)) {
+            //блокноты идут первыми: при импорте заметка должна найти свой блокнот среди уже прочитанных.
+            try (StorageKeeperCursorWrapper notepads = new StorageKeeperCursorWrapper(mDatabase.query(
+                    DatabaseConstants.Notepads.TABLE_NAME,
+                    new String[]{DatabaseConstants.Notepads.Columns.NOTEPAD_ID, DatabaseConstants.Notepads.Columns.TITLE,
+                            DatabaseConstants.Notepads.Columns.CREATION_DATE},
+                    DatabaseConstants.Notepads.Columns.CREATOR_ID + " = ?",
+                    new String[]{userIdString},
+                    null, null,
+                    DatabaseConstants.Notepads.Columns.NOTEPAD_ID))) {
+                while (notepads.moveToNext()) {
+                    writer.writeNotepad(notepads.getLocalId(), notepads.getTitle(), notepads.getCreationTime());
+                    rowsCount++;
+                }
+            }
+
+            //тексты бывают по мегабайту, поэтому заметки читаются страницами: окно курсора не распухает.
+            long lastNoteId = 0;
+            boolean hasMore = true;
+            while (hasMore) {
+                try (StorageKeeperCursorWrapper notes = new StorageKeeperCursorWrapper(mDatabase.query(
+                        DatabaseConstants.Notes.TABLE_NAME,
+                        new String[]{DatabaseConstants.Notes.Columns.NOTE_ID, DatabaseConstants.Notes.Columns.NOTEPAD_ID,
+                                DatabaseConstants.Notes.Columns.CREATOR_ID, DatabaseConstants.Notes.Columns.TITLE,
+                                DatabaseConstants.Notes.Columns.CREATION_DATE, DatabaseConstants.Notes.Columns.TEXT,
+                                DatabaseConstants.Notes.Columns.TEXT_FORMAT},
+                        DatabaseConstants.Notes.Columns.CREATOR_ID + " = ? AND " + DatabaseConstants.Notes.Columns.NOTE_ID + " > ?",
+                        new String[]{userIdString, Long.toString(lastNoteId)},
+                        null, null,
+                        DatabaseConstants.Notes.Columns.NOTE_ID,
+                        Integer.toString(EXPORT_PAGE_SIZE)))) {
+                    hasMore = notes.getCount() == EXPORT_PAGE_SIZE;
+                    while (notes.moveToNext()) {
+                        Note note = notes.parseNote();
+                        lastNoteId = note.getId();
+                        writer.writeNote(note.getNotepadId(), note.getTitle(), note.getCreationDate().getTime(), note.getText());
+                        rowsCount++;
+                    }
+                }
+            }
+        }
+        catch (IOException ex) {
+            Log.e("Export", ex.getMessage(), ex);
+            return null;
+        }
+        finally {
+            //ничего не писали, так что откатывать или коммитить - все равно.
+            mDatabase.endTransaction();
+        }
+        BulkTransferStats stats = new BulkTransferStats(rowsCount, 0, SystemClock.elapsedRealtime() - startTime);
+        Log.i("Export", "user " + userId + ": " + stats);
+        return stats;
+    }
+
+    /**
+     * Асинхронно загружает блокноты и заметки из потока в формате NotesArchive (см. exportUserDataAsync) в данного пользователя.
+     * Файл читается по строке, так что память не зависит от его размера. Весь импорт - одна транзакция:
+     * если файл оборвался или испорчен, в БД не остается ничего, и в Firebase ничего не уходит.
+     * Блокнот, который у пользователя уже есть (то же название и время создания), второй раз не создается.
+     * Импортированные записи получают статус NEEDS_ADDITION и попадают в outbox в той же транзакции:
+     * в Firebase они уходят пачками после импорта (или после перезапуска, если приложение закрыли раньше).
+     * Поток закрывается в конце.
+     * @param callback получит статистику загрузки или null, если файл прочитать не удалось.
+     */
+    public StorageCall<BulkTransferStats> importUserDataAsync(final int userId, final InputStream in, Callback<BulkTransferStats> callback) {
+        return submitWrite(new Callable<BulkTransferStats>() {
+            @Override
+            public BulkTransferStats call() {
+                return importUserData(userId, in);
+            }
+        }, callback);
+    }
+
+    private BulkTransferStats importUserData(int userId, InputStream in) {
+        long startTime = SystemClock.elapsedRealtime();
+        int rowsCount = 0;
+        int skippedRowsCount = 0;
+        //id блокнота в файле -> id блокнота в БД. Блокнотов немного, так что держать их в памяти можно.
+        SparseIntArray notepadIds = new SparseIntArray();
+        List<Notepad> existingNotepads = getUserNotepadsAsList(userId);
+        try (NotesArchive.ArchiveReader reader = new NotesArchive.ArchiveReader(in)) {
+            mDatabase.beginTransactionNonExclusive();
+            try {
+                NotesArchive.Record record;
+                while ((record = reader.next()) != null) {
+                    if (NotesArchive.TYPE_NOTEPAD.equals(record.mType)) {
+                        int notepadId = importNotepad(userId, record, existingNotepads);
+                        if (notepadId < 0) {
+                            skippedRowsCount++;
+                            continue;
+                        }
+                        notepadIds.put(record.mId, notepadId);
+                    } else {
+                        int notepadId = notepadIds.get(record.mNotepadId, -1);
+                        if (notepadId < 0 || !importNote(userId, notepadId, record)) {
+                            skippedRowsCount++;
+                            continue;
+                        }
+                    }
+                    if (++rowsCount % IMPORT_PROGRESS_STEP == 0) {
+                        Log.d("Import", rowsCount + " rows imported");
+                    }
+                }
+                //транзакция коммитится, только если файл дочитан до конца: IOException сюда не пускает.
+                mDatabase.setTransactionSuccessful();
+            }
+            finally {
+                mDatabase.endTransaction();
+                mCache.invalidateQueries();
+            }
+        }
+        catch (IOException ex) {
+            //импорт откатился целиком, так что ни событий, ни отправки в firebase.
+            Log.e("Import", ex.getMessage(), ex);
+            return null;
+        }
+        if (rowsCount > 0) {
+            //одна большая транзакция - большой журнал. переносим его сразу.
+            checkpointWal();
+            publishChange(StorageChange.Type.BATCH_APPLIED, StorageChange.NO_ID, StorageChange.NO_ID, StorageChange.NO_ID);
+            drainOutbox();
+        }
+        BulkTransferStats stats = new BulkTransferStats(rowsCount, skippedRowsCount, SystemClock.elapsedRealtime() - startTime);
+        Log.i("Import", "user " + userId + ": " + stats);
+        return stats;
+    }
+
+    /**
+     * @return id блокнота в БД: уже существующего такого же или только что добавленного. -1, если добавить не удалось.
+     */
+    private int importNotepad(int userId, NotesArchive.Record record, List<Notepad> existingNotepads) {
+        Notepad notepad = new Notepad(userId, record.mTitle, new Date(record.mCreationTime), Notepad.ID_NOT_YET_ASSIGNED);
+        int existingIndex = existingNotepads.indexOf(notepad);
+        if (existingIndex >= 0) {
+            return existingNotepads.get(existingIndex).getId();
+        }
+        int notepadId = (int) mDatabase.insert(DatabaseConstants.Notepads.TABLE_NAME, null, parseNotepadToContentValues(notepad));
+        if (notepadId < 0) {
+            Log.e("Import", "couldn't add " + notepad + " to SQLite.");
+            return notepadId;
+        }
+        //в очередь firebase строку outbox поставит проход после импорта, а не каждая запись по отдельности.
+        recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTEPAD, notepadId, 0, DatabaseConstants.FirebaseCodes.NEEDS_ADDITION, null, 0);
+        return notepadId;
+    }
+
+    /**
+     * Вставляет заметку без кэша и событий: при импорте миллиона заметок они бы только мешали.
+     */
+    private boolean importNote(int userId, int notepadId, NotesArchive.Record record) {
+        Note note = new Note(Note.ID_NOT_YET_ASSIGNED, notepadId, userId, record.mTitle, new Date(record.mCreationTime), record.mText);
+        ContentValues values = parseNoteToContentValues(note);
+        int noteId = (int) mDatabase.insert(DatabaseConstants.Notes.TABLE_NAME, null, values);
+        if (noteId < 0) {
+            Log.e("Import", "couldn't add " + note + " to SQLite.");
+            return false;
+        }
+        note.setId(noteId);
+        indexCompressedNoteText(note, values);
+        recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTE, noteId, notepadId, DatabaseConstants.FirebaseCodes.NEEDS_ADDITION, null, 0);
+        return true;
+    }
+
+    /**
+     * Асинхронно заново заполняет полнотекстовый индекс заметок (в потоке записи).
+     */
+    public StorageCall<Void> rebuildNotesSearchAsync(Callback<Void> callback) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                DatabaseHelper.rebuildNotesSearch(mDatabase);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * @since commit #6 в курсоре заметки расставлены по УБЫВАНИЮ id, потому что выводить на экран
+     * сначала свежие заметки логичнее.
+     * @since commit #7 заметки расставляются по убыванию даты создания. на результат это вообще никак не влияет,
+     * но таково требование заказчика.
+     */
+    private Cursor getUserNotesAsCursor(int userId) {
+        return mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                null,
+                DatabaseConstants.Notes.Columns.CREATOR_ID + " = ?",
+                new String[] {Integer.toString(userId)},
+                null, null,
+                DatabaseConstants.Notes.Columns.CREATION_DATE + " DESC"
+        );
+    }
+
+    /**
+     * @since commit #6 в курсоре заметки расставлены по УБЫВАНИЮ id, потому что выводить на экран
+     * сначала свежие заметки логичнее.
+     * @since commit #7 заметки расставляются по убыванию даты создания. на результат это вообще никак не влияет,
+     * но таково требование заказчика.
+     */
+    private Cursor getUserNotesAsCursor(int userId, int notepadId) {
+        return mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                null,
+                DatabaseConstants.Notes.Columns.CREATOR_ID + " = ? AND " +
+                        DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = ? ",
+                new String[] {Integer.toString(userId), Integer.toString(notepadId)},
+                null, null,
+                DatabaseConstants.Notes.Columns.CREATION_DATE + " DESC"
+        );
+    }
+
+    /**
+     * Асинхронно загружает все блокноты пользователя с данным id в виде курсора.
+     * Закрыть курсор должен тот, кто его получил. Если запрос отменен, курсор закроется сам.
+     */
+    public StorageCall<Cursor> getUserNotepadsAsCursorAsync(final int userId, Callback<Cursor> callback) {
+        return submitRead(new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                Cursor notepads = getUserNotepadsAsCursor(userId);
+                //SQLiteCursor выполняет запрос лениво, при первом обращении. getCount() заставляет его сделать это здесь,
+                //а не в главном потоке.
+                notepads.getCount();
+                return notepads;
+            }
+        }, callback);
+    }
+
+    /**
+     * @since commit #7 в курсоре блокноты расставлены по УБЫВАНИЮ id, потому что выводить на экран
+     * сначала свежесозданные блокноты логичнее.
+     */
+    private Cursor getUserNotepadsAsCursor(int userId) {
+        return mDatabase.query(
+                DatabaseConstants.Notepads.TABLE_NAME,
+                null,
+                DatabaseConstants.Notepads.Columns.CREATOR_ID + " = ? ",
+                new String[] {Integer.toString(userId)},
+                null, null,
+                DatabaseConstants.Notepads.Columns.CREATION_DATE + " DESC"
+        );
+    }
+
+    /**
+     * Асинхронно изменяет значения данной заметки в базах данных SQLite и Firebase на переданные.
+     * @param callback вызывается, когда заметка записана в SQLite. Может быть null.
+     */
+    public StorageCall<Void> updateNoteAsync(final Note note, Callback<Void> callback) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                updateNote(note);
+                return null;
+            }
+        }, callback);
+    }
+
+    private void updateNote(final Note note) {
+        ContentValues values = parseModifiedNoteFieldsToContentValues(note);
+        int previousNotepadId;
+        OutboxEntry outboxEntry;
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            previousNotepadId = getNoteNotepadId(note.getId());
+            int updatedCount = mDatabase.update(
+                    DatabaseConstants.Notes.TABLE_NAME,
+                    values,
+                    DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                    new String[] {Integer.toString(note.getId())}
+            );
+            if (updatedCount == 0) {
+                //заметку уже удалили (например, автосохранение пришло после удаления): ни outbox, ни кэша, ни события.
+                //транзакция все равно помечается успешной: она может быть вложенной, а откат вложенной откатил бы и внешнюю.
+                Log.d("updating note", note + " is not in SQLite anymore, update is dropped.");
+                mDatabase.setTransactionSuccessful();
+                return;
+            }
+            if (values.containsKey(DatabaseConstants.Notes.Columns.TEXT)) {
+                indexCompressedNoteText(note, values);
+            } else if (values.containsKey(DatabaseConstants.Notes.Columns.TITLE) && isNoteTextCompressed(note.getId())) {
+                //триггер удалил запись индекса из-за нового названия, а вернуть ее не смог: текст в БД сжат.
+                mStatements.executeInsert(DatabaseHelper.INSERT_NOTE_SEARCH_ENTRY, note.getId(), note.getTitle(), note.getText());
+            }
+            //дать знать, что требуется обновление в firebase, и записать само обновление в outbox
+            changeNoteFirebaseStatus(note, DatabaseConstants.FirebaseCodes.NEEDS_UPDATE);
+            outboxEntry = recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTE, note.getId(), note.getNotepadId(),
+                    DatabaseConstants.FirebaseCodes.NEEDS_UPDATE, null, note.getModifiedFields());
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+
+        mCache.putNote(note);
+        if (previousNotepadId != note.getNotepadId()) {
+            publishChange(StorageChange.Type.NOTE_MOVED, note.getId(), note.getNotepadId(), previousNotepadId);
+        } else {
+            publishChange(StorageChange.Type.NOTE_UPDATED, note.getId(), note.getNotepadId(), StorageChange.NO_ID);
+        }
+        scheduleOutboxEntry(outboxEntry);
+    }
+
+    /**
+     * Асинхронно изменяет значения данного блокнота в базах данных SQLite и Firebase на переданные.
+     * @param callback вызывается, когда блокнот записан в SQLite. Может быть null.
+     */
+    public StorageCall<Void> updateNotepadAsync(final Notepad notepad, Callback<Void> callback) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                updateNotepad(notepad);
+                return null;
+            }
+        }, callback);
+    }
+
+    private void updateNotepad(final Notepad notepad) {
+        //внести обновление данных о блокноте(название, там менять больше нечего) в локальную бд
+        ContentValues values = new ContentValues();
+        values.put(DatabaseConstants.Notepads.Columns.TITLE, notepad.getTitle());
+        values.put(DatabaseConstants.Notepads.Columns.MODIFIED_AT, System.currentTimeMillis());
+
+        OutboxEntry outboxEntry;
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            mDatabase.update(
+                    DatabaseConstants.Notepads.TABLE_NAME,
+                    values,
+                    DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ?",
+                    new String[]{Integer.toString(notepad.getId())}
+            );
+
+            //дать знать, что требуется обновление в firebase, и записать само обновление в outbox
+            changeNotepadFirebaseStatus(notepad, DatabaseConstants.FirebaseCodes.NEEDS_UPDATE);
+            outboxEntry = recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTEPAD, notepad.getId(), 0,
+                    DatabaseConstants.FirebaseCodes.NEEDS_UPDATE, null, notepad.getModifiedFields());
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+        mCache.putNotepad(notepad);
+        publishChange(StorageChange.Type.NOTEPAD_RENAMED, StorageChange.NO_ID, notepad.getId(), StorageChange.NO_ID);
+        scheduleOutboxEntry(outboxEntry);
+    }
+
+
+    /**
+     * Асинхронно удаляет данную заметку из баз данных SQLite и Firebase.
+     * @param callback вызывается, когда заметка удалена из SQLite. Может быть null.
+     */
+    public StorageCall<Void> deleteNoteAsync(final Note note, Callback<Void> callback) {
+        return submitWrite(new Callable<Void>() {
+            @Override
+            public Void call() {
+                deleteNote(note);
+                return null;
+            }
+        }, callback);
+    }
+
+    private void deleteNote(final Note note){
+        OutboxEntry outboxEntry = null;
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            //ключ в firebase нужно узнать до удаления из sqlite: потом спросить будет не у кого.
+            String firebaseId = note.getFirebaseId() != null ? note.getFirebaseId() : getNoteFirebaseKey(note.getId());
+
+            //удалить из sqlite
+            mDatabase.delete(
+                    DatabaseConstants.Notes.TABLE_NAME,
+                    DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                    new String[]{Integer.toString(note.getId())}
+            );
+
+            //если заметка была добавлена в firebase (или ее добавление ждет в outbox), удалить ее и оттуда.
+            //удаление стоит в outbox за добавлением, так что порядок сохранится и после перезапуска.
+            if (firebaseId != null) {
+                outboxEntry = recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTE, note.getId(), 0,
+                        DatabaseConstants.FirebaseCodes.NEEDS_DELETION, firebaseId, 0);
+            }
+            mDatabase.setTransactionSuccessful();
+        }
+        finally {
+            mDatabase.endTransaction();
+        }
+        mCache.removeNote(note.getId());
+        mCache.invalidateQueries();
+        publishChange(StorageChange.Type.NOTE_DELETED, note.getId(), note.getNotepadId(), StorageChange.NO_ID);
+        if (outboxEntry != null) {
+            scheduleOutboxEntry(outboxEntry);
+        }
+    }
+
+    /**
+     * @return ключ заметки в firebase: записанный в notes, а если заметка туда еще не дошла - заготовленный
+     * для ее добавления в outbox. null, если в firebase заметку не отправляли.
+     */
+    private String getNoteFirebaseKey(int noteId) {
+        try (Cursor thisNote = mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                new String[]{DatabaseConstants.Notes.Columns.FIREBASE_ID},
+                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                new String[]{Integer.toString(noteId)},
+                null, null, null
+        )){
+            if (thisNote.moveToFirst() && thisNote.getString(0) != null) {
+                return thisNote.getString(0);
+            }
+        }
+        try (Cursor addition = mDatabase.query(
+                DatabaseConstants.Outbox.TABLE_NAME,
+                new String[]{DatabaseConstants.Outbox.Columns.FIREBASE_ID},
+                DatabaseConstants.Outbox.Columns.ENTITY_TYPE + " = ? AND " + DatabaseConstants.Outbox.Columns.ENTITY_ID +
+                        " = ? AND " + DatabaseConstants.Outbox.Columns.OPERATION + " = ?",
+                new String[]{Integer.toString(DatabaseConstants.Outbox.ENTITY_NOTE), Integer.toString(noteId),
+                        Integer.toString(DatabaseConstants.FirebaseCodes.NEEDS_ADDITION)},
+                null, null, null
+        )){
+            return addition.moveToFirst() ? addition.getString(0) : null;
+        }
+    }
+
+    /**
+     * Асинхронно загружает название блокнота с данным notepadId.
+     * @param callback получит название или null, если блокнота с таким id нет.
+     */
+    public StorageCall<String> getNotepadTitleByIdAsync(final int notepadId, Callback<String> callback) {
+        return submitRead(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    return getNotepadTitleById(notepadId);
+                }
+                catch (NoSuchNotepadException ex) {
+                    Log.e("Getting notepad title", ex.getMessage(), ex);
+                    return null;
+                }
+            }
+        }, callback);
+    }
+
+    private String getNotepadTitleById(int notepadId) throws NoSuchNotepadException {
+        Notepad cachedNotepad = mCache.getNotepad(notepadId);
+        if (cachedNotepad != null) {
+            return cachedNotepad.getTitle();
+        }
+        try (Cursor cursor = mDatabase.query(
+                DatabaseConstants.Notepads.TABLE_NAME,
+                new String[]{DatabaseConstants.Notepads.Columns.TITLE},
+                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
+                new String[]{Integer.toString(notepadId)},
+                null, null, null)){
+            if (cursor.getCount() < 1)
+                throw new NoSuchNotepadException("No notepad with id = " + notepadId);
+            cursor.moveToFirst();
+            return cursor.getString(cursor.getColumnIndex(DatabaseConstants.Notepads.Columns.TITLE));
+        }
+    }
+
+    /**
+     * Асинхронно загружает заметку с данным noteId целиком, вместе с текстом.
+     * @param callback получит заметку или null, если заметки с таким id нет.
+     */
+    public StorageCall<Note> getNoteByIdAsync(final int noteId, Callback<Note> callback) {
+        return submitRead(new Callable<Note>() {
+            @Override
+            public Note call() {
+                return getNoteById(noteId);
+            }
+        }, callback);
+    }
+
+    private Note getNoteById(int noteId) {
+        Note cachedNote = mCache.getNote(noteId);
+        if (cachedNote != null) {
+            return cachedNote;
+        }
+        long cacheVersion = mCache.getVersion();
+        try (StorageKeeperCursorWrapper cursorWrapper = new StorageKeeperCursorWrapper(mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                null,
+                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                new String[]{Integer.toString(noteId)},
+                null, null, null))) {
+            if (!cursorWrapper.moveToFirst()) {
+                Log.e("Getting note", "No note with id = " + noteId);
+                return null;
+            }
+            Note note = cursorWrapper.parseNote();
+            mCache.putNoteIfUnchanged(note, cacheVersion);
+            return note;
+        }
+    }
+
+    /**
+     * @return хранится ли текст заметки сжатым (TextFormats.DEFLATE). Для отсутствующей заметки - false.
+     */
+    private boolean isNoteTextCompressed(int noteId) {
+        try (Cursor cursor = mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                new String[]{DatabaseConstants.Notes.Columns.TEXT_FORMAT},
+                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                new String[]{Integer.toString(noteId)},
+                null, null, null)) {
+            return cursor.moveToFirst() && cursor.getInt(0) == DatabaseConstants.TextFormats.DEFLATE;
+        }
+    }
+
+    /**
+     * @return id блокнота, в котором сейчас лежит заметка, или StorageChange.NO_ID, если заметки нет.
+     */
+    private int getNoteNotepadId(int noteId) {
+        try (Cursor cursor = mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                new String[]{DatabaseConstants.Notes.Columns.NOTEPAD_ID},
+                DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                new String[]{Integer.toString(noteId)},
+                null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getInt(0) : StorageChange.NO_ID;
+        }
+    }
+
+    /**
+     * Асинхронно загружает одну строку списка заметок. Нужен, чтобы после изменения заметки обновить в списке только ее.
+     * @param callback получит строку или null, если заметки с таким id нет.
+     */
+    public StorageCall<NoteListItem> getNoteListItemByIdAsync(final int noteId, Callback<NoteListItem> callback) {
+        return submitRead(new Callable<NoteListItem>() {
+            @Override
+            public NoteListItem call() {
+                return getNoteListItemById(noteId);
+            }
+        }, callback);
+    }
+
+    private NoteListItem getNoteListItemById(int noteId) {
+        try (StorageKeeperCursorWrapper cursorWrapper = new StorageKeeperCursorWrapper(mDatabase.rawQuery(
+                SELECT_NOTE_LIST_ITEMS + " WHERE " + DatabaseConstants.Notes.TABLE_NAME + "." +
+                        DatabaseConstants.Notes.Columns.NOTE_ID + " = ?",
+                new String[]{Integer.toString(noteId)}))) {
+            return cursorWrapper.moveToFirst() ? cursorWrapper.parseNoteListItem() : null;
+        }
+    }
+
+    /**
+     * Дайджест корзины блокнота так, как ее видит SQLite: заметки, у которых уже есть ключ firebase и дайджест
+     * (те же, что кладет в снимок readLocalNoteDigests).
+     * @param addedNoteKey ключ добавляемой заметки, который в SQLite еще не записан, или null.
+     */
+    private long getLocalBucketDigest(int notepadId, String notepadKey, String addedNoteKey, long addedNoteDigest) {
+        NoteDigests.Snapshot bucket = new NoteDigests.Snapshot();
+        try (Cursor notes = mDatabase.query(
+                DatabaseConstants.Notes.TABLE_NAME,
+                new String[]{DatabaseConstants.Notes.Columns.FIREBASE_ID, DatabaseConstants.Notes.Columns.CONTENT_DIGEST},
+                DatabaseConstants.Notes.Columns.NOTEPAD_ID + " = ? AND " + DatabaseConstants.Notes.Columns.FIREBASE_ID + " IS NOT NULL AND " +
+                        DatabaseConstants.Notes.Columns.CONTENT_DIGEST + " IS NOT NULL",
+                new String[]{Integer.toString(notepadId)},
+                null, null, null
+        )){
+            while (notes.moveToNext()) {
+                if (!bucket.contains(notes.getString(0))) {
+                    bucket.put(notepadKey, notes.getString(0), notes.getLong(1));
+                }
+            }
+        }
+        if (addedNoteKey != null && !bucket.contains(addedNoteKey)) {
+            bucket.put(notepadKey, addedNoteKey, addedNoteDigest);
+        }
+        return bucket.getBucketDigest(notepadKey);
+    }
+
+    /**
+     * @return локальный id блокнота с ключом firebase notepadKey или null, если такого блокнота в SQLite нет.
+     */
+    private Integer getNotepadIdByFirebaseKey(String notepadKey) {
+        try (Cursor notepads = mDatabase.query(
+                DatabaseConstants.Notepads.TABLE_NAME,
+                new String[]{DatabaseConstants.Notepads.Columns.NOTEPAD_ID},
+                DatabaseConstants.Notepads.Columns.FIREBASE_ID + " = ?",
+                new String[]{notepadKey},
+                null, null, null, "1"
+        )){
+            return notepads.moveToFirst() ? notepads.getInt(0) : null;
+        }
+    }
+
+    private Cursor getCursorByNotepadId(int notepadId) {
+        return mDatabase.query(
+                DatabaseConstants.Notepads.TABLE_NAME,
+                null,
+                DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = ? ",
+                new String[]{Integer.toString(notepadId)},
+                null, null, null
+        );
+    }
+
+    private String getFirebaseNotepadKeyByCursor(Cursor notepadCursor) {
+        notepadCursor.moveToFirst();
+        String firebaseNotepadKey = notepadCursor.getString(notepadCursor.getColumnIndex(DatabaseConstants.Notepads.Columns.FIREBASE_ID));
+        notepadCursor.close();
+        return firebaseNotepadKey;
+    }
+
+    private ContentValues parseNoteToContentValues(Note note) {
+        ContentValues values = new ContentValues();
+        values.put(DatabaseConstants.Notes.Columns.NOTEPAD_ID, note.getNotepadId());
+        values.put(DatabaseConstants.Notes.Columns.CREATOR_ID, note.getCreatorId());
+        values.put(DatabaseConstants.Notes.Columns.TITLE, note.getTitle());
+        putNoteText(values, note.getText());
+        values.put(DatabaseConstants.Notes.Columns.CREATION_DATE, note.getCreationDate().getTime());
+        values.put(DatabaseConstants.Notes.Columns.MODIFIED_AT, System.currentTimeMillis());
+        values.put(DatabaseConstants.Notes.Columns.CONTENT_DIGEST, getNoteDigest(note));
+        if (note.getFirebaseId() != null) {
+            values.put(DatabaseConstants.Notes.Columns.FIREBASE_ID, note.getFirebaseId());
+            values.put(DatabaseConstants.Notes.Columns.FIREBASE_STATUS, note.getFirebaseStatus());
+        }
+        return values;
+    }
+
+    /**
+     * То же, что parseNoteToContentValues, но только с колонками измененных полей (см. Note.getModifiedFields).
+     * Если заметка не знает, что в ней изменилось, пишутся все колонки.
+     */
+    private ContentValues parseModifiedNoteFieldsToContentValues(Note note) {
+        int modifiedFields = note.getModifiedFields();
+        if (modifiedFields == 0) {
+            return parseNoteToContentValues(note);
+        }
+        ContentValues values = new ContentValues();
+        if ((modifiedFields & Note.FIELD_NOTEPAD) != 0) {
+            values.put(DatabaseConstants.Notes.Columns.NOTEPAD_ID, note.getNotepadId());
+        }
+        if ((modifiedFields & Note.FIELD_TITLE) != 0) {
+            values.put(DatabaseConstants.Notes.Columns.TITLE, note.getTitle());
+        }
+        if ((modifiedFields & Note.FIELD_TEXT) != 0) {
+            putNoteText(values, note.getText());
+        }
+        if ((modifiedFields & (Note.FIELD_TITLE | Note.FIELD_TEXT)) != 0) {
+            values.put(DatabaseConstants.Notes.Columns.CONTENT_DIGEST, getNoteDigest(note));
+        }
+        values.put(DatabaseConstants.Notes.Columns.MODIFIED_AT, System.currentTimeMillis());
+        return values;
+    }
+
+    private static long getNoteDigest(Note note) {
+        return NoteDigests.ofNote(note.getTitle(), note.getText(), note.getCreationDate().getTime());
+    }
+
+    /**
+     * Кладет текст заметки (сжатый, если нужно, см. NoteTextCodec), его формат, несжатый размер и превью.
+     */
+    private void putNoteText(ContentValues values, String text) {
+        byte[] textBytes = mCompressLargeTexts ? NoteTextCodec.getBytesIfCompressible(text) : null;
+        if (textBytes != null) {
+            values.put(DatabaseConstants.Notes.Columns.TEXT, NoteTextCodec.compress(textBytes));
+            values.put(DatabaseConstants.Notes.Columns.TEXT_FORMAT, DatabaseConstants.TextFormats.DEFLATE);
+            values.put(DatabaseConstants.Notes.Columns.TEXT_LENGTH, textBytes.length);
+        } else {
+            values.put(DatabaseConstants.Notes.Columns.TEXT, text);
+            values.put(DatabaseConstants.Notes.Columns.TEXT_FORMAT, DatabaseConstants.TextFormats.PLAIN);
+            values.put(DatabaseConstants.Notes.Columns.TEXT_LENGTH, NoteTextCodec.getUtf8Length(text));
+        }
+        values.put(DatabaseConstants.Notes.Columns.PREVIEW, NotePreviewHelper.makeTextPreview(text));
+    }
+
+    private ContentValues parseNotepadToContentValues(Notepad notepad) {
+        ContentValues values = new ContentValues();
+        values.put(DatabaseConstants.Notepads.Columns.CREATOR_ID, notepad.getCreatorId());
+        values.put(DatabaseConstants.Notepads.Columns.TITLE, notepad.getTitle());
+        values.put(DatabaseConstants.Notepads.Columns.CREATION_DATE, notepad.getCreationDate().getTime());
+        values.put(DatabaseConstants.Notepads.Columns.MODIFIED_AT, System.currentTimeMillis());
+        if (notepad.getFirebaseId() != null) {
+            values.put(DatabaseConstants.Notepads.Columns.FIREBASE_ID, notepad.getFirebaseId());
+            values.put(DatabaseConstants.Notepads.Columns.FIREBASE_STATUS, notepad.getFirebaseStatus());
+        }
+        return values;
+    }
+
+    //записи статуса и firebase id вызываются из лиснеров Firebase (в главном потоке) сотнями подряд, поэтому они идут
+    //мелкими записями писателя и коммитятся пачками. Значения фиксируются в момент вызова: объект к моменту записи может измениться.
+
+    private void changeNoteFirebaseStatus(Note note, final int newStatus) {
+        note.setFirebaseStatus(newStatus);
+        final int noteId = note.getId();
+        final String firebaseId = note.getFirebaseId();
+        mWriter.executeBatched(new Runnable() {
+            @Override
+            public void run() {
+                mStatements.executeUpdateDelete(UPDATE_NOTE_FIREBASE_STATUS, newStatus, noteId);
+                mCache.updateNoteFirebaseState(noteId, firebaseId, newStatus);
+                mCache.invalidateQueries();
+            }
+        });
+    }
+
+    private void changeNotepadFirebaseStatus(Notepad notepad, final int newStatus) {
+        notepad.setFirebaseStatus(newStatus);
+        final int notepadId = notepad.getId();
+        final String firebaseId = notepad.getFirebaseId();
+        mWriter.executeBatched(new Runnable() {
+            @Override
+            public void run() {
+                mStatements.executeUpdateDelete(UPDATE_NOTEPAD_FIREBASE_STATUS, newStatus, notepadId);
+                mCache.updateNotepadFirebaseState(notepadId, firebaseId, newStatus);
+                mCache.invalidateQueries();
+            }
+        });
+    }
+
+    private void updateNotepadFirebaseIdInSQLite(Notepad notepad) {
+        final int notepadId = notepad.getId();
+        final String firebaseId = notepad.getFirebaseId();
+        final int firebaseStatus = notepad.getFirebaseStatus();
+        mWriter.executeBatched(new Runnable() {
+            @Override
+            public void run() {
+                mStatements.executeUpdateDelete(UPDATE_NOTEPAD_FIREBASE_ID, firebaseId, notepadId);
+                mCache.updateNotepadFirebaseState(notepadId, firebaseId, firebaseStatus);
+                mCache.invalidateQueries();
+            }
+        });
+    }
+
+    private void updateNoteFirebaseIdInSQLite(Note note) {
+        final int noteId = note.getId();
+        final String firebaseId = note.getFirebaseId();
+        final int firebaseStatus = note.getFirebaseStatus();
+        mWriter.executeBatched(new Runnable() {
+            @Override
+            public void run() {
+                mStatements.executeUpdateDelete(UPDATE_NOTE_FIREBASE_ID, firebaseId, noteId);
+                mCache.updateNoteFirebaseState(noteId, firebaseId, firebaseStatus);
+                mCache.invalidateQueries();
+            }
+        });
+    }
+
+    //Все запросы к firebase идут через outbox: изменение записывается туда в транзакции самого изменения (recordOutboxEntry),
+    //а после коммита ставится в очередь FirebaseScheduler (scheduleOutboxEntry). Ключ операции - сущность, которую она меняет,
+    //так что запросы к одной заметке идут по порядку (удаление не обгонит добавление), а заметка вдобавок ждет свой блокнот.
+
+    /**
+     * Записывает изменение в outbox. Вызывается в потоке писателя, внутри транзакции самого изменения:
+     * если она откатится, откатится и строка outbox.
+     * @param firebaseId ключ сущности в firebase. Для добавления можно передать null - ключ сгенерируется здесь,
+     *                   и повторная отправка после перезапуска запишет заметку по тому же ключу, а не создаст вторую.
+     * @return строка outbox. Ставить ее в очередь (scheduleOutboxEntry) можно только после коммита.
+     */
+    private OutboxEntry recordOutboxEntry(int entityType, int entityId, int notepadId, int operation, String firebaseId, int modifiedFields) {
+        if (operation == DatabaseConstants.FirebaseCodes.NEEDS_ADDITION && firebaseId == null) {
+            firebaseId = mFirebaseBatcher.newKey();
+        }
+        String firebaseUserId = mCurrentUserFirebaseId;
+        long id = mStatements.executeInsert(DatabaseHelper.INSERT_OUTBOX_ENTRY, entityType, entityId, notepadId, operation,
+                firebaseUserId, firebaseId, modifiedFields);
+        if (id < 0) {
+            //без строки outbox изменение никогда не дойдет до firebase, так что пусть лучше откатится все.
+            throw new IllegalStateException("couldn't add entity " + entityId + " (type " + entityType + ") to outbox");
+        }
+        if (firebaseUserId == null) {
+            //никто не вошел: строка дождется входа владельца сущности.
+            mStatements.executeUpdateDelete(FILL_OUTBOX_USER_ID, id);
+        }
+        return new OutboxEntry(id, entityType, entityId, notepadId, operation, firebaseUserId, firebaseId, modifiedFields);
+    }
+
+    /**
+     * Ставит строку outbox в очередь FirebaseScheduler, если ее там еще нет.
+     * @return false, если строка уже стоит в очереди.
+     */
+    private boolean scheduleOutboxEntry(final OutboxEntry entry) {
+        synchronized (mScheduledOutboxIds) {
+            if (!mScheduledOutboxIds.add(entry.mId)) {
+                return false;
+            }
+        }
+        String key;
+        String[] dependencyKeys = {};
+        if (entry.mEntityType == DatabaseConstants.Outbox.ENTITY_NOTEPAD) {
+            key = FirebaseScheduler.notepadKey(entry.mEntityId);
+        } else if (entry.mEntityId != 0) {
+            key = FirebaseScheduler.noteKey(entry.mEntityId);
+            if (entry.mNotepadId != 0) {
+                //если заметку перенесли, ждать нужно блокнот, в который ее перенесли: нам нужен его firebaseId.
+                dependencyKeys = new String[]{FirebaseScheduler.notepadKey(entry.mNotepadId)};
+            }
+        } else {
+            //удаление, перенесенное из deleted_notes: заметки уже нет, ждать некого.
+            key = FirebaseScheduler.outboxEntryKey(entry.mId);
+        }
+        mFirebaseScheduler.submit(key, new FirebaseScheduler.Operation() {
+            @Override
+            public void start(final Runnable done) {
+                Runnable finished = new Runnable() {
+                    @Override
+                    public void run() {
+                        onOutboxEntryFinished(entry);
+                        done.run();
+                    }
+                };
+                try {
+                    sendOutboxEntry(entry, finished);
+                }
+                catch (RuntimeException ex) {
+                    //строка остается в outbox и уйдет со следующим проходом.
+                    Log.e("Outbox", entry + ": " + ex.getMessage(), ex);
+                    finished.run();
+                }
+            }
+        }, dependencyKeys);
+        return true;
+    }
+
+    private void onOutboxEntryFinished(OutboxEntry entry) {
+        boolean drainMore;
+        synchronized (mScheduledOutboxIds) {
+            mScheduledOutboxIds.remove(entry.mId);
+            drainMore = mScheduledOutboxIds.isEmpty() && mOutboxDrainCursor >= 0;
+        }
+        if (drainMore) {
+            drainOutbox(true);
+        }
+    }
+
+    /**
+     * Ставит в очередь на отправку в firebase все, что лежит в outbox. Вызывается сам при старте, при восстановлении
+     * связи с firebase, после импорта и синхронизации. Строки, которые уже стоят в очереди, пропускаются, так что
+     * вызывать его лишний раз не страшно.
+     */
+    public void drainOutbox() {
+        drainOutbox(false);
+    }
+
+    /**
+     * @param continuePrevious продолжить проход, который уперся в OUTBOX_DRAIN_LIMIT, с того места, где он остановился.
+     */
+    private void drainOutbox(final boolean continuePrevious) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    awaitDatabase();
+                    drainOutboxInWriter(continuePrevious);
+                }
+                catch (RuntimeException ex) {
+                    Log.e("Outbox", ex.getMessage(), ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Идет по outbox в порядке записи и ставит строки в очередь, пока не поставит OUTBOX_DRAIN_LIMIT.
+     * Выполняется в потоке писателя: ключи для старых добавлений пишутся в outbox до того, как добавления уйдут.
+     */
+    private void drainOutboxInWriter(boolean continuePrevious) {
+        long afterId;
+        synchronized (mScheduledOutboxIds) {
+            afterId = continuePrevious ? mOutboxDrainCursor : 0;
+            mOutboxDrainCursor = -1;
+        }
+        if (afterId < 0) {
+            return; //продолжать нечего: проход уже дошел до конца.
+        }
+        int scheduledCount = 0;
+        List<OutboxEntry> page;
+        while (!(page = readOutboxPage(afterId)).isEmpty()) {
+            for (OutboxEntry entry : page) {
+                afterId = entry.mId;
+                if (entry.mOperation == DatabaseConstants.FirebaseCodes.NEEDS_ADDITION && entry.mFirebaseId == null) {
+                    //строка перенесена миграцией из статусов. ключ сохраняется до отправки, чтобы повтор писал по тому же ключу.
+                    entry = entry.withFirebaseId(mFirebaseBatcher.newKey());
+                    mStatements.executeUpdateDelete(UPDATE_OUTBOX_FIREBASE_ID, entry.mFirebaseId, entry.mId);
+                }
+                if (scheduleOutboxEntry(entry) && ++scheduledCount == OUTBOX_DRAIN_LIMIT) {
+                    synchronized (mScheduledOutboxIds) {
+                        if (!mScheduledOutboxIds.isEmpty()) {
+                            //остальное поставит onOutboxEntryFinished, когда эти закончатся.
+                            mOutboxDrainCursor = afterId;
+                            return;
+                        }
+                    }
+                    //все уже успели закончиться, так что продолжаем сами.
+                    scheduledCount = 0;
+                }
+            }
+        }
+    }
+
+    private List<OutboxEntry> readOutboxPage(long afterId) {
+        List<OutboxEntry> page = new ArrayList<>(OUTBOX_PAGE_SIZE);
+        try (Cursor cursor = mDatabase.query(
+                DatabaseConstants.Outbox.TABLE_NAME,
+                new String[]{DatabaseConstants.Outbox.Columns.ID, DatabaseConstants.Outbox.Columns.ENTITY_TYPE,
+                        DatabaseConstants.Outbox.Columns.ENTITY_ID, DatabaseConstants.Outbox.Columns.NOTEPAD_ID,
+                        DatabaseConstants.Outbox.Columns.OPERATION, DatabaseConstants.Outbox.Columns.FIREBASE_USER_ID,
+                        DatabaseConstants.Outbox.Columns.FIREBASE_ID, DatabaseConstants.Outbox.Columns.MODIFIED_FIELDS},
+                DatabaseConstants.Outbox.Columns.ID + " > ?",
+                new String[]{Long.toString(afterId)},
+                null, null,
+                DatabaseConstants.Outbox.Columns.ID,
+                Integer.toString(OUTBOX_PAGE_SIZE))) {
+            while (cursor.moveToNext()) {
+                page.add(new OutboxEntry(cursor.getLong(0), cursor.getInt(1), cursor.getInt(2), cursor.getInt(3),
+                        cursor.getInt(4), cursor.getString(5), cursor.getString(6), cursor.getInt(7)));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Строку, которую отправлять больше не нужно (сущность удалена или уже в firebase), просто удаляет из outbox.
+     */
+    private void removeOutboxEntry(final OutboxEntry entry) {
+        mWriter.executeBatched(new Runnable() {
+            @Override
+            public void run() {
+                mStatements.executeUpdateDelete(DELETE_OUTBOX_ENTRY, entry.mId);
+            }
+        });
+    }
+
+    /**
+     * Отправляет строку outbox в firebase. Вызывается в потоке FirebaseScheduler.
+     * @param done вызывается, когда ответ firebase записан в SQLite (вместе с удалением строки из outbox), или сразу,
+     *             если отправлять нечего или пока нельзя (тогда строка остается в outbox).
+     */
+    private void sendOutboxEntry(OutboxEntry entry, Runnable done) {
+        String firebaseUserId = entry.mFirebaseUserId;
+        if (firebaseUserId == null) {
+            //чужие данные в текущего пользователя не отправляем. строку заберет ее владелец, когда войдет (см. getUserIdByEmail).
+            Log.e("Outbox", entry + ": owner hasn't signed in yet, not sent.");
+            done.run();
+            return;
+        }
+        if (entry.mEntityType == DatabaseConstants.Outbox.ENTITY_NOTEPAD) {
+            if (entry.mOperation == DatabaseConstants.FirebaseCodes.NEEDS_ADDITION) {
+                addNotepadToFirebase(firebaseUserId, entry, done);
+            } else {
+                updateNotepadInFirebase(firebaseUserId, entry, done);
+            }
+        } else if (entry.mOperation == DatabaseConstants.FirebaseCodes.NEEDS_ADDITION) {
+            addNoteToFirebase(firebaseUserId, entry, done);
+        } else if (entry.mOperation == DatabaseConstants.FirebaseCodes.NEEDS_UPDATE) {
+            updateNoteInFirebase(firebaseUserId, entry, done);
+        } else {
+            deleteNoteFromFirebase(firebaseUserId, entry, done);
+        }
+    }
+
+    private Notepad getNotepadById(int notepadId) {
+        try (StorageKeeperCursorWrapper cursorWrapper = new StorageKeeperCursorWrapper(getCursorByNotepadId(notepadId))) {
+            return cursorWrapper.moveToFirst() ? cursorWrapper.parseNotepad() : null;
+        }
+    }
+
+    /**
+     * Задает, сколько запросов к firebase может выполняться одновременно (по умолчанию FirebaseScheduler.DEFAULT_IN_FLIGHT_LIMIT).
+     * 1 - старое поведение, все запросы строго по одному (и каждый своей пачкой).
+     */
+    public void setFirebaseInFlightLimit(int limit) {
+        mFirebaseScheduler.setInFlightLimit(limit);
+    }
+
+    /**
+     * Записывает в SQLite результат пачки firebase: статусы и firebaseId всех ее изменений - одной транзакцией.
+     * Операции заканчиваются (и стартуют зависимые от них) только после коммита: зависимые читают firebaseId из SQLite.
+     * @param success применил ли firebase пачку. Если нет, в SQLite ничего не пишется.
+     */
+    private void applyFirebaseBatchResult(final List<FirebaseBatcher.Change> changes, final boolean success) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (success) {
+                        awaitDatabase();
+                        //в потоке писателя мелкие записи выполняются сразу, так что все они попадают в эту транзакцию.
+                        mDatabase.beginTransactionNonExclusive();
+                        try {
+                            for (FirebaseBatcher.Change change : changes) {
+                                if (change.mOnCommitted != null) {
+                                    change.mOnCommitted.run();
+                                }
+                            }
+                            mDatabase.setTransactionSuccessful();
+                        }
+                        finally {
+                            mDatabase.endTransaction();
+                            mCache.invalidateQueries();
+                        }
+                    }
+                }
+                catch (RuntimeException ex) {
+                    //изменения в firebase уже есть, а строки остались в outbox: следующий проход отправит их еще раз, это безопасно.
+                    Log.e("Firebase batch", ex.getMessage(), ex);
+                }
+                finally {
+                    for (FirebaseBatcher.Change change : changes) {
+                        change.mOnFinished.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return путь от корня firebase, например uid/notes/key.
+     */
+    private static String firebasePath(String... segments) {
+        return TextUtils.join("/", segments);
+    }
+
+    /**
+     * Добавляет блокнот в базу данных firebase.
+     * @param entry строка outbox с добавлением. Блокнот читается из SQLite, ключ для него уже сгенерирован.
+     */
+    private void addNotepadToFirebase(String firebaseUserId, final OutboxEntry entry, Runnable done) {
+        final Notepad notepad = getNotepadById(entry.mEntityId);
+        //блокнот мог уже уйти в firebase: например, ответ firebase записан, а строку повторили раньше, чем ее удаление закоммитилось.
+        if (notepad == null || notepad.getFirebaseId() != null) {
+            Log.d("adding notepad to FB", entry + ": nothing to add.");
+            removeOutboxEntry(entry);
+            done.run();
+            return;
+        }
+        Log.d("adding notepad to FB", "addition queued, thread = " + Thread.currentThread() + ", notepad = " + notepad);
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(firebasePath(firebaseUserId, DatabaseConstants.Notepads.TABLE_NAME, entry.mFirebaseId), parseNotepadToMap(notepad));
+        mFirebaseBatcher.add(new FirebaseBatcher.Change(updates, new Runnable() {
+            @Override
+            public void run() {
+                Log.d("New notepad added", "key = " + entry.mFirebaseId);
+                notepad.setFirebaseId(entry.mFirebaseId);
+                changeNotepadFirebaseStatus(notepad, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                updateNotepadFirebaseIdInSQLite(notepad);
+                mStatements.executeUpdateDelete(DELETE_OUTBOX_ENTRY, entry.mId);
+            }
+        }, done));
+    }
+
+    //Важное замечание.
+    //Раньше, если отключить интернет, создать заметку, закрыть приложение, включить интернет и открыть приложение, заметка терялась:
+    //она сохранялась в SQLite, но firebase о ней не узнавал никогда, потому что запрос к нему жил только в памяти.
+    //Теперь запрос сначала записывается в outbox, в той же транзакции, что и заметка, и уходит при следующем старте.
+    //TODO: как насчет добавления во ViewHolder'ы индикатора синхронизированности? Какой-нибудь логотип напротив данных о заметке (и блокноте тоже.)
+
+    /**
+     * Добавляет заметку в базу данных firebase.
+     * @param firebaseUserId уникальный идентификатор пользователя, который генерирует firebase.
+     *                   {@link} https://firebase.google.com/docs/reference/android/com/google/firebase/auth/FirebaseUser.html#getUid()
+     * @param entry строка outbox с добавлением. Заметка читается из SQLite, ключ для нее уже сгенерирован.
+     */
+    private void addNoteToFirebase(String firebaseUserId, final OutboxEntry entry, Runnable done) {
+        final Note note = getNoteById(entry.mEntityId);
+        if (note == null || note.getFirebaseId() != null) {
+            //заметку уже удалили (удаление стоит в outbox следом) или она уже в firebase.
+            Log.d("adding note to FB", entry + ": nothing to add.");
+            removeOutboxEntry(entry);
+            done.run();
+            return;
+        }
+        Log.d("adding note to FB", "addition queued, thread = " + Thread.currentThread() + ", note = " + note);
+        note.setFirebaseNotepadId(getFirebaseNotepadKeyByCursor(getCursorByNotepadId(note.getNotepadId())));
+        if (note.getFirebaseNotepadId() == null) {
+            //добавление блокнота не удалось. заметка без блокнота в firebase никому не нужна: она остается в outbox.
+            Log.e("adding note to FB", "notepad of " + note + " is not in firebase, note is not sent.");
+            done.run();
+            return;
+        }
+
+        Map<String, Object> updates = new HashMap<>();
+        updates.put(firebasePath(firebaseUserId, DatabaseConstants.Notes.TABLE_NAME, entry.mFirebaseId), parseNoteToMap(note));
+        updates.put(firebasePath(firebaseUserId, FIREBASE_NOTE_DIGESTS, entry.mFirebaseId), parseNoteToDigestMap(note));
+        //ключ заметки в SQLite запишется только после ответа firebase, так что в корзину она добавляется явно.
+        updates.put(firebasePath(firebaseUserId, FIREBASE_NOTEPAD_DIGESTS, note.getFirebaseNotepadId()), parseBucketDigestToMap(
+                getLocalBucketDigest(note.getNotepadId(), note.getFirebaseNotepadId(), entry.mFirebaseId, getNoteDigest(note))));
+        mFirebaseBatcher.add(new FirebaseBatcher.Change(updates, new Runnable() {
+            @Override
+            public void run() {
+                Log.d("New note added", "key = " + entry.mFirebaseId);
+                note.setFirebaseId(entry.mFirebaseId);
+                updateNoteFirebaseIdInSQLite(note);
+                changeNoteFirebaseStatus(note, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                mStatements.executeUpdateDelete(DELETE_OUTBOX_ENTRY, entry.mId);
+            }
+        }, done));
+    }
+
+    private void deleteNoteFromFirebase(final String firebaseUserId, final OutboxEntry entry, final Runnable done) {
+        if (entry.mFirebaseId == null) {
+            removeOutboxEntry(entry);
+            done.run();
+            return;
+        }
+        //дайджест корзины пересчитывается уже без заметки, а ее блокнот в SQLite не найти: заметки там нет.
+        //ключ блокнота берется из строки индекса - так удаление попадет в ту корзину, где заметка лежит в firebase.
+        mBackend.read(firebasePath(firebaseUserId, FIREBASE_NOTE_DIGESTS, entry.mFirebaseId, FIREBASE_DIGEST_NOTEPAD), null, null, null,
+                new FirebaseBackend.ReadListener() {
+            @Override
+            public void onRead(final Object notepadKey, String errorMessage) {
+                if (errorMessage != null) {
+                    //строка остается в outbox и уйдет со следующим проходом.
+                    done.run();
+                    return;
+                }
+                //ответ приходит в главном потоке, а корзина читается из SQLite.
+                mReadExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sendNoteDeletion(firebaseUserId, entry, notepadKey instanceof String ? (String) notepadKey : null, done);
+                        }
+                        catch (RuntimeException ex) {
+                            Log.e("Outbox", entry + ": " + ex.getMessage(), ex);
+                            done.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param notepadKey ключ блокнота, в котором заметка лежит в firebase, или null, если строки индекса у нее нет.
+     */
+    private void sendNoteDeletion(String firebaseUserId, final OutboxEntry entry, String notepadKey, Runnable done) {
+        Map<String, Object> updates = new HashMap<>();
+        //null в многопутевом updateChildren удаляет путь. удалить уже удаленное можно сколько угодно раз.
+        updates.put(firebasePath(firebaseUserId, DatabaseConstants.Notes.TABLE_NAME, entry.mFirebaseId), null);
+        updates.put(firebasePath(firebaseUserId, FIREBASE_NOTE_DIGESTS, entry.mFirebaseId), null);
+        if (notepadKey != null) {
+            //отметку корзины нужно сдвинуть, даже если блокнота у нас нет: иначе другие устройства не увидят удаления.
+            Integer notepadId = getNotepadIdByFirebaseKey(notepadKey);
+            updates.put(firebasePath(firebaseUserId, FIREBASE_NOTEPAD_DIGESTS, notepadKey),
+                    parseBucketDigestToMap(notepadId == null ? null : getLocalBucketDigest(notepadId, notepadKey, null, 0)));
+        }
+        mFirebaseBatcher.add(new FirebaseBatcher.Change(updates, new Runnable() {
+            @Override
+            public void run() {
+                Log.d("delete notepad from FB", "note deleted from firebase.");
+                mStatements.executeUpdateDelete(DELETE_OUTBOX_ENTRY, entry.mId);
+            }
+        }, done));
+    }
+
+    private void updateNoteInFirebase(String firebaseUserId, final OutboxEntry entry, Runnable done) {
+        final Note note = getNoteById(entry.mEntityId);
+        if (note == null) {
+            //заметку уже удалили, удаление стоит в outbox следом.
+            removeOutboxEntry(entry);
+            done.run();
+            return;
+        }
+        if (note.getFirebaseId() == null) {
+            //добавление заметки не удалось, обновлять в firebase нечего. строка остается в outbox.
+            Log.e("updating note in FB", note + " is not in firebase, update is not sent.");
+            done.run();
+            return;
+        }
+        int modifiedFields = entry.mModifiedFields;
+        //ключ блокнота нужен всегда: его хранит индекс дайджестов.
+        note.setFirebaseNotepadId(getFirebaseNotepadKeyByCursor(getCursorByNotepadId(note.getNotepadId())));
+
+        //если известно, что изменилось, отправляем только эти ключи: перенос большой заметки в другой блокнот - это один короткий ключ, а не весь текст.
+        //значения берутся из SQLite на момент отправки, так что повтор строки отправит то же самое.
+        Map<String, Object> updates = new HashMap<>();
+        if (modifiedFields == 0) {
+            updates.put(firebasePath(firebaseUserId, DatabaseConstants.Notes.TABLE_NAME, note.getFirebaseId()), parseNoteToMap(note));
+        } else {
+            for (Map.Entry<String, Object> field : parseModifiedNoteFieldsToMap(note, modifiedFields).entrySet()) {
+                updates.put(firebasePath(firebaseUserId, DatabaseConstants.Notes.TABLE_NAME, note.getFirebaseId(), field.getKey()), field.getValue());
+            }
+        }
+        updates.put(firebasePath(firebaseUserId, FIREBASE_NOTE_DIGESTS, note.getFirebaseId()), parseNoteToDigestMap(note));
+        //при переносе старая корзина остается со старыми дайджестом и отметкой. это безопасно: заметку все равно найдут
+        //через новую корзину, а несовпавший дайджест старой только заставит первую сверку прочитать ее строки индекса.
+        if (note.getFirebaseNotepadId() != null) {
+            updates.put(firebasePath(firebaseUserId, FIREBASE_NOTEPAD_DIGESTS, note.getFirebaseNotepadId()), parseBucketDigestToMap(
+                    getLocalBucketDigest(note.getNotepadId(), note.getFirebaseNotepadId(), null, 0)));
+        }
+        mFirebaseBatcher.add(new FirebaseBatcher.Change(updates, new Runnable() {
+            @Override
+            public void run() {
+                Log.d("Firebase update: done", note + " updated in firebase.");
+                changeNoteFirebaseStatus(note, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                mStatements.executeUpdateDelete(DELETE_OUTBOX_ENTRY, entry.mId);
+            }
+        }, done));
+    }
+
+    private void updateNotepadInFirebase(String firebaseUserId, final OutboxEntry entry, Runnable done) {
+        final Notepad notepad = getNotepadById(entry.mEntityId);
+        if (notepad == null) {
+            removeOutboxEntry(entry);
+            done.run();
+            return;
+        }
+        //todo: джедай, помни: все, что относится к firebase, должно происходить в методах, название которых кончается на -firebase, неужели так сложно запомнить?!
+        //firebaseId равен null, только если добавление блокнота не удалось: обновление стоит в очереди за добавлением (см. FirebaseScheduler).
+        if (notepad.getFirebaseId() == null) {
+            Log.e("updating notepad in FB", notepad + " is not in firebase, update is not sent.");
+            done.run();
+            return;
+        }
+
+        String notepadPath = firebasePath(firebaseUserId, DatabaseConstants.Notepads.TABLE_NAME, notepad.getFirebaseId());
+        //у блокнота меняется только название, так что если известно, что оно изменилось, отправляем только его.
+        Map<String, Object> updates = new HashMap<>();
+        if ((entry.mModifiedFields & Notepad.FIELD_TITLE) != 0) {
+            updates.put(firebasePath(notepadPath, DatabaseConstants.Notepads.Columns.TITLE), notepad.getTitle());
+            updates.put(firebasePath(notepadPath, DatabaseConstants.Notepads.Columns.MODIFIED_AT), ServerValue.TIMESTAMP);
+        } else {
+            updates.put(notepadPath, parseNotepadToMap(notepad));
+        }
+        mFirebaseBatcher.add(new FirebaseBatcher.Change(updates, new Runnable() {
+            @Override
+            public void run() {
+                Log.d("Firebase update: done", notepad + " updated in firebase.");
+                changeNotepadFirebaseStatus(notepad, DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+                mStatements.executeUpdateDelete(DELETE_OUTBOX_ENTRY, entry.mId);
+            }
+        }, done));
+    }
+
+    /**
+     * Применяет изменения блокнотов из firebase одной транзакцией и в ней же сдвигает отметку синхронизации,
+     * так что отметка никогда не уходит дальше того, что действительно записано в SQLite.
+     * Блокнот ищется по firebaseId. Если такого нет, но есть локальный с тем же названием и датой создания (Notepad.equals),
+     * это он и есть (так синхронизация сравнивала блокноты всегда). Если он еще не в firebase, ему записывается ключ из firebase,
+     * а его добавление из outbox удаляется в той же транзакции: иначе оно потом создало бы в firebase второй такой же блокнот.
+     * Остальные добавляются.
+     * Новое название из firebase записывается, только если у блокнота нет неотправленных изменений в outbox:
+     * иначе их отправка все равно перезапишет firebase.
+     * Если добавить блокнот не удалось, откатывается вся транзакция.
+     * Кэш и подписчики узнают о блокнотах только после коммита; если транзакция откатилась,
+     * затронутые блокноты из кэша выбрасываются.
+     * @return сколько блокнотов добавлено или переименовано.
+     */
+    private int applyFirebaseNotepadChanges(int userId, FirebaseNotepadChanges changes) {
+        List<Notepad> sqliteNotepadsList = getUserNotepadsAsList(userId);
+        Map<String, Notepad> sqliteNotepadsByFirebaseId = new HashMap<>();
+        for (Notepad notepad : sqliteNotepadsList) {
+            if (notepad.getFirebaseId() != null) {
+                sqliteNotepadsByFirebaseId.put(notepad.getFirebaseId(), notepad);
+            }
+        }
+        //блокноты, которые транзакция записала. В кэш они попадут, только если она закоммитится.
+        List<Notepad> touchedNotepads = new ArrayList<>();
+        boolean committed = false;
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < changes.mNotepads.size(); i++) {
+                Notepad firebaseNotepad = changes.mNotepads.get(i);
+                long modificationTime = changes.mModificationTimes.get(i) > 0 ? changes.mModificationTimes.get(i) : System.currentTimeMillis();
+                Notepad sqliteNotepad = sqliteNotepadsByFirebaseId.get(firebaseNotepad.getFirebaseId());
+                if (sqliteNotepad == null) {
+                    int sameNotepadIndex = sqliteNotepadsList.indexOf(firebaseNotepad);
+                    if (sameNotepadIndex >= 0) {
+                        Notepad sameNotepad = sqliteNotepadsList.get(sameNotepadIndex);
+                        if (sameNotepad.getFirebaseId() == null) {
+                            linkNotepadToFirebase(sameNotepad, firebaseNotepad.getFirebaseId(), modificationTime);
+                            sqliteNotepadsByFirebaseId.put(sameNotepad.getFirebaseId(), sameNotepad);
+                            touchedNotepads.add(sameNotepad);
+                            Log.d("Synchronization: SQLite", sameNotepad + " linked to its firebase copy.");
+                        }
+                        continue;
+                    }
+                    //у блокнота из firebase есть ключ, так что в outbox он не попадет.
+                    int notepadId = insertNotepad(firebaseNotepad, new ArrayList<OutboxEntry>(0));
+                    if (notepadId < 1) {
+                        throw new IllegalStateException("couldn't add " + firebaseNotepad + " to SQLite.");
+                    }
+                    mStatements.executeUpdateDelete(UPDATE_NOTEPAD_MODIFIED_AT, modificationTime, notepadId);
+                    touchedNotepads.add(firebaseNotepad);
+                    Log.d("Synchronization: SQLite", firebaseNotepad + " added to SQLite.");
+                } else if (!TextUtils.equals(sqliteNotepad.getTitle(), firebaseNotepad.getTitle())
+                        && !hasOutboxEntries(DatabaseConstants.Outbox.ENTITY_NOTEPAD, sqliteNotepad.getId())) {
+                    mStatements.executeUpdateDelete(UPDATE_NOTEPAD_TITLE_FROM_FIREBASE, firebaseNotepad.getTitle(),
+                            modificationTime, sqliteNotepad.getId());
+                    sqliteNotepad.setTitle(firebaseNotepad.getTitle());
+                    sqliteNotepad.clearModifiedFields(); //это не локальное изменение, отправлять его некуда.
+                    touchedNotepads.add(sqliteNotepad);
+                    Log.d("Synchronization: SQLite", sqliteNotepad + " renamed from firebase.");
+                }
+            }
+            mStatements.executeInsert(REPLACE_SYNC_HIGH_WATER_MARK, userId, DatabaseConstants.SyncState.COLLECTION_NOTEPADS,
+                    changes.mHighWaterMark);
+            mDatabase.setTransactionSuccessful();
+            committed = true;
+        }
+        finally {
+            mDatabase.endTransaction();
+            for (Notepad notepad : touchedNotepads) {
+                if (committed) {
+                    mCache.putNotepad(notepad);
+                } else {
+                    mCache.removeNotepad(notepad.getId());
+                }
+            }
+            mCache.invalidateQueries();
+        }
+        if (!touchedNotepads.isEmpty()) {
+            publishChange(StorageChange.Type.BATCH_APPLIED, StorageChange.NO_ID, StorageChange.NO_ID, StorageChange.NO_ID);
+        }
+        return touchedNotepads.size();
+    }
+
+    /**
+     * Записывает локальному блокноту, которого еще нет в firebase, ключ его копии из firebase и удаляет его добавление из outbox.
+     * Вызывается внутри транзакции applyFirebaseNotepadChanges, в кэш блокнот кладет она после коммита.
+     */
+    private void linkNotepadToFirebase(Notepad notepad, String firebaseId, long modificationTime) {
+        mStatements.executeUpdateDelete(UPDATE_NOTEPAD_FIREBASE_ID, firebaseId, notepad.getId());
+        mStatements.executeUpdateDelete(UPDATE_NOTEPAD_FIREBASE_STATUS, DatabaseConstants.FirebaseCodes.SYNCHRONIZED, notepad.getId());
+        mStatements.executeUpdateDelete(UPDATE_NOTEPAD_MODIFIED_AT, modificationTime, notepad.getId());
+        //если добавление уже стоит в очереди, addNotepadToFirebase увидит у блокнота ключ и ничего не отправит.
+        mStatements.executeUpdateDelete(DELETE_NOTEPAD_ADDITION_OUTBOX_ENTRIES, notepad.getId());
+        notepad.setFirebaseId(firebaseId);
+        notepad.setFirebaseStatus(DatabaseConstants.FirebaseCodes.SYNCHRONIZED);
+        notepad.clearModifiedFields();
+    }
+
+    private boolean hasOutboxEntries(int entityType, int entityId) {
+        try (Cursor entries = mDatabase.query(
+                DatabaseConstants.Outbox.TABLE_NAME,
+                new String[]{DatabaseConstants.Outbox.Columns.ID},
+                DatabaseConstants.Outbox.Columns.ENTITY_TYPE + " = ? AND " + DatabaseConstants.Outbox.Columns.ENTITY_ID + " = ?",
+                new String[]{Integer.toString(entityType), Integer.toString(entityId)},
+                null, null, null, "1"
+        )){
+            return entries.moveToFirst();
+        }
+    }
+
+    /**
+     * Применяет изменения одной операцией писателя и ждет ее окончания. Вызывается только в фоновом потоке, но не в потоке писателя.
+     * @return результат applyFirebaseNotepadChanges или null, если применить изменения не удалось.
+     */
+    private Integer applyFirebaseNotepadChangesInWriter(final int userId, final FirebaseNotepadChanges changes) {
+        try {
+            return submitWrite(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int appliedCount = applyFirebaseNotepadChanges(userId, changes);
+                    if (appliedCount > 0) {
+                        //после большой пачки записей переносим журнал сразу, пока он не разросся.
+                        checkpointWal();
+                    }
+                    return appliedCount;
+                }
+            }, null).get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.e("Synchronization: SQLite", ex.getMessage(), ex);
+            return null;
+        }
+        catch (ExecutionException ex) {
+            Log.e("Synchronization: SQLite", ex.getMessage(), ex);
+            return null;
+        }
+    }
 
-        List<Notepad> notepadsToAddToSQLite = new ArrayList<>(firebaseNotepadsList);
-        notepadsToAddToSQLite.removeAll(sqliteNotepadsList); //список для добавления готов
+    /**
+     * Синхронизирует блокноты пользователя с Firebase. Метод блокирующий (ждет ответа Firebase),
+     * поэтому вызывать его можно только в фоновом потоке.
+     */
+    public boolean synchronizeNotepads(int userLocalId) {
+        awaitDatabase();
+        long highWaterMark = getSyncHighWaterMark(userLocalId, DatabaseConstants.SyncState.COLLECTION_NOTEPADS);
+        FirebaseNotepadChanges changes = getNotepadChangesFromFirebase(userLocalId, highWaterMark);
+        if (changes.mFailed) {
+            return false;
+        }
+        //это не все блокноты из firebase, а только изменившиеся с прошлой синхронизации
+        Log.i("Synchronization: FB", changes.mNotepads.size() + " notepads changed in firebase since " + highWaterMark + ".");
 
-        Log.i("Synchronization: SQLite", notepadsToAddToSQLite.size() + " notepads need to be added to SQLite.");
-        Map<Notepad, Future<Integer>> additionResults = addNotepadsListToDatabase(notepadsToAddToSQLite);
+        Integer appliedCount = applyFirebaseNotepadChangesInWriter(userLocalId, changes);
+        if (appliedCount == null) {
+            return false;
+        }
+        Log.i("Synchronization: SQLite", appliedCount + " notepads were added or renamed in SQLite.");
 
-        //добавить все недостающие блокноты в firebase
+        //добавить все недостающие блокноты в firebase: все, что туда не дошло, лежит в outbox.
         //если у нас не получится, добавим в следующий раз. ничего страшного. в локальной БД сохранятся все изменения!
-        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-        for(final Notepad notepad : sqliteNotepadsList) {
-            if (notepad.getFirebaseStatus() == DatabaseConstants.FirebaseCodes.NEEDS_ADDITION) {
-                executor.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        addNotepadToFirebase(notepad);
+        drainOutbox();
+        //заметки сверяет synchronizeNotes.
+        return true;
+    }
+
+    /**
+     * Что сверка заметок решила изменить в SQLite.
+     */
+    private static final class NoteSyncPlan {
+        /**
+         * Заметки из firebase. У тех, что уже есть в SQLite, выставлен локальный id: они записываются поверх.
+         */
+        final List<Note> mDownloadedNotes = new ArrayList<>();
+        /**
+         * Ключи скачанных заметок, которых нет в индексе дайджестов. После записи в SQLite они отправляются в firebase заново:
+         * отправка допишет им строку индекса.
+         */
+        final Set<String> mNoteKeysToReindex = new HashSet<>();
+        /**
+         * Заметки, удаленные в firebase.
+         */
+        final List<Integer> mNoteIdsToDelete = new ArrayList<>();
+        final int mUserId;
+        /**
+         * Новая отметка сверки заметок (см. DatabaseConstants.SyncState.COLLECTION_NOTES). 0 - отметку не двигать.
+         */
+        long mHighWaterMark;
+
+        NoteSyncPlan(int userId) {
+            mUserId = userId;
+        }
+    }
+
+    /**
+     * Сверяет заметки пользователя с Firebase по дайджестам (см. NoteDigests) и переносит только то, что различается.
+     * Сначала из firebase читаются строки дайджестов корзин (FIREBASE_NOTEPAD_DIGESTS), изменившиеся с прошлой сверки
+     * (отметка COLLECTION_NOTES в sync_state). Не изменилось ничего - сверка на этом и заканчивается. У изменившихся блокнотов
+     * читаются строки индекса дайджестов (FIREBASE_NOTE_DIGESTS), и только их заметки сравниваются поштучно.
+     * Самая первая сверка читает все строки корзин и пропускает блокноты, у которых дайджест совпал с посчитанным по SQLite.
+     * Дальше решает только отметка, а не дайджест: дайджест считает писавшее устройство по своей SQLite, и если оно еще не
+     * получило чужого изменения, то запишет дайджест без него - ровно такой, как у другого отставшего устройства. Различающиеся заметки скачиваются из notes
+     * (см. downloadNotesFromFirebase):
+     * - заметка там есть - записывается в SQLite. Если ее нет в индексе (ее писала версия без индекса или индекс отстал),
+     *   она отправляется в firebase заново, и индекс дописывается;
+     * - заметки там нет, а в SQLite у нее есть firebaseId - значит, она дошла до firebase и там ее удалили. Только это
+     *   и считается удалением: одного отсутствия в индексе для него мало;
+     * - у заметки есть неотправленные изменения в outbox - не трогаем: их отправка сама приведет firebase к SQLite.
+     * Заметки, которые ни разу не доходили до firebase (без firebaseId), отправляет outbox, сверка их не касается.
+     * Метод блокирующий, вызывать его можно только в фоновом потоке и после synchronizeNotepads:
+     * заметки из блокнотов, которых нет в SQLite, пропускаются.
+     */
+    public boolean synchronizeNotes(int userLocalId) {
+        awaitDatabase();
+        if (!fillMissingNoteDigests(userLocalId)) {
+            return false;
+        }
+        long highWaterMark = getSyncHighWaterMark(userLocalId, DatabaseConstants.SyncState.COLLECTION_NOTES);
+        FirebaseBucketChanges buckets = getBucketChangesFromFirebase(highWaterMark);
+        if (buckets.mFailed) {
+            return false;
+        }
+        if (highWaterMark > 0 && isNothingChangedSince(buckets, highWaterMark)) {
+            Log.i("Synchronization: notes", "no notepads changed in firebase since " + highWaterMark + ".");
+            drainOutbox();
+            return true;
+        }
+        NoteDigests.Snapshot localDigests = new NoteDigests.Snapshot();
+        Map<String, Integer> localNoteIds = readLocalNoteDigests(userLocalId, localDigests);
+        Map<String, Integer> notepadIds = getNotepadIdsByFirebaseKey(userLocalId);
+        //заметки блокнотов, которых нет в SQLite, все равно пропускаются, так что и корзины сверяются только у известных блокнотов.
+        //блокнот, которого нет, добавили после synchronizeNotepads: отметка не должна уйти дальше его корзины.
+        long newHighWaterMark = buckets.mHighWaterMark;
+        for (Map.Entry<String, Long> bucket : buckets.mModificationTimes.entrySet()) {
+            if (!notepadIds.containsKey(bucket.getKey())) {
+                newHighWaterMark = Math.min(newHighWaterMark, bucket.getValue());
+            }
+        }
+        Set<String> differingNotepadKeys = new HashSet<>();
+        if (highWaterMark == 0) {
+            //корзину без строки дайджеста (ее заметки писала версия без дайджестов корзин) приходится читать.
+            for (String notepadKey : notepadIds.keySet()) {
+                Long remoteBucketDigest = buckets.mDigests.get(notepadKey);
+                if (remoteBucketDigest == null || remoteBucketDigest != localDigests.getBucketDigest(notepadKey)) {
+                    differingNotepadKeys.add(notepadKey);
+                }
+            }
+        } else {
+            for (Map.Entry<String, Long> bucket : buckets.mModificationTimes.entrySet()) {
+                String notepadKey = bucket.getKey();
+                if (!notepadIds.containsKey(notepadKey)) {
+                    continue;
+                }
+                //startAt включает саму отметку, так что корзина, изменившаяся последней, приходит снова. ее уже сверили
+                //в прошлый раз, и если дайджест не изменился, читать ее незачем.
+                Long remoteBucketDigest = buckets.mDigests.get(notepadKey);
+                if (bucket.getValue() == highWaterMark && remoteBucketDigest != null
+                        && remoteBucketDigest == localDigests.getBucketDigest(notepadKey)) {
+                    continue;
+                }
+                differingNotepadKeys.add(notepadKey);
+            }
+        }
+        NoteDigests.Snapshot remoteDigests = getNoteDigestsFromFirebase(differingNotepadKeys);
+        if (remoteDigests == null) {
+            return false;
+        }
+        NoteDigests.Diff diff = NoteDigests.diff(localDigests, remoteDigests, differingNotepadKeys);
+        Log.i("Synchronization: notes", localDigests.size() + " in SQLite, " + buckets.mModificationTimes.size() +
+                " notepads changed in firebase since " + highWaterMark + ", " + differingNotepadKeys.size() + " of them read, " +
+                remoteDigests.size() + " index entries, " + diff + ".");
+
+        Set<String> pendingNoteKeys = getNoteKeysWithPendingChanges();
+        Set<String> noteKeys = new HashSet<>();
+        for (String noteKey : diff.mNoteKeys) {
+            if (!pendingNoteKeys.contains(noteKey)) {
+                noteKeys.add(noteKey);
+            }
+        }
+        Map<String, Map<String, Object>> firebaseNotes = downloadNotesFromFirebase(noteKeys, localNoteIds.size());
+        if (firebaseNotes == null) {
+            return false;
+        }
+        NoteSyncPlan plan = new NoteSyncPlan(userLocalId);
+        plan.mHighWaterMark = newHighWaterMark;
+        for (String noteKey : noteKeys) {
+            Integer localNoteId = localNoteIds.get(noteKey);
+            Map<String, Object> noteFields = firebaseNotes.get(noteKey);
+            if (noteFields == null) {
+                if (localNoteId != null) {
+                    plan.mNoteIdsToDelete.add(localNoteId);
+                }
+                continue;
+            }
+            Integer notepadId = notepadIds.get(noteFields.get(FIREBASE_NOTEPAD_ID));
+            if (notepadId == null) {
+                Log.d("Synchronization: FB", "notepad of note " + noteKey + " is not in SQLite, skipped.");
+                //заметку нужно будет прочитать снова, когда блокнот появится.
+                plan.mHighWaterMark = 0;
+                continue;
+            }
+            plan.mDownloadedNotes.add(new Note(localNoteId != null ? localNoteId : Note.ID_NOT_YET_ASSIGNED, notepadId, userLocalId,
+                    (String) noteFields.get(DatabaseConstants.Notes.Columns.TITLE),
+                    new Date((Long) noteFields.get(DatabaseConstants.Notes.Columns.CREATION_DATE)),
+                    (String) noteFields.get(DatabaseConstants.Notes.Columns.TEXT),
+                    noteKey, DatabaseConstants.FirebaseCodes.SYNCHRONIZED));
+            //строки индекса прочитаны только у несовпавших блокнотов: у заметки из другого блокнота строка может и быть.
+            if (!remoteDigests.contains(noteKey) && differingNotepadKeys.contains(noteFields.get(FIREBASE_NOTEPAD_ID))) {
+                plan.mNoteKeysToReindex.add(noteKey);
+            }
+        }
+
+        Integer appliedCount = applyNoteSyncPlanInWriter(plan);
+        if (appliedCount == null) {
+            return false;
+        }
+        Log.i("Synchronization: notes", appliedCount + " notes were changed in SQLite, " + plan.mNoteKeysToReindex.size() + " reindexed.");
+        drainOutbox();
+        return true;
+    }
+
+    /**
+     * Проверяет, не изменилось ли ничего с прошлой сверки, не читая из SQLite всех заметок: startAt включает саму отметку,
+     * так что корзины, изменившиеся последними, приходят и тогда, когда изменений нет.
+     * @return true, если пришли только корзины с самой отметкой и их дайджесты совпадают с посчитанными по SQLite.
+     */
+    private boolean isNothingChangedSince(FirebaseBucketChanges buckets, long highWaterMark) {
+        for (Map.Entry<String, Long> bucket : buckets.mModificationTimes.entrySet()) {
+            Long remoteBucketDigest = buckets.mDigests.get(bucket.getKey());
+            Integer notepadId = remoteBucketDigest == null ? null : getNotepadIdByFirebaseKey(bucket.getKey());
+            if (bucket.getValue() != highWaterMark || notepadId == null
+                    || remoteBucketDigest != getLocalBucketDigest(notepadId, bucket.getKey(), null, 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Досчитывает content_digest заметкам, записанным до v13. Каждая страница - отдельная операция писателя,
+     * так что обычные записи между страницами не ждут. Вызывается только в фоновом потоке, но не в потоке писателя.
+     * @return false, если записать не удалось.
+     */
+    private boolean fillMissingNoteDigests(final int userId) {
+        Callable<Boolean> fillPage = new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                final List<Note> notes = new ArrayList<>();
+                try (StorageKeeperCursorWrapper notesCursor = new StorageKeeperCursorWrapper(mDatabase.query(
+                        DatabaseConstants.Notes.TABLE_NAME,
+                        null,
+                        DatabaseConstants.Notes.Columns.CREATOR_ID + " = ? AND " + DatabaseConstants.Notes.Columns.CONTENT_DIGEST + " IS NULL",
+                        new String[]{Integer.toString(userId)},
+                        null, null, null, Integer.toString(NOTE_DIGESTS_PAGE_SIZE)
+                ))){
+                    notesCursor.forEachRow(new StorageKeeperCursorWrapper.RowVisitor() {
+                        @Override
+                        public boolean visitRow(StorageKeeperCursorWrapper row) {
+                            notes.add(row.parseNote());
+                            return true;
+                        }
+                    });
+                }
+                mDatabase.beginTransactionNonExclusive();
+                try {
+                    for (Note note : notes) {
+                        mStatements.executeUpdateDelete(UPDATE_NOTE_CONTENT_DIGEST, getNoteDigest(note), note.getId());
                     }
-                });
-            } else if (notepad.getFirebaseStatus() == DatabaseConstants.FirebaseCodes.NEEDS_UPDATE) {
-                executor.submit(new Runnable() {
+                    mDatabase.setTransactionSuccessful();
+                }
+                finally {
+                    mDatabase.endTransaction();
+                }
+                return notes.size() == NOTE_DIGESTS_PAGE_SIZE;
+            }
+        };
+        try {
+            while (submitWrite(fillPage, null).get()) {
+                Log.d("Synchronization: notes", NOTE_DIGESTS_PAGE_SIZE + " note digests filled.");
+            }
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.e("Synchronization: notes", ex.getMessage(), ex);
+            return false;
+        }
+        catch (ExecutionException ex) {
+            Log.e("Synchronization: notes", ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Читает строки дайджестов корзин текущего пользователя (см. FIREBASE_NOTEPAD_DIGESTS), изменившиеся начиная с since.
+     * Как и у блокнотов, orderByChild(modified_at).startAt(since) сервер выполняет по индексу, так что сверка без изменений
+     * получает пустой ответ. Метод блокирующий.
+     * @param since серверное время, начиная с которого (включительно) нужны изменения. 0 - нужны все корзины.
+     * @return изменившиеся корзины. Если firebase ответил ошибкой, у результата выставлен mFailed.
+     */
+    private FirebaseBucketChanges getBucketChangesFromFirebase(long since) {
+        final FirebaseBucketChanges changes = new FirebaseBucketChanges(since);
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        mBackend.read(firebasePath(mCurrentUserFirebaseId, FIREBASE_NOTEPAD_DIGESTS),
+                since > 0 ? DatabaseConstants.Notepads.Columns.MODIFIED_AT : null, since > 0 ? since : null, null,
+                new FirebaseBackend.ReadListener() {
+            @Override
+            public void onRead(Object value, String errorMessage) {
+                if (errorMessage != null) {
+                    changes.mFailed = true;
+                    countDownLatch.countDown();
+                    return;
+                }
+                for (Map.Entry<String, Object> bucket : getFirebaseChildren(value).entrySet()) {
+                    Map<String, Object> fields = getFirebaseChildren(bucket.getValue());
+                    Object modifiedAt = fields.get(DatabaseConstants.Notepads.Columns.MODIFIED_AT);
+                    long modificationTime = modifiedAt instanceof Long ? (Long) modifiedAt : 0;
+                    changes.mModificationTimes.put(bucket.getKey(), modificationTime);
+                    changes.mHighWaterMark = Math.max(changes.mHighWaterMark, modificationTime);
+                    Object digest = fields.get(FIREBASE_DIGEST);
+                    if (digest == null) {
+                        continue; //строка от удаления из блокнота, которого у удалявшего не было.
+                    }
+                    try {
+                        changes.mDigests.put(bucket.getKey(), NoteDigests.fromHex(String.valueOf(digest)));
+                    }
+                    catch (NumberFormatException ex) {
+                        //без дайджеста корзину просто прочитают поштучно.
+                        Log.e("Synchronization: FB", "broken digest of notepad " + bucket.getKey(), ex);
+                    }
+                }
+                countDownLatch.countDown();
+            }
+        });
+        if (!awaitFirebase(countDownLatch)) {
+            changes.mFailed = true;
+        }
+        return changes;
+    }
+
+    /**
+     * Читает строки индекса дайджестов заметок из блокнотов notepadKeys: по запросу orderByChild("notepad").equalTo(ключ)
+     * на блокнот, одновременно не больше MAX_NOTE_DOWNLOADS_IN_FLIGHT. Метод блокирующий.
+     * @return снимок или null, если firebase ответил ошибкой.
+     */
+    private NoteDigests.Snapshot getNoteDigestsFromFirebase(Collection<String> notepadKeys) {
+        final NoteDigests.Snapshot digests = new NoteDigests.Snapshot();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final Semaphore readsInFlight = new Semaphore(MAX_NOTE_DOWNLOADS_IN_FLIGHT);
+        final CountDownLatch countDownLatch = new CountDownLatch(notepadKeys.size());
+        String digestsPath = firebasePath(mCurrentUserFirebaseId, FIREBASE_NOTE_DIGESTS);
+        for (final String notepadKey : notepadKeys) {
+            try {
+                readsInFlight.acquire();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                Log.e("Synchronization: FB", ex.getMessage(), ex);
+                return null;
+            }
+            mBackend.read(digestsPath, FIREBASE_DIGEST_NOTEPAD, null, notepadKey, new FirebaseBackend.ReadListener() {
+                @Override
+                public void onRead(Object value, String errorMessage) {
+                    if (errorMessage != null) {
+                        failed.set(true);
+                    }
+                    //ответы разных блокнотов могут прийти в разных потоках.
+                    synchronized (digests) {
+                        for (Map.Entry<String, Object> entry : getFirebaseChildren(value).entrySet()) {
+                            long parsedDigest = 0;
+                            try {
+                                parsedDigest = NoteDigests.fromHex(String.valueOf(getFirebaseChildren(entry.getValue()).get(FIREBASE_DIGEST)));
+                            }
+                            catch (NumberFormatException ex) {
+                                //битая строка индекса - все равно заметка в firebase есть. дайджест 0 ни с чем не совпадет, и ее скачают заново.
+                                Log.e("Synchronization: FB", "broken digest of note " + entry.getKey(), ex);
+                            }
+                            if (!digests.contains(entry.getKey())) {
+                                digests.put(notepadKey, entry.getKey(), parsedDigest);
+                            }
+                        }
+                    }
+                    readsInFlight.release();
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        if (!awaitFirebase(countDownLatch)) {
+            return null;
+        }
+        synchronized (digests) {
+            return failed.get() ? null : digests;
+        }
+    }
+
+    /**
+     * Кладет в снимок дайджесты заметок пользователя, которые уже есть в firebase (у них и у их блокнота есть firebaseId).
+     * @return локальные id этих заметок по их ключам.
+     */
+    private Map<String, Integer> readLocalNoteDigests(int userId, NoteDigests.Snapshot digests) {
+        Map<String, Integer> noteIds = new HashMap<>();
+        try (Cursor notes = mDatabase.rawQuery("SELECT n." + DatabaseConstants.Notes.Columns.NOTE_ID + ", n." +
+                DatabaseConstants.Notes.Columns.FIREBASE_ID + ", p." + DatabaseConstants.Notepads.Columns.FIREBASE_ID + ", n." +
+                DatabaseConstants.Notes.Columns.CONTENT_DIGEST + " FROM " + DatabaseConstants.Notes.TABLE_NAME + " n JOIN " +
+                DatabaseConstants.Notepads.TABLE_NAME + " p ON p." + DatabaseConstants.Notepads.Columns.NOTEPAD_ID + " = n." +
+                DatabaseConstants.Notes.Columns.NOTEPAD_ID + " WHERE n." + DatabaseConstants.Notes.Columns.CREATOR_ID + " = ? AND n." +
+                DatabaseConstants.Notes.Columns.FIREBASE_ID + " IS NOT NULL AND p." + DatabaseConstants.Notepads.Columns.FIREBASE_ID +
+                " IS NOT NULL AND n." + DatabaseConstants.Notes.Columns.CONTENT_DIGEST + " IS NOT NULL",
+                new String[]{Integer.toString(userId)})) {
+            while (notes.moveToNext()) {
+                String noteKey = notes.getString(1);
+                if (!digests.contains(noteKey)) {
+                    digests.put(notes.getString(2), noteKey, notes.getLong(3));
+                    noteIds.put(noteKey, notes.getInt(0));
+                }
+            }
+        }
+        return noteIds;
+    }
+
+    /**
+     * @return локальные id блокнотов пользователя по их ключам в firebase.
+     */
+    private Map<String, Integer> getNotepadIdsByFirebaseKey(int userId) {
+        Map<String, Integer> notepadIds = new HashMap<>();
+        try (Cursor notepads = mDatabase.query(
+                DatabaseConstants.Notepads.TABLE_NAME,
+                new String[]{DatabaseConstants.Notepads.Columns.NOTEPAD_ID, DatabaseConstants.Notepads.Columns.FIREBASE_ID},
+                DatabaseConstants.Notepads.Columns.CREATOR_ID + " = ? AND " + DatabaseConstants.Notepads.Columns.FIREBASE_ID + " IS NOT NULL",
+                new String[]{Integer.toString(userId)},
+                null, null, null
+        )){
+            while (notepads.moveToNext()) {
+                notepadIds.put(notepads.getString(1), notepads.getInt(0));
+            }
+        }
+        return notepadIds;
+    }
+
+    /**
+     * @return ключи заметок, изменения которых еще лежат в outbox (включая заготовленные ключи добавлений и ключи удалений).
+     */
+    private Set<String> getNoteKeysWithPendingChanges() {
+        Set<String> noteKeys = new HashSet<>();
+        try (Cursor entries = mDatabase.rawQuery("SELECT o." + DatabaseConstants.Outbox.Columns.FIREBASE_ID + ", n." +
+                DatabaseConstants.Notes.Columns.FIREBASE_ID + " FROM " + DatabaseConstants.Outbox.TABLE_NAME + " o LEFT JOIN " +
+                DatabaseConstants.Notes.TABLE_NAME + " n ON n." + DatabaseConstants.Notes.Columns.NOTE_ID + " = o." +
+                DatabaseConstants.Outbox.Columns.ENTITY_ID + " WHERE o." + DatabaseConstants.Outbox.Columns.ENTITY_TYPE + " = ?",
+                new String[]{Integer.toString(DatabaseConstants.Outbox.ENTITY_NOTE)})) {
+            while (entries.moveToNext()) {
+                for (int i = 0; i < 2; i++) {
+                    if (!entries.isNull(i)) {
+                        noteKeys.add(entries.getString(i));
+                    }
+                }
+            }
+        }
+        return noteKeys;
+    }
+
+    /**
+     * Скачивает заметки по ключам из notes. Метод блокирующий.
+     * Если ключей не больше NOTES_FULL_LISTING_MIN_KEYS, каждая заметка читается своим запросом, но одновременно их в полете
+     * не больше MAX_NOTE_DOWNLOADS_IN_FLIGHT: тысячи лиснеров разом забили бы и соединение, и главный поток.
+     * Если больше и к тому же это хотя бы половина заметок (например, первая сверка на новом устройстве), notes читается
+     * одним запросом целиком: тысяча расхождений среди ста тысяч заметок - это все еще отдельные запросы, а не все тексты разом.
+     * @param localNotesCount сколько заметок пользователя уже есть в SQLite.
+     * @return поля заметок по ключам. Заметок, которых в firebase нет, в ней нет. null, если firebase ответил ошибкой.
+     */
+    private Map<String, Map<String, Object>> downloadNotesFromFirebase(final Set<String> noteKeys, int localNotesCount) {
+        final Map<String, Map<String, Object>> notes = new ConcurrentHashMap<>();
+        final AtomicBoolean failed = new AtomicBoolean();
+        String notesPath = firebasePath(mCurrentUserFirebaseId, DatabaseConstants.Notes.TABLE_NAME);
+        if (noteKeys.size() > NOTES_FULL_LISTING_MIN_KEYS && noteKeys.size() >= localNotesCount / 2) {
+            final CountDownLatch countDownLatch = new CountDownLatch(1);
+            mBackend.read(notesPath, null, null, null, new FirebaseBackend.ReadListener() {
+                @Override
+                public void onRead(Object value, String errorMessage) {
+                    if (errorMessage != null) {
+                        failed.set(true);
+                    }
+                    for (Map.Entry<String, Object> note : getFirebaseChildren(value).entrySet()) {
+                        if (noteKeys.contains(note.getKey())) {
+                            notes.put(note.getKey(), (Map<String, Object>) note.getValue());
+                        }
+                    }
+                    countDownLatch.countDown();
+                }
+            });
+            if (!awaitFirebase(countDownLatch)) {
+                return null;
+            }
+        } else {
+            final Semaphore downloadsInFlight = new Semaphore(MAX_NOTE_DOWNLOADS_IN_FLIGHT);
+            final CountDownLatch countDownLatch = new CountDownLatch(noteKeys.size());
+            for (final String noteKey : noteKeys) {
+                try {
+                    downloadsInFlight.acquire();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    Log.e("Synchronization: FB", ex.getMessage(), ex);
+                    return null;
+                }
+                mBackend.read(firebasePath(notesPath, noteKey), null, null, null, new FirebaseBackend.ReadListener() {
                     @Override
-                    public void run() {
-                        updateNotepadInFirebase(notepad);
+                    public void onRead(Object value, String errorMessage) {
+                        if (errorMessage != null) {
+                            failed.set(true);
+                        } else if (value != null) {
+                            //null - заметки в firebase нет.
+                            notes.put(noteKey, (Map<String, Object>) value);
+                        }
+                        downloadsInFlight.release();
+                        countDownLatch.countDown();
                     }
                 });
             }
+            if (!awaitFirebase(countDownLatch)) {
+                return null;
+            }
+        }
+        Log.i("Synchronization: FB", notes.size() + " of " + noteKeys.size() + " notes were downloaded from firebase.");
+        return failed.get() ? null : notes;
+    }
+
+    /**
+     * @return дети значения, прочитанного из firebase (см. FirebaseBackend.ReadListener). Пустая карта, если детей нет.
+     */
+    private static Map<String, Object> getFirebaseChildren(Object value) {
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
         }
+        return Collections.emptyMap();
+    }
 
-        //проверим результаты добавления в sqlite
-        for (Map.Entry<Notepad, Future<Integer>> result : additionResults.entrySet()) {
-            try {
-                if (result.getValue().get() < 1) {
-                    Log.e("Synchronization: SQLite", "couldn't add " + result.getKey() + " to SQLite.");
-                    return false;
+    private static boolean awaitFirebase(CountDownLatch countDownLatch) {
+        try {
+            countDownLatch.await();
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.e("Synchronization: FB", ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Применяет план сверки одной транзакцией. В ней же записывает в outbox повторную отправку заметок, которых нет в индексе,
+     * и сдвигает отметку сверки: если применить план не удалось, следующая сверка прочитает те же корзины.
+     * Заметки, у которых за время сверки появились изменения в outbox (или удаление - для новых заметок), пропускаются:
+     * локальное изменение новее.
+     * @return сколько заметок добавлено, изменено или удалено.
+     */
+    private int applyNoteSyncPlan(NoteSyncPlan plan) {
+        int appliedCount = 0;
+        List<OutboxEntry> outboxEntries = new ArrayList<>(); //у скачанных заметок есть firebaseId, так что он останется пустым.
+        //кэш меняется только после коммита, как в applyFirebaseNotepadChanges.
+        List<Note> writtenNotes = new ArrayList<>();
+        List<Integer> deletedNoteIds = new ArrayList<>();
+        boolean committed = false;
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            for (Note note : plan.mDownloadedNotes) {
+                if (note.getId() == Note.ID_NOT_YET_ASSIGNED) {
+                    if (hasPendingNoteDeletion(note.getFirebaseId())) {
+                        continue;
+                    }
+                    if (insertNote(note, outboxEntries) < 0) {
+                        throw new IllegalStateException("couldn't add " + note + " to SQLite.");
+                    }
                 } else {
-                    Log.d("Synchronization: SQLite", result.getKey() + " added to SQLite.");
+                    if (hasOutboxEntries(DatabaseConstants.Outbox.ENTITY_NOTE, note.getId())) {
+                        continue;
+                    }
+                    ContentValues values = parseNoteToContentValues(note);
+                    if (mDatabase.update(DatabaseConstants.Notes.TABLE_NAME, values, DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                            new String[]{Integer.toString(note.getId())}) == 0) {
+                        continue; //заметку удалили локально, удаление уже в outbox.
+                    }
+                    indexCompressedNoteText(note, values);
+                }
+                writtenNotes.add(note);
+                if (plan.mNoteKeysToReindex.contains(note.getFirebaseId())) {
+                    //в очередь firebase строки поставит drainOutbox после коммита.
+                    recordOutboxEntry(DatabaseConstants.Outbox.ENTITY_NOTE, note.getId(), note.getNotepadId(),
+                            DatabaseConstants.FirebaseCodes.NEEDS_UPDATE, null, 0);
+                }
+                appliedCount++;
+            }
+            for (int noteId : plan.mNoteIdsToDelete) {
+                if (hasOutboxEntries(DatabaseConstants.Outbox.ENTITY_NOTE, noteId)) {
+                    continue;
                 }
+                appliedCount += mDatabase.delete(DatabaseConstants.Notes.TABLE_NAME, DatabaseConstants.Notes.Columns.NOTE_ID + " = ? ",
+                        new String[]{Integer.toString(noteId)});
+                deletedNoteIds.add(noteId);
             }
-            catch (InterruptedException | ExecutionException ex) {
-                Log.e("Synchronization: SQLite", ex.getMessage(), ex);
+            if (plan.mHighWaterMark > 0) {
+                mStatements.executeInsert(REPLACE_SYNC_HIGH_WATER_MARK, plan.mUserId, DatabaseConstants.SyncState.COLLECTION_NOTES,
+                        plan.mHighWaterMark);
             }
+            mDatabase.setTransactionSuccessful();
+            committed = true;
+        }
+        finally {
+            mDatabase.endTransaction();
+            for (Note note : writtenNotes) {
+                if (committed) {
+                    mCache.putNote(note);
+                } else if (note.getId() != Note.ID_NOT_YET_ASSIGNED) {
+                    mCache.removeNote(note.getId());
+                }
+            }
+            for (int noteId : deletedNoteIds) {
+                mCache.removeNote(noteId);
+            }
+            mCache.invalidateQueries();
+        }
+        if (appliedCount > 0) {
+            publishChange(StorageChange.Type.BATCH_APPLIED, StorageChange.NO_ID, StorageChange.NO_ID, StorageChange.NO_ID);
+        }
+        return appliedCount;
+    }
+
+    private boolean hasPendingNoteDeletion(String noteKey) {
+        try (Cursor entries = mDatabase.query(
+                DatabaseConstants.Outbox.TABLE_NAME,
+                new String[]{DatabaseConstants.Outbox.Columns.ID},
+                DatabaseConstants.Outbox.Columns.ENTITY_TYPE + " = ? AND " + DatabaseConstants.Outbox.Columns.OPERATION + " = ? AND " +
+                        DatabaseConstants.Outbox.Columns.FIREBASE_ID + " = ?",
+                new String[]{Integer.toString(DatabaseConstants.Outbox.ENTITY_NOTE),
+                        Integer.toString(DatabaseConstants.FirebaseCodes.NEEDS_DELETION), noteKey},
+                null, null, null, "1"
+        )){
+            return entries.moveToFirst();
+        }
+    }
+
+    /**
+     * Применяет план одной операцией писателя и ждет ее окончания. Вызывается только в фоновом потоке, но не в потоке писателя.
+     * @return результат applyNoteSyncPlan или null, если применить план не удалось.
+     */
+    private Integer applyNoteSyncPlanInWriter(final NoteSyncPlan plan) {
+        try {
+            return submitWrite(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int appliedCount = applyNoteSyncPlan(plan);
+                    if (appliedCount > 0) {
+                        //после большой пачки записей переносим журнал сразу, пока он не разросся.
+                        checkpointWal();
+                    }
+                    return appliedCount;
+                }
+            }, null).get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Log.e("Synchronization: notes", ex.getMessage(), ex);
+            return null;
+        }
+        catch (ExecutionException ex) {
+            Log.e("Synchronization: notes", ex.getMessage(), ex);
+            return null;
         }
-        //так как я заключил все добавление в транзакцию, теперь все операции, по идее, должны возвращать
-        //один и тот же результат. Что делает блок кода выше довольно бессмысленным, он делает много лишнего.
-        //todo: синхронизировать заметки таким же образом.
-        return true;
     }
 
     /**
@@ -892,6 +3406,49 @@ public class StorageKeeper {
         Map<String, Object> map = new HashMap<>();
         map.put(DatabaseConstants.Notepads.Columns.TITLE, notepad.getTitle());
         map.put(DatabaseConstants.Notepads.Columns.CREATION_DATE, notepad.getCreationDate().getTime());
+        map.put(DatabaseConstants.Notepads.Columns.MODIFIED_AT, ServerValue.TIMESTAMP);
+        return map;
+    }
+
+    /**
+     * Ключи для updateChildren: только поля заметки из маски modifiedFields (Note.FIELD_*), без текста, если он не менялся.
+     * modified_at ставит сервер (ServerValue.TIMESTAMP): по нему синхронизация находит изменения, а часы устройств врут.
+     */
+    private Map<String, Object> parseModifiedNoteFieldsToMap(Note note, int modifiedFields) {
+        Map<String, Object> map = new HashMap<>();
+        if ((modifiedFields & Note.FIELD_TITLE) != 0) {
+            map.put(DatabaseConstants.Notes.Columns.TITLE, note.getTitle());
+        }
+        if ((modifiedFields & Note.FIELD_TEXT) != 0) {
+            map.put(DatabaseConstants.Notes.Columns.TEXT, note.getText());
+        }
+        if ((modifiedFields & Note.FIELD_NOTEPAD) != 0) {
+            map.put(FIREBASE_NOTEPAD_ID, note.getFirebaseNotepadId());
+        }
+        map.put(DatabaseConstants.Notes.Columns.MODIFIED_AT, ServerValue.TIMESTAMP);
+        return map;
+    }
+
+    /**
+     * Строка индекса дайджестов (см. FIREBASE_NOTE_DIGESTS). Ключ блокнота заметки уже должен быть известен.
+     */
+    private Map<String, Object> parseNoteToDigestMap(Note note) {
+        Map<String, Object> map = new HashMap<>();
+        map.put(FIREBASE_DIGEST_NOTEPAD, note.getFirebaseNotepadId());
+        map.put(FIREBASE_DIGEST, NoteDigests.toHex(getNoteDigest(note)));
+        return map;
+    }
+
+    /**
+     * Строка дайджестов корзин (см. FIREBASE_NOTEPAD_DIGESTS). modified_at ставит сервер.
+     * @param bucketDigest дайджест корзины или null, если его не посчитать (блокнота нет в SQLite): тогда сверка прочитает корзину поштучно.
+     */
+    private static Map<String, Object> parseBucketDigestToMap(Long bucketDigest) {
+        Map<String, Object> map = new HashMap<>();
+        if (bucketDigest != null) {
+            map.put(FIREBASE_DIGEST, NoteDigests.toHex(bucketDigest));
+        }
+        map.put(DatabaseConstants.Notepads.Columns.MODIFIED_AT, ServerValue.TIMESTAMP);
         return map;
     }
 
@@ -901,6 +3458,7 @@ public class StorageKeeper {
         map.put(DatabaseConstants.Notes.Columns.TEXT, note.getText());
         map.put(DatabaseConstants.Notes.Columns.CREATION_DATE, note.getCreationDate().getTime());
         map.put(FIREBASE_NOTEPAD_ID, note.getFirebaseNotepadId());
+        map.put(DatabaseConstants.Notes.Columns.MODIFIED_AT, ServerValue.TIMESTAMP);
         return map;
     }
 }
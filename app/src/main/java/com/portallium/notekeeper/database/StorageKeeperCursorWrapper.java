@@ -4,29 +4,122 @@ import android.database.Cursor;
 import android.database.CursorWrapper;
 
 import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.beans.NoteListItem;
 import com.portallium.notekeeper.beans.Notepad;
 
 import java.util.Date;
 
 
 public class StorageKeeperCursorWrapper extends CursorWrapper {
+
+    /**
+     * Обходчик рядов курсора, см. forEachRow. Нужен, когда от каждого ряда требуется пара полей
+     * и собирать ради них целый объект Note или Notepad незачем.
+     */
+    public interface RowVisitor {
+        /**
+         * Вызывается для каждого ряда. Поля текущего ряда читаются геттерами обертки (getLocalId(), getTitle() и т.д.).
+         * @param row обертка, стоящая на текущем ряду.
+         * @return true, чтобы продолжить обход, false - чтобы остановиться.
+         */
+        boolean visitRow(StorageKeeperCursorWrapper row);
+    }
+
+    //у таблиц notes и notepads одинаковые имена общих колонок, поэтому одного набора индексов хватает на обе.
+    //индексы ищутся один раз на курсор, при первом обращении. Колонки, которых нет в проекции, получают индекс -1.
+    private boolean mColumnsResolved;
+    private int mIdIndex;
+    private int mNotepadIdIndex;
+    private int mCreatorIdIndex;
+    private int mTitleIndex;
+    private int mCreationDateIndex;
+    private int mTextIndex;
+    private int mTextFormatIndex;
+    private int mFirebaseIdIndex;
+    private int mFirebaseStatusIndex;
+    private int mNotepadTitleIndex;
+    private int mPreviewIndex;
+
     public StorageKeeperCursorWrapper (Cursor cursor) {
         super(cursor);
     }
 
+    private void resolveColumns() {
+        if (mColumnsResolved) {
+            return;
+        }
+        mIdIndex = getColumnIndex(DatabaseConstants.Notes.Columns.NOTE_ID);
+        mNotepadIdIndex = getColumnIndex(DatabaseConstants.Notes.Columns.NOTEPAD_ID);
+        mCreatorIdIndex = getColumnIndex(DatabaseConstants.Notes.Columns.CREATOR_ID);
+        mTitleIndex = getColumnIndex(DatabaseConstants.Notes.Columns.TITLE);
+        mCreationDateIndex = getColumnIndex(DatabaseConstants.Notes.Columns.CREATION_DATE);
+        mTextIndex = getColumnIndex(DatabaseConstants.Notes.Columns.TEXT);
+        mTextFormatIndex = getColumnIndex(DatabaseConstants.Notes.Columns.TEXT_FORMAT);
+        mFirebaseIdIndex = getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_ID);
+        mFirebaseStatusIndex = getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_STATUS);
+        mNotepadTitleIndex = getColumnIndex(DatabaseConstants.Notes.Joined.NOTEPAD_TITLE);
+        mPreviewIndex = getColumnIndex(DatabaseConstants.Notes.Columns.PREVIEW);
+        mColumnsResolved = true;
+    }
+
+    /**
+     * Вызывает visitor для каждого ряда курсора, начиная с первого.
+     * @param visitor обходчик. Если он вернет false, обход прекращается.
+     */
+    public void forEachRow(RowVisitor visitor) {
+        if (!moveToFirst()) {
+            return;
+        }
+        do {
+            if (!visitor.visitRow(this)) {
+                return;
+            }
+        } while (moveToNext());
+    }
+
+    /**
+     * @return _id заметки или блокнота в текущем ряду.
+     */
+    public int getLocalId() {
+        resolveColumns();
+        return getInt(mIdIndex);
+    }
+
+    /**
+     * @return id блокнота, в котором лежит заметка из текущего ряда.
+     */
+    public int getNotepadId() {
+        resolveColumns();
+        return getInt(mNotepadIdIndex);
+    }
+
+    public String getTitle() {
+        resolveColumns();
+        return getString(mTitleIndex);
+    }
+
+    /**
+     * @return unix-время создания (в миллисекундах). Объект Date при этом не создается.
+     */
+    public long getCreationTime() {
+        resolveColumns();
+        return getLong(mCreationDateIndex);
+    }
+
     /**
      * Превращает ряд таблицы, на который указывает курсор, в объект класса Notepad.
      * @return полученный объект класса Notepad.
      */
     public Notepad parseNotepad () {
-        int id = getInt(getColumnIndex(DatabaseConstants.Notepads.Columns.NOTEPAD_ID));
-        String title = getString(getColumnIndex(DatabaseConstants.Notepads.Columns.TITLE));
-        Date creationDate = new Date(getLong(getColumnIndex(DatabaseConstants.Notepads.Columns.CREATION_DATE)));
-        int creatorId = getInt(getColumnIndex(DatabaseConstants.Notepads.Columns.CREATOR_ID));
-        String firebaseId = getString(getColumnIndex(DatabaseConstants.Notepads.Columns.FIREBASE_ID));
+        resolveColumns();
+        int id = getInt(mIdIndex);
+        String title = getString(mTitleIndex);
+        Date creationDate = new Date(getLong(mCreationDateIndex));
+        int creatorId = getInt(mCreatorIdIndex);
+        String firebaseId = getString(mFirebaseIdIndex);
 
         if (firebaseId != null) { //значит, блокнот уже добавлен в Firebase
-            int firebaseStatus = getInt(getColumnIndex(DatabaseConstants.Notepads.Columns.FIREBASE_STATUS));
+            int firebaseStatus = getInt(mFirebaseStatusIndex);
             return new Notepad(creatorId, title, creationDate, id, firebaseId, firebaseStatus);
         }
         return new Notepad(creatorId, title, creationDate, id);
@@ -34,21 +127,44 @@ public class StorageKeeperCursorWrapper extends CursorWrapper {
 
     /**
      * Превращает ряд таблицы, на который указывает курсор, в объект класса Note.
+     * Если в проекции запроса нет колонки text (например, в превью для списка), текст заметки будет null.
      * @return полученный объект класса Note.
      */
     public Note parseNote () {
-        int id = getInt(getColumnIndex(DatabaseConstants.Notes.Columns.NOTE_ID));
-        int notepadId = getInt(getColumnIndex(DatabaseConstants.Notes.Columns.NOTEPAD_ID));
-        int creatorId = getInt(getColumnIndex(DatabaseConstants.Notes.Columns.CREATOR_ID));
-        String title = getString(getColumnIndex(DatabaseConstants.Notes.Columns.TITLE));
-        String text = getString(getColumnIndex(DatabaseConstants.Notes.Columns.TEXT));
-        Date creationDate = new Date(getLong(getColumnIndex(DatabaseConstants.Notes.Columns.CREATION_DATE)));
-        String firebaseId = getString(getColumnIndex(DatabaseConstants.Notepads.Columns.FIREBASE_ID));
+        resolveColumns();
+        int id = getInt(mIdIndex);
+        int notepadId = getInt(mNotepadIdIndex);
+        int creatorId = getInt(mCreatorIdIndex);
+        String title = getString(mTitleIndex);
+        String text = mTextIndex < 0 ? null : parseText();
+        Date creationDate = new Date(getLong(mCreationDateIndex));
+        String firebaseId = mFirebaseIdIndex < 0 ? null : getString(mFirebaseIdIndex);
         if (firebaseId != null) { //значит, заметка уже добавлена в firebase
-            int firebaseStatus = getInt(getColumnIndex(DatabaseConstants.Notes.Columns.FIREBASE_STATUS));
+            int firebaseStatus = getInt(mFirebaseStatusIndex);
             return new Note(id, notepadId, creatorId, title, creationDate, text, firebaseId, firebaseStatus);
         }
         return new Note (id, notepadId, creatorId, title, creationDate, text);
         //если у заметки нет firebaseId, то ее статус - точно дефолтный: needs_addition
     }
+
+    /**
+     * Длинные тексты хранятся сжатыми (см. NoteTextCodec). Распаковываются они только здесь,
+     * то есть только когда запрос действительно выбирает колонку text - при открытии заметки, но не в списке.
+     */
+    private String parseText() {
+        if (mTextFormatIndex >= 0 && getInt(mTextFormatIndex) == DatabaseConstants.TextFormats.DEFLATE) {
+            return NoteTextCodec.decompress(getBlob(mTextIndex));
+        }
+        return getString(mTextIndex);
+    }
+
+    /**
+     * Превращает ряд результата запроса списка заметок (заметка без текста + превью + название ее блокнота)
+     * в объект класса NoteListItem.
+     * @return полученный объект класса NoteListItem.
+     */
+    public NoteListItem parseNoteListItem () {
+        Note note = parseNote();
+        return new NoteListItem(note, getString(mNotepadTitleIndex), getString(mPreviewIndex));
+    }
 }
@@ -13,13 +13,11 @@ import com.firebase.ui.auth.AuthUI;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.portallium.notekeeper.R;
+import com.portallium.notekeeper.database.StorageCall;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.list.ListActivity;
 
 import java.util.Collections;
-import java.util.concurrent.ExecutionException;
-
-import io.fabric.sdk.android.Fabric;
 
 /**
  * Класс, внутри которого происходит взаимодействие со всей системой аутентификации, предоставляемой firebase.
@@ -30,12 +28,16 @@ public class FirebaseLoginActivity extends AppCompatActivity {
 
     private FirebaseAuth mAuth;
     private FirebaseAuth.AuthStateListener mAuthStateListener;
+    /**
+     * Запрос локального id пользователя. Не null, пока пользователь входит в приложение.
+     */
+    private StorageCall<Integer> mLogInCall;
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        Fabric.with(this, new Crashlytics());
+        //Fabric и StrictMode настраивает NoteKeeperApplication.
         setContentView(R.layout.activity_main);
 
         mAuth = FirebaseAuth.getInstance();
@@ -109,26 +111,29 @@ public class FirebaseLoginActivity extends AppCompatActivity {
         return new Intent(activity, FirebaseLoginActivity.class);
     }
 
-    private int returnUserIdByEmail(String email) {
-        StorageKeeper.GetUserIdByEmailTask task = StorageKeeper.getInstance(this, mAuth.getCurrentUser().getUid()).new GetUserIdByEmailTask();
-        task.execute(email);
-        try {
-            return task.get();
-        }
-        catch (InterruptedException | ExecutionException ex) {
-            Log.e("Getting user ID", ex.getMessage(), ex);
-            return -1;
+    @Override
+    protected void onDestroy() {
+        if (mLogInCall != null) {
+            mLogInCall.cancel();
         }
+        super.onDestroy();
     }
 
-    private void logUserIn(FirebaseUser user) {
+    private void logUserIn(final FirebaseUser user) {
+        if (mLogInCall != null) {
+            return; //лиснер и onActivityResult могут сработать оба, а входить достаточно один раз.
+        }
         //todo: добавить верификацию по email
         InitializeCrashlytics(user);
-        int currentUserId = returnUserIdByEmail(user.getEmail());
-        Log.d("User is signed in", "his/her id = " + currentUserId);
-        //todo: вот тут, по идее, должен запускаться метод синхронизации!
-        startActivity(ListActivity.getIntent(FirebaseLoginActivity.this, currentUserId, user.getUid()));
-        finish();
+        mLogInCall = StorageKeeper.getInstance(this, user.getUid()).getUserIdByEmailAsync(user.getEmail(), new StorageKeeper.Callback<Integer>() {
+            @Override
+            public void onResult(Integer currentUserId) {
+                Log.d("User is signed in", "his/her id = " + currentUserId);
+                //todo: вот тут, по идее, должен запускаться метод синхронизации!
+                startActivity(ListActivity.getIntent(FirebaseLoginActivity.this, currentUserId, user.getUid()));
+                finish();
+            }
+        });
     }
 
     private void InitializeCrashlytics(FirebaseUser user) {
@@ -20,6 +20,9 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import com.portallium.notekeeper.R;
+import com.portallium.notekeeper.database.StorageCall;
+import com.portallium.notekeeper.database.StorageCallGroup;
+import com.portallium.notekeeper.database.StorageChange;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.auth.FirebaseLoginActivity;
 import com.portallium.notekeeper.ui.note.create.NoteParametersPickerDialogFragment;
@@ -33,6 +36,44 @@ abstract class AbstractListFragment<T> extends Fragment {
     private RecyclerView mRecyclerView;
     private AbstractListAdapter<T> mAdapter;
 
+    /**
+     * Версия данных (см. StorageChange), которую показывает список. Если версия в StorageKeeper та же,
+     * перечитывать список незачем.
+     */
+    private long mLoadedVersion = -1;
+    /**
+     * Загрузка списка, которая идет прямо сейчас, и версия данных, с которой она началась.
+     */
+    private StorageCall<?> mLoadCall;
+    private long mLoadingVersion;
+    /**
+     * Все запросы фрагмента к StorageKeeper. Отменяются, когда уничтожается View, - или когда список
+     * перечитывается целиком и старые запросы уже не нужны.
+     */
+    private final StorageCallGroup mCalls = new StorageCallGroup();
+
+    private StorageKeeper.ChangeListener mChangeListener = new StorageKeeper.ChangeListener() {
+        @Override
+        public void onStorageChanged(StorageChange change) {
+            if (mLoadCall != null) {
+                if (change.getVersion() > mLoadingVersion) {
+                    //загружающийся список может этого изменения и не увидеть. загрузим заново.
+                    updateUI();
+                }
+                return;
+            }
+            if (mAdapter == null || change.getVersion() <= mLoadedVersion) {
+                return; //это изменение список уже видел.
+            }
+            if (change.getVersion() == mLoadedVersion + 1 && applyChange(change)) {
+                mLoadedVersion = change.getVersion();
+            } else {
+                //какие-то события прошли мимо, или применить изменение точечно нельзя.
+                updateUI();
+            }
+        }
+    };
+
     public static final int REQUEST_PARAMETERS = 0;
     public static final String PARAMETERS_DIALOG = "NoteParametersDialog";
 
@@ -41,9 +82,45 @@ abstract class AbstractListFragment<T> extends Fragment {
     public static final int RENAME_NOTEPAD_REQUEST = 2;
 
 
-    abstract List<T> getElementsListFromDatabase();
+    /**
+     * Асинхронно загружает список из БД.
+     * @param callback получит список. Вызывается в главном потоке.
+     * @return запрос к StorageKeeper, чтобы его можно было отменить.
+     */
+    abstract StorageCall<?> loadElements(StorageKeeper.Callback<List<T>> callback);
     abstract AbstractListAdapter<T> createAdapter(List<T> elementsList);
 
+    /**
+     * Вызывается, когда RecyclerView создан и настроен, но еще не заполнен.
+     * Наследники могут повесить на него свои лиснеры (например, для подгрузки страниц).
+     */
+    void onRecyclerViewCreated(RecyclerView recyclerView) {
+    }
+
+    /**
+     * Точечно применяет изменение к уже загруженному списку: обновляет, удаляет или добавляет только затронутые строки.
+     * Строки, которые нужно перечитать из БД, могут обновиться позже, когда придет ответ (см. addCall).
+     * @return true, если изменение применено. false - если список нужно перечитать целиком (так делает реализация по умолчанию).
+     */
+    boolean applyChange(StorageChange change) {
+        return false;
+    }
+
+    StorageKeeper getStorageKeeper() {
+        return StorageKeeper.getInstance(getActivity(), getActivity().getIntent().getStringExtra(ListActivity.EXTRA_FIREBASE_ID));
+    }
+
+    AbstractListAdapter<T> getAdapter() {
+        return mAdapter;
+    }
+
+    /**
+     * Запоминает запрос фрагмента, чтобы отменить его, когда его результат станет не нужен.
+     */
+    <R> StorageCall<R> addCall(StorageCall<R> call) {
+        return mCalls.add(call);
+    }
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -66,12 +143,24 @@ abstract class AbstractListFragment<T> extends Fragment {
         RecyclerView.LayoutManager layoutManager = new LinearLayoutManager(getActivity());
         mRecyclerView.setLayoutManager(layoutManager);
         mRecyclerView.addItemDecoration(new DividerItemDecoration(mRecyclerView.getContext(), DividerItemDecoration.VERTICAL));
+        onRecyclerViewCreated(mRecyclerView);
 
         updateUI();
+        getStorageKeeper().addChangeListener(mChangeListener);
 
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        getStorageKeeper().removeChangeListener(mChangeListener);
+        mCalls.cancelAll();
+        mLoadCall = null;
+        mAdapter = null; //адаптер принадлежал уничтоженному RecyclerView. новый View загрузит список заново.
+        mRecyclerView = null;
+        super.onDestroyView();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == R.id.icon_new_note) {
@@ -87,37 +176,66 @@ abstract class AbstractListFragment<T> extends Fragment {
             item.setEnabled(false);
             Toast.makeText(getActivity(), getString(R.string.synchronize_start), Toast.LENGTH_SHORT).show();
             SynchronizeTask synchronizeTask = new SynchronizeTask(item);
-            synchronizeTask.execute();
+            //синхронизация может идти долго. В общей очереди AsyncTask'ов она задержала бы загрузку списков,
+            //поэтому она запускается в пуле потоков. Читать БД параллельно с ней можно: БД работает в режиме WAL.
+            synchronizeTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
             return true;
         } else {
             return super.onOptionsItemSelected(item);
         }
     }
 
+    /**
+     * Перечитывает список целиком. Все запросы, начатые для старого списка (страницы, отдельные строки), отменяются.
+     */
     public void updateUI() {
-        List<T> elements = getElementsListFromDatabase();
-        if (mAdapter == null) {
-            mAdapter = createAdapter(elements);
-            mRecyclerView.setAdapter(mAdapter);
-        } else {
-            mAdapter.setElements(elements);
-            mAdapter.notifyDataSetChanged();
+        if (mRecyclerView == null) {
+            return; //View нет, показывать список негде. он загрузится, когда View создадут заново.
         }
+        mCalls.cancelAll();
+        //версия запоминается до чтения: если что-то изменится, пока список читается, событие об этом придет позже и будет применено.
+        mLoadingVersion = getStorageKeeper().getDataVersion();
+        mLoadCall = mCalls.add(loadElements(new StorageKeeper.Callback<List<T>>() {
+            @Override
+            public void onResult(List<T> elements) {
+                mLoadCall = null;
+                mLoadedVersion = mLoadingVersion;
+                if (mAdapter == null) {
+                    mAdapter = createAdapter(elements);
+                    mRecyclerView.setAdapter(mAdapter);
+                } else {
+                    mAdapter.setElements(elements);
+                    mAdapter.notifyDataSetChanged();
+                }
+            }
+        }));
     }
 
 
+    /**
+     * Перечитывает список, только если с прошлой загрузки данные изменились, а событие об этом не было применено.
+     */
+    void updateUIIfChanged() {
+        if (mLoadCall != null) {
+            return; //список и так загружается.
+        }
+        if (mAdapter == null || getStorageKeeper().getDataVersion() != mLoadedVersion) {
+            updateUI();
+        }
+    }
+
     //NoteParametersPickerDialogFragment вызывает этот метод эксплицитно, когда закрывается.
     @Override
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode != Activity.RESULT_OK)
             return;
-        updateUI();
+        updateUIIfChanged();
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        updateUI();
+        updateUIIfChanged();
     }
 
     //И никакой больше рефлексии. Не понимаю, почему я сразу так не сделал.
@@ -182,13 +300,15 @@ abstract class AbstractListFragment<T> extends Fragment {
                 return false;
                 //todo: тост о том, что интернета не найдено?
             }
-            boolean additionSuccessful = StorageKeeper.getInstance(getActivity(), getActivity().getIntent().getStringExtra(ListActivity.EXTRA_FIREBASE_ID)).synchronizeNotepads(getActivity().getIntent().getIntExtra(ListActivity.EXTRA_USER_ID, 0));
+            StorageKeeper storageKeeper = StorageKeeper.getInstance(getActivity(), getActivity().getIntent().getStringExtra(ListActivity.EXTRA_FIREBASE_ID));
+            int userId = getActivity().getIntent().getIntExtra(ListActivity.EXTRA_USER_ID, 0);
+            //заметки сверяются только после блокнотов: без блокнота заметку из firebase положить некуда.
+            boolean additionSuccessful = storageKeeper.synchronizeNotepads(userId) && storageKeeper.synchronizeNotes(userId);
             if (!additionSuccessful) {
                 Log.e("Synchronization: SQLite", getString(R.string.synchronize_fail));
             } else {
                 Log.i("Synchronization: SQLite", getString(R.string.synchronize_success));
             }
-            //todo если все хорошо, синхронизировать заметки.
             return additionSuccessful;
             //todo: добавить синхронизацию сразу после авторизации (на каждом запуске).
         }
@@ -197,7 +317,7 @@ abstract class AbstractListFragment<T> extends Fragment {
         protected void onPostExecute(Boolean result) {
             mSynchronizeIcon.setEnabled(true);
             if (result) {
-                updateUI();
+                updateUIIfChanged();
             }
         }
     }
@@ -2,20 +2,22 @@ package com.portallium.notekeeper.ui.list;
 
 import android.os.Bundle;
 import android.support.v4.app.DialogFragment;
-import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.portallium.notekeeper.R;
-import com.portallium.notekeeper.beans.Note;
 import com.portallium.notekeeper.beans.Notepad;
+import com.portallium.notekeeper.database.StorageCall;
+import com.portallium.notekeeper.database.StorageChange;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.notepad.rename.NotepadRenameDialogFragment;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
 
 public class NotepadsListFragment extends AbstractListFragment<Notepad> {
 
@@ -31,22 +33,104 @@ public class NotepadsListFragment extends AbstractListFragment<Notepad> {
         return fragment;
     }
 
+    /**
+     * Количество заметок в каждом блокноте по его id. Заполняется вместе со списком блокнотов,
+     * чтобы ViewHolder'ам не приходилось обращаться к БД.
+     */
+    private SparseIntArray mNotesCounters = new SparseIntArray();
+
+    @Override
+    StorageCall<?> loadElements(final StorageKeeper.Callback<List<Notepad>> callback) {
+        return getStorageKeeper().getUserNotepadsWithNotesCountAsync(getArguments().getInt(ARG_USER_ID), new StorageKeeper.Callback<Map<Notepad, Integer>>() {
+            @Override
+            public void onResult(Map<Notepad, Integer> notepadsWithCounters) {
+                List<Notepad> notepads = new ArrayList<>(notepadsWithCounters.size() + 1);
+                SparseIntArray notesCounters = new SparseIntArray(notepadsWithCounters.size() + 1);
+                int allNotesCounter = 0;
+                for (Map.Entry<Notepad, Integer> notepad : notepadsWithCounters.entrySet()) {
+                    notepads.add(notepad.getKey());
+                    notesCounters.put(notepad.getKey().getId(), notepad.getValue());
+                    allNotesCounter += notepad.getValue();
+                }
+                //добавить типа-блокнот "all" (id = 0) со всеми заметками.
+                notepads.add(0, new Notepad(getArguments().getInt(ARG_USER_ID), getString(R.string.notes_all), 0));
+                notesCounters.put(0, allNotesCounter);
+                mNotesCounters = notesCounters;
+                callback.onResult(notepads);
+            }
+        });
+    }
+
+    /**
+     * Изменения заметок меняют только счетчики, переименование - только название одного блокнота.
+     * Новые блокноты и пачки изменений применяются перечитыванием списка.
+     */
     @Override
-    List<Notepad> getElementsListFromDatabase() {
-        StorageKeeper.GetUserNotepadsAsListTask getUserNotepadsAsListTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new GetUserNotepadsAsListTask();
-        getUserNotepadsAsListTask.execute(getArguments().getInt(ARG_USER_ID));
-        try {
-            List<Notepad> notepads = getUserNotepadsAsListTask.get();
-            //добавить типа-блокнот "all" (id = 0) со всеми заметками.
-            notepads.add(0, new Notepad(getArguments().getInt(ARG_USER_ID), getString(R.string.notes_all), 0));
-            return notepads;
+    boolean applyChange(StorageChange change) {
+        switch (change.getType()) {
+            case NOTE_INSERTED:
+                changeNotesCounter(change.getNotepadId(), 1);
+                return true;
+            case NOTE_DELETED:
+                changeNotesCounter(change.getNotepadId(), -1);
+                return true;
+            case NOTE_MOVED:
+                changeNotesCounter(change.getPreviousNotepadId(), -1);
+                changeNotesCounter(change.getNotepadId(), 1);
+                return true;
+            case NOTE_UPDATED:
+                return true; //ни название, ни счетчик блокнота от этого не меняются.
+            case NOTEPAD_RENAMED:
+                return renameNotepad(change.getNotepadId());
+            default:
+                return false;
         }
-        catch (InterruptedException | ExecutionException ex) {
-            Log.e("Getting notepads list: ", ex.getMessage(), ex);
-            return null;
+    }
+
+    private void changeNotesCounter(int notepadId, int delta) {
+        //блокнот с id = 0 - это "all", в нем все заметки.
+        mNotesCounters.put(0, mNotesCounters.get(0) + delta);
+        getAdapter().notifyItemChanged(getNotepadPosition(0));
+        int position = getNotepadPosition(notepadId);
+        if (position >= 0) {
+            mNotesCounters.put(notepadId, mNotesCounters.get(notepadId) + delta);
+            getAdapter().notifyItemChanged(position);
         }
     }
 
+    private boolean renameNotepad(final int notepadId) {
+        if (getNotepadPosition(notepadId) < 0) {
+            return false;
+        }
+        //название подставится, когда придет ответ. позиция ищется заново: список за это время мог измениться.
+        addCall(getStorageKeeper().getNotepadTitleByIdAsync(notepadId, new StorageKeeper.Callback<String>() {
+            @Override
+            public void onResult(String title) {
+                if (title == null) {
+                    updateUI(); //блокнота уже нет.
+                    return;
+                }
+                int position = getNotepadPosition(notepadId);
+                if (position < 0) {
+                    return;
+                }
+                getAdapter().elements.get(position).setTitle(title);
+                getAdapter().notifyItemChanged(position);
+            }
+        }));
+        return true;
+    }
+
+    private int getNotepadPosition(int notepadId) {
+        List<Notepad> notepads = getAdapter().elements;
+        for (int i = 0; i < notepads.size(); ++i) {
+            if (notepads.get(i).getId() == notepadId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     AbstractListAdapter<Notepad> createAdapter(List<Notepad> elementsList) {
         return new NotepadAdapter(elementsList);
@@ -72,25 +156,11 @@ public class NotepadsListFragment extends AbstractListFragment<Notepad> {
 
         @Override
         public void bind(Notepad element) {
-            //логика вывода. Вероятно, запрос к БД на количество заметок нужен здесь.
+            //количество заметок уже посчитано одним запросом вместе со списком блокнотов.
             mNotepad = element;
 
-            StorageKeeper.GetUserNotesAsListTask getUserNotesAsListTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new GetUserNotesAsListTask();
-            getUserNotesAsListTask.execute(mNotepad.getCreatorId(), mNotepad.getId());
-            //TODO: рассмотреть возможность написания Map<Notepad, NotesCounter>, чтобы вместо N раз дергать БД один.
-
             mNotepadTitlePreview.setText(element.getTitle());
-
-            int notesCounter = -1;
-            try {
-                List<Note> notes = getUserNotesAsListTask.get();
-                notesCounter = notes.size();
-            }
-            catch (InterruptedException | ExecutionException ex) {
-                Log.e("Getting notepad's notes", ex.getMessage(), ex);
-            }
-
-            mNotepadNotesCounter.setText(String.format(getString(R.string.notes_counter), notesCounter));
+            mNotepadNotesCounter.setText(String.format(getString(R.string.notes_counter), mNotesCounters.get(mNotepad.getId(), -1)));
         }
 
         NotepadViewHolder(LayoutInflater inflater, ViewGroup parent, int layoutId) {
@@ -4,7 +4,10 @@ package com.portallium.notekeeper.ui.list;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -15,14 +18,18 @@ import android.widget.TextView;
 
 import com.portallium.notekeeper.R;
 import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.beans.NoteListItem;
+import com.portallium.notekeeper.database.StorageCall;
+import com.portallium.notekeeper.database.StorageChange;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.note.NoteActivity;
 import com.portallium.notekeeper.ui.note.create.NoteParametersPickerDialogFragment;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 
-public class NotesListFragment extends AbstractListFragment<Note> {
+public class NotesListFragment extends AbstractListFragment<NoteListItem> {
 
     private static final String ARG_USER_ID = "userId";
     private static final String ARG_NOTEPAD_ID = "notepadId";
@@ -36,14 +43,33 @@ public class NotesListFragment extends AbstractListFragment<Note> {
      * Максимально допустимая длина названия блокнота в его превью во ViewHolder. Значение = {@value}
      */
     private static final int NOTEPAD_TITLE_PREVIEW_MAX_LENGTH = 20;
+
+    /**
+     * Количество заметок, загружаемых из БД за один раз. Значение = {@value}
+     */
+    private static final int PAGE_SIZE = 50;
     /**
-     * Максимально допустимая длина текста заметки в ее превью во ViewHolder. Значение = {@value}
+     * Максимальное количество страниц, одновременно находящихся в памяти. Страницы, от которых пользователь
+     * ушел дальше, выбрасываются и при необходимости загружаются заново. Значение = {@value}
      */
-    private static final int TEXT_PREVIEW_MAX_LENGTH = 60;
+    private static final int MAX_PAGES_IN_MEMORY = 4;
     /**
-     * Максимально допустимое количество строк в превью текста заметки во ViewHolder. Значение = {@value}
+     * За сколько строк до края загруженного окна начинается загрузка следующей страницы. Значение = {@value}
      */
-    private static final int TEXT_PREVIEW_MAX_LINES = 3;
+    private static final int PREFETCH_DISTANCE = 15;
+
+    private NoteAdapter mNoteAdapter;
+    /**
+     * Загружающаяся в данный момент страница. Одновременно грузится не больше одной.
+     */
+    private StorageCall<List<NoteListItem>> mPageCall;
+    /**
+     * Перечитывающиеся строки по id заметки. Если заметка изменится еще раз, пока строка перечитывается,
+     * старый запрос отменяется: иначе его ответ мог бы прийти последним и вернуть в список устаревшую строку.
+     */
+    private final SparseArray<StorageCall<NoteListItem>> mNoteCalls = new SparseArray<>();
+    private boolean mHasOlderNotes;
+    private boolean mHasNewerNotes;
 
 
     public static NotesListFragment newInstance(int userId, int notepadId, String firebaseId) {
@@ -57,22 +83,182 @@ public class NotesListFragment extends AbstractListFragment<Note> {
     }
 
     @Override
-    NoteAdapter createAdapter(List<Note> elementsList) {
-        return new NoteAdapter(elementsList);
+    NoteAdapter createAdapter(List<NoteListItem> elementsList) {
+        mNoteAdapter = new NoteAdapter(elementsList);
+        return mNoteAdapter;
     }
 
+    /**
+     * Загружает только первую (самую свежую) страницу заметок. Остальные подгружаются по мере прокрутки.
+     */
+    @Override
+    StorageCall<?> loadElements(final StorageKeeper.Callback<List<NoteListItem>> callback) {
+        //запросы, начатые для старого списка, уже отменены (см. updateUI).
+        mPageCall = null;
+        mNoteCalls.clear();
+        return getStorageKeeper().getUserNoteListItemsPageAsync(
+                getArguments().getInt(ARG_USER_ID), getArguments().getInt(ARG_NOTEPAD_ID), null, true, PAGE_SIZE,
+                new StorageKeeper.Callback<List<NoteListItem>>() {
+                    @Override
+                    public void onResult(List<NoteListItem> firstPage) {
+                        mHasOlderNotes = firstPage.size() == PAGE_SIZE;
+                        mHasNewerNotes = false;
+                        callback.onResult(firstPage);
+                    }
+                });
+        //TODO:если в блокноте нет заметок, нарисовать об этом картинку
+    }
+
+    /**
+     * Применяет к загруженному окну заметок только те изменения, которые его касаются.
+     * Новую заметку, перенесенную сюда заметку и пачки изменений проще применить перечитыванием первой страницы.
+     */
     @Override
-    List<Note> getElementsListFromDatabase() {
-        StorageKeeper.GetUserNotesAsListTask getNotesTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new GetUserNotesAsListTask();
-        getNotesTask.execute(NotesListFragment.this.getArguments().getInt(ARG_USER_ID), NotesListFragment.this.getArguments().getInt(ARG_NOTEPAD_ID));
-        try {
-            return getNotesTask.get();
+    boolean applyChange(StorageChange change) {
+        int notepadId = getArguments().getInt(ARG_NOTEPAD_ID);
+        switch (change.getType()) {
+            case NOTE_DELETED:
+                mNoteAdapter.removeNote(change.getNoteId());
+                return true;
+            case NOTE_UPDATED:
+                return reloadNote(change.getNoteId());
+            case NOTE_MOVED:
+                if (notepadId == 0) {
+                    return reloadNote(change.getNoteId()); //в списке всех заметок поменяется только название блокнота.
+                } else if (change.getPreviousNotepadId() == notepadId) {
+                    mNoteAdapter.removeNote(change.getNoteId());
+                    return true;
+                }
+                return change.getNotepadId() != notepadId;
+            case NOTE_INSERTED:
+                //новая заметка - самая свежая, ее место в самом начале списка. но только если начало списка загружено.
+                if (notepadId != 0 && change.getNotepadId() != notepadId) {
+                    return true;
+                }
+                if (mHasNewerNotes) {
+                    return false;
+                }
+                loadNoteListItem(change.getNoteId(), new StorageKeeper.Callback<NoteListItem>() {
+                    @Override
+                    public void onResult(NoteListItem newNote) {
+                        if (newNote == null || mHasNewerNotes) {
+                            return; //заметку уже удалили, или начало списка успели выбросить.
+                        }
+                        int position = mNoteAdapter.getNotePosition(newNote.getNote().getId());
+                        if (position >= 0) {
+                            mNoteAdapter.replaceElement(position, newNote);
+                        } else {
+                            mNoteAdapter.prependElements(new ArrayList<>(Collections.singletonList(newNote)));
+                        }
+                    }
+                });
+                return true;
+            case NOTEPAD_RENAMED:
+                //название блокнота видно в каждой его заметке. перечитываем только их.
+                for (NoteListItem item : new ArrayList<>(mNoteAdapter.elements)) {
+                    if (item.getNote().getNotepadId() == change.getNotepadId() && !reloadNote(item.getNote().getId())) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
         }
-        catch (InterruptedException | ExecutionException ex) {
-            Log.e("Getting notes: ", ex.getMessage(), ex);
-            return null;
+    }
+
+    /**
+     * Перечитывает из БД строку списка с данной заметкой, если эта строка сейчас загружена.
+     * Строка обновится, когда придет ответ. Если заметки к тому времени уже нет, список перечитывается целиком.
+     * @return false, если строку перечитать не удалось.
+     */
+    private boolean reloadNote(final int noteId) {
+        if (mNoteAdapter.getNotePosition(noteId) < 0) {
+            return true; //заметки нет в загруженном окне. когда до нее докрутят, она загрузится уже новой.
         }
-        //TODO:если в блокноте нет заметок, нарисовать об этом картинку
+        loadNoteListItem(noteId, new StorageKeeper.Callback<NoteListItem>() {
+            @Override
+            public void onResult(NoteListItem item) {
+                if (item == null) {
+                    updateUI();
+                    return;
+                }
+                //позиция ищется заново: пока строка грузилась, окно могло сдвинуться.
+                int position = mNoteAdapter.getNotePosition(noteId);
+                if (position >= 0) {
+                    mNoteAdapter.replaceElement(position, item);
+                }
+            }
+        });
+        return true;
+    }
+
+    private void loadNoteListItem(final int noteId, final StorageKeeper.Callback<NoteListItem> callback) {
+        StorageCall<NoteListItem> previousCall = mNoteCalls.get(noteId);
+        if (previousCall != null) {
+            previousCall.cancel();
+        }
+        mNoteCalls.put(noteId, addCall(getStorageKeeper().getNoteListItemByIdAsync(noteId, new StorageKeeper.Callback<NoteListItem>() {
+            @Override
+            public void onResult(NoteListItem item) {
+                mNoteCalls.remove(noteId);
+                callback.onResult(item);
+            }
+        })));
+    }
+
+    @Override
+    void onRecyclerViewCreated(RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (mPageCall != null || mNoteAdapter == null) {
+                    return;
+                }
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (mHasOlderNotes && layoutManager.findLastVisibleItemPosition() >= mNoteAdapter.getItemCount() - PREFETCH_DISTANCE) {
+                    loadPage(true);
+                } else if (mHasNewerNotes && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                    loadPage(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Асинхронно загружает страницу заметок, соседнюю с уже загруженным окном, и, когда она готова, добавляет ее
+     * к краю окна. Если окно выросло больше MAX_PAGES_IN_MEMORY страниц, с противоположного края выбрасываются лишние заметки.
+     * @param older true - страницу после последней загруженной заметки, false - перед первой.
+     */
+    private void loadPage(final boolean older) {
+        List<NoteListItem> loadedNotes = mNoteAdapter.elements;
+        if (loadedNotes.isEmpty()) {
+            return;
+        }
+        NoteListItem anchor = older ? loadedNotes.get(loadedNotes.size() - 1) : loadedNotes.get(0);
+        mPageCall = addCall(getStorageKeeper().getUserNoteListItemsPageAsync(
+                getArguments().getInt(ARG_USER_ID), getArguments().getInt(ARG_NOTEPAD_ID), anchor, older, PAGE_SIZE,
+                new StorageKeeper.Callback<List<NoteListItem>>() {
+                    @Override
+                    public void onResult(List<NoteListItem> page) {
+                        mPageCall = null;
+                        int overflow = mNoteAdapter.getItemCount() + page.size() - PAGE_SIZE * MAX_PAGES_IN_MEMORY;
+                        if (older) {
+                            mNoteAdapter.appendElements(page);
+                            mHasOlderNotes = page.size() == PAGE_SIZE;
+                            if (overflow > 0) {
+                                mNoteAdapter.removeFirstElements(overflow);
+                                mHasNewerNotes = true;
+                            }
+                        } else {
+                            mNoteAdapter.prependElements(page);
+                            mHasNewerNotes = page.size() == PAGE_SIZE;
+                            if (overflow > 0) {
+                                mNoteAdapter.removeLastElements(overflow);
+                                mHasOlderNotes = true;
+                            }
+                        }
+                    }
+                }));
     }
 
     @Override
@@ -95,7 +281,7 @@ public class NotesListFragment extends AbstractListFragment<Note> {
         }
     }
 
-    private class NoteViewHolder extends AbstractListFragment<Note>.AbstractViewHolder<Note> {
+    private class NoteViewHolder extends AbstractListFragment<NoteListItem>.AbstractViewHolder<NoteListItem> {
 
         private TextView mNoteTitleView;
         private TextView mNoteTextPreview;
@@ -103,51 +289,28 @@ public class NotesListFragment extends AbstractListFragment<Note> {
         private Note mNote;
 
         @Override
-        public void bind(Note element) {
-            mNote = element;
-
-            StorageKeeper.GetNotepadTitleByIdTask task = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new GetNotepadTitleByIdTask();
-            task.execute(mNote.getNotepadId());
+        public void bind(NoteListItem element) {
+            mNote = element.getNote();
 
             String titlePreview = mNote.getTitle().trim();
             if (titlePreview.length() > TITLE_PREVIEW_MAX_LENGTH) {
                 titlePreview = titlePreview.substring(0, TITLE_PREVIEW_MAX_LENGTH - 3).trim() + "...";
             }
 
-            try {
-                String notepadTitle = task.get();
+            //название блокнота приходит вместе с заметкой, отдельный запрос к БД на каждую строку не нужен.
+            String notepadTitle = element.getNotepadTitle();
+            if (notepadTitle != null) {
                 if (notepadTitle.length() > NOTEPAD_TITLE_PREVIEW_MAX_LENGTH)
                     notepadTitle = notepadTitle.substring(0, NOTEPAD_TITLE_PREVIEW_MAX_LENGTH - 3) + "...";
                 titlePreview = titlePreview.concat(" [" + notepadTitle.toUpperCase() + "]");
             }
-            catch (InterruptedException | ExecutionException ex) {
-                Log.e("Getting notepad title", ex.getMessage(), ex);
-            }
             mNoteTitleView.setText(titlePreview);
             //если название заметки длиннее 30 символов, то превью будет выводить только первые 27.
             //(для названия блокнота - то же самое для 20 символов: будет выведено 17).
 
-            //с превью текста похожая история. но там еще важно учитывать количество абзацев. я не хочу, чтобы
-            //превью одной заметки занимало весь экран.
-            String textPreview = mNote.getText().trim();
-            String[] lines = textPreview.split("\n", TEXT_PREVIEW_MAX_LINES + 1);
-            textPreview = "";
-            for (int i = 0; i < TEXT_PREVIEW_MAX_LINES && i < lines.length; ++i) {
-                textPreview = textPreview.concat(lines[i]);
-                if (i < (TEXT_PREVIEW_MAX_LINES - 1) && i < (lines.length - 1)) {
-                    textPreview = textPreview.concat("\n");
-                }
-            }
-            //теперь textPreview - это первых три абзаца заметки
-            boolean noteIsLong = false;
-            if (textPreview.length() > TEXT_PREVIEW_MAX_LENGTH) {
-                textPreview = textPreview.substring(0, TEXT_PREVIEW_MAX_LENGTH - 3).trim();
-                noteIsLong = true;
-            }
-            if (lines.length > TEXT_PREVIEW_MAX_LINES || noteIsLong) {
-                textPreview = textPreview.concat("...");
-            }
-            mNoteTextPreview.setText(textPreview.trim());
+            //превью текста собирается при записи заметки и хранится в БД (см. NotePreviewHelper),
+            //сам текст заметки в список не загружается.
+            mNoteTextPreview.setText(element.getTextPreview());
         }
 
         NoteViewHolder (LayoutInflater inflater, ViewGroup parent, int layoutId){
@@ -160,7 +323,7 @@ public class NotesListFragment extends AbstractListFragment<Note> {
                 @Override
                 public void onClick(View view) {
                     Log.d("Starting NoteActivity", "Note clicked");
-                    startActivity(NoteActivity.getIntent(getActivity(), mNote, getArguments().getString(ARG_FIREBASE_ID)));
+                    startActivity(NoteActivity.getIntent(getActivity(), mNote.getId(), getArguments().getString(ARG_FIREBASE_ID)));
                 }
             });
             itemView.setOnLongClickListener(new View.OnLongClickListener() {
@@ -172,9 +335,8 @@ public class NotesListFragment extends AbstractListFragment<Note> {
                             .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                                 @Override
                                 public void onClick(DialogInterface dialogInterface, int i) {
-                                    StorageKeeper.DeleteNoteTask deleteNoteTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new DeleteNoteTask();
-                                    deleteNoteTask.execute(mNote);
-                                    updateUI();
+                                    getStorageKeeper().deleteNoteAsync(mNote, null);
+                                    //строка исчезнет из списка, когда придет событие об удалении.
                                 }
                             })
                             .setNegativeButton(android.R.string.no, new DialogInterface.OnClickListener() {
@@ -191,12 +353,56 @@ public class NotesListFragment extends AbstractListFragment<Note> {
         }
     }
 
-    private class NoteAdapter extends AbstractListAdapter<Note> {
+    private class NoteAdapter extends AbstractListAdapter<NoteListItem> {
 
-        NoteAdapter(List<Note> noteList) {
+        NoteAdapter(List<NoteListItem> noteList) {
             super(noteList);
         }
 
+        void appendElements(List<NoteListItem> page) {
+            int oldSize = elements.size();
+            elements.addAll(page);
+            notifyItemRangeInserted(oldSize, page.size());
+        }
+
+        void prependElements(List<NoteListItem> page) {
+            elements.addAll(0, page);
+            notifyItemRangeInserted(0, page.size());
+        }
+
+        void removeFirstElements(int count) {
+            elements.subList(0, count).clear();
+            notifyItemRangeRemoved(0, count);
+        }
+
+        void removeLastElements(int count) {
+            int newSize = elements.size() - count;
+            elements.subList(newSize, elements.size()).clear();
+            notifyItemRangeRemoved(newSize, count);
+        }
+
+        int getNotePosition(int noteId) {
+            for (int i = 0; i < elements.size(); ++i) {
+                if (elements.get(i).getNote().getId() == noteId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void replaceElement(int position, NoteListItem item) {
+            elements.set(position, item);
+            notifyItemChanged(position);
+        }
+
+        void removeNote(int noteId) {
+            int position = getNotePosition(noteId);
+            if (position >= 0) {
+                elements.remove(position);
+                notifyItemRemoved(position);
+            }
+        }
+
         @Override
         public NoteViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
             return new NoteViewHolder(LayoutInflater.from(getActivity()), parent, R.layout.list_note_holder);
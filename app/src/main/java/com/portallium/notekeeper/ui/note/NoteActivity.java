@@ -9,17 +9,21 @@ import com.portallium.notekeeper.ui.SingleFragmentActivity;
 
 public class NoteActivity extends SingleFragmentActivity {
 
-    private static final String EXTRA_NOTE = "com.portallium.notekeeper.ui.note";
+    private static final String EXTRA_NOTE_ID = "com.portallium.notekeeper.ui.note";
     private static final String EXTRA_FIREBASE_ID = "com.portallium.notekeeper.user_key";
 
     @Override
     protected Fragment createFragment() {
-        return NoteFragment.newInstance((Note)getIntent().getSerializableExtra(EXTRA_NOTE), getIntent().getStringExtra(EXTRA_FIREBASE_ID));
+        return NoteFragment.newInstance(getIntent().getIntExtra(EXTRA_NOTE_ID, Note.ID_NOT_YET_ASSIGNED), getIntent().getStringExtra(EXTRA_FIREBASE_ID));
     }
 
-    public static Intent getIntent(Context context, Note note, String firebaseUserId) {
+    /**
+     * @param noteId id открываемой заметки. Саму заметку (вместе с полным текстом) загружает NoteFragment:
+     *               в списке заметок текста нет, там только превью.
+     */
+    public static Intent getIntent(Context context, int noteId, String firebaseUserId) {
         Intent intent = new Intent(context, NoteActivity.class);
-        intent.putExtra(EXTRA_NOTE, note);
+        intent.putExtra(EXTRA_NOTE_ID, noteId);
         intent.putExtra(EXTRA_FIREBASE_ID, firebaseUserId);
         return intent;
     }
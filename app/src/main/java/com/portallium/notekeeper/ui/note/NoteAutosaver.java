@@ -0,0 +1,85 @@
+package com.portallium.notekeeper.ui.note;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.database.StorageKeeper;
+
+/**
+ * Автосохранение открытой заметки. Раньше каждая потеря фокуса полем, каждый выбор блокнота и onPause
+ * сразу записывали заметку целиком в SQLite и Firebase, так что одна правка, размазанная по полям, давала несколько записей.
+ * Теперь правки только откладываются: заметка пишется, когда пользователь AUTOSAVE_DELAY_MILLIS ничего не менял,
+ * или сразу при flush() (из onPause). Все правки за это время сливаются в одну запись, а если заметка
+ * в итоге не отличается от сохраненной, не пишется ничего.
+ * Используется только из главного потока.
+ */
+class NoteAutosaver {
+
+    /**
+     * Сколько миллисекунд после последней правки ждать, прежде чем сохранить заметку. Значение = {@value}
+     */
+    static final long AUTOSAVE_DELAY_MILLIS = 2000;
+
+    private final StorageKeeper mStorageKeeper;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Заметка в том виде, в котором она последний раз отправлена в БД.
+     */
+    private Note mSaved;
+    /**
+     * Заметка с правками, которые еще не отправлены. null, если таких нет.
+     */
+    private Note mPending;
+
+    /**
+     * @param saved заметка в том виде, в котором она лежит в БД.
+     */
+    NoteAutosaver(StorageKeeper storageKeeper, Note saved) {
+        mStorageKeeper = storageKeeper;
+        mSaved = new Note(saved);
+        mSaved.clearModifiedFields();
+    }
+
+    /**
+     * Запоминает текущее состояние заметки и откладывает сохранение на AUTOSAVE_DELAY_MILLIS.
+     * Каждый следующий вызов откладывает его заново.
+     */
+    void onNoteEdited(Note note) {
+        mPending = new Note(note);
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postDelayed(mFlushRunnable, AUTOSAVE_DELAY_MILLIS);
+    }
+
+    /**
+     * Сразу отправляет отложенные правки в БД, если они что-то меняют.
+     * Запись, раз поставленная в очередь StorageKeeper'а, выполнится, даже если фрагмент уже уничтожен.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPending == null) {
+            return;
+        }
+        //правки накладываются на сохраненную заметку: сеттеры отметят только поля, которые действительно
+        //отличаются от БД, и StorageKeeper запишет и отправит в Firebase только их.
+        Note note = new Note(mSaved);
+        note.setTitle(mPending.getTitle());
+        note.setText(mPending.getText());
+        note.setNotepadId(mPending.getNotepadId());
+        mPending = null;
+        if (note.getModifiedFields() == 0) {
+            return; //например, пользователь вернул все как было.
+        }
+        //запись идет в фоне, а mSaved еще будет сравниваться с правками, поэтому сохраняется копия.
+        mSaved = new Note(note);
+        mSaved.clearModifiedFields();
+        mStorageKeeper.updateNoteAsync(note, null);
+    }
+}
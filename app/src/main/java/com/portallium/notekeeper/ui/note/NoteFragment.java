@@ -3,6 +3,7 @@ package com.portallium.notekeeper.ui.note;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,31 +13,70 @@ import android.widget.Spinner;
 
 import com.portallium.notekeeper.R;
 import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.database.StorageCallGroup;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.utilities.NotepadSpinnerHelper;
 
 public class NoteFragment extends Fragment {
 
-    private static final String ARG_NOTE = "Note";
+    private static final String ARG_NOTE_ID = "noteId";
     private static final String ARG_FIREBASE_ID = "firebaseId";
 
     private EditText mTitleText;
     private Spinner mNotepadSelector;
     private EditText mNoteText;
 
+    /**
+     * Открытая заметка. null, пока она не загрузилась.
+     */
     private Note mNote;
+    /**
+     * Создается вместе с загрузкой заметки.
+     */
+    private NoteAutosaver mAutosaver;
 
-    @Override
-    public void onCreate(@Nullable Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        mNote = (Note) getArguments().getSerializable(ARG_NOTE);
-    }
+    private final StorageCallGroup mCalls = new StorageCallGroup();
 
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
         View v = inflater.inflate(R.layout.fragment_note, container, false);
         mTitleText = v.findViewById(R.id.note_title);
+        mNoteText = v.findViewById(R.id.note_text);
+        mNotepadSelector = v.findViewById(R.id.note_notepad_picker);
+
+        if (mNote != null) { //View пересоздается, а заметка уже загружена.
+            bindNote();
+            return v;
+        }
+        //пока заметка загружается, редактировать нечего.
+        mTitleText.setEnabled(false);
+        mNoteText.setEnabled(false);
+        mCalls.add(getStorageKeeper().getNoteByIdAsync(getArguments().getInt(ARG_NOTE_ID), new StorageKeeper.Callback<Note>() {
+            @Override
+            public void onResult(Note note) {
+                if (note == null) {
+                    //заметку успели удалить (например, при синхронизации). показывать нечего.
+                    getActivity().finish();
+                    return;
+                }
+                mNote = note;
+                mAutosaver = new NoteAutosaver(getStorageKeeper(), note);
+                mTitleText.setEnabled(true);
+                mNoteText.setEnabled(true);
+                bindNote();
+            }
+        }));
+        return v;
+    }
+
+    @Override
+    public void onDestroyView() {
+        mCalls.cancelAll();
+        super.onDestroyView();
+    }
+
+    private void bindNote() {
         mTitleText.setText(mNote.getTitle());
         mTitleText.setOnFocusChangeListener(new View.OnFocusChangeListener() {
             @Override
@@ -44,12 +84,11 @@ public class NoteFragment extends Fragment {
                 EditText editText = (EditText) view;
                 if (!b && !(editText.getText().toString().equals(mNote.getTitle()))) { //виджет потерял фокус, текст в поле изменен
                     mNote.setTitle(editText.getText().toString());
-                    updateNoteInDatabase();
+                    mAutosaver.onNoteEdited(mNote);
                 }
             }
         });
 
-        mNoteText = v.findViewById(R.id.note_text);
         mNoteText.setText(mNote.getText());
         mNoteText.setOnFocusChangeListener(new View.OnFocusChangeListener() {
             @Override
@@ -57,56 +96,64 @@ public class NoteFragment extends Fragment {
                 EditText editText = (EditText) view;
                 if (!b && !(editText.getText().toString().equals(mNote.getText()))) {
                     mNote.setText(editText.getText().toString());
-                    updateNoteInDatabase();
+                    mAutosaver.onNoteEdited(mNote);
                 }
             }
         });
 
-        mNotepadSelector = v.findViewById(R.id.note_notepad_picker);
         final NotepadSpinnerHelper notepadSpinnerHelper = new NotepadSpinnerHelper();
-        mNotepadSelector.setAdapter(notepadSpinnerHelper.createCursorAdapter(getActivity(), mNote.getCreatorId(), getArguments().getString(ARG_FIREBASE_ID)));
-        mNotepadSelector.setSelection(notepadSpinnerHelper.getSpinnerPositionByNotepadId(mNote.getNotepadId()));
-        mNotepadSelector.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
-            @Override
-            public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
-                //мне НЕ нравится, что этот коллбек срабатывает при запуске активности.
-                int newNotepadId = notepadSpinnerHelper.getNotepadIdBySpinnerPosition(i);
-                //если выбран тот же блокнот, в которм заметка изначально и находилась, то нечего в БД лишние запросы кидать.
-                if (newNotepadId != mNote.getNotepadId()) {
-                    mNote.setNotepadId(newNotepadId);
-                    updateNoteInDatabase();
-                }
-            }
+        mCalls.add(notepadSpinnerHelper.createCursorAdapter(getActivity(), mNote.getCreatorId(), getArguments().getString(ARG_FIREBASE_ID),
+                new StorageKeeper.Callback<SimpleCursorAdapter>() {
+                    @Override
+                    public void onResult(SimpleCursorAdapter adapter) {
+                        mNotepadSelector.setAdapter(adapter);
+                        mNotepadSelector.setSelection(notepadSpinnerHelper.getSpinnerPositionByNotepadId(mNote.getNotepadId()));
+                        //лиснер вешается после setSelection, чтобы сама загрузка спиннера не считалась выбором блокнота.
+                        mNotepadSelector.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                            @Override
+                            public void onItemSelected(AdapterView<?> adapterView, View view, int i, long l) {
+                                //мне НЕ нравится, что этот коллбек срабатывает при запуске активности.
+                                int newNotepadId = notepadSpinnerHelper.getNotepadIdBySpinnerPosition(i);
+                                //если выбран тот же блокнот, в которм заметка изначально и находилась, то нечего в БД лишние запросы кидать.
+                                if (newNotepadId != mNote.getNotepadId()) {
+                                    mNote.setNotepadId(newNotepadId);
+                                    mAutosaver.onNoteEdited(mNote);
+                                }
+                            }
 
-            @Override
-            public void onNothingSelected(AdapterView<?> adapterView) {
-                //сомневаюсь, что здесь возможен такой расклад.
-            }
-        });
-        return v;
+                            @Override
+                            public void onNothingSelected(AdapterView<?> adapterView) {
+                                //сомневаюсь, что здесь возможен такой расклад.
+                            }
+                        });
+                    }
+                }));
     }
 
     @Override
     public void onPause() {
         //потому что какой-то из виджетов может быть в фокусе при нажатии кнопки back, например.
         super.onPause();
+        if (mNote == null) {
+            return; //заметка еще не загрузилась, сохранять нечего.
+        }
         mNote.setTitle(mTitleText.getText().toString());
         mNote.setText(mNoteText.getText().toString());
-        updateNoteInDatabase();
+        //если ничего не изменилось, flush ничего и не запишет.
+        mAutosaver.onNoteEdited(mNote);
+        mAutosaver.flush();
     }
 
-    public static NoteFragment newInstance(Note note, String firebaseId) {
+    public static NoteFragment newInstance(int noteId, String firebaseId) {
         Bundle args = new Bundle();
-        args.putSerializable(ARG_NOTE, note);
+        args.putInt(ARG_NOTE_ID, noteId);
         args.putString(ARG_FIREBASE_ID, firebaseId);
         NoteFragment fragment = new NoteFragment();
         fragment.setArguments(args);
         return fragment;
     }
 
-    private void updateNoteInDatabase() {
-        //вносим изменения в БД
-        StorageKeeper.UpdateNoteTask updateNoteTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new UpdateNoteTask();
-        updateNoteTask.execute(mNote);
+    private StorageKeeper getStorageKeeper() {
+        return StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID));
     }
 }
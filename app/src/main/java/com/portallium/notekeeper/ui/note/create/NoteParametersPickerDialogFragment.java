@@ -6,6 +6,7 @@ import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
+import android.support.v4.widget.SimpleCursorAdapter;
 import android.support.v7.app.AlertDialog;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -16,12 +17,11 @@ import android.widget.Toast;
 
 import com.portallium.notekeeper.R;
 import com.portallium.notekeeper.beans.Note;
+import com.portallium.notekeeper.database.StorageCallGroup;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.list.NotesListFragment;
 import com.portallium.notekeeper.ui.utilities.NotepadSpinnerHelper;
 
-import java.util.concurrent.ExecutionException;
-
 public class NoteParametersPickerDialogFragment extends DialogFragment {
 
     private static final String ARG_USER_ID = "userId";
@@ -32,6 +32,8 @@ public class NoteParametersPickerDialogFragment extends DialogFragment {
     private Spinner mNotepadPicker;
     private EditText mNoteText;
 
+    private final StorageCallGroup mCalls = new StorageCallGroup();
+
     @NonNull
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
@@ -43,11 +45,17 @@ public class NoteParametersPickerDialogFragment extends DialogFragment {
 
         //Все это чудо по получению списка блокнотов из БД выносится в отдельный поток
         final NotepadSpinnerHelper notepadSpinnerHelper = new NotepadSpinnerHelper();
-        mNotepadPicker.setAdapter(notepadSpinnerHelper.createCursorAdapter(getActivity(), getArguments().getInt(ARG_USER_ID), getArguments().getString(ARG_FIREBASE_ID)));
-        int defaultNotepadId = getArguments().getInt(ARG_NOTEPAD_ID, -1);
-        if (defaultNotepadId > 0) {
-            mNotepadPicker.setSelection(notepadSpinnerHelper.getSpinnerPositionByNotepadId(defaultNotepadId));
-        }
+        mCalls.add(notepadSpinnerHelper.createCursorAdapter(getActivity(), getArguments().getInt(ARG_USER_ID), getArguments().getString(ARG_FIREBASE_ID),
+                new StorageKeeper.Callback<SimpleCursorAdapter>() {
+                    @Override
+                    public void onResult(SimpleCursorAdapter adapter) {
+                        mNotepadPicker.setAdapter(adapter);
+                        int defaultNotepadId = getArguments().getInt(ARG_NOTEPAD_ID, -1);
+                        if (defaultNotepadId > 0) {
+                            mNotepadPicker.setSelection(notepadSpinnerHelper.getSpinnerPositionByNotepadId(defaultNotepadId));
+                        }
+                    }
+                }));
 
         mNoteText = v.findViewById(R.id.dialog_note_text);
 
@@ -64,16 +72,14 @@ public class NoteParametersPickerDialogFragment extends DialogFragment {
                             return;
                         }
                         int notepadId = notepadSpinnerHelper.getNotepadIdBySpinnerPosition(mNotepadPicker.getSelectedItemPosition());
-                        Note newNote = new Note (notepadId, getArguments().getInt(ARG_USER_ID), noteTitle, noteText);
-                        //добавляем заметку в БД
-                        StorageKeeper.AddNoteToDatabaseTask addNoteTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new AddNoteToDatabaseTask();
-                        addNoteTask.execute(newNote);
-                        try {
-                            newNote.setId(addNoteTask.get());
-                        }
-                        catch (ExecutionException | InterruptedException ex) {
-                            Log.e("Adding note to DB", ex.getMessage(), ex);
+                        if (notepadId < 0) {
+                            Log.e("Adding note to DB", "notepads are not loaded yet, note is not added");
+                            sendResult(Activity.RESULT_CANCELED);
+                            return;
                         }
+                        Note newNote = new Note (notepadId, getArguments().getInt(ARG_USER_ID), noteTitle, noteText);
+                        //добавляем заметку в БД. ждать записи не нужно: список добавит заметку, когда придет событие о ней.
+                        StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).addNoteAsync(newNote, null);
 
                         sendResult(Activity.RESULT_OK);
                     }
@@ -89,6 +95,12 @@ public class NoteParametersPickerDialogFragment extends DialogFragment {
         //fixme: очень важно! что, если блокнотов совсем нет? Куда добавлять штуку?
     }
 
+    @Override
+    public void onDestroyView() {
+        mCalls.cancelAll();
+        super.onDestroyView();
+    }
+
     public static NoteParametersPickerDialogFragment newInstance(int userId, String firebaseId) {
 
         Bundle args = new Bundle();
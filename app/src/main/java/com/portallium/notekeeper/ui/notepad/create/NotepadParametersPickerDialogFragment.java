@@ -2,12 +2,12 @@ package com.portallium.notekeeper.ui.notepad.create;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v7.app.AlertDialog;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.EditText;
@@ -18,8 +18,6 @@ import com.portallium.notekeeper.beans.Notepad;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.list.NotesListFragment;
 
-import java.util.concurrent.ExecutionException;
-
 public class NotepadParametersPickerDialogFragment extends DialogFragment {
 
     private static final String ARG_USER_ID = "userId";
@@ -40,28 +38,25 @@ public class NotepadParametersPickerDialogFragment extends DialogFragment {
                 .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, int i) {
-                        String noteTitle = mNotepadTitle.getText().toString();
+                        final String noteTitle = mNotepadTitle.getText().toString();
                         if (noteTitle.isEmpty()) {
                             Toast.makeText(getActivity(), R.string.toast_empty_notepad_title, Toast.LENGTH_LONG).show();
                             sendResult(Activity.RESULT_CANCELED);
                             return; //чтобы не создавать блокнот с пустым названием
                         }
                         Notepad newNotepad = new Notepad(getArguments().getInt(ARG_USER_ID), noteTitle);
-                        StorageKeeper.AddNotepadToDatabaseTask addNotepadTask = StorageKeeper.getInstance(getContext(), getArguments().getString(ARG_FIREBASE_ID)).new AddNotepadToDatabaseTask();
-                        try {
-                            addNotepadTask.execute(newNotepad);
-                            if (addNotepadTask.get() < 0) {
-                                Toast.makeText(getActivity(), String.format(getString(R.string.dialog_duplicate_notepad), noteTitle), Toast.LENGTH_LONG).show();
-                                sendResult(Activity.RESULT_CANCELED);
-                            } else {
-                                sendResult(Activity.RESULT_OK);
+                        //к моменту записи диалог уже закрыт, поэтому тост показывается через контекст приложения.
+                        final Context applicationContext = getActivity().getApplicationContext();
+                        StorageKeeper.getInstance(getContext(), getArguments().getString(ARG_FIREBASE_ID)).addNotepadAsync(newNotepad, new StorageKeeper.Callback<Integer>() {
+                            @Override
+                            public void onResult(Integer notepadId) {
+                                if (notepadId < 0) {
+                                    Toast.makeText(applicationContext, String.format(applicationContext.getString(R.string.dialog_duplicate_notepad), noteTitle), Toast.LENGTH_LONG).show();
+                                }
                             }
-                        }
-                        catch (InterruptedException | ExecutionException ex) {
-                            Log.e("Adding Notepad to DB", ex.getMessage(), ex);
-                            sendResult(Activity.RESULT_CANCELED);
-                        }
-
+                        });
+                        //список добавит блокнот, когда придет событие о нем.
+                        sendResult(Activity.RESULT_OK);
                     }
                 })
                 .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
@@ -2,12 +2,12 @@ package com.portallium.notekeeper.ui.notepad.rename;
 
 import android.app.Activity;
 import android.app.Dialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v7.app.AlertDialog;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.EditText;
@@ -19,7 +19,6 @@ import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.ui.list.NotesListFragment;
 
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 
 public class NotepadRenameDialogFragment extends DialogFragment {
 
@@ -56,34 +55,30 @@ public class NotepadRenameDialogFragment extends DialogFragment {
                 .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialogInterface, int i) {
-                        String noteTitle = mNotepadTitle.getText().toString();
+                        final String noteTitle = mNotepadTitle.getText().toString();
                         if (noteTitle.isEmpty()) {
                             Toast.makeText(getActivity(), R.string.toast_empty_notepad_title, Toast.LENGTH_LONG).show();
                             sendResult(Activity.RESULT_CANCELED);
                             return;
                         }
 
-                        //проверить, нет ли уже блокнота с таким названием.
-                        StorageKeeper.GetUserNotepadsAsListTask getUserNotepadsAsListTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new GetUserNotepadsAsListTask();
-                        getUserNotepadsAsListTask.execute(mNotepad.getCreatorId());
-                        try {
-                            List<Notepad> notepads = getUserNotepadsAsListTask.get();
-                            for (Notepad notepad : notepads) {
-                                if (noteTitle.equals(notepad.getTitle())) {
-                                    sendResult(Activity.RESULT_CANCELED);
-                                    Toast.makeText(getActivity(), String.format(getString(R.string.dialog_duplicate_notepad), noteTitle), Toast.LENGTH_LONG).show();
-                                    return;
+                        //проверить, нет ли уже блокнота с таким названием. к моменту ответа диалог уже закрыт,
+                        //поэтому тост показывается через контекст приложения, а список узнает о переименовании из события.
+                        final Context applicationContext = getActivity().getApplicationContext();
+                        final StorageKeeper storageKeeper = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID));
+                        storageKeeper.getUserNotepadsAsListAsync(mNotepad.getCreatorId(), new StorageKeeper.Callback<List<Notepad>>() {
+                            @Override
+                            public void onResult(List<Notepad> notepads) {
+                                for (Notepad notepad : notepads) {
+                                    if (noteTitle.equals(notepad.getTitle())) {
+                                        Toast.makeText(applicationContext, String.format(applicationContext.getString(R.string.dialog_duplicate_notepad), noteTitle), Toast.LENGTH_LONG).show();
+                                        return;
+                                    }
                                 }
+                                mNotepad.setTitle(noteTitle);
+                                storageKeeper.updateNotepadAsync(mNotepad, null);
                             }
-                        }
-                        catch (InterruptedException | ExecutionException ex) {
-                            Log.e("Getting notepads' list", ex.getMessage(), ex);
-                            sendResult(Activity.RESULT_CANCELED);
-                        }
-
-                        mNotepad.setTitle(noteTitle);
-                        StorageKeeper.UpdateNotepadTask updateNotepadTask = StorageKeeper.getInstance(getActivity(), getArguments().getString(ARG_FIREBASE_ID)).new UpdateNotepadTask();
-                        updateNotepadTask.execute(mNotepad);
+                        });
                         sendResult(Activity.RESULT_OK);
                     }
                 })
@@ -3,15 +3,13 @@ package com.portallium.notekeeper.ui.utilities;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.v4.widget.SimpleCursorAdapter;
-import android.util.Log;
 
 import com.portallium.notekeeper.R;
 import com.portallium.notekeeper.database.DatabaseConstants;
+import com.portallium.notekeeper.database.StorageCall;
 import com.portallium.notekeeper.database.StorageKeeper;
 import com.portallium.notekeeper.database.StorageKeeperCursorWrapper;
 
-import java.util.concurrent.ExecutionException;
-
 /**
  * В двух классах - NoteParametersPickerDialogFragment и NotesListFragment - требуется выполнять похожие операции,
  * связанные с функционированием спиннера. Этот класс написан для того, чтобы не повторять код дважды.
@@ -21,29 +19,29 @@ public class NotepadSpinnerHelper {
     private Cursor mNotepadsCursor;
 
     /**
+     * Асинхронно загружает блокноты пользователя и создает по ним адаптер для спиннера.
+     * Пока адаптер не готов, остальные методы хелпера вызывать нельзя.
      * @param context контекст, из которого будет производиться обращение к базам данных.
      * @param userId локальный id авторизованного в системе пользователя.
      * @param firebaseUserId firebase id авторизованного в системе пользователя.
-     * @return объект класса SimpleCursorAdapter, нужный для инициализации спиннера.
+     * @param callback получит объект класса SimpleCursorAdapter, нужный для инициализации спиннера. Вызывается в главном потоке.
+     * @return запрос блокнотов. Его можно отменить, например, когда уничтожается View спиннера.
      */
-    public SimpleCursorAdapter createCursorAdapter(Context context, int userId, String firebaseUserId) {
-        final StorageKeeper.GetUserNotepadsAsCursorTask task = StorageKeeper.getInstance(context, firebaseUserId).new GetUserNotepadsAsCursorTask();
-        task.execute(userId);
-
-        try {
-            mNotepadsCursor = task.get();
-            return new SimpleCursorAdapter(
-                    context,
-                    R.layout.spinner_element_notepad_name,
-                    mNotepadsCursor,
-                    new String[]{DatabaseConstants.Notepads.Columns.TITLE},
-                    new int[]{R.id.spinner_element_title},
-                    0);
-        }
-        catch (InterruptedException | ExecutionException ex) {
-            Log.e("GetAllUsersNotepadsTask", ex.getMessage(), ex);
-            return null;
-        }
+    public StorageCall<Cursor> createCursorAdapter(final Context context, int userId, String firebaseUserId,
+                                                   final StorageKeeper.Callback<SimpleCursorAdapter> callback) {
+        return StorageKeeper.getInstance(context, firebaseUserId).getUserNotepadsAsCursorAsync(userId, new StorageKeeper.Callback<Cursor>() {
+            @Override
+            public void onResult(Cursor notepadsCursor) {
+                mNotepadsCursor = notepadsCursor;
+                callback.onResult(new SimpleCursorAdapter(
+                        context,
+                        R.layout.spinner_element_notepad_name,
+                        mNotepadsCursor,
+                        new String[]{DatabaseConstants.Notepads.Columns.TITLE},
+                        new int[]{R.id.spinner_element_title},
+                        0));
+            }
+        });
     }
 
     /**
@@ -52,7 +50,9 @@ public class NotepadSpinnerHelper {
      * @return локальный id блокнота
      */
     public int getNotepadIdBySpinnerPosition(int position) {
-        mNotepadsCursor.moveToPosition(position);
+        if (mNotepadsCursor == null || !mNotepadsCursor.moveToPosition(position)) {
+            return -1; //блокноты еще не загрузились (или их нет вовсе).
+        }
         return mNotepadsCursor.getInt(mNotepadsCursor.getColumnIndex(DatabaseConstants.Notepads.Columns.NOTEPAD_ID));
     }
 
@@ -63,16 +63,19 @@ public class NotepadSpinnerHelper {
      * @param notepadId id блокнота
      * @return позиция блокнота с данным id в спиннере либо -1, если блокнота с данным id нет в спиннере
      */
-    public int getSpinnerPositionByNotepadId(int notepadId) {
-        StorageKeeperCursorWrapper wrapper = new StorageKeeperCursorWrapper(mNotepadsCursor);
-        wrapper.moveToFirst();
-        int i = 0;
-        while (!wrapper.isAfterLast()) {
-            if (wrapper.parseNotepad().getId() == notepadId)
-                return i;
-            i++;
-            wrapper.moveToNext();
-        }
-        return -1;
+    public int getSpinnerPositionByNotepadId(final int notepadId) {
+        final int[] position = {-1};
+        //для поиска нужен только id, так что объекты Notepad ради него не собираем.
+        new StorageKeeperCursorWrapper(mNotepadsCursor).forEachRow(new StorageKeeperCursorWrapper.RowVisitor() {
+            @Override
+            public boolean visitRow(StorageKeeperCursorWrapper row) {
+                if (row.getLocalId() == notepadId) {
+                    position[0] = row.getPosition();
+                    return false;
+                }
+                return true;
+            }
+        });
+        return position[0];
     }
 }
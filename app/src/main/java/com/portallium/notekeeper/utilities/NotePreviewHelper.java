@@ -0,0 +1,45 @@
+package com.portallium.notekeeper.utilities;
+
+public class NotePreviewHelper {
+
+    /**
+     * Максимально допустимая длина текста заметки в ее превью. Значение = {@value}
+     */
+    private static final int TEXT_PREVIEW_MAX_LENGTH = 60;
+    /**
+     * Максимально допустимое количество строк в превью текста заметки. Значение = {@value}
+     */
+    private static final int TEXT_PREVIEW_MAX_LINES = 3;
+
+    /**
+     * Собирает превью текста заметки для списка заметок. Превью хранится в БД рядом с текстом и пересчитывается
+     * при каждой записи заметки, поэтому списку сам текст (который бывает очень длинным) загружать не нужно.
+     * @param text полный текст заметки.
+     * @return не больше трех первых абзацев и не больше 60 символов текста. Если текст обрезан, в конце стоит многоточие.
+     */
+    public static String makeTextPreview(String text) {
+        if (text == null) {
+            return "";
+        }
+        //я не хочу, чтобы превью одной заметки занимало весь экран, поэтому важна не только длина, но и количество абзацев.
+        String textPreview = text.trim();
+        String[] lines = textPreview.split("\n", TEXT_PREVIEW_MAX_LINES + 1);
+        textPreview = "";
+        for (int i = 0; i < TEXT_PREVIEW_MAX_LINES && i < lines.length; ++i) {
+            textPreview = textPreview.concat(lines[i]);
+            if (i < (TEXT_PREVIEW_MAX_LINES - 1) && i < (lines.length - 1)) {
+                textPreview = textPreview.concat("\n");
+            }
+        }
+        //теперь textPreview - это первых три абзаца заметки
+        boolean noteIsLong = false;
+        if (textPreview.length() > TEXT_PREVIEW_MAX_LENGTH) {
+            textPreview = textPreview.substring(0, TEXT_PREVIEW_MAX_LENGTH - 3).trim();
+            noteIsLong = true;
+        }
+        if (lines.length > TEXT_PREVIEW_MAX_LINES || noteIsLong) {
+            textPreview = textPreview.concat("...");
+        }
+        return textPreview.trim();
+    }
+}